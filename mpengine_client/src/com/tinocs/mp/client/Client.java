@@ -1,15 +1,23 @@
 package com.tinocs.mp.client;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>The Client class controls the client's connection to the server. It handles writing and reading data
@@ -90,10 +98,64 @@ public class Client implements Runnable {
     
     /** A room opened. */
     public static final String CMD_OPENED_ROOM = "ROOM_OPENED";
+
+    /** The current state of the server, sent when this client starts receiving every lobby event again */
+    public static final String CMD_LOBBY_STATE = "LOBBY_STATE";
+
+    /** The port and token of the UDP side channel, sent in reply to {@link #useUdp()} */
+    public static final String CMD_UDP = "UDP";
+
+    /** The server received the address this client sends datagrams from */
+    public static final String CMD_UDP_READY = "UDP_READY";
+
+    /** The token of the session of this client and how long it is kept after a lost connection, sent in reply to {@link #enableResume()} */
+    public static final String CMD_RESUME_ENABLE = "RESUME_ENABLE";
+
+    /** This client took over its session on a new connection and is sent everything it missed next */
+    public static final String CMD_RESUMED = "RESUMED";
+
+    /** The session of this client could not be resumed */
+    public static final String CMD_RESUME_FAIL = "RESUME_FAIL";
+
+    /** A heartbeat from the server, which this client answers with PONG right away */
+    public static final String CMD_PING = "PING";
+
+    /**
+     * THROTTLED command retryMillis: messages with the given command word sent by this client are being dropped because
+     * it is over the server's rate limit, and should not be sent again for retryMillis. It is passed to the event handler.
+     */
+    public static final String CMD_THROTTLED = "THROTTLED";
+
+    /**
+     * LINE_TOO_LONG maxLength: the server only handled the first maxLength bytes of a line sent by this client, because
+     * the line was longer than the server allows. It is passed to the event handler.
+     */
+    public static final String CMD_LINE_TOO_LONG = "LINE_TOO_LONG";
+
+    /**
+     * BUSY retryMillis: the server is too busy to take this client on and closed the connection, so this client should
+     * try to connect again after retryMillis (see {@link #getBusyRetryMillis()}). It is passed to the event handler.
+     */
+    public static final String CMD_BUSY = "BUSY";
     
     /** invalid command error */
     public static final String INVALID_CMD = "INVALID_CMD";
 
+    // how long a MOVE or ROT sent in a datagram waits for a newer one about the same actor before it is sent over TCP
+    private static final int SETTLE_MILLIS = 200;
+    // the most actors the newest datagram received about is kept for; past that they are forgotten and start over
+    private static final int MAX_STATE_KEYS = 4096;
+
+    // a state update sent in a datagram, and when
+    private static final class Settling {
+        final String line;
+        final long sentNanos = System.nanoTime();
+
+        Settling(String line) {
+            this.line = line;
+        }
+    }
+
     private final String hostName;
     private final int portNumber;
     private Socket sock;
@@ -128,6 +190,50 @@ public class Client implements Runnable {
 
     // The maximum number of rooms allowed on the server
     private int maxRooms;
+
+    // The optional features of the server (such as COMPACT_IDS), each mapped to true
+    private ConcurrentHashMap<String, Boolean> serverFeatures = new ConcurrentHashMap<>();
+
+    // true once useBinaryProtocol() has switched the messages sent by this client to binary frames
+    private volatile boolean binary;
+    // true once useCompression() has asked the server to compress what it sends
+    private volatile boolean compressed;
+
+    // the token of the session the server keeps for this client and for how long, or null before enableResume()
+    private volatile String resumeToken;
+    private volatile int resumeGraceMillis;
+    // the number of lines read over TCP since the session started (only touched by the client thread)
+    private long linesRead;
+    // true once disconnect() was called, so a lost connection is not resumed
+    private volatile boolean leaving;
+
+    // true once useUdp() has asked the server for a side channel
+    private volatile boolean udpRequested;
+    // the socket of the UDP side channel and the token that identifies this client on it, or null before useUdp()
+    private volatile DatagramSocket udpSocket;
+    private volatile String udpToken;
+    // true once the server has received the UDP address of this client
+    private volatile boolean udpReady;
+    // the number of the last datagram sent
+    private final AtomicLong udpSeq = new AtomicLong();
+    private final AtomicLong staleDatagrams = new AtomicLong();
+    // the last state update of each actor sent in a datagram, by state key, until it is sent again over TCP
+    private final ConcurrentHashMap<String, Settling> unsettled = new ConcurrentHashMap<>();
+    private volatile int simulatedLossPercent;
+    // commands from TCP and UDP are processed one at a time while holding this lock
+    private final Object dispatchLock = new Object();
+
+    // the round trip time the server measured with its last PING, or -1 if it has not measured one yet
+    private volatile int roundTripMillis = -1;
+
+    // how long the server asked this client to wait before connecting again, or -1 if it never turned it away
+    private volatile long busyRetryMillis = -1;
+
+    // the most bytes of a line from the server this client reads before it gives up on the connection
+    private volatile int maxLineLength = MessageReader.MAX_LINE_LENGTH;
+
+    // The number of actor ids made by newActorId() so far
+    private final AtomicLong actorCount = new AtomicLong();
     
     /**
      * Initialize a GameClient to connect to the given hostName and portNumber.
@@ -150,8 +256,7 @@ public class Client implements Runnable {
     public synchronized void broadcastMessage(String message) {
         try {
             if (sock != null) {
-                PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                out.println(message);
+                writeLine(message);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -166,8 +271,7 @@ public class Client implements Runnable {
     public synchronized void broadcastMessageToRoom(String message, String roomId) {
         try {
             if (sock != null) {
-                PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                out.println("TO_ROOM " + roomId + " " + message);
+                writeLine("TO_ROOM " + roomId + " " + message);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -182,18 +286,349 @@ public class Client implements Runnable {
     public synchronized void sendMessage(String message, String toId) {
         try {
             if (sock != null) {
-                PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                out.println("TO " + toId + " " + message);
+                writeLine("TO " + toId + " " + message);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // write a line to the server as text, or as a binary frame once useBinaryProtocol() has switched this client to it
+    private synchronized void writeLine(String line) throws IOException {
+        if (binary) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.length + 8);
+            BinaryFraming.encodeLine(bytes, 0, bytes.length, frame);
+            frame.writeTo(sock.getOutputStream());
+        } else {
+            PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
+            out.println(line);
+        }
+    }
+
+    /**
+     * Switch to the binary protocol, which sends each message as a length-prefixed binary frame (see {@link BinaryFraming})
+     * instead of a line of text. Numbers and ids are sent in far fewer bytes that way, and the server does not have to
+     * look for line breaks. Nothing else changes: messages are sent and received as the same strings as before, and
+     * clients using either protocol can play together. This client must be connected before this is called.
+     * @return true if the server supports the binary protocol (the BINARY feature) and this client switched to it
+     */
+    public synchronized boolean useBinaryProtocol() {
+        if (binary) return true;
+        if (sock == null || !serverHasFeature("BINARY")) return false;
+        try {
+            writeLine("PROTOCOL BINARY");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        binary = true;
+        return true;
+    }
+
+    /**
+     * Ask the server to compress everything it sends to this client from now on. This makes large messages such as
+     * the lobby state of a server with many rooms, or a burst of ADD commands when joining a busy room, several times
+     * smaller, at the cost of some CPU time on both ends. Only servers started with compression turned on
+     * (the DEFLATE feature) allow it. This client must be connected before this is called.
+     * @return true if the server supports compression and was asked for it
+     */
+    public boolean useCompression() {
+        if (sock == null || !serverHasFeature("DEFLATE")) return false;
+        broadcastMessage("COMPRESS DEFLATE");
+        compressed = true;
+        return true;
+    }
+
+    /**
+     * <p>
+     * Ask the server to keep the session of this client for a while if its connection is lost. The server keeps this
+     * client's id and room, and every message sent to it, until either it is back or the time the server allows is up
+     * (the server decides how long). This client reconnects on its own as soon as it notices the connection is gone,
+     * is sent everything it missed, and carries on as if nothing happened; the other clients never see it leave.
+     * Binary frames, compression and the UDP side channel are asked for again on the new connection if they were in use.
+     * Only servers started with resuming turned on (the RESUME feature) allow it. This client must be connected
+     * before this is called.
+     * </p>
+     * <p>
+     * Messages this client sends while it is reconnecting are lost. If the session can't be resumed, for example
+     * because the server did not hear from this client in time or too many messages were sent to it meanwhile,
+     * this client is disconnected as usual.
+     * </p>
+     * @return true if the server supports resuming and was asked for it
+     */
+    public boolean enableResume() {
+        if (sock == null || !serverHasFeature("RESUME")) return false;
+        broadcastMessage(CMD_RESUME_ENABLE);
+        return true;
+    }
+
+    /**
+     * Returns true once the server keeps a session for this client that it can resume (see {@link #enableResume()}).
+     * @return true if this client resumes its session when its connection is lost
+     */
+    public boolean canResume() {
+        return resumeToken != null;
+    }
+
+    /**
+     * <p>
+     * Ask the server for a UDP side channel. Once it is ready, messages sent with {@link #broadcastUnreliable(String)}
+     * and {@link #broadcastUnreliableToRoom(String, String)} go in datagrams, and such messages from other clients
+     * arrive in datagrams, so a lost packet only loses that update instead of holding up every message behind it
+     * until TCP resends it. Only servers started with a UDP port (the UDP feature) allow it. This client must be
+     * connected before this is called.
+     * </p>
+     * <p>
+     * Datagrams can be lost, and a MOVE or ROT that arrives after a newer one about the same actor is dropped, so only
+     * send messages this way that are soon replaced by newer ones, such as the position of an actor that keeps moving.
+     * Once a MOVE or ROT of an actor has not been followed by another for {@value #SETTLE_MILLIS} ms, it is sent again
+     * over TCP, so the other clients always end up with the actor where it stopped. A datagram can also arrive before a
+     * message sent earlier over TCP, such as the ADD of the actor it is about.
+     * </p>
+     * @return true if the server supports UDP and was asked for it
+     */
+    public boolean useUdp() {
+        if (sock == null || !serverHasFeature("UDP")) return false;
+        broadcastMessage(CMD_UDP);
+        udpRequested = true;
+        return true;
+    }
+
+    /**
+     * Returns true once the UDP side channel asked for with {@link #useUdp()} is ready.
+     * @return true if unreliable messages are sent in datagrams
+     */
+    public boolean usesUdp() {
+        return udpReady;
+    }
+
+    /**
+     * Broadcast a message from this client to all the other clients in a datagram if the UDP side channel is ready
+     * (see {@link #useUdp()}), otherwise over TCP like {@link #broadcastMessage(String)}. The message may be lost.
+     * @param message the message
+     */
+    public void broadcastUnreliable(String message) {
+        if (!sendDatagram(message)) {
+            settled(message);
+            broadcastMessage(message);
+        }
+    }
+
+    /**
+     * Broadcast a message from this client to all the other clients in the given room in a datagram if the UDP side
+     * channel is ready (see {@link #useUdp()}), otherwise over TCP like {@link #broadcastMessageToRoom(String, String)}.
+     * The message may be lost.
+     * @param message the message
+     * @param roomId the id of the room
+     */
+    public void broadcastUnreliableToRoom(String message, String roomId) {
+        String line = "TO_ROOM " + roomId + " " + message;
+        if (!sendDatagram(line)) {
+            settled(line);
+            broadcastMessageToRoom(message, roomId);
+        }
+    }
+
+    /**
+     * Drop the given percentage of datagrams sent and received by this client on purpose, to see how a game copes
+     * with a lossy network while testing on one machine.
+     * @param percent the percentage of datagrams to drop, from 0 to 100
+     */
+    public void setSimulatedPacketLoss(int percent) {
+        simulatedLossPercent = Math.max(0, Math.min(100, percent));
+    }
+
+    /**
+     * Returns the number of MOVE and ROT messages received in datagrams that were dropped because they arrived after
+     * a newer one about the same actor.
+     * @return the number of out of order state updates
+     */
+    public long getStaleDatagrams() {
+        return staleDatagrams.get();
+    }
+
+    // send a line in a datagram, returning false if it must go over TCP instead
+    private boolean sendDatagram(String line) {
+        DatagramSocket udp = udpSocket;
+        if (!udpReady || udp == null) return false;
+        byte[] bytes = (udpToken + " " + udpSeq.incrementAndGet() + "\n" + line).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 1200) return false;
+        // a lost datagram is still sent again over TCP once the actor settles
+        String[] tokens = line.split(" ", 5);
+        String key = stateKey(tokens, tokens[0].equals("TO") || tokens[0].equals("TO_ROOM") ? 2 : 0);
+        if (key != null) unsettled.put(key, new Settling(line));
+        if (simulateLoss()) return true;
+        try {
+            udp.send(new DatagramPacket(bytes, bytes.length));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // forget the state update about the same actor as the given line, which is sent over TCP anyway
+    private void settled(String line) {
+        if (unsettled.isEmpty()) return;
+        String[] tokens = line.split(" ", 5);
+        String key = stateKey(tokens, tokens[0].equals("TO") || tokens[0].equals("TO_ROOM") ? 2 : 0);
+        if (key != null) unsettled.remove(key);
+    }
+
+    // "MOVE actorId" or "ROT actorId" if the tokens from the given index are a state update, and null otherwise
+    private static String stateKey(String[] tokens, int at) {
+        if (tokens.length < at + 2 || !tokens[at].equals("MOVE") && !tokens[at].equals("ROT")) return null;
+        return tokens[at] + " " + tokens[at + 1];
+    }
+
+    // send the last state update of every actor that stopped changing over TCP, until the socket is closed
+    private void settleStates(DatagramSocket udp) {
+        while (!udp.isClosed()) {
+            try {
+                Thread.sleep(SETTLE_MILLIS / 2);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Map.Entry<String, Settling> entry : unsettled.entrySet()) {
+                Settling settling = entry.getValue();
+                // only if no newer update replaced it in the meantime
+                if (now - settling.sentNanos >= SETTLE_MILLIS * 1_000_000L && unsettled.remove(entry.getKey(), settling)) {
+                    broadcastMessage(settling.line);
+                }
+            }
+        }
+    }
+
+    private boolean simulateLoss() {
+        int percent = simulatedLossPercent;
+        return percent > 0 && ThreadLocalRandom.current().nextInt(100) < percent;
+    }
+
+    // open the side channel, then register its address and receive datagrams on their own threads
+    private void startUdp(int port, String token) throws IOException {
+        if (token.equals(udpToken) && udpSocket != null) return;
+        // after a resume, the reply to a request made on the lost connection may arrive with a token that is no longer valid
+        DatagramSocket old = udpSocket;
+        if (old != null) old.close();
+        udpReady = false;
+        DatagramSocket udp = new DatagramSocket();
+        udp.setReceiveBufferSize(1 << 20);
+        udp.connect(new InetSocketAddress(sock.getInetAddress(), port));
+        udpToken = token;
+        udpSocket = udp;
+        Thread registration = new Thread(() -> {
+            byte[] hello = (token + " 0\n").getBytes(StandardCharsets.UTF_8);
+            // the registration datagram can be lost too, so keep sending it until the server has it
+            for (int i = 0; i < 50 && !udpReady && !udp.isClosed(); i++) {
+                try {
+                    if (!simulateLoss()) udp.send(new DatagramPacket(hello, hello.length));
+                    Thread.sleep(100);
+                } catch (IOException | InterruptedException e) {
+                    return;
+                }
+            }
+        }, "udp-registration");
+        registration.setDaemon(true);
+        registration.start();
+        Thread receiver = new Thread(() -> receiveDatagrams(udp), "udp-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread settler = new Thread(() -> settleStates(udp), "udp-settle");
+        settler.setDaemon(true);
+        settler.start();
+    }
+
+    // process the messages in each datagram, except state updates older than the last one about the same actor,
+    // until the socket is closed
+    private void receiveDatagrams(DatagramSocket udp) {
+        // the server numbers the datagrams of each side channel from the start; by state key
+        Map<String, Long> lastSeqs = new HashMap<>();
+        byte[] buf = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!udp.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                udp.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            if (simulateLoss()) continue;
+            String[] lines = new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8).split("\n");
+            long seq;
+            try {
+                seq = Long.parseLong(lines[0]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].isEmpty()) continue;
+                // the line is "senderId command ..."
+                String key = stateKey(lines[i].split(" ", 4), 1);
+                if (key != null) {
+                    Long last = lastSeqs.get(key);
+                    if (last != null && seq <= last) {
+                        staleDatagrams.incrementAndGet();
+                        continue;
+                    }
+                    if (last == null && lastSeqs.size() >= MAX_STATE_KEYS) lastSeqs.clear();
+                    lastSeqs.put(key, seq);
+                }
+                dispatch(lines[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the round trip time of the connection to the server: how long it took from the server sending its last
+     * heartbeat until this client's answer arrived. Only servers started with heartbeats (the HEARTBEAT feature)
+     * measure it, and this client answers every heartbeat on its own, so nothing has to be done to keep it up to date.
+     * @return the round trip time in milliseconds, or -1 if it has not been measured yet
+     */
+    public int getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    /**
+     * Returns how long the server asked this client to wait before connecting again when it turned it away with
+     * BUSY because it had too many connections or too many were arriving at once. A server that asks for this has
+     * already closed the connection.
+     * @return the time to wait in milliseconds, or -1 if the server never turned this client away
+     */
+    public long getBusyRetryMillis() {
+        return busyRetryMillis;
+    }
+
+    /**
+     * Sets the most bytes a line sent by the server may have (defaults to 16 MB). This client never buffers more of a
+     * line than that, and treats a longer line as a lost connection. It takes effect on the next connection.
+     * @param maxLineLength the maximum line length in bytes
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = Math.max(16, Math.min(maxLineLength, MessageReader.MAX_LINE_LENGTH));
+    }
+
+    /**
+     * Returns the most bytes a line sent by the server may have.
+     * @return the maximum line length in bytes
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Returns true if this client has switched to the binary protocol with {@link #useBinaryProtocol()}.
+     * @return true if this client uses the binary protocol
+     */
+    public boolean usesBinaryProtocol() {
+        return binary;
+    }
+
     /**
      * disconnect from the server.
      */
     public void disconnect() {
+        leaving = true;
         broadcastMessage(CMD_DISCONNECT);
     }
 
@@ -209,6 +644,20 @@ public class Client implements Runnable {
         broadcastMessage("ADD_ROOM " + roomName + " " + capacity);
     }
 
+    /**
+     * Tell the server to make a room with the given name and capacity that delivers the messages sent to it
+     * tickRate times per second. Everything sent to the room during a tick arrives together, and when an actor
+     * moves (or rotates) more than once in a tick only its latest position (or rotation) is sent on.
+     * This cuts down traffic in busy rooms at the cost of up to one tick of delay.
+     * @param roomName the name of the room to add
+     * @param capacity the capacity of the room to add
+     * @param tickRate the number of times per second messages to the room are delivered (0 delivers them immediately)
+     */
+    public void addRoom(String roomName, int capacity, int tickRate) {
+        roomName = roomName.replaceAll("[\\s,]+", "");
+        broadcastMessage("ADD_ROOM " + roomName + " " + capacity + " " + tickRate);
+    }
+
     /**
      * Remove the room with the given Id from the server.
      * @param roomId the id of the room to remove
@@ -249,6 +698,55 @@ public class Client implements Runnable {
         broadcastMessage("OPEN_ROOM " + roomId);
     }
 
+    /**
+     * Receive every lobby event (rooms being added, removed, joined, left, closed, opened or changing owner).
+     * This is the default. If this client was not receiving every lobby event, the server sends the current
+     * state so the room information kept by this client is brought up to date
+     * (see {@link ClientEventHandler#handleLobbyState(Client)}).
+     */
+    public void subscribeToLobby() {
+        broadcastMessage("LOBBY_SUBSCRIBE");
+    }
+
+    /**
+     * Receive every lobby event while this client is not in a room, and only the events about its own room while
+     * it is in one. Players in the middle of a game usually have no use for the rest of the lobby, so this saves
+     * them from receiving it. The room information kept by this client is brought up to date each time it leaves a room.
+     */
+    public void subscribeToLobbyWhileNotInRoom() {
+        broadcastMessage("LOBBY_SUBSCRIBE AUTO");
+    }
+
+    /**
+     * Only receive the lobby events about the room this client is in (and about this client itself).
+     * Until {@link #subscribeToLobby()} is called, the information this client keeps about other rooms
+     * (see {@link #getRoomIds()} and the related methods) may be out of date.
+     */
+    public void unsubscribeFromLobby() {
+        broadcastMessage("LOBBY_UNSUBSCRIBE");
+    }
+
+    /**
+     * Tell the server which part of the world this client is interested in, such as the area around its player or the
+     * area shown on screen. From then on this client receives every MOVE for the actors within range of (x, y) in its room,
+     * but only some of the MOVE messages for actors further away, which saves a lot of traffic in big rooms. Every other
+     * message still arrives as usual. Call this again whenever the area moves; the last position of any actor that
+     * comes into range is sent right away. The interest is cleared when this client leaves the room.
+     * @param x the x coordinate of the center of the area
+     * @param y the y coordinate of the center of the area
+     * @param range the distance from the center to the edges of the area
+     */
+    public void setInterest(double x, double y, double range) {
+        broadcastMessage("INTEREST " + x + " " + y + " " + range);
+    }
+
+    /**
+     * Receive every MOVE sent to this client's room again (see {@link #setInterest(double, double, double)}).
+     */
+    public void clearInterest() {
+        broadcastMessage("INTEREST OFF");
+    }
+
     /**
      * start the thread that will connect to the server and begin reading and writing data.
      */
@@ -262,33 +760,143 @@ public class Client implements Runnable {
      */
     @Override
     public void run() {
-        // Create a socket, a PrintWriter to write to the socket and a BufferedReader to read from the socket
-        // using try with resources so they will close automatically when the try-catch is finished.
-        try (
-        Socket sock = new Socket(hostName, portNumber);
-        PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-        ) {
+        try {
+            Socket sock = new Socket(hostName, portNumber);
             // save a reference to the socket in the sock instance variable
             this.sock = sock;
-            // read the first command
-            String nextCommand = in.readLine();
+            MessageReader in = new MessageReader(sock.getInputStream(), maxLineLength);
             setIsConnected(true);
-            // keep getting the next command while still connected and thread is not interrupted
-            while (nextCommand != null && !Thread.interrupted()){
-                processCommand(nextCommand);
-                // get the next command
-                nextCommand = in.readLine();
-            }
+            // if the connection is lost, carry on over a new one while the server keeps the session of this client
+            while (readCommands(in) && (in = resumeSession()) != null);
         } catch (UnknownHostException e) {
             System.err.println("Unknown host: " + hostName);
         } catch (IOException e) {
             System.err.println("I/O exception for connection: " + hostName);
         } finally {
+            closeSockets();
             setIsConnected(false);
         }
     }
 
+    // process every command read until the connection is lost (true) or the thread is interrupted (false)
+    private boolean readCommands(MessageReader in) {
+        try {
+            // keep getting the next command while still connected and thread is not interrupted
+            String nextCommand = in.readLine();
+            while (nextCommand != null) {
+                if (Thread.interrupted()) return false;
+                // the server counts every line after the RESUME_ENABLE reply, so this client must too
+                if (resumeToken != null) linesRead++;
+                // the server sends this line right before its first binary frame
+                if (nextCommand.equals("PROTOCOL BINARY")) in.setBinary();
+                // and this one right before it starts compressing
+                else if (nextCommand.equals("COMPRESS DEFLATE")) in.setCompressed();
+                else if (nextCommand.startsWith(CMD_RESUME_ENABLE + " ")) startSession(nextCommand);
+                else dispatch(nextCommand);
+                // get the next command
+                nextCommand = in.readLine();
+            }
+        } catch (IOException e) {
+            System.err.println("I/O exception for connection: " + hostName);
+        }
+        return true;
+    }
+
+    // RESUME_ENABLE token graceMillis
+    private void startSession(String cmd) {
+        String[] tokens = cmd.split(" ");
+        resumeGraceMillis = Integer.parseInt(tokens[2]);
+        linesRead = 0;
+        resumeToken = tokens[1];
+    }
+
+    /*
+     * Connect again and take over the session of this client, retrying until the server's grace period is over.
+     * Returns the reader of the new connection, positioned right after RESUMED, or null if the session can't be resumed.
+     */
+    private MessageReader resumeSession() {
+        String token = resumeToken;
+        boolean useBinary = binary;
+        boolean useUdp = udpRequested;
+        closeSockets();
+        if (token == null || leaving) return null;
+        System.err.println("Lost the connection to " + hostName + ", resuming the session of " + id);
+        long deadline = System.currentTimeMillis() + resumeGraceMillis;
+        while (!leaving) {
+            int remaining = (int)(deadline - System.currentTimeMillis());
+            if (remaining <= 0) return null;
+            Socket sock = new Socket();
+            long wait = 250;
+            try {
+                sock.connect(new InetSocketAddress(hostName, portNumber), remaining);
+                sock.setSoTimeout(remaining);
+                MessageReader in = new MessageReader(sock.getInputStream(), maxLineLength);
+                synchronized (this) {
+                    this.sock = sock;
+                    binary = false;
+                }
+                writeLine("RESUME " + id + " " + token + " " + linesRead);
+                // the server greets the new connection as a new client first, which this client ignores
+                String line = in.readLine();
+                while (line != null && !line.equals(CMD_RESUMED + " " + id)) {
+                    if (line.equals(CMD_RESUME_FAIL + " " + id)) {
+                        sock.close();
+                        System.err.println("The server could not resume the session of " + id);
+                        return null;
+                    }
+                    // the server turned the new connection away, so try again when it asks
+                    if (line.startsWith(CMD_BUSY + " ")) {
+                        wait = Long.parseLong(line.substring(CMD_BUSY.length() + 1));
+                        line = null;
+                        break;
+                    }
+                    line = in.readLine();
+                }
+                if (line != null) {
+                    sock.setSoTimeout(0);
+                    restoreConnection(useBinary, useUdp);
+                    return in;
+                }
+            } catch (IOException e) {
+                // the server may not be reachable yet
+            }
+            try {
+                sock.close();
+                Thread.sleep(Math.min(wait, Math.max(0, deadline - System.currentTimeMillis())));
+            } catch (IOException | InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // ask for what this client used on its previous connection, now that the session is back
+    private void restoreConnection(boolean useBinary, boolean useUdp) {
+        if (useBinary) useBinaryProtocol();
+        if (compressed) broadcastMessage("COMPRESS DEFLATE");
+        if (useUdp) useUdp();
+    }
+
+    // close the socket of the server connection and of the UDP side channel, if any
+    private synchronized void closeSockets() {
+        try {
+            if (sock != null) sock.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        DatagramSocket udp = udpSocket;
+        if (udp != null) udp.close();
+        udpSocket = null;
+        udpReady = false;
+    }
+
+    // process a command, making sure commands received over TCP and UDP are never processed at the same time
+    private void dispatch(String cmd) {
+        synchronized (dispatchLock) {
+            processCommand(cmd);
+        }
+    }
+
     /**
      * Process the given command and pass on the command to the event handler for further
      * responses. Instead of overriding this method, first consider creating a class
@@ -301,7 +909,12 @@ public class Client implements Runnable {
         try (Scanner reader = new Scanner(cmd)) {
             // every message starts with the clientId of the sender except server messages
             String firstToken = reader.next();
-            if (firstToken.equals(INVALID_CMD)) {
+            if (firstToken.equals(CMD_PING)) {
+                // PING stamp rttMillis, where rttMillis is how long the answer to the previous PING took
+                broadcastMessage("PONG " + reader.next());
+                int rtt = reader.nextInt();
+                if (rtt >= 0) roundTripMillis = rtt;
+            } else if (firstToken.equals(INVALID_CMD)) {
             	String cmdWord = reader.next();
                 String invalidCmd = cmd.substring(INVALID_CMD.length() + 1);
                 throw new InvalidCommandException("Command word \"" + cmdWord + "\" is reserved. " + "Invalid command: \"" + invalidCmd + "\"");
@@ -344,6 +957,18 @@ public class Client implements Runnable {
                 String roomId = reader.next();
                 setRoomOpened(roomId);
                 if(eventHandler != null) eventHandler.handleRoomOpened(roomId, this);
+            } else if (firstToken.equals(CMD_UDP)) {
+                int port = reader.nextInt();
+                String token = reader.next();
+                startUdp(port, token);
+            } else if (firstToken.equals(CMD_UDP_READY)) {
+                udpReady = true;
+            } else if (firstToken.equals(CMD_BUSY)) {
+                busyRetryMillis = reader.nextLong();
+                if(eventHandler != null) eventHandler.handleCommand(cmd, this);
+            } else if (firstToken.equals(CMD_LOBBY_STATE)) {
+                resetClientState(cmd.substring(CMD_LOBBY_STATE.length() + 1));
+                if(eventHandler != null) eventHandler.handleLobbyState(this);
             } else if (reader.hasNext()){
                 String secondToken = reader.next();
                 if (secondToken.equals(CMD_ID)) {
@@ -402,6 +1027,21 @@ public class Client implements Runnable {
         fillMapWithKeys(activeClients, split[0]);
         initRooms(split[1]);
         maxRooms = Integer.parseInt(split[2]);
+        // servers that have optional features list them after the maximum number of rooms
+        serverFeatures.clear();
+        if (split.length > 3) fillMapWithKeys(serverFeatures, split[3]);
+    }
+
+    // replace all of the replicated server state with the given state
+    private void resetClientState(String stateStr) {
+        activeClients.clear();
+        rooms.clear();
+        roomNames.clear();
+        roomCapacities.clear();
+        roomsByClient.clear();
+        roomOwners.clear();
+        closedRooms.clear();
+        initClientState(stateStr);
     }
 
     private void fillMapWithKeys(Map<String, Boolean> map, String str) {
@@ -686,6 +1326,28 @@ public class CmdExample {
 		return maxRooms;
 	}
 
+    /**
+     * Returns true if the server has the given optional feature, such as COMPACT_IDS.
+     * The features are known once this client has been assigned its id.
+     * @param feature the name of the feature
+     * @return true if the server has the given feature
+     */
+    public boolean serverHasFeature(String feature) {
+        return serverFeatures.containsKey(feature);
+    }
+
+    /**
+     * Returns a new id for an actor controlled by this client. If the server gives out compact ids (the COMPACT_IDS feature),
+     * the actor id is this client's id followed by a dot and a number, such as 3f.1, which is unique because the id of this
+     * client is. That keeps every MOVE and ROT about the actor short. Otherwise it is a random UUID.
+     * This client must have been assigned its id before this is called.
+     * @return a new unique actor id
+     */
+    public String newActorId() {
+        if (!serverHasFeature("COMPACT_IDS")) return UUID.randomUUID().toString();
+        return id + "." + Long.toString(actorCount.incrementAndGet(), Character.MAX_RADIX);
+    }
+
     /**
      * Sets whether or not to print debug messages.
      * @param debug whether or not to print debug messages
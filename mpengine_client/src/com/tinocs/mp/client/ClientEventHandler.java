@@ -129,5 +129,14 @@ public interface ClientEventHandler {
      * @param client the client that received this command
      */
     default void handleRoomOpened(String roomId, Client client) {}
+
+    /**
+     * Called after the room and client information kept by the client was replaced with the current state of the server.
+     * This happens when the client starts receiving every lobby event again after missing some
+     * (see {@link Client#subscribeToLobby()} and {@link Client#subscribeToLobbyWhileNotInRoom()}),
+     * so this is a good place to refresh any list of rooms that is being displayed.
+     * @param client the client that received this command
+     */
+    default void handleLobbyState(Client client) {}
     
 }
@@ -0,0 +1,158 @@
+package com.tinocs.mp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the messages sent by the server, one line at a time. A line ends with '\n', and a '\r' right before the '\n'
+ * is not included in the line, just like {@link java.io.BufferedReader#readLine()}. Once {@link #setBinary()} has been
+ * called, the reader reads binary frames (see {@link BinaryFraming}) instead, and each line it returns is the line a
+ * frame stands for. Once {@link #setCompressed()} has been called, everything read from the stream is inflated first.
+ * The buffer never grows past what the longest line allowed needs, and a longer line is treated as a broken stream.
+ */
+class MessageReader {
+    /** the most bytes a line may have unless the client asks for less */
+    static final int MAX_LINE_LENGTH = BinaryFraming.MAX_FRAME_LENGTH;
+
+    private final InputStream in;
+    private final int maxLineLength;
+    // the most the buffer grows to: a whole line of maxLineLength bytes with "\r\n", or a frame with its header
+    private final int capacity;
+    private byte[] buf;
+    // the bytes from start (inclusive) to end (exclusive) have been read from the stream but not returned yet
+    private int start;
+    private int end;
+    // the decoder of binary frames, or null while reading text lines
+    private BinaryFraming.Decoder decoder;
+    private final long[] header = new long[1];
+    // the inflater of a compressed stream and the compressed bytes it reads, or null while the stream is not compressed
+    private Inflater inflater;
+    private byte[] compressed;
+
+    /**
+     * Create a MessageReader that reads from the given stream.
+     * @param in the stream
+     */
+    MessageReader(InputStream in) {
+        this(in, MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Create a MessageReader that reads from the given stream and fails on a line longer than the given length.
+     * @param in the stream
+     * @param maxLineLength the most bytes a line (or the body of a frame) may have, not counting the line break
+     */
+    MessageReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.capacity = maxLineLength + 8;
+        this.buf = new byte[Math.min(8192, capacity)];
+    }
+
+    /**
+     * Read the next line.
+     * @return the line or null if the end of the stream was reached
+     * @throws IOException if reading from the stream failed
+     */
+    String readLine() throws IOException {
+        if (decoder != null) return readFrame();
+        int scanFrom = start;
+        while (true) {
+            for (int i = scanFrom; i < end; i++) {
+                if (buf[i] == '\n') {
+                    int length = i - start;
+                    if (length > 0 && buf[i - 1] == '\r') length--;
+                    String line = new String(buf, start, length, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    return line;
+                }
+            }
+            // even with a "\r\n" still to come, the line is too long
+            if (end - start > maxLineLength + 1) throw new IOException("line longer than " + maxLineLength + " bytes");
+            scanFrom = end - start;
+            if (!fill()) {
+                if (end == start) return null;
+                String line = new String(buf, start, end - start, StandardCharsets.UTF_8);
+                start = end;
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Read binary frames from now on. Bytes that were already read past the current line are treated as frames.
+     */
+    void setBinary() {
+        if (decoder == null) decoder = new BinaryFraming.Decoder();
+    }
+
+    /**
+     * Inflate everything read from now on. Bytes that were already read past the current line are treated as compressed.
+     */
+    void setCompressed() {
+        if (inflater != null) return;
+        inflater = new Inflater();
+        compressed = new byte[8192];
+        int n = end - start;
+        if (n > compressed.length) compressed = new byte[n];
+        System.arraycopy(buf, start, compressed, 0, n);
+        inflater.setInput(compressed, 0, n);
+        end = start;
+    }
+
+    private String readFrame() throws IOException {
+        while (true) {
+            int bodyStart = BinaryFraming.readHeader(buf, start, end, header);
+            if (bodyStart >= 0 && header[0] > maxLineLength) throw new IOException("frame longer than " + maxLineLength + " bytes");
+            if (bodyStart >= 0 && end - bodyStart >= header[0]) {
+                int bodyLength = (int)header[0];
+                decoder.decode(buf, bodyStart, bodyLength);
+                start = bodyStart + bodyLength;
+                return new String(decoder.line(), 0, decoder.length(), StandardCharsets.UTF_8);
+            }
+            if (!fill()) {
+                if (end > start) throw new IOException("stream ended in the middle of a frame");
+                return null;
+            }
+        }
+    }
+
+    // move unread bytes to the front of the buffer (growing it if it is full, up to its capacity) and read more; returns false at the end of the stream
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buf.length) buf = Arrays.copyOf(buf, Math.min(buf.length * 2, capacity));
+        if (inflater != null) return inflate();
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) return false;
+        end += n;
+        return true;
+    }
+
+    // inflate more bytes into the buffer, reading compressed bytes from the stream whenever the inflater needs them
+    private boolean inflate() throws IOException {
+        try {
+            while (true) {
+                int n = inflater.inflate(buf, end, buf.length - end);
+                if (n > 0) {
+                    end += n;
+                    return true;
+                }
+                if (inflater.finished()) return false;
+                if (!inflater.needsInput()) throw new IOException("bad compressed stream");
+                int read = in.read(compressed);
+                if (read < 0) return false;
+                inflater.setInput(compressed, 0, read);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed stream", e);
+        }
+    }
+}
@@ -122,9 +122,11 @@ public abstract class JavafxEngineEventHandler implements ClientEventHandler {
      * the other client is in the same room as this client, then tell the other actor to add the
      * other class of each {@link LocalActor} in the same position with the relevant constructor parameters
      * determined by {@link LocalActor#getConstructorParameters()}.
+     * If the server has the ACTOR_CACHE feature, it sends the other client those actors itself, so nothing is sent.
      */
     @Override
     public void handleOtherClientJoined(String clientId, Client client) {
+        if (client.serverHasFeature("ACTOR_CACHE")) return;
         String myRoomId = client.getCurrentRoomId();
         String otherRoomId = client.getIdOfRoomContainingClient(clientId);
         if (otherRoomId == null && myRoomId == null || (myRoomId != null && myRoomId.equals(otherRoomId))) {
@@ -1,8 +1,9 @@
 package com.tinocs.mp.javafxengine;
-import java.util.UUID;
 
 import com.tinocs.mp.client.Client;
 
+import javafx.application.Platform;
+
 /**
  * <p>A LocalActor is an actor controlled by this client. Every LocalActor has a
  * corresponding MPActor that will be created on other clients and will mirror
@@ -38,6 +39,9 @@ public abstract class LocalActor extends MPActor {
     // the class used to show this actor on other client
     private Class<? extends MPActor> otherClass;
     
+    // true while a MOVE is waiting to be sent
+    private boolean movePending;
+    
     /**
      * Create a LocalActor with the given Client and corresponding MPActor class
 	 * that will represent it on other clients.
@@ -45,18 +49,14 @@ public abstract class LocalActor extends MPActor {
      * @param otherClass the corresponding MPActor class that will represent this LocalActor on other clients
      */
     public LocalActor(Client client, Class<? extends MPActor> otherClass) {
-        super(UUID.randomUUID().toString(), client.getId());
+        super(client.newActorId(), client.getId());
         this.otherClass = otherClass;
-        xProperty().addListener((obj, ov, nv) -> {
-        	broadcastMessage(JavafxEngineEventHandler.getMoveCmd(getActorId(), nv.doubleValue(), getY()));
-        });
-        
-        yProperty().addListener((obj, ov, nv) -> {
-        	broadcastMessage(JavafxEngineEventHandler.getMoveCmd(getActorId(), getX(), nv.doubleValue()));
-        });
+        // move(dx, dy) sets x and then y, so both changes are sent together in one MOVE after the current pulse
+        xProperty().addListener((obj, ov, nv) -> queueMove());
+        yProperty().addListener((obj, ov, nv) -> queueMove());
         
         rotateProperty().addListener((obj, ov, nv) -> {
-        	broadcastMessage(JavafxEngineEventHandler.getRotateCmd(getActorId(), nv.doubleValue()));
+        	broadcastUnreliable(JavafxEngineEventHandler.getRotateCmd(getActorId(), nv.doubleValue()));
         });
         
         opacityProperty().addListener((obj, ov, nv) -> {
@@ -72,6 +72,16 @@ public abstract class LocalActor extends MPActor {
         });
     }
     
+    // send the position once the current changes to x and y are done
+    private void queueMove() {
+        if (movePending) return;
+        movePending = true;
+        Platform.runLater(() -> {
+            movePending = false;
+            broadcastUnreliable(JavafxEngineEventHandler.getMoveCmd(getActorId(), getX(), getY()));
+        });
+    }
+    
     /**
      * Returns the class used to represent this actor on other clients
      * @return the class used to represent this actor on other clients
@@ -83,5 +83,23 @@ public abstract class MPActor extends Actor {
             }
         }
     }
+
+    /**
+     * Broadcast a message that is soon replaced by a newer one, such as a MOVE, to the other clients. The message is
+     * sent in a datagram if the client has a UDP side channel (see {@link com.tinocs.mp.client.Client#useUdp()}), so it may be lost,
+     * and otherwise it is sent like {@link #broadcastMessage(String)}.
+     * @param msg the message to broadcast
+     */
+    public void broadcastUnreliable(String msg) {
+        MPWorld gw = getWorldOfType(MPWorld.class);
+        if (gw != null && gw.getClient() != null) {
+            String roomId = gw.getClient().getCurrentRoomId();
+            if (roomId == null) {
+                gw.getClient().broadcastUnreliable(msg);
+            } else {
+                gw.getClient().broadcastUnreliableToRoom(msg, roomId);
+            }
+        }
+    }
     
 }
@@ -142,11 +142,13 @@ public abstract class GreenfootEventHandler implements ClientEventHandler {
      * this client and the other client are both not in a room, then for each LocalActor
      * in this world, send a message to the other client to tell it to add an MPActor of the
      * type returned by calling {@link LocalActor#getOtherClass()} on that LocalActor.
+     * If the server has the ACTOR_CACHE feature, it sends the other client those actors itself, so nothing is sent.
      * @param clientId the id of the other client that joined
      * @param client a reference to this client
      */
     @Override
     public void handleOtherClientJoined(String clientId, Client client) {
+        if (client.serverHasFeature("ACTOR_CACHE")) return;
         // This will respond to the sender client with messages saying to add the
         // corresponding classes that represent each LocalActor this client controls
         String myRoomId = client.getCurrentRoomId();
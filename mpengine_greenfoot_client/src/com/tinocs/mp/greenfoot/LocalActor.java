@@ -1,7 +1,6 @@
 package com.tinocs.mp.greenfoot;
 
 import greenfoot.*;  // (World, Actor, GreenfootImage, Greenfoot and MouseInfo)
-import java.util.UUID;
 
 import com.tinocs.mp.client.Client;
 
@@ -40,7 +39,7 @@ public abstract class LocalActor extends MPActor {
      * @param otherClass the class that should be used to represent this actor on other clients.
      */
     public LocalActor(Client client, Class<? extends MPActor> otherClass) {
-        super(UUID.randomUUID().toString(), client.getId());
+        super(client.newActorId(), client.getId());
         this.otherClass = otherClass;
         // replace default GreenfootImage with a LocalImage
         setImage(new LocalImage(getImage(), this));
@@ -94,7 +93,7 @@ public abstract class LocalActor extends MPActor {
     @Override
     public void setLocation(int x, int y) {
         super.setLocation(x, y);
-        broadcastMessage(GreenfootEventHandler.getMoveCmd(getActorId(), getX(), getY()));
+        broadcastUnreliable(GreenfootEventHandler.getMoveCmd(getActorId(), getX(), getY()));
     }
     
     /**
@@ -108,7 +107,7 @@ public abstract class LocalActor extends MPActor {
     @Override
     public void setRotation(int rotation) {
         super.setRotation(rotation);
-        broadcastMessage(GreenfootEventHandler.getRotateCmd(getActorId(), getRotation()));
+        broadcastUnreliable(GreenfootEventHandler.getRotateCmd(getActorId(), getRotation()));
     }
     
     /**
@@ -82,4 +82,22 @@ public abstract class MPActor extends Actor {
             }
         }
     }
+
+    /**
+     * Broadcast a message that is soon replaced by a newer one, such as a MOVE, to the other clients.
+     * The message is sent in a datagram if the client has a UDP side channel (see {@link com.tinocs.mp.client.Client#useUdp()}),
+     * so it may be lost, and otherwise it is sent like {@link #broadcastMessage(String)}.
+     * @param msg the message to broadcast
+     */
+    public void broadcastUnreliable(String msg) {
+        MPWorld mpw = getWorldOfType(MPWorld.class);
+        if (mpw != null && mpw.getClient() != null) {
+            String roomId = mpw.getClient().getCurrentRoomId();
+            if (roomId == null) {
+                mpw.getClient().broadcastUnreliable(msg);
+            } else {
+                mpw.getClient().broadcastUnreliableToRoom(msg, roomId);
+            }
+        }
+    }
 }
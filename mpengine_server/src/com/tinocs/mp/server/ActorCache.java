@@ -0,0 +1,155 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The latest state of every actor in one scope, either a room or the clients that are not in a room
+ * (see {@link ServerConfig#setActorCache(boolean)}). The cache remembers the ADD message of each actor and the latest
+ * MOVE, ROT, IMG, OPACITY, SCALEX, SCALEY, ALPHA and SCALE message for it, until a REMOVE message for the actor arrives
+ * or the client that added it leaves the scope. MIRH and MIRV flip an actor, so they are remembered only while the
+ * actor is flipped. A client joining the scope is sent everything in the cache as one frame (see {@link #snapshot()}),
+ * so the clients already there do not have to send it their actors.
+ * </p>
+ * <p>
+ * Every message recorded is given a version, and versions increase across all caches. The server reads the current
+ * version while holding the lock of the cache at the moment a client joins its scope, and does not relay a recorded
+ * message to that client if its version is not higher, since the message is already part of the snapshot. Without
+ * that, a message recorded just before the snapshot could reach the client twice, which for an ADD means two actors.
+ * </p>
+ */
+final class ActorCache {
+    private static final AtomicLong versions = new AtomicLong();
+
+    // the commands that replace the previous one of the same kind for the same actor
+    private static final String[] STATE_COMMANDS = {"MOVE", "ROT", "IMG", "OPACITY", "SCALEX", "SCALEY", "ALPHA", "SCALE"};
+    // the commands that undo themselves when sent twice
+    private static final String[] TOGGLE_COMMANDS = {"MIRH", "MIRV"};
+
+    // each key is an actorId, in the order the actors were added (guarded by this)
+    private final LinkedHashMap<String, Actor> actors = new LinkedHashMap<>();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    private static final class Actor {
+        final String ownerId;
+        final OutboundMessage add;
+        // the latest message of each command, in the order they last changed
+        final LinkedHashMap<String, OutboundMessage> state = new LinkedHashMap<>();
+
+        Actor(String ownerId, OutboundMessage add) {
+            this.ownerId = ownerId;
+            this.add = add;
+        }
+    }
+
+    /**
+     * Returns the version of the latest message recorded by any cache.
+     * @return the current version
+     */
+    static long currentVersion() {
+        return versions.get();
+    }
+
+    /**
+     * Remember the given relayed message if it changes the state of an actor.
+     * @param message the message, already prefixed with the id of the sender
+     * @param fromId the id of the sender
+     * @return the version given to the message, or 0 if the message was not recorded
+     */
+    synchronized long record(OutboundMessage message, String fromId) {
+        byte[] bytes = message.bytes();
+        int limit = bytes.length;
+        int cmdStart = CommandTokenizer.skipWhitespace(bytes, CommandTokenizer.tokenEnd(bytes, 0, limit), limit);
+        int cmdEnd = CommandTokenizer.tokenEnd(bytes, cmdStart, limit);
+        if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "ADD")) {
+            // senderId ADD className x y actorId ...
+            String actorId = token(bytes, cmdEnd, limit, 4);
+            if (actorId == null) return 0;
+            actors.remove(actorId);
+            actors.put(actorId, new Actor(fromId, message));
+            return versions.incrementAndGet();
+        }
+        // senderId CMD actorId ...
+        String actorId = token(bytes, cmdEnd, limit, 1);
+        if (actorId == null) return 0;
+        if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "REMOVE")) {
+            return actors.remove(actorId) == null ? 0 : versions.incrementAndGet();
+        }
+        Actor actor = actors.get(actorId);
+        if (actor == null) return 0;
+        for (String command : STATE_COMMANDS) {
+            if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, command)) {
+                actor.state.remove(command);
+                actor.state.put(command, message);
+                return versions.incrementAndGet();
+            }
+        }
+        for (String command : TOGGLE_COMMANDS) {
+            if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, command)) {
+                if (actor.state.remove(command) == null) actor.state.put(command, message);
+                return versions.incrementAndGet();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Forget every actor added by the given client.
+     * @param clientId the id of the client
+     */
+    synchronized void removeOwner(String clientId) {
+        Iterator<Actor> it = actors.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().ownerId.equals(clientId)) it.remove();
+        }
+    }
+
+    /**
+     * Returns every message in the cache as a single frame: the ADD message of each actor followed by its state,
+     * in the order the actors were added.
+     * @return the frame or null if the cache is empty
+     */
+    synchronized OutboundMessage snapshot() {
+        if (actors.isEmpty()) return null;
+        List<OutboundMessage> all = new ArrayList<>();
+        for (Actor actor : actors.values()) {
+            all.add(actor.add);
+            all.addAll(actor.state.values());
+        }
+        snapshots.incrementAndGet();
+        return OutboundMessage.join(all);
+    }
+
+    /**
+     * Returns the number of actors in the cache.
+     * @return the number of actors
+     */
+    synchronized int getActorCount() {
+        return actors.size();
+    }
+
+    /**
+     * Returns the number of snapshots sent to joining clients.
+     * @return the number of snapshots
+     */
+    long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    // the index-th token (counting from 1) after from, or null if there are not that many
+    private static String token(byte[] bytes, int from, int limit, int index) {
+        int start = from;
+        int end = from;
+        for (int i = 0; i < index; i++) {
+            start = CommandTokenizer.skipWhitespace(bytes, end, limit);
+            end = CommandTokenizer.tokenEnd(bytes, start, limit);
+            if (start == end) return null;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,190 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Decides which of the connections accepted by the socket the server takes on as clients, so a reconnect storm after
+ * a restart can't overload it (see {@link ServerConfig#setMaxConnections(int)} and
+ * {@link ServerConfig#setAcceptRate(int)}). A connection is admitted as soon as there are fewer open connections than
+ * the maximum and the accept rate allows one more. Otherwise it waits in a queue of up to
+ * {@link ServerConfig#getAcceptQueue()} connections, which {@link #drain()} admits in the order they arrived as room
+ * frees up. A connection that finds the queue full, or that has waited {@link #MAX_WAIT_MILLIS}, is sent
+ * <b>BUSY retryMillis</b> and closed (after a short linger) before the server spends anything on it, not even an id.
+ * </p>
+ * <p>
+ * The retry time is how long the queue would take to empty, plus a random part of as much again, so the clients that
+ * are turned away together don't all come back at the same moment.
+ * </p>
+ */
+final class AdmissionControl {
+    /** The longest a connection waits in the queue before it is turned away. */
+    static final int MAX_WAIT_MILLIS = 5000;
+    /** How long a client turned away because the server has the most connections it takes should wait, before jitter. */
+    static final int FULL_RETRY_MILLIS = 1000;
+    /** How long a connection that was sent BUSY stays open so the client can read it (see {@link MultiThreadServer#closeTurnedAway}). */
+    static final int LINGER_MILLIS = 1000;
+
+    /**
+     * A connection the socket has accepted but the server has not.
+     */
+    interface Candidate {
+        /**
+         * Take the connection on as a client.
+         */
+        void admit();
+
+        /**
+         * Send the given line, stop writing to the connection and close it once the client had time to read the line.
+         * @param line the BUSY line
+         */
+        void turnAway(byte[] line);
+    }
+
+    private static final class Waiting {
+        final Candidate candidate;
+        final long since;
+
+        Waiting(Candidate candidate, long since) {
+            this.candidate = candidate;
+            this.since = since;
+        }
+    }
+
+    private final int maxConnections;
+    private final int acceptRate;
+    // null if the accept rate is not limited
+    private final RateLimiter rate;
+    private final int queueCapacity;
+    private final AtomicInteger open = new AtomicInteger();
+    // the connections waiting to be admitted, oldest first (guarded by this)
+    private final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Create the admission control of a server.
+     * @param config the server settings
+     */
+    AdmissionControl(ServerConfig config) {
+        maxConnections = config.getMaxConnections();
+        acceptRate = config.getAcceptRate();
+        // a second's worth may connect at once
+        rate = acceptRate > 0 ? new RateLimiter(acceptRate, acceptRate) : null;
+        queueCapacity = config.getAcceptQueue();
+    }
+
+    /**
+     * Admit the given connection now if the limits allow, queue it if they don't and there is room, or turn it away.
+     * The candidate is admitted or turned away on the calling thread.
+     * @param candidate the connection
+     */
+    void offer(Candidate candidate) {
+        long retryMillis;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // a connection that was just accepted must not overtake the ones that waited
+            if (waiting.isEmpty() && take(now)) {
+                retryMillis = 0;
+            } else if (waiting.size() < queueCapacity) {
+                waiting.add(new Waiting(candidate, now));
+                queued.incrementAndGet();
+                return;
+            } else {
+                retryMillis = retryMillis(now);
+            }
+        }
+        if (retryMillis == 0) {
+            candidate.admit();
+        } else {
+            rejected.incrementAndGet();
+            candidate.turnAway(busy(retryMillis));
+        }
+    }
+
+    /**
+     * Admit the waiting connections the limits allow now, and turn away the ones that have waited too long.
+     */
+    void drain() {
+        List<Candidate> admit = new ArrayList<>();
+        List<Candidate> turnAway = new ArrayList<>();
+        long retryMillis;
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (!waiting.isEmpty() && take(now)) admit.add(waiting.poll().candidate);
+            while (!waiting.isEmpty() && now - waiting.peek().since > MAX_WAIT_MILLIS * 1_000_000L) {
+                turnAway.add(waiting.poll().candidate);
+            }
+            retryMillis = turnAway.isEmpty() ? 0 : retryMillis(now);
+        }
+        for (Candidate candidate : admit) candidate.admit();
+        for (Candidate candidate : turnAway) {
+            rejected.incrementAndGet();
+            candidate.turnAway(busy(retryMillis));
+        }
+    }
+
+    /**
+     * Record that an admitted connection was closed.
+     */
+    void released() {
+        open.decrementAndGet();
+    }
+
+    // take a connection slot and a token of the accept rate if both are free; the caller holds the lock of this
+    private boolean take(long now) {
+        if (maxConnections > 0 && open.get() >= maxConnections) return false;
+        if (rate != null && rate.acquire(now) > 0) return false;
+        open.incrementAndGet();
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    // how long a client turned away now should wait before trying again; the caller holds the lock of this
+    private long retryMillis(long now) {
+        long millis;
+        if (rate == null || maxConnections > 0 && open.get() >= maxConnections) {
+            millis = FULL_RETRY_MILLIS;
+        } else {
+            millis = (rate.waitNanos(now) + 999_999) / 1_000_000 + (long)waiting.size() * 1000 / acceptRate;
+        }
+        millis = Math.max(1, millis);
+        return millis + ThreadLocalRandom.current().nextLong(millis + 1);
+    }
+
+    private static byte[] busy(long retryMillis) {
+        return ("BUSY " + retryMillis + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of admitted connections that are still open.
+     * @return the number of open connections
+     */
+    int getOpenCount() {
+        return open.get();
+    }
+
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    long getQueuedCount() {
+        return queued.get();
+    }
+}
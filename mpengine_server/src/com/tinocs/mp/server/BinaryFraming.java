@@ -0,0 +1,412 @@
+package com.tinocs.mp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * <p>
+ * The binary framing a client can switch to with PROTOCOL BINARY (see {@link MultiThreadServer#getFeatures()}).
+ * Each line of the text protocol is sent as one frame: the length of the frame body as an unsigned varint, followed
+ * by the body. Nothing about what a line means changes, so the server (and the client library) can still treat
+ * every frame as the line it stands for, and clients using either protocol can be in the same room.
+ * </p>
+ * <p>
+ * A body starts with {@link #RAW}, followed by the UTF-8 bytes of the line, or with {@link #TOKENS}, followed by the
+ * tokens of the line, each starting with a tag:
+ * </p>
+ * <ul>
+ * 		<li>{@link #TAG_WORD}: one byte, the index of a command word in {@link #WORDS}</li>
+ * 		<li>{@link #TAG_INT}: a whole number as a zigzag varint</li>
+ * 		<li>{@link #TAG_FLOAT} and {@link #TAG_DOUBLE}: a number with a fraction as a 4 or 8 byte IEEE 754 value</li>
+ * 		<li>{@link #TAG_ID}: a compact id (see {@link ServerConfig#setCompactIds(boolean)}) as the varint of its base 36 value</li>
+ * 		<li>{@link #TAG_HANDLE}: a compact actor id such as 3f.1 as two varints</li>
+ * 		<li>{@link #TAG_UUID}: a UUID such as a client, room or actor id as its 16 bytes</li>
+ * 		<li>{@link #TAG_STRING}: anything else, as a varint length and then the UTF-8 bytes</li>
+ * </ul>
+ * <p>
+ * The tokens are separated by single spaces in the line they stand for. A token is only encoded as a number or an id
+ * if turning it back into text gives exactly the same characters (so 007 and 1.50 stay strings), and a line is only
+ * sent as tokens if it is nothing but tokens separated by single spaces, so decoding a frame always gives back the
+ * exact line that was encoded.
+ * </p>
+ */
+final class BinaryFraming {
+    /** the first byte of a body holding the UTF-8 bytes of the line */
+    static final int RAW = 0;
+    /** the first byte of a body holding tagged tokens */
+    static final int TOKENS = 1;
+
+    static final int TAG_STRING = 0;
+    static final int TAG_WORD = 1;
+    static final int TAG_INT = 2;
+    static final int TAG_FLOAT = 3;
+    static final int TAG_DOUBLE = 4;
+    static final int TAG_ID = 5;
+    static final int TAG_HANDLE = 6;
+    static final int TAG_UUID = 7;
+
+    /** the largest frame body accepted from a client */
+    static final int MAX_FRAME_LENGTH = 1 << 24;
+
+    /**
+     * The command words sent as a single byte.
+     * <p>
+     * KEEP IN SYNC WITH mpengine_client/src/com/tinocs/mp/client/BinaryFraming.java: the client library has its own copy of this class, and both ends must map every byte
+     * to the same word. Words may only ever be added to the end of this list, and only to both copies at once
+     * (BinaryFramingSyncTest in mpengine_server/test checks that the two copies match).
+     * </p>
+     */
+    static final String[] WORDS = {
+        "TO", "DC", "TO_ROOM", "ADD_ROOM", "REMOVE_ROOM", "JOIN_ROOM", "CLOSE_ROOM", "OPEN_ROOM", "LEAVE_ROOM",
+        "LOBBY_SUBSCRIBE", "LOBBY_UNSUBSCRIBE", "INTEREST", "PROTOCOL", "ID", "JOINED", "ROOM_ADDED", "ADD_ROOM_FAILED",
+        "ROOM_REMOVED", "JOINED_ROOM", "JOIN_ROOM_FAIL", "LEFT_ROOM", "ROOM_OWNER", "ROOM_CLOSED", "ROOM_OPENED",
+        "LOBBY_STATE", "INVALID_CMD", "MOVE", "ROT", "ADD", "REMOVE", "IMG", "OPACITY", "SCALEX", "SCALEY", "METHOD",
+        "null", "true", "false", "OFF", "AUTO", "BINARY", "FULL", "CLOSED", "NO_SUCH_ROOM"
+    };
+
+    private static final HashMap<String, Integer> WORD_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < WORDS.length; i++) WORD_INDEX.put(WORDS[i], i);
+    }
+
+    // the longest base 36 number that always fits in a long
+    private static final int MAX_ID_LENGTH = 12;
+
+    private BinaryFraming() {}
+
+    /**
+     * Encode the given text message, which may hold several lines, as one frame per line.
+     * @param text the bytes of the message, each line ending with '\n'
+     * @return the frames
+     */
+    static byte[] encodeMessage(byte[] text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length + 8);
+        int start = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n') {
+                encodeLine(text, start, i, out);
+                start = i + 1;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the line from start (inclusive) to end (exclusive) of the given bytes as a frame.
+     * @param line the bytes holding the line
+     * @param start the index of the first byte of the line
+     * @param end the index just past the last byte of the line
+     * @param out where the frame is written
+     */
+    static void encodeLine(byte[] line, int start, int end, ByteArrayOutputStream out) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(end - start + 1);
+        if (!encodeTokens(line, start, end, body)) {
+            body.reset();
+            body.write(RAW);
+            body.write(line, start, end - start);
+        }
+        writeVarint(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+    }
+
+    // write the body of a TOKENS frame, returning false if the line can't be sent as tokens
+    private static boolean encodeTokens(byte[] line, int start, int end, ByteArrayOutputStream body) {
+        if (start == end) return false;
+        body.write(TOKENS);
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && line[i] != ' ') {
+                // any other whitespace would be lost
+                if ((line[i] >= 0 && line[i] < 0x20) || line[i] == 0x7f) return false;
+                continue;
+            }
+            // two spaces in a row, or a space at the start or end of the line, would be lost too
+            if (i == tokenStart) return false;
+            encodeToken(line, tokenStart, i, body);
+            tokenStart = i + 1;
+        }
+        return true;
+    }
+
+    private static void encodeToken(byte[] line, int start, int end, ByteArrayOutputStream body) {
+        String token = new String(line, start, end - start, StandardCharsets.UTF_8);
+        Integer word = WORD_INDEX.get(token);
+        if (word != null) {
+            body.write(TAG_WORD);
+            body.write(word);
+            return;
+        }
+        Long whole = parseCanonicalLong(token, 10);
+        if (whole != null) {
+            body.write(TAG_INT);
+            writeVarint(body, (whole << 1) ^ (whole >> 63));
+            return;
+        }
+        Long id = parseCanonicalLong(token, 36);
+        if (id != null && id >= 0) {
+            body.write(TAG_ID);
+            writeVarint(body, id);
+            return;
+        }
+        if (isCanonicalUuid(token)) {
+            UUID uuid = UUID.fromString(token);
+            body.write(TAG_UUID);
+            writeFixed(body, uuid.getMostSignificantBits(), 8);
+            writeFixed(body, uuid.getLeastSignificantBits(), 8);
+            return;
+        }
+        int dot = token.indexOf('.');
+        if (dot > 0) {
+            Long client = parseCanonicalLong(token.substring(0, dot), 36);
+            Long actor = parseCanonicalLong(token.substring(dot + 1), 36);
+            if (client != null && client >= 0 && actor != null && actor >= 0) {
+                body.write(TAG_HANDLE);
+                writeVarint(body, client);
+                writeVarint(body, actor);
+                return;
+            }
+            Double number = parseCanonicalDouble(token);
+            if (number != null) {
+                float f = number.floatValue();
+                if (f == number) {
+                    body.write(TAG_FLOAT);
+                    writeFixed(body, Float.floatToIntBits(f), 4);
+                } else {
+                    body.write(TAG_DOUBLE);
+                    writeFixed(body, Double.doubleToLongBits(number), 8);
+                }
+                return;
+            }
+        }
+        body.write(TAG_STRING);
+        writeVarint(body, end - start);
+        body.write(line, start, end - start);
+    }
+
+    // the value of the token in the given radix if writing the value in that radix gives back the same token, otherwise null
+    private static Long parseCanonicalLong(String token, int radix) {
+        if (token.isEmpty() || token.length() > MAX_ID_LENGTH + 6) return null;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            boolean ok = (c >= '0' && c <= '9') || (radix > 10 && c >= 'a' && c <= 'z') || (i == 0 && c == '-' && radix == 10);
+            if (!ok) return null;
+        }
+        if (radix > 10 && token.length() > MAX_ID_LENGTH) return null;
+        try {
+            long value = Long.parseLong(token, radix);
+            return Long.toString(value, radix).equals(token) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // true if the token is a UUID written the way UUID.toString() writes it
+    private static boolean isCanonicalUuid(String token) {
+        if (token.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = token.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the value of the token if Double.toString gives back the same token (which is how Java clients write doubles), otherwise null
+    private static Double parseCanonicalDouble(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == '.' || c == '-' || c == 'E')) return null;
+        }
+        try {
+            double value = Double.parseDouble(token);
+            return Double.toString(value).equals(token) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Turns frames back into the lines they stand for. A decoder keeps the last decoded line in a buffer
+     * that is reused, so it is only used by the thread reading from one connection.
+     */
+    static final class Decoder {
+        private byte[] line = new byte[256];
+        private int length;
+        private final long[] varint = new long[1];
+
+        /**
+         * Decode the frame body from offset to offset + bodyLength of the given bytes.
+         * The line is then available from {@link #line()} and {@link #length()}.
+         * @param src the bytes holding the body
+         * @param offset the index of the first byte of the body
+         * @param bodyLength the length of the body
+         * @throws IOException if the body is not a valid frame
+         */
+        void decode(byte[] src, int offset, int bodyLength) throws IOException {
+            length = 0;
+            if (bodyLength == 0) throw new IOException("empty frame");
+            int pos = offset;
+            int end = offset + bodyLength;
+            int kind = src[pos++];
+            if (kind == RAW) {
+                append(src, pos, end - pos);
+                return;
+            }
+            if (kind != TOKENS) throw new IOException("unknown frame type " + kind);
+            while (pos < end) {
+                if (length > 0) append(' ');
+                int tag = src[pos++];
+                switch (tag) {
+                    case TAG_STRING: {
+                        pos = readVarint(src, pos, end, varint);
+                        int n = (int)varint[0];
+                        if (n < 0 || n > end - pos) throw new IOException("bad string length");
+                        append(src, pos, n);
+                        pos += n;
+                        break;
+                    }
+                    case TAG_WORD: {
+                        if (pos >= end) throw new IOException("truncated frame");
+                        int index = src[pos++] & 0xff;
+                        if (index >= WORDS.length) throw new IOException("unknown word " + index);
+                        appendAscii(WORDS[index]);
+                        break;
+                    }
+                    case TAG_INT: {
+                        pos = readVarint(src, pos, end, varint);
+                        long v = varint[0];
+                        appendAscii(Long.toString((v >>> 1) ^ -(v & 1)));
+                        break;
+                    }
+                    case TAG_FLOAT:
+                        if (end - pos < 4) throw new IOException("truncated frame");
+                        appendAscii(Double.toString(Float.intBitsToFloat((int)readFixed(src, pos, 4))));
+                        pos += 4;
+                        break;
+                    case TAG_DOUBLE:
+                        if (end - pos < 8) throw new IOException("truncated frame");
+                        appendAscii(Double.toString(Double.longBitsToDouble(readFixed(src, pos, 8))));
+                        pos += 8;
+                        break;
+                    case TAG_ID:
+                        pos = readVarint(src, pos, end, varint);
+                        appendAscii(Long.toString(varint[0], 36));
+                        break;
+                    case TAG_HANDLE:
+                        pos = readVarint(src, pos, end, varint);
+                        appendAscii(Long.toString(varint[0], 36));
+                        append('.');
+                        pos = readVarint(src, pos, end, varint);
+                        appendAscii(Long.toString(varint[0], 36));
+                        break;
+                    case TAG_UUID:
+                        if (end - pos < 16) throw new IOException("truncated frame");
+                        appendAscii(new UUID(readFixed(src, pos, 8), readFixed(src, pos + 8, 8)).toString());
+                        pos += 16;
+                        break;
+                    default:
+                        throw new IOException("unknown token tag " + tag);
+                }
+            }
+        }
+
+        /**
+         * Returns the buffer holding the last decoded line, which is reused by the next call to decode.
+         * @return the buffer holding the last decoded line
+         */
+        byte[] line() {
+            return line;
+        }
+
+        /**
+         * Returns the length of the last decoded line.
+         * @return the length of the last decoded line
+         */
+        int length() {
+            return length;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, length + extra));
+        }
+
+        private void append(byte[] src, int offset, int n) {
+            ensure(n);
+            System.arraycopy(src, offset, line, length, n);
+            length += n;
+        }
+
+        private void append(char c) {
+            ensure(1);
+            line[length++] = (byte)c;
+        }
+
+        private void appendAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) line[length++] = (byte)s.charAt(i);
+        }
+    }
+
+    /**
+     * Reads the varint header of the frame starting at pos.
+     * @param src the bytes holding the frame
+     * @param pos the index of the first byte of the frame
+     * @param end the index just past the last byte available
+     * @param result where the body length is stored
+     * @return the index of the first byte of the body, or -1 if the header is not complete yet
+     * @throws IOException if the header is not a valid length
+     */
+    static int readHeader(byte[] src, int pos, int end, long[] result) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= end) return -1;
+            int b = src[pos++];
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value > MAX_FRAME_LENGTH) throw new IOException("frame too long: " + value);
+                result[0] = value;
+                return pos;
+            }
+        }
+        throw new IOException("bad frame length");
+    }
+
+    private static int readVarint(byte[] src, int pos, int end, long[] result) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) throw new IOException("truncated frame");
+            int b = src[pos++];
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                result[0] = value;
+                return pos;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void writeFixed(ByteArrayOutputStream out, long bits, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) out.write((int)(bits >>> (i * 8)));
+    }
+
+    private static long readFixed(byte[] src, int pos, int bytes) {
+        long bits = 0;
+        for (int i = 0; i < bytes; i++) bits = (bits << 8) | (src[pos + i] & 0xff);
+        return bits;
+    }
+}
@@ -0,0 +1,775 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection to a single client. The server only talks to clients through this class so the
+ * room logic in {@link MultiThreadServer} does not need to know whether the client is being served
+ * by its own {@link ClientThread} or by one of the reactor threads of a {@link NioServer}.
+ *
+ * <p>Every connection has its own bounded outbound queue. Sending a message only adds it to the queue,
+ * and the queue is drained by whoever writes for this connection, so a slow client never holds up
+ * messages to other clients. What happens when a client falls behind is decided by the connection's
+ * {@link OverflowPolicy}.</p>
+ */
+public abstract class ClientConnection {
+    // only changed when a client resumes its session on this connection
+    private volatile String id;
+    private volatile byte[] idBytes;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long lagThresholdNanos;
+    // messages waiting to be written; queueDepth also counts messages taken from the queue that are not written yet
+    private final LinkedBlockingQueue<OutboundMessage> outbound = new LinkedBlockingQueue<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong droppedStateUpdates = new AtomicLong();
+    private final AtomicLong conflatedStateUpdates = new AtomicLong();
+    private final AtomicLong timesDegraded = new AtomicLong();
+    // when the client last made progress (or when its queue stopped being empty)
+    private volatile long progressNanos = System.nanoTime();
+    private volatile String evictionReason;
+
+    // while degraded (DEGRADE policy only), the latest state update for each actor waits here instead of in the queue;
+    // every thread sending to the client may wait for the lock, so it is not a monitor, which would pin a virtual thread
+    private final ReentrantLock degradeLock = new ReentrantLock();
+    private volatile boolean degraded;
+    private final LinkedHashMap<String, OutboundMessage> conflated = new LinkedHashMap<>();
+    private volatile LobbySubscription lobbySubscription = LobbySubscription.ALL;
+
+    // tells the writer to switch to binary frames; the writer sends it as the last text line
+    private static final OutboundMessage SWITCH_TO_BINARY = OutboundMessage.of("PROTOCOL BINARY");
+    // true once the client asked for binary frames, which it sends from then on
+    private volatile boolean binary;
+    // true once the writer has sent SWITCH_TO_BINARY (only used by the writer)
+    private boolean writingBinary;
+
+    // tells the writer to compress everything after it; the writer sends it as the last uncompressed line
+    private static final OutboundMessage START_COMPRESSION = OutboundMessage.of("COMPRESS DEFLATE");
+    // the deflate level asked for by the client, or 0 if the client is not sent compressed data
+    private volatile int compressionLevel;
+    // true once the writer has taken START_COMPRESSION but has not created the compressor yet (only used by the writer)
+    private boolean compressionStarting;
+    // created by the writer right after it takes START_COMPRESSION
+    private volatile StreamCompressor compressor;
+    // the UDP side channel of the client, or null if it has not asked for one (see UdpChannel)
+    private volatile UdpChannel.Endpoint udpEndpoint;
+    // the ActorCache versions included in the snapshots sent to the client when it connected and when it last joined a room
+    private volatile long serverCacheVersion;
+    private volatile long roomCacheVersion;
+    // what the server keeps for the client in case it reconnects, or null if it has not asked for that (see ResumeSession)
+    private volatile ResumeSession session;
+    // true if a line arrived from the client since the last heartbeat (see ServerConfig.setHeartbeatMillis)
+    private volatile boolean heard;
+    // the number of heartbeats in a row without a line from the client (only used by the heartbeat timer)
+    private int silentHeartbeats;
+    // the stamp of the last PING answered and of the last one sent, which both start out as when this connection was
+    // made so a PONG to an earlier connection of the client is ignored, and the round trip time of the last one
+    // answered, or -1 if none came back yet
+    private volatile long pongNanos = System.nanoTime();
+    private volatile long pingNanos = pongNanos;
+    private volatile int rttMillis = -1;
+    // the rate limits of the client, or null if the server does not limit clients (see ServerConfig.setRateLimit)
+    private volatile RateLimits rateLimits;
+    // the room mailbox with commands of the client that have not run yet and how many there are; a command read from
+    // the client goes to the same mailbox while there are any, so it can't overtake them (see RoomMailbox)
+    private volatile RoomMailbox mailbox;
+    private final AtomicInteger mailboxed = new AtomicInteger();
+    // where the writer records how long its batches took, or null unless the server has routing workers
+    private volatile StageMetrics writeStage;
+
+    /**
+     * Create a connection for the client with the given id that is disconnected when its queue is full.
+     * @param id the id assigned to the client
+     * @param queueCapacity the maximum number of messages that may wait to be written to the client
+     */
+    protected ClientConnection(String id, int queueCapacity) {
+        this(id, queueCapacity, OverflowPolicy.DISCONNECT, 0);
+    }
+
+    /**
+     * Create a connection for the client with the given id using the queue capacity, overflow policy
+     * and lag threshold of the given server settings.
+     * @param id the id assigned to the client
+     * @param config the server settings
+     */
+    protected ClientConnection(String id, ServerConfig config) {
+        this(id, config.getOutboundQueueCapacity(), config.getOverflowPolicy(), config.getLagThresholdMillis());
+    }
+
+    private ClientConnection(String id, int queueCapacity, OverflowPolicy overflowPolicy, int lagThresholdMillis) {
+        this.id = id;
+        this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.lagThresholdNanos = Math.max(0, lagThresholdMillis) * 1_000_000L;
+    }
+
+    /**
+     * Returns the id of the client on the other end of this connection.
+     * @return the id of the client on the other end of this connection
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the id of the client, which prefix every message relayed from this client.
+     * The returned array must not be modified.
+     * @return the UTF-8 bytes of the id of the client
+     */
+    public byte[] getIdBytes() {
+        return idBytes;
+    }
+
+    /**
+     * Give this connection the id of a client that resumed its session on it (see {@link ResumeSession}).
+     * @param id the id of the client
+     */
+    void setId(String id) {
+        this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+        this.id = id;
+    }
+
+    /**
+     * Returns the session kept for the client in case it reconnects, or null if it has not asked for one.
+     * @return the session of the client or null
+     */
+    ResumeSession getSession() {
+        return session;
+    }
+
+    void setSession(ResumeSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Record that a line arrived from the client, which shows the connection is still alive.
+     */
+    void heard() {
+        // most lines arrive between two heartbeats, so skip the write when nothing changes
+        if (!heard) heard = true;
+    }
+
+    /**
+     * Stop reading from the client for now because the routing worker its lines go to is full (see
+     * {@link RoutingStage}). The lines already read are still handed on. Only called by the thread reading from the
+     * client. A connection with a thread of its own can't do this, so by default the thread waits for room instead.
+     * @return true if the connection stops reading until {@link #resumeReading()}, or false if it can't
+     */
+    boolean pauseReading() {
+        return false;
+    }
+
+    /**
+     * Start reading from the client again after {@link #pauseReading()}. May be called by any thread.
+     */
+    void resumeReading() {
+    }
+
+    /**
+     * Called by the heartbeat timer once per heartbeat.
+     * @return the number of heartbeats in a row, including this one, without a line from the client
+     */
+    int heartbeat() {
+        if (heard) {
+            heard = false;
+            silentHeartbeats = 0;
+        } else {
+            silentHeartbeats++;
+        }
+        return silentHeartbeats;
+    }
+
+    /**
+     * Returns a new PING for the client, which it answers with PONG and the same stamp. The PING also tells the client
+     * the round trip time of the previous one.
+     * @return the PING message
+     */
+    String ping() {
+        long stamp = System.nanoTime();
+        pingNanos = stamp;
+        return "PING " + stamp + " " + rttMillis;
+    }
+
+    /**
+     * Record the round trip time of the PING with the given stamp. Any PING sent to this connection after the last one
+     * answered counts, not only the latest: when the round trip takes longer than a heartbeat (or the PING waits
+     * behind other messages), the latest PING is always still on its way when an earlier one comes back. A PONG for
+     * any other PING, such as one sent to an earlier connection of a client that resumed its session, is ignored.
+     * @param stamp the stamp of the PING
+     */
+    void pong(long stamp) {
+        // only called by the thread reading from the client; nanoTime stamps are compared by their difference
+        if (stamp - pongNanos <= 0 || pingNanos - stamp < 0) return;
+        rttMillis = (int)((System.nanoTime() - stamp) / 1_000_000);
+        pongNanos = stamp;
+    }
+
+    /**
+     * Returns the round trip time of the last PING the client answered.
+     * @return the round trip time in milliseconds, or -1 if the client has not answered a PING yet
+     */
+    public int getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * Returns the rate limits of the client, or null if the server does not limit clients.
+     * @return the rate limits or null
+     */
+    RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    void setRateLimits(RateLimits rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * Have the writer of this connection record how long each batch waited and took to write in the given metrics
+     * (see {@link RoutingStage}).
+     * @param writeStage the metrics of the write stage
+     */
+    void setWriteStage(StageMetrics writeStage) {
+        this.writeStage = writeStage;
+    }
+
+    /**
+     * Returns the room mailbox that still has commands of this client to run, or null if there are none.
+     * @return the mailbox with commands of this client or null
+     */
+    RoomMailbox getPendingMailbox() {
+        return mailboxed.get() > 0 ? mailbox : null;
+    }
+
+    /**
+     * Record that a command read from this client was added to the given mailbox. Only called by the thread
+     * reading from the client, which uses the pending mailbox if there is one.
+     * @param mailbox the mailbox
+     */
+    void mailboxed(RoomMailbox mailbox) {
+        this.mailbox = mailbox;
+        mailboxed.incrementAndGet();
+    }
+
+    /**
+     * Record that a command added by {@link #mailboxed(RoomMailbox)} has run.
+     */
+    void mailboxDone() {
+        mailboxed.decrementAndGet();
+    }
+
+    /**
+     * Returns which lobby events this client has asked to receive.
+     * @return which lobby events this client has asked to receive
+     */
+    public LobbySubscription getLobbySubscription() {
+        return lobbySubscription;
+    }
+
+    /**
+     * Sets which lobby events this client receives. Use {@link MultiThreadServer#setLobbySubscription(String, LobbySubscription)}
+     * to change the subscription of a connected client so the server can update its list of subscribers.
+     * @param lobbySubscription which lobby events this client receives
+     */
+    void setLobbySubscription(LobbySubscription lobbySubscription) {
+        this.lobbySubscription = lobbySubscription;
+    }
+
+    /**
+     * Queue the given message to be sent to the client followed by a line break. This never blocks.
+     * If the outbound queue is full, the client is too far behind to catch up and the connection is closed.
+     * @param message the message
+     */
+    public void send(String message) {
+        send(OutboundMessage.of(message));
+    }
+
+    /**
+     * Queue the given already encoded message to be sent to the client. This never blocks.
+     * If the client is too far behind, the {@link OverflowPolicy} of this connection decides whether a state update
+     * is dropped or held back, or whether the client is disconnected. Sending to a closed connection does nothing,
+     * unless the client may still resume its session (see {@link ResumeSession}), which keeps the message.
+     * An {@link OutboundMessage#isUnreliable() unreliable} message is sent in a datagram instead if the client has
+     * registered a UDP address.
+     * @param message the message
+     */
+    public void send(OutboundMessage message) {
+        if (isClosed()) {
+            // a client that may come back keeps what it misses; otherwise the connection has already been removed from the server
+            ResumeSession s = session;
+            if (s != null) {
+                ClientConnection owner = s.missed(this, message, isControl(message));
+                if (owner != null) owner.send(message);
+            }
+            return;
+        }
+        if (message.isUnreliable()) {
+            UdpChannel.Endpoint endpoint = udpEndpoint;
+            if (endpoint != null && endpoint.send(message)) return;
+        }
+        if (lagThresholdNanos > 0 && getQueueDepth() > 0 && System.nanoTime() - progressNanos > lagThresholdNanos) {
+            evict("no progress for over " + lagThresholdNanos / 1_000_000 + " ms");
+            return;
+        }
+        if (degraded) {
+            boolean released = true;
+            degradeLock.lock();
+            try {
+                if (degraded) {
+                    String key = message.stateKey();
+                    if (key != null) {
+                        // the latest update for the actor replaces the one that is waiting, if there is one
+                        if (conflated.remove(key) != null) conflatedStateUpdates.incrementAndGet();
+                        conflated.put(key, message);
+                        return;
+                    }
+                    // everything held back happened before this message, so it has to be queued first
+                    released = releaseConflated();
+                }
+            } finally {
+                degradeLock.unlock();
+            }
+            // evicting closes the connection, which must not happen while holding degradeLock
+            if (!released) {
+                evict("outbound queue full (" + queueCapacity + " messages)");
+                return;
+            }
+        }
+        enqueue(message);
+    }
+
+    private void enqueue(OutboundMessage message) {
+        if (!reserveQueueSlot()) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST_STATE) dropOldestStateUpdate();
+            // the writer may also have made room while the queue was being searched
+            if (!reserveQueueSlot()) {
+                evict("outbound queue full (" + queueCapacity + " messages)");
+                return;
+            }
+        }
+        if (!addOutbound(message)) return;
+        if (overflowPolicy == OverflowPolicy.DEGRADE && !degraded && getQueueDepth() >= queueCapacity / 2) {
+            degradeLock.lock();
+            try {
+                if (!degraded) {
+                    degraded = true;
+                    timesDegraded.incrementAndGet();
+                }
+            } finally {
+                degradeLock.unlock();
+            }
+        }
+        messageQueued();
+    }
+
+    // add a message to the queue, for which a slot has been reserved, returning false if it was passed on to a newer connection
+    private boolean addOutbound(OutboundMessage message) {
+        ResumeSession s = session;
+        if (s == null) {
+            outbound.add(message);
+            return true;
+        }
+        ClientConnection owner;
+        // the session keeps its messages in the same order as the queue
+        synchronized (s) {
+            owner = s.queued(this, message, isControl(message));
+            if (owner == null) outbound.add(message);
+        }
+        if (owner == null) return true;
+        // the client has resumed on another connection since this message was sent
+        queueDepth.decrementAndGet();
+        owner.send(message);
+        return false;
+    }
+
+    // true for the lines that only matter to the connection they are written to
+    private static boolean isControl(OutboundMessage message) {
+        return message == SWITCH_TO_BINARY || message == START_COMPRESSION;
+    }
+
+    // remove the oldest state update that is still in the queue, if there is one
+    private void dropOldestStateUpdate() {
+        Iterator<OutboundMessage> it = outbound.iterator();
+        while (it.hasNext()) {
+            OutboundMessage queued = it.next();
+            // the writer may take the message at the same time, so only count it if it was really removed
+            if (queued.isStateUpdate() && outbound.remove(queued)) {
+                queueDepth.decrementAndGet();
+                droppedStateUpdates.incrementAndGet();
+                ResumeSession s = session;
+                if (s != null) s.dropped(this, queued);
+                return;
+            }
+        }
+    }
+
+    // move the held back state updates into the queue, returning false if they did not fit; the caller holds degradeLock
+    private boolean releaseConflated() {
+        if (conflated.isEmpty()) return true;
+        boolean fit = true;
+        for (OutboundMessage message : conflated.values()) {
+            if (!reserveQueueSlot()) {
+                fit = false;
+                break;
+            }
+            addOutbound(message);
+        }
+        conflated.clear();
+        messageQueued();
+        return fit;
+    }
+
+    /**
+     * Called after a message was added to the outbound queue so the writer of this connection can be woken up if needed.
+     */
+    protected abstract void messageQueued();
+
+    /**
+     * Returns the next message waiting to be written or null if the queue is empty. The message still counts
+     * toward the queue depth until it is reported written with {@link #recordFlush(int)}.
+     * @return the next message waiting to be written or null if there is none
+     */
+    protected OutboundMessage pollOutbound() {
+        return encode(outbound.poll());
+    }
+
+    /**
+     * Waits for and returns the next message waiting to be written. The message still counts
+     * toward the queue depth until it is reported written with {@link #recordFlush(int)}.
+     * @return the next message waiting to be written
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    protected OutboundMessage takeOutbound() throws InterruptedException {
+        return encode(outbound.take());
+    }
+
+    // turn a message taken from the queue into what is written to the client
+    private OutboundMessage encode(OutboundMessage message) {
+        ResumeSession s = session;
+        if (s != null && message != null) s.taken(this, message);
+        // START_COMPRESSION itself has been handed to the writer, so everything from here on is compressed
+        if (compressionStarting) {
+            compressionStarting = false;
+            compressor = new StreamCompressor(compressionLevel);
+        }
+        if (message == SWITCH_TO_BINARY) {
+            writingBinary = true;
+            return message;
+        }
+        if (message == START_COMPRESSION) compressionStarting = true;
+        if (writingBinary && message != null) return message.toBinary();
+        return message;
+    }
+
+    /**
+     * Switch this connection to binary frames (see {@link BinaryFraming}) because the client sent PROTOCOL BINARY.
+     * Everything the client sends after that line is a frame. The client is sent PROTOCOL BINARY as the last text line,
+     * and everything queued after it is written as frames. Switching a connection that is already binary has no effect.
+     */
+    void switchToBinary() {
+        if (binary) return;
+        binary = true;
+        send(SWITCH_TO_BINARY);
+    }
+
+    /**
+     * Returns true once the client has switched to binary frames.
+     * @return true if the client sends and receives binary frames
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Compress everything sent to the client from now on with the given deflate level (see {@link StreamCompressor})
+     * because the client sent COMPRESS DEFLATE. The client is sent COMPRESS DEFLATE as the last uncompressed line,
+     * and everything queued after it is compressed. Compressing a connection that is already compressed has no effect.
+     * @param level the deflate level from 1 (fastest) to 9 (smallest)
+     */
+    void startCompression(int level) {
+        if (compressionLevel != 0) return;
+        compressionLevel = level;
+        send(START_COMPRESSION);
+    }
+
+    /**
+     * Returns the compressor the writer must pass every message through instead of writing it, or null while
+     * messages are written as they are. This only changes when the writer takes a message from the queue.
+     * @return the compressor of this connection or null if it is not compressing yet
+     */
+    StreamCompressor compressor() {
+        return compressor;
+    }
+
+    /**
+     * Release the compressor of this connection, if it has one, because the connection was closed.
+     */
+    void endCompression() {
+        StreamCompressor c = compressor;
+        if (c != null) c.end();
+    }
+
+    /**
+     * Returns the UDP side channel of the client, or null if it has not asked for one.
+     * @return the UDP endpoint of the client or null
+     */
+    UdpChannel.Endpoint getUdpEndpoint() {
+        return udpEndpoint;
+    }
+
+    void setUdpEndpoint(UdpChannel.Endpoint udpEndpoint) {
+        this.udpEndpoint = udpEndpoint;
+    }
+
+    /**
+     * Returns the {@link ActorCache} version of the snapshot sent to the client when it connected. Messages recorded
+     * by the cache of the clients not in a room with a version up to this one were part of that snapshot.
+     * @return the version of the snapshot or 0 if none was sent
+     */
+    long getServerCacheVersion() {
+        return serverCacheVersion;
+    }
+
+    void setServerCacheVersion(long serverCacheVersion) {
+        this.serverCacheVersion = serverCacheVersion;
+    }
+
+    /**
+     * Returns the {@link ActorCache} version of the snapshot sent to the client when it last joined a room. Messages
+     * recorded by the cache of that room with a version up to this one were part of that snapshot.
+     * @return the version of the snapshot or 0 if none was sent
+     */
+    long getRoomCacheVersion() {
+        return roomCacheVersion;
+    }
+
+    void setRoomCacheVersion(long roomCacheVersion) {
+        this.roomCacheVersion = roomCacheVersion;
+    }
+
+    /**
+     * Returns true once the client has asked for compressed data.
+     * @return true if the client is sent compressed data
+     */
+    public boolean isCompressed() {
+        return compressionLevel != 0;
+    }
+
+    /**
+     * Returns the number of bytes that have been compressed for the client, before compression.
+     * @return the number of uncompressed bytes
+     */
+    public long getUncompressedBytes() {
+        StreamCompressor c = compressor;
+        return c == null ? 0 : c.getBytesIn();
+    }
+
+    /**
+     * Returns the number of compressed bytes sent to the client.
+     * @return the number of compressed bytes
+     */
+    public long getCompressedBytes() {
+        StreamCompressor c = compressor;
+        return c == null ? 0 : c.getBytesOut();
+    }
+
+    /**
+     * Returns the time spent compressing data for the client, in nanoseconds.
+     * @return the time spent compressing
+     */
+    public long getCompressionNanos() {
+        StreamCompressor c = compressor;
+        return c == null ? 0 : c.getNanos();
+    }
+
+    /**
+     * Returns true if there are messages in the outbound queue that have not been taken by the writer yet.
+     * @return true if there are messages waiting to be taken by the writer
+     */
+    protected boolean hasQueuedMessages() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * Close the connection. Closing a connection that is already closed has no effect.
+     */
+    public abstract void close();
+
+    /**
+     * Returns true once the connection has been closed.
+     * @return true if the connection has been closed
+     */
+    public abstract boolean isClosed();
+
+    /**
+     * Returns a description of the address of the client (used for logging).
+     * @return a description of the address of the client
+     */
+    public abstract String getRemoteAddress();
+
+    /**
+     * Returns the number of messages currently waiting to be written to the client.
+     * @return the number of messages currently waiting to be written to the client
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the largest number of messages that have been waiting to be written to the client at once.
+     * @return the largest number of messages that have been waiting to be written to the client at once
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of messages that have been written to the client.
+     * @return the number of messages that have been written to the client
+     */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * Returns the number of times data has been flushed to the client. Comparing this to
+     * {@link #getMessagesSent()} shows how well messages are being coalesced.
+     * @return the number of times data has been flushed to the client
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * Returns the overflow policy of this connection.
+     * @return the overflow policy of this connection
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns how long the client has had messages waiting without any of them being written, in milliseconds.
+     * @return how long the client has been lagging in milliseconds (0 if nothing is waiting)
+     */
+    public long getLagMillis() {
+        if (getQueueDepth() == 0) return 0;
+        return (System.nanoTime() - progressNanos) / 1_000_000;
+    }
+
+    /**
+     * Returns the number of state updates dropped from the queue to make room for newer messages (DROP_OLDEST_STATE).
+     * @return the number of state updates dropped from the queue
+     */
+    public long getDroppedStateUpdates() {
+        return droppedStateUpdates.get();
+    }
+
+    /**
+     * Returns the number of held back state updates that were replaced by a newer one for the same actor (DEGRADE).
+     * @return the number of state updates replaced while degraded
+     */
+    public long getConflatedStateUpdates() {
+        return conflatedStateUpdates.get();
+    }
+
+    /**
+     * Returns true if state updates to this client are currently being held back because it is too far behind (DEGRADE).
+     * @return true if this client is degraded
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Returns the number of times this client has been degraded (DEGRADE).
+     * @return the number of times this client has been degraded
+     */
+    public long getTimesDegraded() {
+        return timesDegraded.get();
+    }
+
+    /**
+     * Returns why the connection was closed for falling behind, or null if it was not.
+     * @return why the connection was closed for falling behind or null
+     */
+    public String getEvictionReason() {
+        return evictionReason;
+    }
+
+    /**
+     * Reserve a place in the outbound queue for one message.
+     * @return true if there was room in the queue and false if the queue is full
+     */
+    protected boolean reserveQueueSlot() {
+        int depth = queueDepth.incrementAndGet();
+        if (depth > queueCapacity) {
+            queueDepth.decrementAndGet();
+            return false;
+        }
+        // the lag of a client is measured from the moment it has something to write
+        if (depth == 1) progressNanos = System.nanoTime();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+        return true;
+    }
+
+    /**
+     * Record that the given number of queued messages were written and flushed to the client by a writer that
+     * started on them at the given time.
+     * @param count the number of messages written
+     * @param startNanos the {@link System#nanoTime()} when the writer took the first of them
+     */
+    protected void recordFlush(int count, long startNanos) {
+        StageMetrics stage = writeStage;
+        if (stage != null) stage.record(Math.max(0, startNanos - progressNanos), System.nanoTime() - startNanos);
+        recordFlush(count);
+    }
+
+    /**
+     * Record that the given number of queued messages were written and flushed to the client.
+     * A degraded client that has caught up is sent the state updates held back for it, and stops being
+     * degraded once its queue is nearly empty.
+     * @param count the number of messages written
+     */
+    protected void recordFlush(int count) {
+        progressNanos = System.nanoTime();
+        int depth = queueDepth.addAndGet(-count);
+        messagesSent.addAndGet(count);
+        flushes.incrementAndGet();
+        if (degraded && depth <= queueCapacity / 8) {
+            boolean released = true;
+            degradeLock.lock();
+            try {
+                if (conflated.isEmpty()) {
+                    degraded = false;
+                } else if (depth == 0) {
+                    released = releaseConflated();
+                }
+            } finally {
+                degradeLock.unlock();
+            }
+            if (!released) evict("outbound queue full (" + queueCapacity + " messages)");
+        }
+    }
+
+    /**
+     * Close the connection because the client is too far behind, logging the reason.
+     * @param reason why the client is being disconnected
+     */
+    protected void evict(String reason) {
+        if (evictionReason != null || isClosed()) return;
+        evictionReason = reason;
+        System.out.println("Client " + id + " " + reason + ", disconnecting");
+        close();
+    }
+}
@@ -1,10 +1,7 @@
 package com.tinocs.mp.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
-import java.util.Scanner;
 
 /**
  * Each client that connects to the server is given its own thread that runs the code in run().
@@ -14,12 +11,12 @@ import java.util.Scanner;
 public class ClientThread implements Runnable {
     private Socket csocket;
     private MultiThreadServer server;
-    private String id;
+    private SocketConnection conn;
 
-    public ClientThread(Socket csocket, MultiThreadServer server, String id) {
-        this.csocket = csocket;
+    public ClientThread(SocketConnection conn, MultiThreadServer server) {
+        this.csocket = conn.getSocket();
         this.server = server;
-        this.id = id;
+        this.conn = conn;
     }
 
     /**
@@ -28,55 +25,22 @@ public class ClientThread implements Runnable {
      */
     public void run() {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(csocket.getInputStream()));
-            String inputLine = in.readLine();
-            while (inputLine != null) {
-                final String cmd = inputLine;
-                try (Scanner reader = new Scanner(cmd)) {
-                    String first = reader.next();
-                    if (first.equals("TO")) {
-                        String toId = reader.next();
-                        String restOfCmd = reader.nextLine();
-                        server.sendMessage(id + restOfCmd, toId);
-                    } else if (first.equals("DC")) {
-                        break;
-                    } else if (first.equals("TO_ROOM")) {
-                        String roomId = reader.next();
-                        String restOfCmd = reader.nextLine();
-                        server.roomBroadcast(id + restOfCmd, roomId, id);
-                    } else if (first.equals("ADD_ROOM")) {
-                        String roomName = reader.next();
-                        int roomCapacity = reader.nextInt();
-                        if (!server.addRoom(roomName, roomCapacity)) {
-                            server.sendMessage("ADD_ROOM_FAILED " + roomName + " " + roomCapacity, id); 
-                        }
-                    } else if (first.equals("REMOVE_ROOM")) {
-                        String roomId = reader.next();
-                        server.removeRoom(roomId);
-                    } else if (first.equals("JOIN_ROOM")) {
-                        String roomId = reader.next();
-                        server.joinRoom(id, roomId);
-                    } else if (first.equals("CLOSE_ROOM")) {
-                        String roomId = reader.next();
-                        server.closeRoom(roomId);
-                    } else if (first.equals("OPEN_ROOM")) {
-                        String roomId = reader.next();
-                        server.openRoom(roomId);
-                    } else if (first.equals("LEAVE_ROOM")) {
-                        server.leaveRoom(id);
-                    } else {
-                        server.broadcast(id + " " + cmd, id);
-                    }
-                } catch (Exception err) {
-                	server.sendInvalidCommandErrorMessage(cmd, id);
-                }
-                inputLine = in.readLine();
+            // lines are kept as bytes so TO and TO_ROOM payloads can be relayed without decoding them
+            // and no more of a line is buffered than the server allows
+            LineReader in = new LineReader(csocket.getInputStream(), 8192, server.getConfig().getMaxLineLength());
+            while (in.readLine()) {
+                boolean keepOpen = in.isTruncated()
+                        ? server.processLongLine(in.buffer(), in.lineStart(), in.lineLength(), conn)
+                        : server.processCommand(in.buffer(), in.lineStart(), in.lineLength(), conn);
+                if (!keepOpen) break;
+                // everything after a PROTOCOL BINARY line is a binary frame
+                if (conn.isBinary()) in.setBinary();
             }
-            csocket.close();
         } catch (IOException e) {
-            System.out.println("Client " + id + " socket close IOException: " + e);
+            System.out.println("Client " + conn.getId() + " socket close IOException: " + e);
         } finally {
-            server.removeClient(id);
+            // this closes the connection and tells the room and the other clients that the client left, unless it may come back
+            server.connectionClosed(conn);
         }
     }
 }
\ No newline at end of file
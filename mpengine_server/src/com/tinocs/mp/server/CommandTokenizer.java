@@ -0,0 +1,134 @@
+package com.tinocs.mp.server;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * Index based helpers for splitting a command line into whitespace separated tokens without creating a
+ * {@link java.util.Scanner} or any intermediate Strings. Tokens are described by a start offset (inclusive)
+ * and an end offset (exclusive) into the original line, and only the tokens that are really needed as
+ * Strings (such as ids used as map keys) are ever copied out with {@link String#substring(int, int)}.
+ * </p>
+ * <p>
+ * In the String versions, whitespace is anything for which {@link Character#isWhitespace(char)} is true, which is
+ * the same definition the default delimiter of {@link java.util.Scanner} uses.
+ * </p>
+ * <p>
+ * The byte[] versions work directly on the UTF-8 bytes of a line as it was received, and only treat ASCII
+ * whitespace (the ASCII characters for which {@link Character#isWhitespace(char)} is true) as whitespace. Every
+ * byte of a multi-byte UTF-8 character is &gt;= 0x80, so those bytes are never mistaken for whitespace or for part
+ * of a command word, but it also means that non-ASCII whitespace such as U+2003 or U+3000 does not separate tokens
+ * in a byte[] line, where Scanner would split on it. The clients only ever put ASCII spaces between tokens.
+ * </p>
+ */
+public final class CommandTokenizer {
+
+    private CommandTokenizer() {}
+
+    /**
+     * Returns the index of the first non-whitespace character at or after from, or line.length() if there is none.
+     * @param line the line
+     * @param from the index to start looking at
+     * @return the start of the next token or line.length() if there are no more tokens
+     */
+    public static int skipWhitespace(String line, int from) {
+        int length = line.length();
+        while (from < length && Character.isWhitespace(line.charAt(from))) from++;
+        return from;
+    }
+
+    /**
+     * Returns the index just past the end of the token that starts at the given index.
+     * @param line the line
+     * @param start the index of the first character of the token
+     * @return the index of the first whitespace character after start, or line.length() if the token ends the line
+     */
+    public static int tokenEnd(String line, int start) {
+        int length = line.length();
+        while (start < length && !Character.isWhitespace(line.charAt(start))) start++;
+        return start;
+    }
+
+    /**
+     * Returns the index of the first non-whitespace byte at or after from, or limit if there is none.
+     * @param line the bytes of the line
+     * @param from the index to start looking at
+     * @param limit the index just past the end of the line
+     * @return the start of the next token or limit if there are no more tokens
+     */
+    public static int skipWhitespace(byte[] line, int from, int limit) {
+        while (from < limit && isWhitespace(line[from])) from++;
+        return from;
+    }
+
+    /**
+     * Returns the index just past the end of the token that starts at the given index.
+     * @param line the bytes of the line
+     * @param start the index of the first byte of the token
+     * @param limit the index just past the end of the line
+     * @return the index of the first whitespace byte after start, or limit if the token ends the line
+     */
+    public static int tokenEnd(byte[] line, int start, int limit) {
+        while (start < limit && !isWhitespace(line[start])) start++;
+        return start;
+    }
+
+    /**
+     * Returns true if the bytes of line from start (inclusive) to end (exclusive) are exactly the given ASCII word.
+     * @param line the bytes of the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @param word the word to compare to
+     * @return true if the token is exactly the given word
+     */
+    public static boolean tokenEquals(byte[] line, int start, int end, String word) {
+        if (end - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (line[start + i] != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // the ASCII characters for which Character.isWhitespace is true
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || (b >= 0x09 && b <= 0x0D) || (b >= 0x1C && b <= 0x1F);
+    }
+
+    /**
+     * Returns true if the characters of line from start (inclusive) to end (exclusive) are exactly the given word.
+     * @param line the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @param word the word to compare to
+     * @return true if the token is exactly the given word
+     */
+    public static boolean tokenEquals(String line, int start, int end, String word) {
+        return end - start == word.length() && line.regionMatches(start, word, 0, word.length());
+    }
+
+    /**
+     * Parse the token from start (inclusive) to end (exclusive) as a base 10 int.
+     * @param line the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @return the value of the token
+     * @throws NumberFormatException if the token is not an int
+     */
+    public static int parseInt(String line, int start, int end) {
+        return Integer.parseInt(line, start, end, 10);
+    }
+
+    /**
+     * Returns the token from start (inclusive) to end (exclusive), throwing an exception if it is empty.
+     * This mirrors {@link java.util.Scanner#next()} throwing when a required token is missing.
+     * @param line the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @return the token
+     * @throws NoSuchElementException if the token is empty
+     */
+    public static String requireToken(String line, int start, int end) {
+        if (start >= end) throw new NoSuchElementException("missing token");
+        return line.substring(start, end);
+    }
+}
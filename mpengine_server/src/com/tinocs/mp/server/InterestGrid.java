@@ -0,0 +1,301 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The area-of-interest filter of a room. It is created the first time a member of the room declares an interest region
+ * with the INTEREST command (see {@link MultiThreadServer#setInterest(String, double, double, double)}), so rooms where
+ * nobody does that are not affected at all.
+ * </p>
+ * <p>
+ * The filter remembers the last position of every actor from the ADD and MOVE messages sent to the room, and the world
+ * is divided into square cells. The interest region of a client is the square of cells that covers the given range around
+ * the given point. A MOVE for an actor is sent to a client that declared a region at the full rate when the actor is in
+ * one of the cells of its region, and only once every {@link ServerConfig#getFarUpdateInterval() far update interval}
+ * updates when it is not, so far away actors still move, just less smoothly. Clients that have not declared a region
+ * receive every MOVE as before, and every other message is always sent to everyone.
+ * </p>
+ */
+final class InterestGrid {
+    // a region covering more cells than this is treated as covering the whole world
+    private static final int MAX_REGION_CELLS = 4096;
+
+    private final double cellSize;
+    private final int farUpdateInterval;
+    private final AtomicLong filtered = new AtomicLong();
+
+    // the region of each client that declared one; written under this lock but read without it
+    private final ConcurrentHashMap<String, Region> regions = new ConcurrentHashMap<>();
+    // each key is a cell and each value holds the ids of the clients whose region covers it (guarded by this)
+    private final HashMap<Long, String[]> cells = new HashMap<>();
+    // the last known position of each actor (guarded by this)
+    private final HashMap<String, Actor> actors = new HashMap<>();
+
+    private static final String[] NO_CLIENTS = {};
+
+    private static final class Region {
+        final int minX, minY, maxX, maxY;
+        // true if the region covers too many cells to index, in which case it covers everything
+        final boolean everything;
+
+        Region(int minX, int minY, int maxX, int maxY) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.everything = ((long)maxX - minX + 1) * ((long)maxY - minY + 1) > MAX_REGION_CELLS;
+        }
+
+        boolean covers(int cellX, int cellY) {
+            return everything || (cellX >= minX && cellX <= maxX && cellY >= minY && cellY <= maxY);
+        }
+    }
+
+    private static final class Actor {
+        final String ownerId;
+        int cellX, cellY;
+        long updates;
+        // the last MOVE for the actor or null if it has only been added
+        OutboundMessage lastMove;
+
+        Actor(String ownerId) {
+            this.ownerId = ownerId;
+        }
+    }
+
+    /**
+     * Who receives a MOVE message, decided once by {@link InterestGrid#route(OutboundMessage, String)} and then asked
+     * for each member of the room.
+     */
+    final class Filter {
+        private final String[] near;
+        private final boolean fullRate;
+
+        private Filter(String[] near, boolean fullRate) {
+            this.near = near;
+            this.fullRate = fullRate;
+        }
+
+        /**
+         * Returns true if the client with the given id should receive the message.
+         * @param clientId the id of the client
+         * @return true if the client should receive the message
+         */
+        boolean accepts(String clientId) {
+            if (fullRate) return true;
+            Region region = regions.get(clientId);
+            if (region == null || region.everything) return true;
+            for (String id : near) {
+                if (id.equals(clientId)) return true;
+            }
+            filtered.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * Returns the filter for a MOVE that replaces an older MOVE for the same actor before either was sent. Far away
+         * clients that would have received the older one receive this one instead, so coalescing never starves them.
+         * @param older the filter of the replaced message
+         * @return the filter to use for the newer message
+         */
+        Filter replacing(Filter older) {
+            if (fullRate || older == null || !older.fullRate) return this;
+            return new Filter(near, true);
+        }
+    }
+
+    /**
+     * Create a filter using the given cell size and far update interval.
+     * @param cellSize the width and height of a cell
+     * @param farUpdateInterval how many updates of an actor outside its region a client gets one of
+     */
+    InterestGrid(double cellSize, int farUpdateInterval) {
+        this.cellSize = cellSize > 0 ? cellSize : 1;
+        this.farUpdateInterval = Math.max(1, farUpdateInterval);
+    }
+
+    /**
+     * Record the position carried by a message sent to the room and decide who receives it.
+     * ADD and MOVE set the position of an actor and REMOVE forgets it.
+     * @param message the message, already prefixed with the id of the sender
+     * @param fromId the id of the sender
+     * @return the filter for a MOVE message, or null if the message goes to every member
+     */
+    synchronized Filter route(OutboundMessage message, String fromId) {
+        byte[] bytes = message.bytes();
+        int limit = bytes.length;
+        int cmdStart = CommandTokenizer.skipWhitespace(bytes, CommandTokenizer.tokenEnd(bytes, 0, limit), limit);
+        int cmdEnd = CommandTokenizer.tokenEnd(bytes, cmdStart, limit);
+        if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "MOVE")) {
+            // senderId MOVE actorId x y
+            String[] args = tokens(bytes, cmdEnd, limit, 3);
+            if (args == null) return null;
+            Actor actor = place(args[0], args[1], args[2], fromId);
+            if (actor == null) return null;
+            actor.lastMove = message;
+            boolean fullRate = actor.updates++ % farUpdateInterval == 0;
+            String[] near = cells.get(cellKey(actor.cellX, actor.cellY));
+            return new Filter(near == null ? NO_CLIENTS : near, fullRate);
+        } else if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "ADD")) {
+            // senderId ADD className x y actorId ...
+            String[] args = tokens(bytes, cmdEnd, limit, 4);
+            if (args != null) place(args[3], args[1], args[2], fromId);
+        } else if (CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "REMOVE")) {
+            // senderId REMOVE actorId
+            String[] args = tokens(bytes, cmdEnd, limit, 1);
+            if (args != null) actors.remove(args[0]);
+        }
+        return null;
+    }
+
+    // move the actor with the given id to (x, y), returning null if the position is not a pair of numbers
+    private Actor place(String actorId, String x, String y, String fromId) {
+        double px, py;
+        try {
+            px = Double.parseDouble(x);
+            py = Double.parseDouble(y);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Actor actor = actors.get(actorId);
+        if (actor == null) {
+            actor = new Actor(fromId);
+            actors.put(actorId, actor);
+        }
+        actor.cellX = cell(px);
+        actor.cellY = cell(py);
+        return actor;
+    }
+
+    /**
+     * Set the interest region of the given client to the cells within range of (x, y). Returns the last MOVE of every
+     * actor that is in the new region but was not in the old one, since the client may only have been receiving some
+     * of the updates for those actors.
+     * @param clientId the id of the client
+     * @param x the x coordinate of the center of the region
+     * @param y the y coordinate of the center of the region
+     * @param range the distance from the center to the edges of the region
+     * @return the messages to send to the client to bring it up to date
+     */
+    synchronized List<OutboundMessage> setRegion(String clientId, double x, double y, double range) {
+        Region region = new Region(cell(x - range), cell(y - range), cell(x + range), cell(y + range));
+        Region old = removeRegion(clientId);
+        regions.put(clientId, region);
+        if (!region.everything) {
+            for (int cx = region.minX; cx <= region.maxX; cx++) {
+                for (int cy = region.minY; cy <= region.maxY; cy++) {
+                    Long key = cellKey(cx, cy);
+                    String[] ids = cells.get(key);
+                    if (ids == null) {
+                        ids = new String[] {clientId};
+                    } else {
+                        ids = Arrays.copyOf(ids, ids.length + 1);
+                        ids[ids.length - 1] = clientId;
+                    }
+                    cells.put(key, ids);
+                }
+            }
+        }
+        List<OutboundMessage> catchUp = new ArrayList<>();
+        // without an old region the client was receiving every update
+        if (old == null || old.everything) return catchUp;
+        for (Actor actor : actors.values()) {
+            if (actor.lastMove != null && !actor.ownerId.equals(clientId)
+                    && region.covers(actor.cellX, actor.cellY) && !old.covers(actor.cellX, actor.cellY)) {
+                catchUp.add(actor.lastMove);
+            }
+        }
+        return catchUp;
+    }
+
+    /**
+     * Forget the interest region of the given client so it receives every update again.
+     * @param clientId the id of the client
+     */
+    synchronized void clearRegion(String clientId) {
+        removeRegion(clientId);
+    }
+
+    /**
+     * Forget the interest region of the given client and the actors it added, because it left the room.
+     * @param clientId the id of the client
+     */
+    synchronized void removeClient(String clientId) {
+        removeRegion(clientId);
+        for (Iterator<Actor> it = actors.values().iterator(); it.hasNext();) {
+            if (it.next().ownerId.equals(clientId)) it.remove();
+        }
+    }
+
+    // remove the client's region from the cells it covers and return it (or null if it had none)
+    private Region removeRegion(String clientId) {
+        Region old = regions.remove(clientId);
+        if (old == null || old.everything) return old;
+        for (int cx = old.minX; cx <= old.maxX; cx++) {
+            for (int cy = old.minY; cy <= old.maxY; cy++) {
+                Long key = cellKey(cx, cy);
+                String[] ids = cells.get(key);
+                if (ids == null) continue;
+                if (ids.length == 1) {
+                    cells.remove(key);
+                    continue;
+                }
+                String[] rest = new String[ids.length - 1];
+                int n = 0;
+                for (String id : ids) {
+                    if (!id.equals(clientId) && n < rest.length) rest[n++] = id;
+                }
+                cells.put(key, rest);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Returns the number of MOVE messages not sent to a client because the actor was outside its region.
+     * @return the number of MOVE messages filtered out
+     */
+    long getFilteredCount() {
+        return filtered.get();
+    }
+
+    /**
+     * Returns the number of clients in the room that declared an interest region.
+     * @return the number of clients with an interest region
+     */
+    int getRegionCount() {
+        return regions.size();
+    }
+
+    private int cell(double coordinate) {
+        double c = Math.floor(coordinate / cellSize);
+        // keep absurd coordinates from overflowing the cell index
+        return (int)Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, c));
+    }
+
+    private static Long cellKey(int cellX, int cellY) {
+        return ((long)cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    // the count tokens after index from, or null if there are fewer
+    private static String[] tokens(byte[] bytes, int from, int limit, int count) {
+        String[] tokens = new String[count];
+        int pos = from;
+        for (int i = 0; i < count; i++) {
+            int start = CommandTokenizer.skipWhitespace(bytes, pos, limit);
+            int end = CommandTokenizer.tokenEnd(bytes, start, limit);
+            if (start == end) return null;
+            tokens[i] = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            pos = end;
+        }
+        return tokens;
+    }
+}
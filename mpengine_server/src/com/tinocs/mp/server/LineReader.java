@@ -0,0 +1,224 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a stream as raw bytes into a reusable buffer, so the server can look at a command and relay it
+ * without decoding it into a String. A line ends with '\n', and a '\r' right before the '\n' is not included in
+ * the line, which matches the lines returned by {@link java.io.BufferedReader#readLine()} for the clients
+ * of this server.
+ *
+ * <p>Once {@link #setBinary()} has been called, the reader reads binary frames (see {@link BinaryFraming}) instead,
+ * and each line it returns is the line a frame stands for.</p>
+ *
+ * <p>The buffer never grows past what the longest line allowed needs. A line that is longer is returned cut short
+ * with {@link #isTruncated()} true, and the rest of it is skipped as it arrives; a binary frame that is too long is
+ * returned as an empty truncated line and its body is skipped.</p>
+ */
+public class LineReader {
+    private final InputStream in;
+    private final int maxLineLength;
+    // the most the buffer grows to: a whole line of maxLineLength bytes with "\r\n", or a frame with its header
+    private final int capacity;
+    private byte[] buf;
+    // the bytes from start (inclusive) to end (exclusive) have been read from the stream but not returned yet
+    private int start;
+    private int end;
+    private int lineStart;
+    private int lineLength;
+    // the decoder of binary frames, or null while reading text lines
+    private BinaryFraming.Decoder decoder;
+    private final long[] header = new long[1];
+    // whether the current line was cut short, and what is left to skip of the line or frame it was cut from
+    private boolean truncated;
+    private boolean skipping;
+    private long skipBytes;
+
+    /**
+     * Create a LineReader that reads from the given stream.
+     * @param in the stream
+     */
+    public LineReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    /**
+     * Create a LineReader that reads from the given stream with the given initial buffer size.
+     * @param in the stream
+     * @param bufferSize the initial size of the buffer
+     */
+    public LineReader(InputStream in, int bufferSize) {
+        this(in, bufferSize, BinaryFraming.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Create a LineReader that reads from the given stream with the given initial buffer size, which returns at most
+     * the given number of bytes of a line.
+     * @param in the stream
+     * @param bufferSize the initial size of the buffer
+     * @param maxLineLength the most bytes of a line (or the body of a frame) that are returned, not counting the line break
+     */
+    public LineReader(InputStream in, int bufferSize, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.capacity = maxLineLength + 8;
+        this.buf = new byte[Math.max(16, Math.min(bufferSize, capacity))];
+    }
+
+    /**
+     * Read the next line. After this returns true, the line is available from {@link #buffer()},
+     * {@link #lineStart()} and {@link #lineLength()} until the next call.
+     * @return true if a line was read and false if the end of the stream was reached
+     * @throws IOException if reading from the stream failed
+     */
+    public boolean readLine() throws IOException {
+        truncated = false;
+        if (decoder != null) return readFrame();
+        if (skipping && !skipLine()) return false;
+        int scanFrom = start;
+        while (true) {
+            for (int i = scanFrom; i < end; i++) {
+                if (buf[i] == '\n') {
+                    lineStart = start;
+                    lineLength = i - start;
+                    if (lineLength > 0 && buf[i - 1] == '\r') lineLength--;
+                    if (lineLength > maxLineLength) {
+                        lineLength = maxLineLength;
+                        truncated = true;
+                    }
+                    start = i + 1;
+                    return true;
+                }
+            }
+            // even with a "\r\n" still to come, the line is too long to buffer
+            if (end - start > maxLineLength + 1) {
+                lineStart = start;
+                lineLength = maxLineLength;
+                truncated = true;
+                start = end;
+                skipping = true;
+                return true;
+            }
+            scanFrom = end - start;
+            if (!fill()) {
+                // like BufferedReader, a final line without a line break is still a line
+                if (end > start) {
+                    lineStart = start;
+                    lineLength = end - start;
+                    start = end;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current line was longer than the maximum line length, so only its first bytes were
+     * returned (none for a binary frame).
+     * @return true if the current line was cut short
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    // skip the rest of a line that was too long, up to its line break; returns false at the end of the stream
+    private boolean skipLine() throws IOException {
+        while (true) {
+            for (int i = start; i < end; i++) {
+                if (buf[i] == '\n') {
+                    start = i + 1;
+                    skipping = false;
+                    return true;
+                }
+            }
+            start = end;
+            if (!fill()) return false;
+        }
+    }
+
+    /**
+     * Read binary frames from now on. Bytes that were already read past the current line are treated as frames.
+     */
+    public void setBinary() {
+        if (decoder == null) decoder = new BinaryFraming.Decoder();
+    }
+
+    private boolean readFrame() throws IOException {
+        while (true) {
+            if (skipBytes > 0) {
+                int n = (int)Math.min(skipBytes, end - start);
+                start += n;
+                skipBytes -= n;
+                if (skipBytes > 0 && !fill()) return false;
+                continue;
+            }
+            int bodyStart = BinaryFraming.readHeader(buf, start, end, header);
+            if (bodyStart >= 0 && header[0] > maxLineLength) {
+                start = bodyStart;
+                skipBytes = header[0];
+                lineStart = 0;
+                lineLength = 0;
+                truncated = true;
+                return true;
+            }
+            if (bodyStart >= 0 && end - bodyStart >= header[0]) {
+                int bodyLength = (int)header[0];
+                decoder.decode(buf, bodyStart, bodyLength);
+                start = bodyStart + bodyLength;
+                lineStart = 0;
+                lineLength = decoder.length();
+                // the line a frame stands for can be longer than the frame
+                if (lineLength > maxLineLength) {
+                    lineLength = maxLineLength;
+                    truncated = true;
+                }
+                return true;
+            }
+            if (!fill()) {
+                if (end > start) throw new IOException("stream ended in the middle of a frame");
+                return false;
+            }
+        }
+    }
+
+    // move unread bytes to the front of the buffer (growing it if it is full, up to its capacity) and read more; returns false at the end of the stream
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buf.length) buf = Arrays.copyOf(buf, Math.min(buf.length * 2, capacity));
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) return false;
+        end += n;
+        return true;
+    }
+
+    /**
+     * Returns the buffer holding the current line. The buffer is reused, so its contents change on the next call to {@link #readLine()}.
+     * @return the buffer holding the current line
+     */
+    public byte[] buffer() {
+        return decoder != null ? decoder.line() : buf;
+    }
+
+    /**
+     * Returns the index in {@link #buffer()} of the first byte of the current line.
+     * @return the index in {@link #buffer()} of the first byte of the current line
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * Returns the number of bytes in the current line, not including the line break.
+     * @return the number of bytes in the current line, not including the line break
+     */
+    public int lineLength() {
+        return lineLength;
+    }
+}
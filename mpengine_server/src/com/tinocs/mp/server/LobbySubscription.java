@@ -0,0 +1,31 @@
+package com.tinocs.mp.server;
+
+/**
+ * <p>
+ * Which lobby events a client receives. Lobby events are the messages about rooms: ROOM_ADDED, ROOM_REMOVED,
+ * JOINED_ROOM, LEFT_ROOM, ROOM_OWNER, ROOM_CLOSED and ROOM_OPENED. A client always receives the events about
+ * the room it is in and the events about itself (such as its own LEFT_ROOM), whatever its subscription is.
+ * </p>
+ * <p>
+ * A client chooses its subscription with the LOBBY_SUBSCRIBE, LOBBY_SUBSCRIBE AUTO and LOBBY_UNSUBSCRIBE commands.
+ * Whenever a client starts receiving every lobby event again after missing some, the server sends it
+ * LOBBY_STATE followed by the current state of the server so it can catch up.
+ * </p>
+ */
+public enum LobbySubscription {
+    /** Receive every lobby event. This is the default (LOBBY_SUBSCRIBE). */
+    ALL,
+    /** Receive every lobby event while not in a room and only the events about your own room while in one (LOBBY_SUBSCRIBE AUTO). */
+    AUTO,
+    /** Only receive the events about your own room (LOBBY_UNSUBSCRIBE). */
+    ROOM_ONLY;
+
+    /**
+     * Returns true if a client with this subscription receives every lobby event.
+     * @param inRoom whether the client is in a room
+     * @return true if a client with this subscription receives every lobby event
+     */
+    public boolean receivesLobby(boolean inRoom) {
+        return this == ALL || (this == AUTO && !inRoom);
+    }
+}
@@ -0,0 +1,18 @@
+package com.tinocs.mp.server;
+
+/**
+ * What the server does when a client sends a line (or binary frame) longer than the maximum line length (see
+ * {@link ServerConfig#setMaxLineLength(int)}). Whatever the policy, the server never buffers more than the maximum
+ * of any line: the rest of it is skipped as it arrives, so one client can't make the server run out of memory by
+ * sending a line that never ends.
+ */
+public enum LongLinePolicy {
+    /** Disconnect the client. This is the default. */
+    DISCONNECT,
+    /**
+     * Handle the first bytes of the line that fit as if they were the whole line, skip the rest and tell the client
+     * with <b>LINE_TOO_LONG maxLength</b>. A binary frame that is too long can't be cut short, so it is skipped
+     * completely.
+     */
+    TRUNCATE
+}
@@ -1,51 +1,136 @@
 package com.tinocs.mp.server;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MultiThreadServer implements Runnable {
 
-    // Each key is the client id and each value is the socket of that client
-    private ConcurrentHashMap<String, Socket> activeClients = new ConcurrentHashMap<>();
+    // Each key is the client id and each value is the connection to that client
+    private ConcurrentHashMap<String, ClientConnection> activeClients = new ConcurrentHashMap<>();
 
-    // each key is a room id and the value is a map where each key is a client and value is true
-    // (effectively a set of clients in the room)
-    //                       roomId ->              clientId -> true
-    private ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> rooms = new ConcurrentHashMap<>();
+    // Each key is a room id and each value is the room with that id
+    private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
 
-    // Each key is a room id and each value is the name of the room
-    //                      roomId -> roomName
-    private ConcurrentHashMap<String, String> roomNames = new ConcurrentHashMap<>();
+    // the clients that currently receive every lobby event (see LobbySubscription)
+    private ConcurrentHashMap<String, ClientConnection> lobbySubscribers = new ConcurrentHashMap<>();
 
-    // each key is the room id and the value is the capacity of the room
-    private ConcurrentHashMap<String, Integer> roomCapacities = new ConcurrentHashMap<>();
+    // Each key is a client id, and each value is the room the client is in
+    // if not in a room, the client will not be in this map.
+    // An entry is only added or removed while holding the lock of the room it refers to.
+    private ConcurrentHashMap<String, Room> roomsByClient = new ConcurrentHashMap<>();
+    
+    private final int MAX_ROOMS;
+
+    // the state sent to each new client, kept up to date as clients and rooms change
+    private final StateSnapshot snapshot;
+
+    // the overflow counters of clients that have left (see ClientConnection and OverflowPolicy)
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong departedDropped = new AtomicLong();
+    private final AtomicLong departedConflated = new AtomicLong();
+    private final AtomicLong departedDegraded = new AtomicLong();
+    private final AtomicLong departedUncompressed = new AtomicLong();
+    private final AtomicLong departedCompressed = new AtomicLong();
+    private final AtomicLong departedCompressionNanos = new AtomicLong();
 
-    // Each key is a client id, and each value is the id of the room the client is in
-    // if not in a room, the client will not be in this map
-    private ConcurrentHashMap<String, String> roomsByClient = new ConcurrentHashMap<>();
+    // the last id handed out when the server uses compact ids
+    private final AtomicLong nextCompactId = new AtomicLong();
     
-    private ConcurrentHashMap<String, String> roomOwners = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Boolean> closedRooms = new ConcurrentHashMap<>();
+    private static final byte[] SPACE = {' '};
+    private static final byte[] NO_SEPARATOR = {};
+    private static final String[] NO_MEMBERS = {};
+
+    /** the highest tick rate a room can have */
+    public static final int MAX_TICK_RATE = 240;
+
+    // runs the ticks of the rooms that have a tick rate and ends the sessions of clients that did not come back (created when first needed)
+    private ScheduledExecutorService timer;
+
+    // the sessions of the clients that may reconnect, by client id, or null unless the server allows it (see ServerConfig.setResumeGraceMillis)
+    private final ConcurrentHashMap<String, ResumeSession> sessions;
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong failedResumes = new AtomicLong();
+    private static final SecureRandom SECRETS = new SecureRandom();
+
+    // the heartbeat of every client, or null unless the server sends heartbeats (see ServerConfig.setHeartbeatMillis)
+    private final TimingWheel heartbeats;
+    private final AtomicLong idleTimeouts = new AtomicLong();
+
+    // the command words with a rate limit and their limits, in the same order (see ServerConfig.setCommandRateLimit)
+    private final String[] rateLimitedCommands;
+    private final int[] commandRates;
+    // true if relayed messages are limited at all
+    private final boolean rateLimited;
+    private final AtomicLong rateDropped = new AtomicLong();
+    private final AtomicLong rateDelayed = new AtomicLong();
+    private final AtomicLong throttleNotices = new AtomicLong();
+
+    // the lines longer than the maximum line length (see ServerConfig.setMaxLineLength)
+    private final AtomicLong longLines = new AtomicLong();
     
-    private final int MAX_ROOMS;
+    // the settings this server was created with
+    private final ServerConfig config;
+
+    // the server commands this server handles; the words of the features it was started without are relayed like any other
+    private final EnumSet<ServerCommand> commands;
+
+    // the UDP side channel, or null if the server has none (see ServerConfig.setUdpPort)
+    private final UdpChannel udp;
+
+    // the latest state of the actors of the clients not in a room, or null unless the server caches actors (see ServerConfig.setActorCache)
+    private final ActorCache actorCache;
     
     // A reference to the ServerSocket
     private ServerSocket ssock;
 
+    // makes the reader and writer threads of each client (see ServerConfig.setVirtualThreads)
+    private final ThreadFactory clientThreads;
+
+    // decides which accepted connections are taken on (see ServerConfig.setMaxConnections and setAcceptRate)
+    private final AdmissionControl admission;
+    // how often waiting connections are looked at
+    private static final int ADMISSION_MILLIS = 10;
+
+    // runs the room mailboxes, or null if commands about rooms are run by the thread that read them
+    private final ExecutorService roomWorkers;
+    // the commands run by the mailboxes of rooms that were removed
+    private final AtomicLong removedRoomTasks = new AtomicLong();
+
+    // hands the lines read from clients to the routing workers, or null if the thread that read a line routes it
+    private final RoutingStage routing;
+
     /**
      * Create a MultiThreadServer with the given socket and effectively no maximum number of rooms.
      * 
      * @param sock the socket
      */
     public MultiThreadServer(ServerSocket sock) {
-        this(sock, Integer.MAX_VALUE);
+        this(sock, new ServerConfig());
     }
     
     /**
@@ -55,8 +140,120 @@ public class MultiThreadServer implements Runnable {
      * @param maxRooms the maximum number of rooms
      */
     public MultiThreadServer(ServerSocket sock, int maxRooms) {
+        this(sock, configWithMaxRooms(maxRooms));
+    }
+
+    /**
+     * Create a MultiThreadServer with the given socket and settings.
+     * 
+     * @param sock the socket
+     * @param config the settings of the server
+     */
+    public MultiThreadServer(ServerSocket sock, ServerConfig config) {
         ssock = sock;
-        MAX_ROOMS = maxRooms;
+        this.config = config;
+        MAX_ROOMS = config.getMaxRooms();
+        udp = config.getUdpPort() > 0 ? openUdp(config) : null;
+        actorCache = config.isActorCache() ? new ActorCache() : null;
+        sessions = config.getResumeGraceMillis() > 0 ? new ConcurrentHashMap<>() : null;
+        heartbeats = config.getHeartbeatMillis() > 0 ? startHeartbeats(config) : null;
+        commands = EnumSet.allOf(ServerCommand.class);
+        if (config.getCompressionLevel() == 0) commands.remove(ServerCommand.COMPRESS);
+        if (udp == null) commands.remove(ServerCommand.UDP);
+        if (sessions == null) commands.removeAll(EnumSet.of(ServerCommand.RESUME_ENABLE, ServerCommand.RESUME));
+        if (heartbeats == null) commands.remove(ServerCommand.PONG);
+        Map<String, Integer> commandLimits = config.getCommandRateLimits();
+        rateLimitedCommands = new String[commandLimits.size()];
+        commandRates = new int[commandLimits.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> limit : commandLimits.entrySet()) {
+            rateLimitedCommands[i] = limit.getKey();
+            commandRates[i++] = limit.getValue();
+        }
+        rateLimited = config.getRateLimit() > 0 || commandRates.length > 0;
+        clientThreads = config.isVirtualThreads() && sock != null ? virtualThreads() : Thread::new;
+        admission = new AdmissionControl(config);
+        if (config.getAcceptQueue() > 0) {
+            timer().scheduleWithFixedDelay(admission::drain, ADMISSION_MILLIS, ADMISSION_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        roomWorkers = config.getRoomWorkers() > 0 ? startRoomWorkers(config.getRoomWorkers()) : null;
+        snapshot = new StateSnapshot(MAX_ROOMS, getFeatures());
+        routing = config.getRouteWorkers() > 0 ? new RoutingStage(this, config.getRouteWorkers(), config.getRouteQueue()) : null;
+        if (udp != null) {
+            Thread receiver = new Thread(udp, "udp-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    private static ExecutorService startRoomWorkers(int count) {
+        AtomicInteger next = new AtomicInteger();
+        return Executors.newFixedThreadPool(count, task -> {
+            Thread thread = new Thread(task, "room-worker-" + next.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Thread.ofVirtual().factory(), looked up at run time since the server is built for Java versions without it
+    private static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            ThreadFactory factory = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            System.out.println("Clients are served on virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21 or later, so clients are served on platform threads");
+            return Thread::new;
+        }
+    }
+
+    // one turn of the wheel covers a few heartbeats, so most of them are due in the turn they were scheduled in
+    private TimingWheel startHeartbeats(ServerConfig config) {
+        long tick = Math.max(10, Math.min(config.getHeartbeatMillis(), config.getIdleTimeoutMillis()) / 8);
+        TimingWheel wheel = new TimingWheel(tick, 64);
+        timer().scheduleAtFixedRate(wheel::advance, tick, tick, TimeUnit.MILLISECONDS);
+        return wheel;
+    }
+
+    // bind the UDP side channel, or return null (and go on without it) if the port can't be used
+    private UdpChannel openUdp(ServerConfig config) {
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            // room for a burst of updates from many clients while the receiver is busy
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            channel.bind(new InetSocketAddress(config.getUdpPort()));
+            System.out.println("UDP side channel listening on port " + config.getUdpPort());
+            return new UdpChannel(channel, this, config.getUdpLossPercent());
+        } catch (IOException e) {
+            System.err.println("Could not open UDP port " + config.getUdpPort() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create a server with the given settings that does not own a ServerSocket.
+     * This is used by engines such as {@link NioServer} that accept connections on their own
+     * and override {@link #run()}.
+     * 
+     * @param config the settings of the server
+     */
+    protected MultiThreadServer(ServerConfig config) {
+        this(null, config);
+    }
+
+    private static ServerConfig configWithMaxRooms(int maxRooms) {
+        ServerConfig config = new ServerConfig();
+        config.setMaxRooms(maxRooms);
+        return config;
+    }
+
+    /**
+     * Returns the settings this server was created with.
+     * @return the settings this server was created with
+     */
+    public ServerConfig getConfig() {
+        return config;
     }
 
     /**
@@ -75,29 +272,254 @@ public class MultiThreadServer implements Runnable {
      * 
      * || means there are currently no rooms because all the room info would be listed between | and |
      * 2147483647 is the maximum number of rooms (in this case it is Integer.MAX_VALUE)
+     * <p>
+     * The state is kept ready to send as clients and rooms change (see {@link #getClientInitState()}),
+     * so the cost of this does not grow with the number of rooms.
+     * </p>
      * 
-     * @param id the id of the client
-     * @param sock the client socket
+     * <p>
+     * If the server caches actors (see {@link ServerConfig#setActorCache(boolean)}), the state is followed by the ADD
+     * and latest state of every actor of the clients that are not in a room, in one frame.
+     * </p>
+     * 
+     * @param conn the connection to the client
      */
-    private void addClient(String id, Socket sock) {
-        activeClients.put(id, sock);
-        sendMessage(id + " ID " + getClientInitState(), id);
+    protected void addClient(ClientConnection conn) {
+        if (heartbeats != null) heartbeats.schedule(() -> heartbeat(conn), config.getHeartbeatMillis());
+        if (rateLimited) conn.setRateLimits(new RateLimits(config, commandRates));
+        if (routing != null) conn.setWriteStage(routing.getWriteStage());
+        if (actorCache == null) {
+            register(conn);
+            return;
+        }
+        // a message recorded by the cache either is in the snapshot or reaches the client after it, never both
+        synchronized (actorCache) {
+            register(conn);
+            sendActors(actorCache, conn, false);
+        }
+    }
+
+    private void register(ClientConnection conn) {
+        String id = conn.getId();
+        activeClients.put(id, conn);
+        snapshot.clientAdded(id);
+        // new clients receive every lobby event until they ask otherwise
+        lobbySubscribers.put(id, conn);
+        conn.send(snapshot.handshake(conn.getIdBytes()));
+    }
+
+    // send the client everything in the cache and remember which messages that covers; the caller holds the lock of the cache
+    private void sendActors(ActorCache cache, ClientConnection conn, boolean room) {
+        long version = ActorCache.currentVersion();
+        if (room) {
+            conn.setRoomCacheVersion(version);
+        } else {
+            conn.setServerCacheVersion(version);
+        }
+        OutboundMessage actors = cache.snapshot();
+        if (actors != null) conn.send(actors);
     }
     
     /**
-     * Remove the client with the given id. This is done once the client
-     * has closed the socket.
+     * Send the client on the given connection a PING, or close the connection if the client has sent nothing for the
+     * idle timeout, then schedule the next heartbeat. Closing the connection is handled like any other lost connection,
+     * so a client that may resume its session can still come back.
+     * @param conn the connection
+     */
+    private void heartbeat(ClientConnection conn) {
+        if (conn.isClosed()) return;
+        int heartbeat = config.getHeartbeatMillis();
+        if ((long)conn.heartbeat() * heartbeat >= config.getIdleTimeoutMillis()) {
+            idleTimeouts.incrementAndGet();
+            System.out.println("Client " + conn.getId() + " sent nothing for " + config.getIdleTimeoutMillis() + " ms, closing its connection");
+            conn.close();
+            return;
+        }
+        conn.send(conn.ping());
+        heartbeats.schedule(() -> heartbeat(conn), heartbeat);
+    }
+
+    /**
+     * Remove the client with the given id for good, even if it could still resume its session.
      * @param clientId
      */
     public void removeClient(String clientId) {
-    	if (activeClients.containsKey(clientId)) {
-    		activeClients.remove(clientId);
+        ClientConnection conn = activeClients.get(clientId);
+        if (conn != null) removeClient(conn);
+    }
+
+    /**
+     * Called when the connection of a client was closed, either by the client or because of an error. The client is
+     * removed unless it may still resume its session (see {@link ServerConfig#setResumeGraceMillis(int)}), in which case
+     * it keeps its id and its room until the grace period ends.
+     * @param conn the connection that was closed
+     */
+    void connectionClosed(ClientConnection conn) {
+        conn.close();
+        admission.released();
+        // what the client sent before its connection closed reaches the others before they hear it left
+        if (routing != null) {
+            routing.execute(conn, () -> afterCommands(conn));
+        } else {
+            afterCommands(conn);
+        }
+    }
+
+    private void afterCommands(ClientConnection conn) {
+        RoomMailbox pending = conn.getPendingMailbox();
+        if (pending != null) {
+            pending.execute(() -> connectionLost(conn));
+        } else {
+            connectionLost(conn);
+        }
+    }
+
+    // the rest of connectionClosed, once every command read from the connection has run
+    private void connectionLost(ClientConnection conn) {
+        ResumeSession session = conn.getSession();
+        // a client that asked to disconnect or was too far behind does not come back
+        if (session != null && conn.getEvictionReason() == null && session.park(conn)) {
+            conn.endCompression();
+            if (udp != null) udp.unregister(conn);
+            int grace = config.getResumeGraceMillis();
+            session.setExpiry(timer().schedule(() -> {
+                if (session.expire(conn)) removeClient(conn);
+            }, grace, TimeUnit.MILLISECONDS));
+            System.out.println("Client " + conn.getId() + " lost its connection, keeping its session for " + grace + " ms");
+            return;
+        }
+        removeClient(conn);
+    }
+
+    private void removeClient(ClientConnection conn) {
+        String clientId = conn.getId();
+        ResumeSession session = conn.getSession();
+        if (session != null && session.end(conn)) sessions.remove(clientId, session);
+        // after a resume, the old connection of the client is no longer the one it is known by
+    	if (activeClients.remove(clientId, conn)) {
+    		// make sure the socket is closed however the client left (closing twice has no effect)
+    		conn.close();
+    		recordDeparted(conn);
+    		conn.endCompression();
+    		if (udp != null) udp.unregister(conn);
+    		if (actorCache != null) actorCache.removeOwner(clientId);
+    		snapshot.clientRemoved(clientId);
+    		lobbySubscribers.remove(clientId);
 	        leaveRoom(clientId);
 	        broadcast(clientId + " DC");
 	        System.out.println("Client disconnected: " + clientId);
     	}
     }
 
+    /**
+     * Give the given client a session it can resume if it loses its connection. The client is sent
+     * <b>RESUME_ENABLE token graceMillis</b> and counts every line it reads after that one.
+     * @param conn the connection of the client
+     */
+    private void enableResume(ClientConnection conn) {
+        if (conn.getSession() != null) return;
+        ResumeSession session = new ResumeSession(newToken(), config.getResumeBufferSize());
+        // nothing queued after the reply may be left out of the session, and the reply itself is not counted
+        synchronized (session) {
+            conn.setSession(session);
+            conn.send("RESUME_ENABLE " + session.getToken() + " " + config.getResumeGraceMillis());
+            session.setOwner(conn);
+        }
+        sessions.put(conn.getId(), session);
+    }
+
+    /**
+     * <p>
+     * The client on the given new connection takes over the session of the client with the given old id, if the token
+     * matches and the session still has every line after the given number of lines. The new connection is given the old
+     * id, and the client is sent <b>RESUMED oldId</b> followed by every line it missed. It is still in its room and no
+     * other client is told anything. The id the new connection was given is forgotten, since the client never announced it.
+     * </p>
+     * <p>
+     * Otherwise the client is sent <b>RESUME_FAIL oldId</b> and carries on with the new id. If only the number of lines
+     * was wrong, the old session ends and the other clients are told the old id disconnected.
+     * </p>
+     * @param conn the new connection of the client
+     * @param oldId the id of the client before it lost its connection
+     * @param token the token of the session
+     * @param received the number of lines the client read since the session started
+     */
+    private void resume(ClientConnection conn, String oldId, String token, long received) {
+        ResumeSession session = sessions.get(oldId);
+        if (session == null || !session.getToken().equals(token) || conn.getSession() != null || roomsByClient.containsKey(conn.getId())) {
+            failedResumes.incrementAndGet();
+            conn.send("RESUME_FAIL " + oldId);
+            return;
+        }
+        ClientConnection old;
+        int missedCount = 0;
+        // anything sent to the old connection meanwhile waits for the lock and is then passed on to the new one
+        synchronized (session) {
+            old = session.getOwner();
+            List<OutboundMessage> missed = old == null ? null : session.resume(received, config.getOutboundQueueCapacity());
+            if (missed != null) {
+                String newId = conn.getId();
+                activeClients.remove(newId, conn);
+                snapshot.clientRemoved(newId);
+                lobbySubscribers.remove(newId);
+                conn.setId(oldId);
+                conn.setSession(session);
+                conn.setLobbySubscription(old.getLobbySubscription());
+                conn.setServerCacheVersion(old.getServerCacheVersion());
+                conn.setRoomCacheVersion(old.getRoomCacheVersion());
+                conn.send("RESUMED " + oldId);
+                session.setOwner(conn);
+                for (OutboundMessage message : missed) conn.send(message);
+                missedCount = missed.size();
+                activeClients.put(oldId, conn);
+                lobbySubscribers.replace(oldId, conn);
+            }
+        }
+        if (old == null || session.getOwner() != conn) {
+            failedResumes.incrementAndGet();
+            conn.send("RESUME_FAIL " + oldId);
+            if (old != null) removeClient(old);
+            return;
+        }
+        // until the room has the new connection, what is sent to the old one is passed on to it
+        Room room = roomsByClient.get(oldId);
+        if (room != null) {
+            synchronized (room) {
+                room.replaceConnection(oldId, conn);
+            }
+        }
+        // the old connection may not have noticed it was lost yet
+        old.close();
+        recordDeparted(old);
+        old.endCompression();
+        if (udp != null) udp.unregister(old);
+        resumes.incrementAndGet();
+        System.out.println("Client " + oldId + " resumed its session (" + missedCount + " missed messages)");
+    }
+
+    /**
+     * Returns a new random secret of 24 hex digits, used for the tokens of sessions and of the UDP side channel.
+     * @return a new secret
+     */
+    static String newToken() {
+        byte[] secret = new byte[12];
+        SECRETS.nextBytes(secret);
+        StringBuilder token = new StringBuilder();
+        for (byte b : secret) token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return token.toString();
+    }
+
+    // keep the overflow counters of a client that left so they still show up in the stats report
+    private void recordDeparted(ClientConnection conn) {
+        if (conn.getEvictionReason() != null) evictions.incrementAndGet();
+        departedDropped.addAndGet(conn.getDroppedStateUpdates());
+        departedConflated.addAndGet(conn.getConflatedStateUpdates());
+        departedDegraded.addAndGet(conn.getTimesDegraded());
+        departedUncompressed.addAndGet(conn.getUncompressedBytes());
+        departedCompressed.addAndGet(conn.getCompressedBytes());
+        departedCompressionNanos.addAndGet(conn.getCompressionNanos());
+    }
+
     /** 
      * <p>
      * Creates a room with the given room name and broadcasts the id of the created room
@@ -134,54 +556,105 @@ public class MultiThreadServer implements Runnable {
      * @return true if the room was successfully created and false otherwise (i.e. max rooms was reached)
      */ 
     public boolean addRoom(String roomName, int capacity) {
-        if (rooms.size() < MAX_ROOMS) {
-            // remove all pipes '|', commas ',' and spaces ' ' from room name
-            if (capacity < 1) capacity = 1;
-            roomName = roomName.replaceAll("[\\s|,]", "");
-            String roomId = generateUUID();
-            rooms.put(roomId, new ConcurrentHashMap<>());
-            roomNames.put(roomId, roomName);
-            roomCapacities.put(roomId, capacity);
-            broadcast("ROOM_ADDED " + roomId + " " + roomName + " " + capacity + " " + null + " " + false);
-            return true;
-        } else {
-            return false;
+        return addRoom(roomName, capacity, 0, null);
+    }
+
+    /**
+     * <p>
+     * Creates a room like {@link #addRoom(String, int)}. The ROOM_ADDED message is sent to the lobby subscribers
+     * and also to the client that asked for the room, even if it is not subscribed to the lobby.
+     * </p>
+     * <p>
+     * If tickRate is greater than 0, the messages clients send to the room (with TO_ROOM) are not passed on as
+     * soon as they arrive. Instead they are collected and delivered tickRate times per second, with everything
+     * for one member written as a single frame, and a MOVE or ROT that is replaced by a later MOVE or ROT for
+     * the same actor within a tick is dropped (see {@link RoomTicker}). The tick rate is capped at {@link #MAX_TICK_RATE}.
+     * </p>
+     * 
+     * @param roomName the name of the room
+     * @param capacity the maximum number of clients allowed to join the room
+     * @param tickRate the number of times per second messages to the room are delivered, or 0 to deliver them immediately
+     * @param creatorId the id of the client that asked for the room or null if the server is creating it
+     * @return true if the room was successfully created and false otherwise (i.e. max rooms was reached)
+     */
+    public boolean addRoom(String roomName, int capacity, int tickRate, String creatorId) {
+        // remove all pipes '|', commas ',' and spaces ' ' from room name
+        if (capacity < 1) capacity = 1;
+        tickRate = Math.max(0, Math.min(tickRate, MAX_TICK_RATE));
+        roomName = roomName.replaceAll("[\\s|,]", "");
+        String roomId;
+        Room room;
+        // checking the count and adding the room must happen together or the cap could be exceeded,
+        // and a room that does not fit must not use up a compact id
+        synchronized (rooms) {
+            if (rooms.size() >= MAX_ROOMS) return false;
+            roomId = newId();
+            room = new Room(roomId, roomName, capacity, tickRate);
+            if (config.isActorCache()) room.setActorCache(new ActorCache());
+            if (roomWorkers != null) room.setMailbox(new RoomMailbox(roomWorkers));
+            rooms.put(roomId, room);
         }
+        if (tickRate > 0) startTicking(room);
+        snapshot.roomChanged(room);
+        lobbyBroadcast("ROOM_ADDED " + roomId + " " + roomName + " " + capacity + " " + null + " " + false, NO_MEMBERS, creatorId);
+        return true;
     }
-    
-    /** returns a string describing the state of the server in the form used to pass to the clients */
-    public String getClientInitState() {
-        return getKeysStr(activeClients) + "|" + getRoomsStr() + "|" + MAX_ROOMS;
+
+    private void startTicking(Room room) {
+        RoomTicker ticker = new RoomTicker(room, this);
+        room.setTicker(ticker);
+        long period = TimeUnit.SECONDS.toNanos(1) / room.getTickRate();
+        // a tick is one more command of the room when it has a mailbox, so the timer thread only hands it over
+        RoomMailbox mailbox = room.getMailbox();
+        Runnable tick = mailbox == null ? ticker : () -> mailbox.execute(ticker);
+        ticker.setFuture(timer().scheduleAtFixedRate(tick, period, period, TimeUnit.NANOSECONDS));
     }
-    
-    private <T> String getKeysStr(Map<T, ?> map) {
-        String str = "";
-        for (T key : map.keySet()) {
-            str += key + " ";
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "server-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        return str;
+        return timer;
+    }
+
+    /**
+     * Returns the room with the given id or null if there is no such room.
+     * @param roomId the id of the room
+     * @return the room with the given id or null if there is no such room
+     */
+    public Room getRoom(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    /**
+     * Returns the room the client with the given id is in or null if the client is not in a room.
+     * @param clientId the id of the client
+     * @return the room the client is in or null if the client is not in a room
+     */
+    public Room getRoomOf(String clientId) {
+        return roomsByClient.get(clientId);
     }
     
-    private String getRoomsStr() {
-        String msg = "";
-        for (Map.Entry<String, ConcurrentHashMap<String, Boolean>> roomEntry : rooms.entrySet()) {
-            String roomId = roomEntry.getKey();
-            ConcurrentHashMap<String, Boolean> members = roomEntry.getValue();
-            String roomName = roomNames.get(roomId);
-            int capacity = roomCapacities.get(roomId);
-            String ownerId = null;
-            if (roomOwners.containsKey(roomId)) {
-                ownerId = roomOwners.get(roomId);
-            }
-            boolean closed = closedRooms.containsKey(roomId);
-            msg += " " + roomId + " " + roomName + " " + capacity + " " + ownerId + " " + closed;
-            for (String clientId : members.keySet()) {
-                msg += " " + clientId;
-            }
-            msg += " ,";
-        }
-        if (rooms.entrySet().size() > 0) msg = msg.substring(0, msg.length() - 2);
-        return msg;
+    /**
+     * Returns a string describing the state of the server in the form used to pass to the clients.
+     * The state is cached and only the parts that changed since the last call are rebuilt.
+     * @return a string describing the state of the server
+     */
+    public String getClientInitState() {
+        return snapshot.getText();
+    }
+
+    /**
+     * Returns the number of changes to the clients and rooms of the server so far. This increases whenever
+     * a client connects or disconnects or anything about a room changes.
+     * @return the version of the state of the server
+     */
+    public long getStateVersion() {
+        return snapshot.getVersion();
     }
 
     /**
@@ -204,16 +677,30 @@ public class MultiThreadServer implements Runnable {
      * @param roomId the id of the room to remove
      */
     public void removeRoom(String roomId) {
-        if (rooms.containsKey(roomId)) {
-            for (String clientId : rooms.get(roomId).keySet()) {
-                leaveRoom(clientId);
+        Room room = rooms.get(roomId);
+        if (room == null) return;
+        RoomTicker ticker = room.getTicker();
+        // stopped before taking the room's lock, since a tick that is sending may need it
+        if (ticker != null) ticker.cancel();
+        String[] formerMembers;
+        synchronized (room) {
+            if (room.isRemoved()) return;
+            // deliver whatever is waiting for the next tick while the members are still in the room
+            if (ticker != null) ticker.flush();
+            formerMembers = room.getMembers();
+            for (String clientId : formerMembers) {
+                leaveLocked(clientId, room);
             }
+            room.markRemoved();
             rooms.remove(roomId);
-            roomNames.remove(roomId);
-            roomCapacities.remove(roomId);
-            roomOwners.remove(roomId);
-            closedRooms.remove(roomId);
-            broadcast("ROOM_REMOVED " + roomId);
+            RoomMailbox mailbox = room.getMailbox();
+            if (mailbox != null) removedRoomTasks.addAndGet(mailbox.getRunCount());
+            snapshot.roomChanged(room);
+            lobbyBroadcast("ROOM_REMOVED " + roomId, formerMembers, null);
+        }
+        // clients that only follow the lobby while not in a room now need to catch up
+        for (String clientId : formerMembers) {
+            updateLobbySubscription(clientId);
         }
     }
  
@@ -253,31 +740,87 @@ public class MultiThreadServer implements Runnable {
      * <pre>
      * JOIN_ROOM_FAIL NO_SUCH_ROOM d8b7f670-fc7c-4939-8679-7ea09cfd693c
      * </pre>
+     * <p>
+     * A client is only ever in one room. If the client is already in another room, it leaves that room
+     * (see {@link #leaveRoom(String)}) as part of joining the new one. If the join fails, the client stays
+     * in the room it was in. Both rooms are locked while this happens, so other clients see the client
+     * leave one room and join the other in a single step, and a room can never be filled past its capacity
+     * no matter how many clients try to join it at once.
+     * </p>
      * 
      * @param clientId the id of the client joining the room
      * @param roomId the id of the room the client is joining
      */
     public void joinRoom(String clientId, String roomId) {
-        if (rooms.containsKey(roomId)) {
-            ConcurrentHashMap<String, Boolean> members = rooms.get(roomId);
-            boolean isOwner = false;
-            if (members.size() == 0 && roomCapacities.get(roomId) > 0 && !closedRooms.containsKey(roomId)) {
-                roomOwners.put(roomId, clientId);
-                isOwner = true;
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            sendMessage("JOIN_ROOM_FAIL NO_SUCH_ROOM " + roomId, clientId);
+            return;
+        }
+        boolean joined = false;
+        while (true) {
+            Room current = roomsByClient.get(clientId);
+            if (current == room) return;
+            // lock both rooms, always in the same order so two clients swapping rooms can't deadlock
+            Room first = current == null || room.getLockOrder() < current.getLockOrder() ? room : current;
+            Room second = first == room ? current : room;
+            synchronized (first) {
+                if (second == null) {
+                    if (roomsByClient.get(clientId) != current) continue;
+                    joined = joinLocked(clientId, room, current);
+                } else {
+                    synchronized (second) {
+                        if (roomsByClient.get(clientId) != current) continue;
+                        joined = joinLocked(clientId, room, current);
+                    }
+                }
             }
-            if (closedRooms.containsKey(roomId)) {
-                sendMessage("JOIN_ROOM_FAIL CLOSED " + roomId, clientId);
-            } else if (members.size() < roomCapacities.get(roomId)) {
-                members.put(clientId, true);
-                roomsByClient.put(clientId, roomId);
-                broadcast("JOINED_ROOM " + clientId + " " + roomId);
-                if (isOwner) broadcast("ROOM_OWNER " + roomId + " " + clientId);
+            break;
+        }
+        // the client may have disconnected while joining, after removeClient already took it out of its room
+        if (joined && !activeClients.containsKey(clientId)) leaveRoom(clientId);
+    }
+
+    // the client joins room, leaving current first if it is not null; the caller holds the lock of both rooms
+    private boolean joinLocked(String clientId, Room room, Room current) {
+        String roomId = room.getId();
+        if (room.isRemoved()) {
+            sendMessage("JOIN_ROOM_FAIL NO_SUCH_ROOM " + roomId, clientId);
+        } else if (room.isClosed()) {
+            sendMessage("JOIN_ROOM_FAIL CLOSED " + roomId, clientId);
+        } else if (room.isFull()) {
+            sendMessage("JOIN_ROOM_FAIL FULL " + roomId, clientId);
+        } else {
+            if (current != null) leaveLocked(clientId, current);
+            // clients not in a room are no longer sent the actors of a client in a room
+            if (actorCache != null) actorCache.removeOwner(clientId);
+            ActorCache cache = room.getActorCache();
+            if (cache == null) {
+                enterLocked(clientId, room);
             } else {
-                sendMessage("JOIN_ROOM_FAIL FULL " + roomId, clientId);
+                // a message recorded by the cache either is in the snapshot or reaches the client after it, never both
+                synchronized (cache) {
+                    enterLocked(clientId, room);
+                    ClientConnection conn = activeClients.get(clientId);
+                    if (conn != null) sendActors(cache, conn, true);
+                }
             }
-        } else {
-            sendMessage("JOIN_ROOM_FAIL NO_SUCH_ROOM " + roomId, clientId);
+            return true;
         }
+        return false;
+    }
+
+    // the client is added to the room; the caller holds the lock of the room
+    private void enterLocked(String clientId, Room room) {
+        String roomId = room.getId();
+        room.add(clientId, activeClients.get(clientId));
+        roomsByClient.put(clientId, room);
+        boolean isOwner = room.getOwnerId() == null;
+        if (isOwner) room.setOwnerId(clientId);
+        snapshot.roomChanged(room);
+        updateLobbySubscription(clientId);
+        lobbyBroadcast("JOINED_ROOM " + clientId + " " + roomId, room.getMembers(), null);
+        if (isOwner) lobbyBroadcast("ROOM_OWNER " + roomId + " " + clientId, room.getMembers(), null);
     }
 
     /**
@@ -291,32 +834,52 @@ public class MultiThreadServer implements Runnable {
      * <pre>
      * LEFT_ROOM 361e1424-1d06-4610-b1de-6392c789562f d8b7f670-fc7c-4939-8679-7ea09cfd693c
      * </pre>
+     * <p>
+     * If the client was the owner of the room, ownership passes to the member that has been in the room
+     * the longest and a ROOM_OWNER message is broadcast. If the room is closed and is now empty, it is opened.
+     * </p>
      * 
      * @param clientId the id of the client leaving the room
      */
     public void leaveRoom(String clientId) {
-        if (roomsByClient.containsKey(clientId)) {
-            String roomId = roomsByClient.get(clientId);
-            ConcurrentHashMap<String, Boolean> roomRoster = rooms.get(roomId);
-            roomRoster.remove(clientId);
-            roomsByClient.remove(clientId);
-            String newOwnerId = null;
-            if (roomOwners.containsKey(roomId) && roomOwners.get(roomId).equals(clientId)) {
-                if (roomRoster.size() > 0) {
-                	newOwnerId = roomRoster.keys().nextElement();
-                    roomOwners.put(roomId, newOwnerId);
-                } else {
-                    roomOwners.remove(roomId);
+        while (true) {
+            Room room = roomsByClient.get(clientId);
+            if (room == null) return;
+            synchronized (room) {
+                // the client may have moved to another room before the lock was acquired
+                if (roomsByClient.get(clientId) == room) {
+                    leaveLocked(clientId, room);
+                    break;
                 }
             }
-            broadcast("LEFT_ROOM " + clientId + " " + roomId);
-            if (newOwnerId != null) {
-                broadcast("ROOM_OWNER " + roomId + " " + newOwnerId);
-            }
-            if (roomRoster.size() == 0 && closedRooms.containsKey(roomId)) {
-                openRoom(roomId);
-            }
         }
+        updateLobbySubscription(clientId);
+    }
+
+    // the client leaves the room; the caller holds the lock of the room
+    private void leaveLocked(String clientId, Room room) {
+        if (!room.remove(clientId)) return;
+        roomsByClient.remove(clientId, room);
+        InterestGrid grid = room.getInterestGrid();
+        if (grid != null) grid.removeClient(clientId);
+        ActorCache cache = room.getActorCache();
+        if (cache != null) cache.removeOwner(clientId);
+        String roomId = room.getId();
+        String newOwnerId = null;
+        if (clientId.equals(room.getOwnerId())) {
+            String[] members = room.getMembers();
+            if (members.length > 0) newOwnerId = members[0];
+            room.setOwnerId(newOwnerId);
+        }
+        boolean reopened = room.size() == 0 && room.isClosed();
+        if (reopened) room.setClosed(false);
+        snapshot.roomChanged(room);
+        String[] members = room.getMembers();
+        lobbyBroadcast("LEFT_ROOM " + clientId + " " + roomId, members, clientId);
+        if (newOwnerId != null) {
+            lobbyBroadcast("ROOM_OWNER " + roomId + " " + newOwnerId, members, null);
+        }
+        if (reopened) lobbyBroadcast("ROOM_OPENED " + roomId, members, null);
     }
     
     /**
@@ -332,9 +895,14 @@ public class MultiThreadServer implements Runnable {
      * @param roomId the id of the room to close
      */
     public void closeRoom(String roomId) {
-        if (rooms.containsKey(roomId)) {
-            closedRooms.put(roomId, true);
-            broadcast("ROOM_CLOSED " + roomId);
+        Room room = rooms.get(roomId);
+        if (room == null) return;
+        synchronized (room) {
+            if (!room.isRemoved()) {
+                room.setClosed(true);
+                snapshot.roomChanged(room);
+                lobbyBroadcast("ROOM_CLOSED " + roomId, room.getMembers(), null);
+            }
         }
     }
     
@@ -353,39 +921,161 @@ public class MultiThreadServer implements Runnable {
      * @param roomId the id of the room to open
      */
     public void openRoom(String roomId) {
-        if (closedRooms.containsKey(roomId)) {
-            closedRooms.remove(roomId);
-            broadcast("ROOM_OPENED " + roomId);
+        Room room = rooms.get(roomId);
+        if (room == null) return;
+        synchronized (room) {
+            if (room.isClosed() && !room.isRemoved()) {
+                room.setClosed(false);
+                snapshot.roomChanged(room);
+                lobbyBroadcast("ROOM_OPENED " + roomId, room.getMembers(), null);
+            }
         }
     }
 
     /**
-     * Sends a message to the client with the given id.
+     * <p>
+     * Sets which lobby events the client with the given id receives (see {@link LobbySubscription}).
+     * If this means the client starts receiving every lobby event again, it is sent LOBBY_STATE followed
+     * by the state of the server in the same form as when it was assigned its id, since it may have missed
+     * events about other rooms.
+     * </p>
      * 
-     * @param message the message
-     * @param toId the id of the client to send the message to
+     * @param clientId the id of the client
+     * @param subscription which lobby events the client receives
      */
-    public synchronized void sendMessage(String message, String toId) {
-        Socket sock = activeClients.get(toId);
-        if (sock != null) {
-            try {
-                PrintStream pstream = new PrintStream(sock.getOutputStream(), true);
-                pstream.println(message);
-            } catch (IOException e) {
-                activeClients.remove(toId);
-                e.printStackTrace();
+    public void setLobbySubscription(String clientId, LobbySubscription subscription) {
+        ClientConnection conn = activeClients.get(clientId);
+        if (conn == null) return;
+        conn.setLobbySubscription(subscription);
+        updateLobbySubscription(clientId);
+    }
+
+    // add or remove the client from the lobby subscribers to match its subscription and whether it is in a room,
+    // sending it the current state if it was not receiving every lobby event before
+    private void updateLobbySubscription(String clientId) {
+        ClientConnection conn = activeClients.get(clientId);
+        if (conn == null) {
+            lobbySubscribers.remove(clientId);
+        } else if (conn.getLobbySubscription().receivesLobby(roomsByClient.containsKey(clientId))) {
+            if (lobbySubscribers.put(clientId, conn) == null) {
+                conn.send("LOBBY_STATE " + getClientInitState());
+            }
+        } else {
+            lobbySubscribers.remove(clientId);
+        }
+    }
+
+    /**
+     * <p>
+     * Sets the interest region of the client with the given id in its current room to the area within range of (x, y).
+     * From then on the client receives every MOVE for the actors near that area but only one of every few MOVE messages
+     * for the actors further away (see {@link ServerConfig#setFarUpdateInterval(int)}). Every other message sent to the
+     * room still reaches the client. When the region changes, the client is sent the last MOVE of each actor that is
+     * now near its region but was not before. Leaving the room clears the region.
+     * </p>
+     * <p>
+     * A client declares its region with the command INTEREST x y range, and typically sends it again whenever its view moves.
+     * </p>
+     * 
+     * @param clientId the id of the client
+     * @param x the x coordinate of the center of the region
+     * @param y the y coordinate of the center of the region
+     * @param range the distance from the center to the edges of the region
+     * @return true if the region was set and false if the client is not in a room
+     */
+    public boolean setInterest(String clientId, double x, double y, double range) {
+        Room room = roomsByClient.get(clientId);
+        if (room == null) return false;
+        List<OutboundMessage> catchUp;
+        synchronized (room) {
+            // the client may have left the room before the lock was taken
+            if (roomsByClient.get(clientId) != room) return false;
+            InterestGrid grid = room.getInterestGrid();
+            if (grid == null) {
+                grid = new InterestGrid(config.getInterestCellSize(), config.getFarUpdateInterval());
+                room.setInterestGrid(grid);
             }
+            catchUp = grid.setRegion(clientId, x, y, range);
         }
+        for (OutboundMessage message : catchUp) sendMessage(message, clientId);
+        return true;
     }
 
     /**
-     * Broadcast a message to every client on the server
+     * Clears the interest region of the client with the given id so it receives every MOVE sent to its room again
+     * (INTEREST OFF).
+     * 
+     * @param clientId the id of the client
+     */
+    public void clearInterest(String clientId) {
+        Room room = roomsByClient.get(clientId);
+        if (room == null) return;
+        synchronized (room) {
+            InterestGrid grid = room.getInterestGrid();
+            if (grid != null) grid.clearRegion(clientId);
+        }
+    }
+
+    /**
+     * Send a lobby event to every client subscribed to the lobby, to the given members of the room the event is about
+     * and to the client the event is about (if it is not null). Each client receives the event at most once.
+     * 
+     * @param message the message
+     * @param members the ids of the members of the room the event is about
+     * @param subjectId the id of a client that must receive the event even if it is not subscribed to the lobby, or null
+     */
+    private void lobbyBroadcast(String message, String[] members, String subjectId) {
+        OutboundMessage encoded = OutboundMessage.of(message);
+        for (ClientConnection conn : lobbySubscribers.values()) {
+            conn.send(encoded);
+        }
+        for (String memberId : members) {
+            if (!lobbySubscribers.containsKey(memberId)) sendMessage(encoded, memberId);
+        }
+        if (subjectId != null && !lobbySubscribers.containsKey(subjectId) && !contains(members, subjectId)) {
+            sendMessage(encoded, subjectId);
+        }
+    }
+
+    private static boolean contains(String[] ids, String id) {
+        for (String other : ids) {
+            if (other.equals(id)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends a message to the client with the given id. The message is added to the outbound
+     * queue of that client, so this method returns without waiting for the message to be written.
+     * 
+     * @param message the message
+     * @param toId the id of the client to send the message to
+     */
+    public void sendMessage(String message, String toId) {
+        sendMessage(OutboundMessage.of(message), toId);
+    }
+
+    /**
+     * Sends an already encoded message to the client with the given id.
+     * 
+     * @param message the message
+     * @param toId the id of the client to send the message to
+     */
+    public void sendMessage(OutboundMessage message, String toId) {
+        ClientConnection conn = activeClients.get(toId);
+        if (conn != null) conn.send(message);
+    }
+
+    /**
+     * Broadcast a message to every client on the server. The message is encoded once
+     * and the same bytes are queued for every client.
      * 
      * @param message the message
      */
     public void broadcast(String message) {
-        for (String clientId : activeClients.keySet()) {
-            sendMessage(message, clientId);
+        OutboundMessage encoded = OutboundMessage.of(message);
+        for (ClientConnection conn : activeClients.values()) {
+            conn.send(encoded);
         }
     }
 
@@ -396,8 +1086,21 @@ public class MultiThreadServer implements Runnable {
      * @param fromId the client id of the sender
      */
     public void broadcast(String message, String fromId) {
-        for (Map.Entry<String, Socket> entry : activeClients.entrySet()) {
-            if (!fromId.equals(entry.getKey())) sendMessage(message, entry.getKey());
+        broadcast(OutboundMessage.of(message), fromId);
+    }
+
+    /**
+     * Broadcast an already encoded message from the given client to every OTHER client on the server (excluding the sender)
+     * 
+     * @param message the message
+     * @param fromId the client id of the sender
+     */
+    public void broadcast(OutboundMessage message, String fromId) {
+        // only the actors of clients not in a room are sent to new clients, just as only those clients used to send them
+        long version = actorCache == null || roomsByClient.containsKey(fromId) ? 0 : actorCache.record(message, fromId);
+        for (Map.Entry<String, ClientConnection> entry : activeClients.entrySet()) {
+            ClientConnection conn = entry.getValue();
+            if (!fromId.equals(entry.getKey()) && (version == 0 || version > conn.getServerCacheVersion())) conn.send(message);
         }
     }
 
@@ -409,9 +1112,11 @@ public class MultiThreadServer implements Runnable {
      * @param roomId the id of the room to send the message to
      */
     public void roomBroadcast(String message, String roomId) {
-        if (rooms.containsKey(roomId)) {
-            for (String toId : rooms.get(roomId).keySet()) {
-                sendMessage(message, toId);
+        Room room = rooms.get(roomId);
+        if (room != null) {
+            OutboundMessage encoded = OutboundMessage.of(message);
+            for (ClientConnection conn : room.getConnections()) {
+                if (conn != null) conn.send(encoded);
             }
         }
     }
@@ -426,11 +1131,38 @@ public class MultiThreadServer implements Runnable {
      * @return true if a room with the given id exists and false otherwise 
      */
     public void roomBroadcast(String message, String roomId, String fromId) {
-        if (rooms.containsKey(roomId)) {
-            for (String toId : rooms.get(roomId).keySet()) {
-                if (!fromId.equals(toId)) {
-                    sendMessage(message, toId);
-                }
+        if (rooms.containsKey(roomId)) roomBroadcast(OutboundMessage.of(message), roomId, fromId);
+    }
+
+    /**
+     * Send an already encoded message to every client in the room with the given roomId excluding the client with the given fromId.
+     * If the room does not exist nothing will happen. If the room has a tick rate, the message is delivered on the next tick.
+     * If members of the room have declared an interest region, a MOVE message may not be sent to members it is far away from
+     * (see {@link #setInterest(String, double, double, double)}).
+     * 
+     * @param message the message
+     * @param roomId the id of the room to send the message to
+     * @param fromId the client id of the sender
+     */
+    public void roomBroadcast(OutboundMessage message, String roomId, String fromId) {
+        Room room = rooms.get(roomId);
+        if (room != null) {
+            // once a member has declared an interest region, MOVE messages only go to the members interested in them
+            InterestGrid grid = room.getInterestGrid();
+            InterestGrid.Filter filter = grid == null ? null : grid.route(message, fromId);
+            ActorCache cache = room.getActorCache();
+            long version = cache == null ? 0 : cache.record(message, fromId);
+            RoomTicker ticker = room.getTicker();
+            if (ticker != null) {
+                ticker.add(fromId, message, filter, version);
+                return;
+            }
+            // the room keeps the connections of its members, so this is a walk over an array without any lookups
+            for (ClientConnection conn : room.getConnections()) {
+                // a member that joined after the message was recorded already has it in its snapshot
+                if (conn == null || version != 0 && version <= conn.getRoomCacheVersion()) continue;
+                String toId = conn.getId();
+                if (!fromId.equals(toId) && (filter == null || filter.accepts(toId))) conn.send(message);
             }
         }
     }
@@ -447,11 +1179,672 @@ public class MultiThreadServer implements Runnable {
     }
 
     /**
-     * generate and return a random unique id.
+     * Process a single command received from the client with the given id. The commands are described
+     * in the ServerDriver API. Commands that are not understood by the server are broadcast to every other
+     * client with the id of the sender prepended.
+     * 
+     * @param cmd the command (a single line without the line break)
+     * @param fromId the id of the client that sent the command
+     * @return false if the client asked to disconnect and true otherwise
+     */
+    public boolean processCommand(String cmd, String fromId) {
+        try {
+            int start = CommandTokenizer.skipWhitespace(cmd, 0);
+            int end = CommandTokenizer.tokenEnd(cmd, start);
+            if (start == end) throw new NoSuchElementException("empty command");
+            ServerCommand command = enabled(ServerCommand.lookup(cmd, start, end));
+            if (command == null) {
+                broadcast(OutboundMessage.concat(fromId, " ", cmd, 0), fromId);
+                return true;
+            }
+            // the first argument of the command (if it has one)
+            int argStart = CommandTokenizer.skipWhitespace(cmd, end);
+            int argEnd = CommandTokenizer.tokenEnd(cmd, argStart);
+            switch (command) {
+                case TO: {
+                    String toId = CommandTokenizer.requireToken(cmd, argStart, argEnd);
+                    // like Scanner.nextLine(), the rest of the line includes the whitespace after toId but must exist
+                    if (argEnd == cmd.length()) throw new NoSuchElementException("missing message");
+                    sendMessage(OutboundMessage.concat(fromId, "", cmd, argEnd), toId);
+                    break;
+                }
+                case DC: {
+                    // a client that asks to disconnect has left for good
+                    ClientConnection conn = activeClients.get(fromId);
+                    ResumeSession session = conn == null ? null : conn.getSession();
+                    if (session != null) session.end(conn);
+                    return false;
+                }
+                case TO_ROOM: {
+                    String roomId = CommandTokenizer.requireToken(cmd, argStart, argEnd);
+                    if (argEnd == cmd.length()) throw new NoSuchElementException("missing message");
+                    roomBroadcast(OutboundMessage.concat(fromId, "", cmd, argEnd), roomId, fromId);
+                    break;
+                }
+                case ADD_ROOM: {
+                    String roomName = CommandTokenizer.requireToken(cmd, argStart, argEnd);
+                    int capStart = CommandTokenizer.skipWhitespace(cmd, argEnd);
+                    int capEnd = CommandTokenizer.tokenEnd(cmd, capStart);
+                    int roomCapacity = CommandTokenizer.parseInt(cmd, capStart, capEnd);
+                    // the tick rate is optional
+                    int rateStart = CommandTokenizer.skipWhitespace(cmd, capEnd);
+                    int rateEnd = CommandTokenizer.tokenEnd(cmd, rateStart);
+                    int tickRate = rateStart < rateEnd ? CommandTokenizer.parseInt(cmd, rateStart, rateEnd) : 0;
+                    if (!addRoom(roomName, roomCapacity, tickRate, fromId)) {
+                        sendMessage("ADD_ROOM_FAILED " + roomName + " " + roomCapacity, fromId); 
+                    }
+                    break;
+                }
+                case REMOVE_ROOM:
+                    removeRoom(CommandTokenizer.requireToken(cmd, argStart, argEnd));
+                    break;
+                case JOIN_ROOM:
+                    joinRoom(fromId, CommandTokenizer.requireToken(cmd, argStart, argEnd));
+                    break;
+                case CLOSE_ROOM:
+                    closeRoom(CommandTokenizer.requireToken(cmd, argStart, argEnd));
+                    break;
+                case OPEN_ROOM:
+                    openRoom(CommandTokenizer.requireToken(cmd, argStart, argEnd));
+                    break;
+                case LEAVE_ROOM:
+                    leaveRoom(fromId);
+                    break;
+                case LOBBY_SUBSCRIBE: {
+                    LobbySubscription subscription = LobbySubscription.ALL;
+                    if (CommandTokenizer.tokenEquals(cmd, argStart, argEnd, "AUTO")) {
+                        subscription = LobbySubscription.AUTO;
+                    } else if (argStart < argEnd) {
+                        throw new IllegalArgumentException("unknown subscription");
+                    }
+                    setLobbySubscription(fromId, subscription);
+                    break;
+                }
+                case LOBBY_UNSUBSCRIBE:
+                    setLobbySubscription(fromId, LobbySubscription.ROOM_ONLY);
+                    break;
+                case INTEREST: {
+                    if (CommandTokenizer.tokenEquals(cmd, argStart, argEnd, "OFF")) {
+                        clearInterest(fromId);
+                        break;
+                    }
+                    double x = Double.parseDouble(CommandTokenizer.requireToken(cmd, argStart, argEnd));
+                    int yStart = CommandTokenizer.skipWhitespace(cmd, argEnd);
+                    int yEnd = CommandTokenizer.tokenEnd(cmd, yStart);
+                    double y = Double.parseDouble(CommandTokenizer.requireToken(cmd, yStart, yEnd));
+                    int rangeStart = CommandTokenizer.skipWhitespace(cmd, yEnd);
+                    int rangeEnd = CommandTokenizer.tokenEnd(cmd, rangeStart);
+                    double range = Double.parseDouble(CommandTokenizer.requireToken(cmd, rangeStart, rangeEnd));
+                    if (!(range >= 0)) throw new IllegalArgumentException("range must not be negative");
+                    if (!setInterest(fromId, x, y, range)) throw new IllegalStateException("not in a room");
+                    break;
+                }
+                case PROTOCOL: {
+                    if (!CommandTokenizer.tokenEquals(cmd, argStart, argEnd, "BINARY")) {
+                        throw new IllegalArgumentException("unknown protocol");
+                    }
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) conn.switchToBinary();
+                    break;
+                }
+                case UDP: {
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) conn.send("UDP " + udp.getPort() + " " + udp.register(conn).getToken());
+                    break;
+                }
+                case RESUME_ENABLE: {
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) enableResume(conn);
+                    break;
+                }
+                case PONG: {
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) conn.pong(Long.parseLong(CommandTokenizer.requireToken(cmd, argStart, argEnd)));
+                    break;
+                }
+                case RESUME: {
+                    String oldId = CommandTokenizer.requireToken(cmd, argStart, argEnd);
+                    int tokenStart = CommandTokenizer.skipWhitespace(cmd, argEnd);
+                    int tokenEnd = CommandTokenizer.tokenEnd(cmd, tokenStart);
+                    String token = CommandTokenizer.requireToken(cmd, tokenStart, tokenEnd);
+                    int countStart = CommandTokenizer.skipWhitespace(cmd, tokenEnd);
+                    int countEnd = CommandTokenizer.tokenEnd(cmd, countStart);
+                    long received = Long.parseLong(CommandTokenizer.requireToken(cmd, countStart, countEnd));
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) resume(conn, oldId, token, received);
+                    break;
+                }
+                case COMPRESS: {
+                    if (!CommandTokenizer.tokenEquals(cmd, argStart, argEnd, "DEFLATE")) {
+                        throw new IllegalArgumentException("unknown compression");
+                    }
+                    ClientConnection conn = activeClients.get(fromId);
+                    if (conn != null) conn.startCompression(config.getCompressionLevel());
+                    break;
+                }
+            }
+        } catch (Exception err) {
+        	sendInvalidCommandErrorMessage(cmd, fromId);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Process a single command received from the given client as the raw UTF-8 bytes of the line (without the line break).
+     * </p>
+     * <p>
+     * The payload of TO and TO_ROOM commands, and any command the server does not understand, is relayed as it is:
+     * the bytes are copied once into the outbound message behind the id of the sender and are never decoded into a
+     * String. Only the id of the recipient or room is decoded, since it is needed to look up where the message goes.
+     * The remaining server commands are rare, so they are decoded and handled by {@link #processCommand(String, String)}.
+     * </p>
+     * 
+     * @param line the buffer containing the line
+     * @param offset the index of the first byte of the line
+     * @param length the number of bytes in the line
+     * @param from the connection of the client that sent the command
+     * @return false if the client asked to disconnect and true otherwise
+     */
+    public boolean processCommand(byte[] line, int offset, int length, ClientConnection from) {
+        return processLine(line, offset, length, from, false);
+    }
+
+    /**
+     * Process a line that arrived in a datagram from the given client (see {@link UdpChannel}). Only messages that are
+     * relayed to other clients are accepted this way, and the relayed message is marked as unreliable so it is sent to
+     * its recipients in datagrams too. Server commands must be sent over TCP, so they are ignored.
+     * 
+     * @param line the buffer containing the line
+     * @param offset the index of the first byte of the line
+     * @param length the number of bytes in the line
+     * @param from the connection of the client that sent the datagram
+     */
+    void processDatagramLine(byte[] line, int offset, int length, ClientConnection from) {
+        processLine(line, offset, length, from, true);
+    }
+
+    /**
+     * Process a line from the given client that was longer than the maximum line length (see
+     * {@link ServerConfig#setMaxLineLength(int)}), of which only the first bytes were read. Under the
+     * {@link LongLinePolicy#TRUNCATE} policy those bytes are processed as the whole line, up to the last whole
+     * character, and the client is told with <b>LINE_TOO_LONG maxLength</b>. Otherwise the client is disconnected
+     * for good, without a chance to resume its session.
+     * 
+     * @param line the buffer containing the start of the line
+     * @param offset the index of the first byte of the line
+     * @param length the number of bytes of the line that were read (0 for a binary frame)
+     * @param from the connection of the client that sent the line
+     * @return false if the client must be disconnected and true otherwise
+     */
+    public boolean processLongLine(byte[] line, int offset, int length, ClientConnection from) {
+        longLines.incrementAndGet();
+        if (config.getLongLinePolicy() == LongLinePolicy.DISCONNECT) {
+            System.out.println("Client " + from.getId() + " sent a line longer than " + config.getMaxLineLength() + " bytes");
+            ResumeSession session = from.getSession();
+            if (session != null) session.end(from);
+            return false;
+        }
+        from.send("LINE_TOO_LONG " + config.getMaxLineLength());
+        if (length == 0) return true;
+        // don't relay half of a character: find where the last one starts and leave it out if it was cut
+        int last = length - 1;
+        while (last > 0 && length - last < 4 && (line[offset + last] & 0xc0) == 0x80) last--;
+        int lead = line[offset + last] & 0xff;
+        int size = lead < 0xc0 ? 1 : lead < 0xe0 ? 2 : lead < 0xf0 ? 3 : 4;
+        if (length - last < size) length = last;
+        return length == 0 || processLine(line, offset, length, from, false);
+    }
+
+    private boolean processLine(byte[] line, int offset, int length, ClientConnection from, boolean unreliable) {
+        // any line over TCP shows the connection is alive, not only a PONG
+        if (!unreliable) from.heard();
+        if (routing != null && !unreliable) {
+            long start = System.nanoTime();
+            int limit = offset + length;
+            if (!isConnectionCommand(commandOf(line, offset, limit))) {
+                routing.route(from, line, offset, length, start);
+                return true;
+            }
+        }
+        return dispatchLine(line, offset, length, from, unreliable, false);
+    }
+
+    /**
+     * Route a line a routing worker took from its ring (see {@link RoutingStage}).
+     * @param line the line, which is not used by anything else
+     * @param from the connection of the client that sent it
+     */
+    void routeLine(byte[] line, ClientConnection from) {
+        dispatchLine(line, 0, line.length, from, false, true);
+    }
+
+    // run the line now or add it to the mailbox of its room; owned is true if nothing else uses the array
+    private boolean dispatchLine(byte[] line, int offset, int length, ClientConnection from, boolean unreliable, boolean owned) {
+        RoomMailbox mailbox = roomWorkers == null ? null : mailboxFor(line, offset, offset + length, from, unreliable);
+        if (mailbox == null) return runLine(line, offset, length, from, unreliable);
+        // the line is read into a buffer that is reused for the next one
+        byte[] copy = owned && offset == 0 && length == line.length ? line : Arrays.copyOfRange(line, offset, offset + length);
+        if (unreliable) {
+            mailbox.execute(() -> runLine(copy, 0, copy.length, from, true));
+        } else {
+            from.mailboxed(mailbox);
+            mailbox.execute(() -> {
+                try {
+                    runLine(copy, 0, copy.length, from, false);
+                } finally {
+                    from.mailboxDone();
+                }
+            });
+        }
+        return true;
+    }
+
+    // the mailbox of the room that must run the line (see RoomMailbox), or null if the thread that read it runs it;
+    // a line from a client with commands still in a mailbox goes there too so it can't overtake them, unless it is
+    // about the connection itself
+    private RoomMailbox mailboxFor(byte[] line, int offset, int limit, ClientConnection from, boolean unreliable) {
+        int start = CommandTokenizer.skipWhitespace(line, offset, limit);
+        int end = CommandTokenizer.tokenEnd(line, start, limit);
+        ServerCommand command = start == end ? null : enabled(ServerCommand.lookup(line, start, end));
+        // these change the connection, which the thread reading it must see before the next line
+        if (isConnectionCommand(command)) return null;
+        Room room = null;
+        if (command != null) {
+            switch (command) {
+                case TO_ROOM:
+                case JOIN_ROOM:
+                case REMOVE_ROOM:
+                case CLOSE_ROOM:
+                case OPEN_ROOM: {
+                    int argStart = CommandTokenizer.skipWhitespace(line, end, limit);
+                    int argEnd = CommandTokenizer.tokenEnd(line, argStart, limit);
+                    if (argStart < argEnd) room = rooms.get(new String(line, argStart, argEnd - argStart, StandardCharsets.UTF_8));
+                    break;
+                }
+                case LEAVE_ROOM:
+                case INTEREST:
+                    room = roomsByClient.get(from.getId());
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (unreliable) return room == null ? null : room.getMailbox();
+        RoomMailbox pending = from.getPendingMailbox();
+        if (pending != null) return pending;
+        return room == null ? null : room.getMailbox();
+    }
+
+    // the server command the line starts with, or null if it is a message to relay (or empty)
+    private ServerCommand commandOf(byte[] line, int offset, int limit) {
+        int start = CommandTokenizer.skipWhitespace(line, offset, limit);
+        int end = CommandTokenizer.tokenEnd(line, start, limit);
+        return start == end ? null : enabled(ServerCommand.lookup(line, start, end));
+    }
+
+    // the command, or null if it belongs to a feature this server was started without, so its line is relayed like any other
+    // (see getFeatures(); a client only sends these words to a server that lists the feature)
+    private ServerCommand enabled(ServerCommand command) {
+        return command == null || commands.contains(command) ? command : null;
+    }
+
+    // true for the commands about the connection itself, which are always run by the thread reading from it
+    private static boolean isConnectionCommand(ServerCommand command) {
+        if (command == null) return false;
+        switch (command) {
+            case DC:
+            case PROTOCOL:
+            case UDP:
+            case RESUME_ENABLE:
+            case RESUME:
+            case PONG:
+            case COMPRESS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // process a line from the client on the current thread
+    private boolean runLine(byte[] line, int offset, int length, ClientConnection from, boolean unreliable) {
+        int limit = offset + length;
+        int start = CommandTokenizer.skipWhitespace(line, offset, limit);
+        int end = CommandTokenizer.tokenEnd(line, start, limit);
+        ServerCommand command = start == end ? null : enabled(ServerCommand.lookup(line, start, end));
+        if (command == null && start < end) {
+            OutboundMessage msg = OutboundMessage.relay(from.getIdBytes(), SPACE, line, offset, limit);
+            relay(from, line, start, end, unreliable ? msg.unreliable() : msg, null, null);
+            return true;
+        }
+        if (unreliable && command != ServerCommand.TO && command != ServerCommand.TO_ROOM) return true;
+        if (command == ServerCommand.DC) {
+            // a client that asks to disconnect has left for good
+            ResumeSession session = from.getSession();
+            if (session != null) session.end(from);
+            return false;
+        }
+        if (command == ServerCommand.TO || command == ServerCommand.TO_ROOM) {
+            int argStart = CommandTokenizer.skipWhitespace(line, end, limit);
+            int argEnd = CommandTokenizer.tokenEnd(line, argStart, limit);
+            // the payload (like Scanner.nextLine()) includes the whitespace after the id but must exist
+            if (argStart < argEnd && argEnd < limit) {
+                String targetId = new String(line, argStart, argEnd - argStart, StandardCharsets.UTF_8);
+                OutboundMessage msg = OutboundMessage.relay(from.getIdBytes(), NO_SEPARATOR, line, argEnd, limit);
+                if (unreliable) msg = msg.unreliable();
+                // the payload starts with its own command word, which is what command rate limits look at
+                int payloadStart = CommandTokenizer.skipWhitespace(line, argEnd, limit);
+                relay(from, line, payloadStart, CommandTokenizer.tokenEnd(line, payloadStart, limit), msg, command, targetId);
+                return true;
+            }
+        }
+        if (unreliable) return true;
+        return processCommand(new String(line, offset, length, StandardCharsets.UTF_8), from.getId());
+    }
+
+    /**
+     * Relay a message from the given client, unless the client is over its rate limit (see
+     * {@link ServerConfig#setRateLimit(int)}), in which case the {@link RateLimitPolicy} decides what happens to it.
+     * @param from the connection of the sender
+     * @param line the line the message came from
+     * @param cmdStart the start of the command word of the message in line
+     * @param cmdEnd the end of the command word
+     * @param msg the message to relay
+     * @param command TO or TO_ROOM, or null to relay the message to everyone
+     * @param targetId the id of the recipient or room, or null to relay the message to everyone
+     */
+    private void relay(ClientConnection from, byte[] line, int cmdStart, int cmdEnd, OutboundMessage msg, ServerCommand command, String targetId) {
+        RateLimits limits = from.getRateLimits();
+        if (limits == null) {
+            relay(msg, command, targetId, from.getId());
+            return;
+        }
+        int limited = rateLimitedCommand(line, cmdStart, cmdEnd);
+        RateLimitPolicy policy = config.getRateLimitPolicy();
+        if (policy == RateLimitPolicy.DELAY) {
+            relayOrHold(from, limits, limited, msg, command, targetId);
+            return;
+        }
+        long wait = limits.acquire(limited, System.nanoTime());
+        if (wait == 0) {
+            if (policy == RateLimitPolicy.NOTICE) limits.setThrottled(false);
+            relay(msg, command, targetId, from.getId());
+            return;
+        }
+        rateDropped.incrementAndGet();
+        if (policy == RateLimitPolicy.NOTICE && limits.setThrottled(true)) {
+            throttleNotices.incrementAndGet();
+            String word = new String(line, cmdStart, cmdEnd - cmdStart, StandardCharsets.UTF_8);
+            from.send("THROTTLED " + word + " " + (wait + 999_999) / 1_000_000);
+        }
+    }
+
+    // send a message that got through the rate limits of its sender
+    private void relay(OutboundMessage msg, ServerCommand command, String targetId, String fromId) {
+        if (command == ServerCommand.TO) {
+            sendMessage(msg, targetId);
+        } else if (command == ServerCommand.TO_ROOM) {
+            roomBroadcast(msg, targetId, fromId);
+        } else {
+            broadcast(msg, fromId);
+        }
+    }
+
+    // the DELAY policy: relay the message now if nothing is held back and the limits allow it, otherwise hold it back
+    private void relayOrHold(ClientConnection from, RateLimits limits, int limited, OutboundMessage msg, ServerCommand command, String targetId) {
+        String fromId = from.getId();
+        // a message must not overtake one that is already held back
+        long wait = limits.hasHeld() ? 1 : limits.acquire(limited, System.nanoTime());
+        if (wait == 0) {
+            relay(msg, command, targetId, fromId);
+            return;
+        }
+        int held = limits.hold(new RateLimits.Held(limited, () -> relayLater(msg, command, targetId, fromId)));
+        if (held == 0) {
+            rateDropped.incrementAndGet();
+            return;
+        }
+        rateDelayed.incrementAndGet();
+        // the first message held back schedules the task, which runs until none are left
+        if (held == 1) timer().schedule(() -> relayHeld(from, limits), wait, TimeUnit.NANOSECONDS);
+    }
+
+    // relay a message that was held back, from the timer thread; with room workers a message to a room goes through
+    // the room's mailbox like the lines its members send, so every member still sees the room's messages in one order
+    private void relayLater(OutboundMessage msg, ServerCommand command, String targetId, String fromId) {
+        Room room = roomWorkers != null && command == ServerCommand.TO_ROOM ? rooms.get(targetId) : null;
+        RoomMailbox mailbox = room == null ? null : room.getMailbox();
+        if (mailbox == null) {
+            relay(msg, command, targetId, fromId);
+        } else {
+            mailbox.execute(() -> relay(msg, command, targetId, fromId));
+        }
+    }
+
+    // relay the messages held back for a client, in order, as fast as its limits allow (only one task runs at a time)
+    private void relayHeld(ClientConnection from, RateLimits limits) {
+        while (true) {
+            RateLimits.Held next = limits.peekHeld();
+            // the other clients were already told that this one left, so what it sent before can't follow
+            if (from.isClosed()) {
+                rateDropped.incrementAndGet();
+            } else {
+                long wait = limits.acquire(next.command, System.nanoTime());
+                if (wait > 0) {
+                    timer().schedule(() -> relayHeld(from, limits), wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                next.relay.run();
+            }
+            // the message stays counted until it was relayed, so a new one can't overtake it
+            if (!limits.removeHeld()) return;
+        }
+    }
+
+    // the index of the given command word among those with a rate limit, or -1 if it has none
+    private int rateLimitedCommand(byte[] line, int start, int end) {
+        for (int i = 0; i < rateLimitedCommands.length; i++) {
+            if (CommandTokenizer.tokenEquals(line, start, end, rateLimitedCommands[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the connection of the client with the given id or null if there is no such client.
+     * @param clientId the id of the client
+     * @return the connection of the client with the given id or null if there is no such client
+     */
+    public ClientConnection getConnection(String clientId) {
+        return activeClients.get(clientId);
+    }
+
+    /**
+     * Admit a connection accepted by the socket as a client as soon as the limits allow (see {@link AdmissionControl}).
+     * @param candidate the connection
+     */
+    void offerConnection(AdmissionControl.Candidate candidate) {
+        admission.offer(candidate);
+    }
+
+    /**
+     * Close a connection that was sent BUSY and whose output was shut down, once the client had time to read the line.
+     * A client may have sent something already (a resuming client sends RESUME as soon as it connects), and closing a
+     * socket with input that was never read makes it send a reset, which can throw away the BUSY line before the
+     * client reads it. So the connection stays open for {@link AdmissionControl#LINGER_MILLIS}, and the given task
+     * reads and drops what the client sent before closing it.
+     * @param close reads what the client sent without blocking, then closes the connection
+     */
+    void closeTurnedAway(Closeable close) {
+        timer().schedule(() -> {
+            try {
+                close.close();
+            } catch (IOException e) {
+                // the client is gone already
+            }
+        }, AdmissionControl.LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a short report of the number of connected clients and the state of their outbound queues.
+     * @return a short report of the number of connected clients and the state of their outbound queues
+     */
+    public String getStatsReport() {
+        int clients = 0;
+        long queued = 0;
+        int deepest = 0;
+        String deepestId = null;
+        long sent = 0;
+        long flushes = 0;
+        int degradedNow = 0;
+        int binary = 0;
+        int compressed = 0;
+        long uncompressedBytes = departedUncompressed.get();
+        long compressedBytes = departedCompressed.get();
+        long compressionNanos = departedCompressionNanos.get();
+        long maxLag = 0;
+        long dropped = departedDropped.get();
+        long conflated = departedConflated.get();
+        long degraded = departedDegraded.get();
+        for (ClientConnection conn : activeClients.values()) {
+            clients++;
+            int depth = conn.getQueueDepth();
+            queued += depth;
+            if (depth > deepest) {
+                deepest = depth;
+                deepestId = conn.getId();
+            }
+            sent += conn.getMessagesSent();
+            flushes += conn.getFlushCount();
+            if (conn.isDegraded()) degradedNow++;
+            if (conn.isBinary()) binary++;
+            if (conn.isCompressed()) compressed++;
+            uncompressedBytes += conn.getUncompressedBytes();
+            compressedBytes += conn.getCompressedBytes();
+            compressionNanos += conn.getCompressionNanos();
+            maxLag = Math.max(maxLag, conn.getLagMillis());
+            dropped += conn.getDroppedStateUpdates();
+            conflated += conn.getConflatedStateUpdates();
+            degraded += conn.getTimesDegraded();
+        }
+        long rttTotal = 0;
+        int rttCount = 0;
+        int maxRtt = -1;
+        if (heartbeats != null) {
+            for (ClientConnection conn : activeClients.values()) {
+                int rtt = conn.getRttMillis();
+                if (rtt < 0) continue;
+                rttTotal += rtt;
+                rttCount++;
+                maxRtt = Math.max(maxRtt, rtt);
+            }
+        }
+        int away = 0;
+        if (sessions != null) {
+            for (ResumeSession session : sessions.values()) {
+                if (session.isAway()) away++;
+            }
+        }
+        int cachedActors = actorCache == null ? 0 : actorCache.getActorCount();
+        long actorSnapshots = actorCache == null ? 0 : actorCache.getSnapshotCount();
+        long roomTasks = removedRoomTasks.get();
+        int mailboxed = 0;
+        int peakMailbox = 0;
+        int tickingRooms = 0;
+        long frames = 0;
+        long coalesced = 0;
+        int interestRegions = 0;
+        long filteredMoves = 0;
+        for (Room room : rooms.values()) {
+            InterestGrid grid = room.getInterestGrid();
+            if (grid != null) {
+                interestRegions += grid.getRegionCount();
+                filteredMoves += grid.getFilteredCount();
+            }
+            ActorCache cache = room.getActorCache();
+            if (cache != null) {
+                cachedActors += cache.getActorCount();
+                actorSnapshots += cache.getSnapshotCount();
+            }
+            RoomMailbox mailbox = room.getMailbox();
+            if (mailbox != null) {
+                roomTasks += mailbox.getRunCount();
+                mailboxed += mailbox.getDepth();
+                peakMailbox = Math.max(peakMailbox, mailbox.getPeakDepth());
+            }
+            RoomTicker ticker = room.getTicker();
+            if (ticker != null) {
+                tickingRooms++;
+                frames += ticker.getFrameCount();
+                coalesced += ticker.getCoalescedCount();
+            }
+        }
+        String ratio = compressedBytes == 0 ? "-" : String.format("%.2f", (double)uncompressedBytes / compressedBytes);
+        return "clients=" + clients + " accepted=" + admission.getAcceptedCount() + " rejected=" + admission.getRejectedCount()
+                + " acceptQueued=" + admission.getQueuedCount() + " acceptWaiting=" + admission.getWaitingCount() + " binary=" + binary + " compressed=" + compressed + " rooms=" + rooms.size() + " lobby=" + lobbySubscribers.size() + " queued=" + queued + " deepestQueue=" + deepest
+                + (deepestId == null ? "" : " (" + deepestId + ")") + " sent=" + sent + " flushes=" + flushes
+                 + " maxLagMs=" + maxLag + " evicted=" + evictions.get() + " longLines=" + longLines.get() + " droppedState=" + dropped + " conflatedState=" + conflated
+                + " degradedNow=" + degradedNow + " timesDegraded=" + degraded
+                + (routing == null ? "" : routing.report())
+                + (roomWorkers == null ? "" : " roomTasks=" + roomTasks + " mailboxed=" + mailboxed + " peakMailbox=" + peakMailbox)
+                + " tickingRooms=" + tickingRooms + " frames=" + frames + " coalesced=" + coalesced
+                + " interestRegions=" + interestRegions + " filteredMoves=" + filteredMoves
+                + " deflateIn=" + uncompressedBytes + " deflateOut=" + compressedBytes + " deflateRatio=" + ratio
+                + " deflateMs=" + compressionNanos / 1_000_000
+                + (actorCache == null ? "" : " cachedActors=" + cachedActors + " actorSnapshots=" + actorSnapshots)
+                + (sessions == null ? "" : " sessions=" + sessions.size() + " away=" + away + " resumed=" + resumes.get()
+                        + " resumeFailed=" + failedResumes.get())
+                + (rateLimited ? " rateDropped=" + rateDropped.get() + " rateDelayed=" + rateDelayed.get() + " throttleNotices=" + throttleNotices.get() : "")
+                + (heartbeats == null ? "" : " heartbeats=" + heartbeats.size() + " avgRttMs=" + (rttCount == 0 ? "-" : String.valueOf(rttTotal / rttCount))
+                        + " maxRttMs=" + (rttCount == 0 ? "-" : String.valueOf(maxRtt)) + " idleTimeouts=" + idleTimeouts.get())
+                + (udp == null ? "" : " udpClients=" + udp.getRegisteredCount() + " udpIn=" + udp.getReceivedCount()
+                        + " udpOut=" + udp.getSentCount() + " udpStale=" + udp.getStaleCount() + " udpLost=" + udp.getLostCount());
+    }
+
+    /**
+     * generate and return a random unique id. Ids are not secrets (any client may message any other), so a version 4
+     * UUID is made from {@link ThreadLocalRandom} rather than {@link UUID#randomUUID()}, whose SecureRandom is slower
+     * and can stall on a busy server. Resume tokens, which are secrets, still come from a SecureRandom.
      * @return a randomly generated unique id.
      */
     public static String generateUUID() {
-        return UUID.randomUUID().toString();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long most = random.nextLong() & ~0xf000L | 0x4000L;
+        long least = random.nextLong() & ~(3L << 62) | 1L << 63;
+        return new UUID(most, least).toString();
+    }
+
+    /**
+     * Returns a new id for a client or a room. If the server uses compact ids (see {@link ServerConfig#setCompactIds(boolean)}),
+     * the id is the next number in base 36, so the first ids are 1, 2, 3... and a thousand clients later they are still only two
+     * characters long. Clients and rooms share the numbers, so no client has the same id as a room. Otherwise the id is a random UUID.
+     * @return a new unique id
+     */
+    protected String newId() {
+        if (!config.isCompactIds()) return generateUUID();
+        return Long.toString(nextCompactId.incrementAndGet(), Character.MAX_RADIX);
+    }
+
+    /**
+     * Returns the optional features of this server separated by spaces, which clients are told along with their id
+     * after the maximum number of rooms:
+     * <ul>
+     * 		<li>BINARY: clients may switch to binary frames with PROTOCOL BINARY (see {@link BinaryFraming})</li>
+     * 		<li>COMPACT_IDS: client and room ids are short, and clients should give their actors short ids too (see Client.newActorId())</li>
+     * 		<li>DEFLATE: clients may ask for everything sent to them to be compressed with COMPRESS DEFLATE (see {@link ServerConfig#setCompressionLevel(int)})</li>
+     * 		<li>UDP: clients may send and receive relayed state updates in datagrams (see {@link ServerConfig#setUdpPort(int)})</li>
+     * 		<li>RESUME: clients that lose their connection may reconnect and carry on where they were with RESUME_ENABLE and RESUME (see {@link ServerConfig#setResumeGraceMillis(int)})</li>
+     * 		<li>HEARTBEAT: the server sends every client PING stamp rttMillis, which clients answer with PONG stamp (see {@link ServerConfig#setHeartbeatMillis(int)})</li>
+     * 		<li>ACTOR_CACHE: the server sends joining clients the actors already there, so clients must not (see {@link ServerConfig#setActorCache(boolean)})</li>
+     * </ul>
+     * @return the features of this server separated by spaces (empty if it has none)
+     */
+    public String getFeatures() {
+        String features = config.isCompactIds() ? "BINARY COMPACT_IDS" : "BINARY";
+        if (config.getCompressionLevel() != 0) features += " DEFLATE";
+        if (udp != null) features += " UDP";
+        if (sessions != null) features += " RESUME";
+        if (heartbeats != null) features += " HEARTBEAT";
+        return config.isActorCache() ? features + " ACTOR_CACHE" : features;
     }
 
     /**
@@ -466,17 +1859,44 @@ public class MultiThreadServer implements Runnable {
             e1.printStackTrace();
         }
         while (true) {
-            Socket sock;
             try {
-                sock = ssock.accept();
-                String id = generateUUID();
-                addClient(id, sock);
-                System.out.println("Client connected to " + sock.getInetAddress() + " and assigned UUID: " + id);
-                new Thread(new ClientThread(sock, this, id)).start();
+                Socket sock = ssock.accept();
+                offerConnection(new AdmissionControl.Candidate() {
+                    @Override
+                    public void admit() {
+                        serve(sock);
+                    }
+
+                    @Override
+                    public void turnAway(byte[] line) {
+                        try {
+                            sock.getOutputStream().write(line);
+                            sock.shutdownOutput();
+                        } catch (IOException e) {
+                            // the client is gone already
+                        }
+                        closeTurnedAway(() -> {
+                            try (Socket s = sock) {
+                                InputStream unread = s.getInputStream();
+                                for (int n = unread.available(); n > 0; n = unread.available()) unread.skip(n);
+                            }
+                        });
+                    }
+                });
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
     }
+
+    // give an admitted client an id and its threads
+    private void serve(Socket sock) {
+        String id = newId();
+        SocketConnection conn = new SocketConnection(id, sock, config);
+        conn.start(clientThreads);
+        addClient(conn);
+        System.out.println("Client connected to " + sock.getInetAddress() + " and assigned UUID: " + id);
+        clientThreads.newThread(new ClientThread(conn, this)).start();
+    }
 }
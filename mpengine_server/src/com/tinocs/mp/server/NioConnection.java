@@ -0,0 +1,318 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ClientConnection} backed by a non-blocking {@link SocketChannel} that is served by an {@link NioReactor}.
+ * Sending a message only queues it; the reactor writes it to the channel when the channel can accept more data,
+ * so a thread sending a message never blocks on a slow client. Queued messages are written to the channel
+ * together with a single gathering write, up to the configured flush batch size.
+ */
+public class NioConnection extends ClientConnection {
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final MultiThreadServer server;
+    // messages taken from the outbound queue that have not been completely written (only touched by the reactor thread)
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    // the compressed batch in writing, if there is one, and the number of messages in it (only touched by the reactor thread)
+    private ByteBuffer compressedBatch;
+    private int compressedCount;
+    // true while the reactor has been asked to write (or is writing) the outbound queue
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile SelectionKey key;
+    // true while reading is paused because the routing worker of this client is full (only touched by the reactor thread)
+    private boolean readPaused;
+
+    // the bytes of a line (or binary frame) that has only partially arrived (only touched by the reactor thread)
+    private byte[] partial = new byte[0];
+    private int partialLength;
+    // the most bytes of a line that are processed (see ServerConfig.setMaxLineLength); a line of text is never
+    // buffered past that, and a frame no more than one read past it
+    private final int maxLineLength;
+    // true while skipping the rest of a line that was too long, and the bytes left of a frame that was too long
+    private boolean skipping;
+    private long skipBytes;
+    // the decoder of binary frames, or null while reading text lines (only touched by the reactor thread)
+    private BinaryFraming.Decoder decoder;
+    private final long[] header = new long[1];
+
+    NioConnection(String id, SocketChannel channel, NioReactor reactor, MultiThreadServer server) {
+        super(id, server.getConfig());
+        this.channel = channel;
+        this.reactor = reactor;
+        this.server = server;
+        this.maxLineLength = server.getConfig().getMaxLineLength();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Stop selecting the channel for reading until {@link #resumeReading()}. Only called by the reactor thread, while
+     * it hands on what it read.
+     * @return true, since the reactor can always stop reading from one of its channels
+     */
+    @Override
+    boolean pauseReading() {
+        if (!readPaused) {
+            readPaused = true;
+            try {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                // closed, so nothing more is read anyway
+            }
+        }
+        return true;
+    }
+
+    @Override
+    void resumeReading() {
+        reactor.resumeReading(this);
+    }
+
+    // called by the reactor thread when asked to read again
+    void readAgain() {
+        if (!readPaused) return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    @Override
+    protected void messageQueued() {
+        if (writeRequested.compareAndSet(false, true)) reactor.requestWrite(this);
+    }
+
+    /**
+     * Write as much of the outbound queue as the channel will accept. If the channel fills up, the reactor is
+     * asked to call this again once the channel is writable. Once the client has asked for compression, each batch
+     * is compressed into a single buffer ending with a sync flush. Only called by the reactor thread.
+     * @param gather the reactor's array used for gathering writes; its length is the flush batch size
+     * @throws IOException if writing to the channel failed
+     */
+    void flush(ByteBuffer[] gather) throws IOException {
+        long start = System.nanoTime();
+        while (true) {
+            int count = 0;
+            for (ByteBuffer buf : writing) gather[count++] = buf;
+            OutboundMessage msg;
+            int batched = 0;
+            // a compressed batch is only started once the previous one has been written
+            while (count < gather.length && batched < gather.length && compressedBatch == null
+                    && (msg = pollOutbound()) != null) {
+                StreamCompressor compressor = compressor();
+                if (compressor != null) {
+                    compressor.write(msg);
+                    batched++;
+                } else {
+                    ByteBuffer buf = msg.asByteBuffer();
+                    gather[count++] = buf;
+                    writing.add(buf);
+                }
+            }
+            if (batched > 0) {
+                compressedBatch = ByteBuffer.wrap(compressor().flush());
+                compressedCount = batched;
+                gather[count++] = compressedBatch;
+                writing.add(compressedBatch);
+            }
+            if (count > 0) {
+                channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                int written = 0;
+                while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                    if (writing.pollFirst() == compressedBatch) {
+                        written += compressedCount;
+                        compressedBatch = null;
+                    } else {
+                        written++;
+                    }
+                }
+                if (written > 0) recordFlush(written, start);
+                if (!writing.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                continue;
+            }
+            writeRequested.set(false);
+            // a message may have been queued after the loop above found the queue empty
+            if (!hasQueuedMessages() || !writeRequested.compareAndSet(false, true)) break;
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Read whatever is available from the channel and process every complete line. Only called by the reactor thread.
+     * @param buf the reactor's shared read buffer
+     * @throws IOException if reading from the channel failed
+     */
+    void read(ByteBuffer buf) throws IOException {
+        buf.clear();
+        int n = channel.read(buf);
+        if (n < 0) {
+            close();
+            return;
+        }
+        byte[] bytes = buf.array();
+        if (decoder != null) {
+            readFrames(bytes, 0, n);
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (bytes[i] == '\n') {
+                boolean keepOpen;
+                if (skipping) {
+                    // the end of a line that was too long
+                    skipping = false;
+                    keepOpen = true;
+                } else if (partialLength + i - start > maxLineLength + 1) {
+                    keepOpen = processLongLine(bytes, start);
+                } else if (partialLength > 0) {
+                    appendPartial(bytes, start, i - start);
+                    keepOpen = processLine(partial, 0, partialLength);
+                    partialLength = 0;
+                } else {
+                    keepOpen = processLine(bytes, start, i - start);
+                }
+                start = i + 1;
+                if (!keepOpen) {
+                    close();
+                    return;
+                }
+                // everything after a PROTOCOL BINARY line is a binary frame
+                if (isBinary()) {
+                    decoder = new BinaryFraming.Decoder();
+                    readFrames(bytes, start, n);
+                    return;
+                }
+            }
+        }
+        if (start == n || skipping) return;
+        if (partialLength + n - start > maxLineLength + 1) {
+            // even with a "\r\n" still to come, the line is too long to buffer, so skip the rest of it as it arrives
+            skipping = true;
+            if (!processLongLine(bytes, start)) close();
+        } else {
+            appendPartial(bytes, start, n - start);
+        }
+    }
+
+    // process every complete frame in the partial buffer followed by the bytes from start to end
+    private void readFrames(byte[] bytes, int start, int end) throws IOException {
+        if (skipBytes > 0) {
+            int skipped = (int)Math.min(skipBytes, end - start);
+            start += skipped;
+            skipBytes -= skipped;
+        }
+        appendPartial(bytes, start, end - start);
+        int pos = 0;
+        while (true) {
+            int bodyStart = BinaryFraming.readHeader(partial, pos, partialLength, header);
+            if (bodyStart < 0) break;
+            if (header[0] > maxLineLength) {
+                // a frame that is too long is skipped as it arrives rather than buffered
+                long available = partialLength - bodyStart;
+                skipBytes = Math.max(0, header[0] - available);
+                pos = (int)Math.min(partialLength, bodyStart + header[0]);
+                if (!server.processLongLine(partial, 0, 0, this)) {
+                    close();
+                    return;
+                }
+                continue;
+            }
+            if (partialLength - bodyStart < header[0]) break;
+            int bodyLength = (int)header[0];
+            decoder.decode(partial, bodyStart, bodyLength);
+            pos = bodyStart + bodyLength;
+            // the line a frame stands for can be longer than the frame
+            boolean keepOpen = decoder.length() > maxLineLength
+                    ? server.processLongLine(decoder.line(), 0, maxLineLength, this)
+                    : server.processCommand(decoder.line(), 0, decoder.length(), this);
+            if (!keepOpen) {
+                close();
+                return;
+            }
+        }
+        System.arraycopy(partial, pos, partial, 0, partialLength - pos);
+        partialLength -= pos;
+    }
+
+    private void appendPartial(byte[] bytes, int offset, int length) {
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(bytes, offset, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    // hand a line to the server as bytes, dropping a trailing carriage return the same way BufferedReader.readLine() does
+    private boolean processLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        if (length > maxLineLength) return server.processLongLine(bytes, offset, maxLineLength, this);
+        return server.processCommand(bytes, offset, length, this);
+    }
+
+    // hand the first bytes of a line that is too long to the server: the partial line followed by the bytes from offset
+    private boolean processLongLine(byte[] bytes, int offset) {
+        if (partialLength < maxLineLength) appendPartial(bytes, offset, maxLineLength - partialLength);
+        partialLength = 0;
+        return server.processLongLine(partial, 0, maxLineLength, this);
+    }
+
+    /**
+     * Close the channel and ask the reactor to remove the client from the server. The client is never removed on the
+     * thread that closes the connection, which may be sending to it while holding the lock of a room (a client too far
+     * behind is closed by whoever overflows it), and removing it takes the lock of its own room.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            reactor.closed(this);
+        }
+    }
+
+    // called by the reactor thread once the connection is closed
+    void removeFromServer() {
+        server.connectionClosed(this);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One of the I/O threads of an {@link NioServer}. A reactor owns a {@link Selector} and every
+ * {@link NioConnection} registered with it. Other threads never touch the selector directly; they queue
+ * registrations, write requests, connections to read from again and closed connections which the reactor picks up
+ * after waking from select().
+ */
+class NioReactor implements Runnable {
+    // large enough to read many small commands with one system call; shared by every connection of this reactor
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gather;
+    private final ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingReads = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingCloses = new ConcurrentLinkedQueue<>();
+
+    NioReactor(int maxFlushBatch) throws IOException {
+        this.selector = Selector.open();
+        this.gather = new ByteBuffer[Math.max(1, maxFlushBatch)];
+    }
+
+    /**
+     * Queue the connection to be registered with this reactor's selector.
+     * @param conn the connection
+     */
+    void register(NioConnection conn) {
+        pendingRegistrations.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the reactor to start writing the queued messages of the given connection.
+     * @param conn the connection that has messages waiting to be written
+     */
+    void requestWrite(NioConnection conn) {
+        pendingWrites.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the reactor to read from the given connection again after it paused (see {@link NioConnection#pauseReading()}).
+     * @param conn the connection whose routing worker has room again
+     */
+    void resumeReading(NioConnection conn) {
+        pendingReads.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the reactor to remove the client of the given connection, which has just been closed, from the server.
+     * @param conn the connection that was closed
+     */
+    void closed(NioConnection conn) {
+        pendingCloses.add(conn);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                registerPending();
+                enableWrites();
+                enableReads();
+                removeClosed();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection conn = (NioConnection)key.attachment();
+                    try {
+                        if (key.isReadable()) conn.read(readBuffer);
+                        if (key.isValid() && key.isWritable()) conn.flush(gather);
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerPending() {
+        NioConnection conn;
+        while ((conn = pendingRegistrations.poll()) != null) {
+            try {
+                conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+                if (conn.hasQueuedMessages()) conn.flush(gather);
+            } catch (IOException | CancelledKeyException e) {
+                conn.close();
+            }
+        }
+    }
+
+    // the connections closed on this thread while handling the keys below are removed after the next select(), which returns at once
+    private void removeClosed() {
+        NioConnection conn;
+        while ((conn = pendingCloses.poll()) != null) {
+            conn.removeFromServer();
+        }
+    }
+
+    private void enableReads() {
+        NioConnection conn;
+        while ((conn = pendingReads.poll()) != null) {
+            try {
+                conn.readAgain();
+            } catch (CancelledKeyException e) {
+                conn.close();
+            }
+        }
+    }
+
+    private void enableWrites() {
+        NioConnection conn;
+        while ((conn = pendingWrites.poll()) != null) {
+            SelectionKey key = conn.getKey();
+            // connections that are not registered yet are flushed as soon as they are registered
+            if (key == null) continue;
+            try {
+                conn.flush(gather);
+            } catch (IOException | CancelledKeyException e) {
+                conn.close();
+            }
+        }
+    }
+}
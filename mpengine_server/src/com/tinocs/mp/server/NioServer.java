@@ -0,0 +1,133 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p>
+ * A server engine built on java.nio that serves every client with a small fixed set of reactor threads
+ * instead of giving each client its own {@link ClientThread}. Each reactor owns a {@link java.nio.channels.Selector}
+ * and handles reading, command processing and writing for the connections registered with it.
+ * </p>
+ * <p>
+ * The line protocol and the room semantics are exactly the same as {@link MultiThreadServer}, since the lines read
+ * by the reactors are handled by {@link MultiThreadServer#processCommand(byte[], int, int, ClientConnection)}. Because
+ * no thread stack is needed per client, an idle client only costs a {@link NioConnection} and its socket buffers.
+ * </p>
+ */
+public class NioServer extends MultiThreadServer {
+
+    private final ServerSocketChannel serverChannel;
+    private final NioReactor[] reactors;
+    private int nextReactor;
+
+    /**
+     * Create an NioServer that accepts connections on the given channel, has effectively no maximum number of rooms
+     * and uses one reactor thread per available processor.
+     *
+     * @param serverChannel the bound server channel
+     * @throws IOException if a selector could not be opened
+     */
+    public NioServer(ServerSocketChannel serverChannel) throws IOException {
+        this(serverChannel, new ServerConfig());
+    }
+
+    /**
+     * Create an NioServer that accepts connections on the given channel.
+     * The number of reactor threads is taken from {@link ServerConfig#getReactorCount()} (if < 1, 1 is used).
+     *
+     * @param serverChannel the bound server channel
+     * @param config the settings of the server
+     * @throws IOException if a selector could not be opened
+     */
+    public NioServer(ServerSocketChannel serverChannel, ServerConfig config) throws IOException {
+        super(config);
+        this.serverChannel = serverChannel;
+        reactors = new NioReactor[Math.max(1, config.getReactorCount())];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new NioReactor(config.getMaxFlushBatch());
+        }
+    }
+
+    /**
+     * Returns the number of reactor threads used by this server.
+     * @return the number of reactor threads used by this server
+     */
+    public int getReactorCount() {
+        return reactors.length;
+    }
+
+    /**
+     * The main loop that accepts connections. Each accepted connection is handed to one of the
+     * reactor threads in round robin order.
+     */
+    @Override
+    public void run() {
+        try {
+            System.out.println("Listening at " + InetAddress.getLocalHost().getHostAddress() + ":" + serverChannel.socket().getLocalPort()
+                    + " with " + reactors.length + " reactor threads");
+        } catch (UnknownHostException e1) {
+            e1.printStackTrace();
+        }
+        for (int i = 0; i < reactors.length; i++) {
+            Thread reactorThread = new Thread(reactors[i], "nio-reactor-" + i);
+            reactorThread.setDaemon(true);
+            reactorThread.start();
+        }
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                offerConnection(new AdmissionControl.Candidate() {
+                    @Override
+                    public void admit() {
+                        serve(channel);
+                    }
+
+                    @Override
+                    public void turnAway(byte[] line) {
+                        // the channel is still blocking and its send buffer is empty, so the line is written at once
+                        try {
+                            channel.write(ByteBuffer.wrap(line));
+                            channel.shutdownOutput();
+                        } catch (IOException e) {
+                            // the client is gone already
+                        }
+                        closeTurnedAway(() -> {
+                            try (SocketChannel c = channel) {
+                                c.configureBlocking(false);
+                                ByteBuffer unread = ByteBuffer.allocate(4096);
+                                while (c.read(unread) > 0) unread.clear();
+                            }
+                        });
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // give an admitted client an id and hand it to the next reactor; waiting clients are admitted on the server timer
+    private synchronized void serve(SocketChannel channel) {
+        String id = newId();
+        NioReactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        NioConnection conn = new NioConnection(id, channel, reactor, this);
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // this also frees the place of the connection
+            conn.close();
+            return;
+        }
+        addClient(conn);
+        reactor.register(conn);
+        System.out.println("Client connected to " + conn.getRemoteAddress() + " and assigned UUID: " + id);
+    }
+}
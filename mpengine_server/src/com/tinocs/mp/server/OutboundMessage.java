@@ -0,0 +1,259 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message that has already been encoded into the bytes written to a client, including the line break.
+ * The bytes are never modified after the message is created, so a single OutboundMessage can be queued
+ * for any number of clients. Broadcasts encode the message once and hand the same instance to every recipient.
+ */
+public final class OutboundMessage {
+    // a message that marks the state key as not parsed yet
+    private static final String UNPARSED = new String("");
+
+    private final byte[] bytes;
+    // true if the message holds more than one line (see join)
+    private final boolean batch;
+    // true if the message may be sent in a datagram (see unreliable)
+    private final boolean unreliable;
+    // "MOVE actorId", "ROT actorId" or null, worked out the first time it is needed
+    private volatile String stateKey = UNPARSED;
+    // this message encoded as binary frames, worked out the first time a binary client is sent it
+    private volatile OutboundMessage binary;
+
+    private OutboundMessage(byte[] bytes) {
+        this(bytes, false);
+    }
+
+    private OutboundMessage(byte[] bytes, boolean batch) {
+        this(bytes, batch, false);
+    }
+
+    private OutboundMessage(byte[] bytes, boolean batch, boolean unreliable) {
+        this.bytes = bytes;
+        this.batch = batch;
+        this.unreliable = unreliable;
+    }
+
+    /**
+     * Encode the given message as UTF-8 followed by a line break.
+     * @param message the message
+     * @return the encoded message
+     */
+    public static OutboundMessage of(String message) {
+        return concat("", "", message, 0);
+    }
+
+    /**
+     * Encode prefix, then separator, then the characters of text starting at index from, followed by a line break.
+     * This lets the server relay the rest of a command line behind the id of its sender without first building
+     * the combined String.
+     * @param prefix the text to start the message with
+     * @param separator the text to put between the prefix and the rest of the text
+     * @param text the text containing the rest of the message
+     * @param from the index in text where the rest of the message starts
+     * @return the encoded message
+     */
+    public static OutboundMessage concat(String prefix, String separator, String text, int from) {
+        int length = prefix.length() + separator.length() + text.length() - from;
+        // most messages are plain ASCII, so try encoding them directly without going through a CharsetEncoder
+        byte[] bytes = new byte[length + 1];
+        int pos = copyAscii(prefix, 0, bytes, 0);
+        if (pos >= 0) pos = copyAscii(separator, 0, bytes, pos);
+        if (pos >= 0) pos = copyAscii(text, from, bytes, pos);
+        if (pos < 0) {
+            String message = prefix + separator + text.substring(from) + "\n";
+            return new OutboundMessage(message.getBytes(StandardCharsets.UTF_8));
+        }
+        bytes[length] = '\n';
+        return new OutboundMessage(bytes);
+    }
+
+    /**
+     * Build a message from prefix, then separator, then the bytes of src from index from (inclusive) to index to (exclusive),
+     * followed by a line break. The bytes of src are copied as they are and never decoded, which is how the server relays
+     * the payload of a command behind the id of its sender.
+     * @param prefix the bytes to start the message with
+     * @param separator the bytes to put between the prefix and the payload
+     * @param src the buffer containing the payload
+     * @param from the index of the first byte of the payload
+     * @param to the index just past the last byte of the payload
+     * @return the message
+     */
+    public static OutboundMessage relay(byte[] prefix, byte[] separator, byte[] src, int from, int to) {
+        byte[] bytes = new byte[prefix.length + separator.length + (to - from) + 1];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(separator, 0, bytes, prefix.length, separator.length);
+        System.arraycopy(src, from, bytes, prefix.length + separator.length, to - from);
+        bytes[bytes.length - 1] = '\n';
+        return new OutboundMessage(bytes);
+    }
+
+    /**
+     * Combine the given messages into one message holding all of their lines in order, so they are queued and
+     * written to a client as a single frame.
+     * @param messages the messages (there must be at least one)
+     * @return the combined message
+     */
+    static OutboundMessage join(List<OutboundMessage> messages) {
+        if (messages.size() == 1) return messages.get(0);
+        int length = 0;
+        // the batch may only go in a datagram if every message in it may
+        boolean unreliable = true;
+        for (OutboundMessage message : messages) {
+            length += message.bytes.length;
+            unreliable &= message.unreliable;
+        }
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (OutboundMessage message : messages) {
+            System.arraycopy(message.bytes, 0, bytes, pos, message.bytes.length);
+            pos += message.bytes.length;
+        }
+        return new OutboundMessage(bytes, true, unreliable);
+    }
+
+    // the encoded bytes including the line break; they must never be modified
+    byte[] bytes() {
+        return bytes;
+    }
+
+    // wrap bytes that already end with a line break; the caller must never modify them afterwards
+    static OutboundMessage wrap(byte[] bytes) {
+        return new OutboundMessage(bytes);
+    }
+
+    /**
+     * Returns the number of lines in this message, which is 1 unless it was made by {@link #join(List)}.
+     * @return the number of lines
+     */
+    int lineCount() {
+        if (!batch) return 1;
+        int lines = 0;
+        for (byte b : bytes) {
+            if (b == '\n') lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Returns this message without its first lines.
+     * @param lines the number of lines to leave out, less than {@link #lineCount()}
+     * @return the rest of the message
+     */
+    OutboundMessage withoutLines(int lines) {
+        int from = 0;
+        while (lines > 0) {
+            if (bytes[from++] == '\n') lines--;
+        }
+        return new OutboundMessage(Arrays.copyOfRange(bytes, from, bytes.length), true, unreliable);
+    }
+
+    /**
+     * Returns a copy of this message that is sent in a datagram to clients that registered a UDP address (see
+     * {@link UdpChannel}), because it arrived in one. Such a message may be lost or arrive out of order.
+     * @return this message marked as unreliable
+     */
+    OutboundMessage unreliable() {
+        return unreliable ? this : new OutboundMessage(bytes, batch, true);
+    }
+
+    /**
+     * Returns true if this message may be sent in a datagram instead of over TCP.
+     * @return true if this message is unreliable
+     */
+    public boolean isUnreliable() {
+        return unreliable;
+    }
+
+    /**
+     * Returns this message as it is written to a client that switched to binary frames (see {@link BinaryFraming}).
+     * The frames are encoded once and then shared by every binary client the message is sent to.
+     * @return this message encoded as one binary frame per line
+     */
+    OutboundMessage toBinary() {
+        OutboundMessage frames = binary;
+        if (frames == null) {
+            frames = new OutboundMessage(BinaryFraming.encodeMessage(bytes), batch);
+            binary = frames;
+        }
+        return frames;
+    }
+
+    /**
+     * Returns true if this is a relayed state update, a single line in the form "senderId MOVE actorId ..." or
+     * "senderId ROT actorId ...". A state update only sets the current position or rotation of an actor, so it may be
+     * replaced by a later state update with the same {@link #stateKey()} without the recipient missing anything.
+     * @return true if this message is a state update
+     */
+    public boolean isStateUpdate() {
+        return stateKey() != null;
+    }
+
+    /**
+     * Returns "MOVE actorId" or "ROT actorId" if this is a state update (see {@link #isStateUpdate()}) and null otherwise.
+     * @return the key shared by state updates that replace each other or null if this is not a state update
+     */
+    public String stateKey() {
+        String key = stateKey;
+        if (key == UNPARSED) {
+            key = batch ? null : parseStateKey(bytes);
+            stateKey = key;
+        }
+        return key;
+    }
+
+    private static String parseStateKey(byte[] bytes) {
+        int limit = bytes.length;
+        int cmdStart = CommandTokenizer.skipWhitespace(bytes, CommandTokenizer.tokenEnd(bytes, 0, limit), limit);
+        int cmdEnd = CommandTokenizer.tokenEnd(bytes, cmdStart, limit);
+        if (!CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "MOVE")
+                && !CommandTokenizer.tokenEquals(bytes, cmdStart, cmdEnd, "ROT")) return null;
+        int actorStart = CommandTokenizer.skipWhitespace(bytes, cmdEnd, limit);
+        int actorEnd = CommandTokenizer.tokenEnd(bytes, actorStart, limit);
+        if (actorStart == actorEnd) return null;
+        return new String(bytes, cmdStart, actorEnd - cmdStart, StandardCharsets.UTF_8);
+    }
+
+    // copy the characters of str from index from into bytes at pos, returning the next position or -1 if a character is not ASCII
+    private static int copyAscii(String str, int from, byte[] bytes, int pos) {
+        int length = str.length();
+        for (int i = from; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80) return -1;
+            bytes[pos++] = (byte)c;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the number of bytes in this message including the line break.
+     * @return the number of bytes in this message including the line break
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Write this message to the given stream.
+     * @param out the stream
+     * @throws IOException if writing to the stream failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Returns a new read-only buffer over the bytes of this message. The bytes are shared, not copied,
+     * so each recipient gets its own position and limit without duplicating the message.
+     * @return a new read-only buffer over the bytes of this message
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+}
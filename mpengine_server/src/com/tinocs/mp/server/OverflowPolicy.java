@@ -0,0 +1,22 @@
+package com.tinocs.mp.server;
+
+/**
+ * What a {@link ClientConnection} does when its client cannot keep up with the messages sent to it.
+ * A state update is a relayed MOVE or ROT message (see {@link OutboundMessage#isStateUpdate()}),
+ * which only sets the current position or rotation of an actor and so can be replaced by a later one.
+ * Whatever the policy, a client is disconnected if its outbound queue fills up with messages that can't be
+ * dropped or if it stops making progress for longer than the lag threshold (see {@link ServerConfig#setLagThresholdMillis(int)}).
+ */
+public enum OverflowPolicy {
+    /** Disconnect the client as soon as its outbound queue is full. This is the default. */
+    DISCONNECT,
+    /** When the outbound queue is full, drop the oldest queued state update to make room for the new message. */
+    DROP_OLDEST_STATE,
+    /**
+     * Once the outbound queue is half full, stop queueing state updates and only keep the latest one for each actor.
+     * These are sent whenever the client has caught up with the rest of its queue (or before any other message, so
+     * the order of events is kept), which lowers the update rate of that client to whatever it can handle.
+     * The client goes back to normal once its queue is nearly empty.
+     */
+    DEGRADE
+}
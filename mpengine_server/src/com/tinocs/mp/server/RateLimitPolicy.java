@@ -0,0 +1,23 @@
+package com.tinocs.mp.server;
+
+/**
+ * What the server does with a message relayed by a client that is over its rate limit (see
+ * {@link ServerConfig#setRateLimit(int)} and {@link ServerConfig#setCommandRateLimit(String, int)}).
+ * Only relayed messages are limited; commands handled by the server itself, such as JOIN_ROOM or DC, never are.
+ */
+public enum RateLimitPolicy {
+    /** Drop the message. This is the default. */
+    DROP,
+    /**
+     * Hold the message back and relay it as soon as the limit allows, after any other message held back for the same
+     * client, so the client's messages stay in order. A client that keeps sending too fast fills up the messages held
+     * for it, and its messages are dropped once {@link RateLimits#MAX_HELD} are waiting.
+     */
+    DELAY,
+    /**
+     * Drop the message, and tell the client with <b>THROTTLED command retryMillis</b>, where command is the command
+     * word of the message and retryMillis is how long it should wait before sending it again. The client is only told
+     * once until one of its messages gets through again.
+     */
+    NOTICE
+}
@@ -0,0 +1,69 @@
+package com.tinocs.mp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A token bucket that holds up to burst tokens and refills at a fixed number of tokens per second, where each message
+ * takes one token (see {@link ServerConfig#setRateLimit(int)}). It is implemented with the generic cell rate algorithm:
+ * instead of counting tokens, it keeps the time at which the bucket will be full again, which is all the state a token
+ * bucket needs. That fits in one AtomicLong, so checking a message takes no lock, just a read of the clock and a
+ * compare-and-set, and the bucket never has to be refilled by a timer.
+ * </p>
+ * <p>
+ * Times are in the units of {@link System#nanoTime()} and are compared by their difference, so the limiter keeps
+ * working if the clock wraps around.
+ * </p>
+ */
+final class RateLimiter {
+    // the time it takes to refill one token
+    private final long intervalNanos;
+    // how far the bucket may be ahead of now, which is the time it takes to refill all but one token
+    private final long toleranceNanos;
+    // when the bucket is full again, if later than now
+    private final AtomicLong fullAt;
+
+    /**
+     * Create a full bucket.
+     * @param perSecond the number of tokens added per second
+     * @param burst the number of tokens the bucket holds
+     */
+    RateLimiter(int perSecond, int burst) {
+        intervalNanos = 1_000_000_000L / Math.max(1, perSecond);
+        toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token if there is one.
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 if a token was taken, otherwise how many nanoseconds it takes for one to be added
+     */
+    long acquire(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long start = full - now > 0 ? full : now;
+            long wait = start - toleranceNanos - now;
+            if (wait > 0) return wait;
+            if (fullAt.compareAndSet(full, start + intervalNanos)) return 0;
+        }
+    }
+
+    /**
+     * Put back a token taken by {@link #acquire(long)} for a message that was not relayed after all.
+     */
+    void release() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Returns how long it takes until there is a token, without taking it.
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 if there is a token, otherwise how many nanoseconds it takes for one to be added
+     */
+    long waitNanos(long now) {
+        long full = fullAt.get();
+        long wait = (full - now > 0 ? full : now) - toleranceNanos - now;
+        return Math.max(0, wait);
+    }
+}
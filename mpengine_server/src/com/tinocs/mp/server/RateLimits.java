@@ -0,0 +1,132 @@
+package com.tinocs.mp.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The rate limits of one client: a {@link RateLimiter} for every message it relays, if the server limits clients,
+ * and one for each command word the server limits (see {@link ServerConfig#setCommandRateLimit(String, int)}).
+ * A message may only be relayed if every limit that applies to it has a token.
+ * </p>
+ * <p>
+ * Under the {@link RateLimitPolicy#DELAY} policy, the messages held back wait here in the order they arrived, in a
+ * queue that any thread may add to and only one timer task at a time takes from. Nothing here takes a lock: the count
+ * of held messages is an AtomicInteger that includes the message being relayed, so a later message of the client only
+ * skips the queue once the count is back to 0, after every held message was relayed, and whoever takes the count from
+ * 0 to 1 is the one that schedules the task. A message is added to the queue before it is counted, so the task always
+ * finds every message it counted.
+ * </p>
+ * <p>
+ * The limits are checked without taking a token first, and a token taken from the client's limit is put back if the
+ * command's limit runs out in between, so a message that is not relayed never uses up a token.
+ * </p>
+ */
+final class RateLimits {
+    /** The most messages held back for one client under the DELAY policy. */
+    static final int MAX_HELD = 256;
+
+    // null if the server does not limit clients, only some commands
+    private final RateLimiter client;
+    // indexed like the command words of the server's limits (see MultiThreadServer.rateLimitedCommand)
+    private final RateLimiter[] commands;
+
+    // the messages held back, oldest first, and how many there are, counting one being relayed and one being added
+    private final ConcurrentLinkedQueue<Held> held = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger heldCount = new AtomicInteger();
+
+    // true once a message was dropped under the NOTICE policy, until one gets through again
+    private volatile boolean throttled;
+
+    static final class Held {
+        final int command;
+        final Runnable relay;
+
+        Held(int command, Runnable relay) {
+            this.command = command;
+            this.relay = relay;
+        }
+    }
+
+    /**
+     * Create the limits of a client from the given settings.
+     * @param config the server settings
+     * @param commandRates the number of messages per second allowed for each limited command word
+     */
+    RateLimits(ServerConfig config, int[] commandRates) {
+        client = config.getRateLimit() > 0 ? new RateLimiter(config.getRateLimit(), config.getRateBurst()) : null;
+        commands = new RateLimiter[commandRates.length];
+        for (int i = 0; i < commandRates.length; i++) {
+            // a command may come in a burst of one second's worth
+            commands[i] = new RateLimiter(commandRates[i], commandRates[i]);
+        }
+    }
+
+    /**
+     * Take a token from every limit that applies to a message, if they all have one.
+     * @param command the index of the command word of the message, or -1 if its command is not limited
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 if the message may be relayed, otherwise how many nanoseconds it takes until it may
+     */
+    long acquire(int command, long now) {
+        RateLimiter perCommand = command < 0 ? null : commands[command];
+        // look first, so a message that is over one limit does not use up a token of the other
+        long wait = client == null ? 0 : client.waitNanos(now);
+        if (perCommand != null) wait = Math.max(wait, perCommand.waitNanos(now));
+        if (wait > 0) return wait;
+        if (client != null && (wait = client.acquire(now)) > 0) return wait;
+        if (perCommand == null || (wait = perCommand.acquire(now)) == 0) return 0;
+        // another thread took the last token of the command since we looked, so the message is not relayed
+        if (client != null) client.release();
+        return wait;
+    }
+
+    /**
+     * Record whether the last message of the client got through under the NOTICE policy.
+     * @param dropped true if it was dropped
+     * @return true if it was dropped and the previous one was not, so the client should be told
+     */
+    boolean setThrottled(boolean dropped) {
+        if (throttled == dropped) return false;
+        throttled = dropped;
+        return dropped;
+    }
+
+    /**
+     * Returns true if messages are held back, or one is still being relayed, so a new message must wait behind them.
+     * @return true if messages are held back
+     */
+    boolean hasHeld() {
+        return heldCount.get() > 0;
+    }
+
+    /**
+     * Hold a message back.
+     * @param message the command index and relay of the message
+     * @return the number of messages held including this one, where 1 means a timer task must be scheduled to relay
+     * them, or 0 if too many messages are held already, so the message was dropped
+     */
+    int hold(Held message) {
+        // a datagram of the client handled at the same time may take the count one past MAX_HELD, which is harmless
+        if (heldCount.get() >= MAX_HELD) return 0;
+        held.add(message);
+        return heldCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the oldest message held back. Only called by the task relaying them, while {@link #hasHeld()}.
+     * @return the oldest held message
+     */
+    Held peekHeld() {
+        return held.peek();
+    }
+
+    /**
+     * Forget the oldest message held back, once it was relayed or dropped. Only called by the task relaying them.
+     * @return true if more messages are held, so the task must go on
+     */
+    boolean removeHeld() {
+        held.poll();
+        return heldCount.decrementAndGet() > 0;
+    }
+}
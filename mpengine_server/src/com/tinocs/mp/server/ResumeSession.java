@@ -0,0 +1,236 @@
+package com.tinocs.mp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * <p>
+ * What the server keeps for a client that may reconnect after losing its connection (see
+ * {@link ServerConfig#setResumeGraceMillis(int)}). A client asks for a session with RESUME_ENABLE and is told a secret
+ * token. From then on, every message queued for the client is also kept here, in the order it was queued, along with
+ * how many of them the writer of the connection has taken from the queue. When the connection is lost, the client
+ * keeps its id and its room for the grace period, and every message sent to it in the meantime is kept too.
+ * </p>
+ * <p>
+ * The client counts the lines it has read since the RESUME_ENABLE reply. A client that reconnects within the grace
+ * period sends RESUME with its old id, the token and that count, and is sent every line after the count, so it
+ * carries on as if nothing happened. Lines that were taken long ago are forgotten once more than the given number of
+ * messages has been taken after them, so a client can only resume if it has read all but the last few.
+ * </p>
+ * <p>
+ * The connection that currently receives the messages of the session is its owner. A message sent to an earlier
+ * connection of the client is passed on to the owner, so nothing sent while the client is switching connections
+ * is lost. The methods are synchronized, and a connection holds the lock of its session while queueing a message
+ * so the messages kept here are in the same order as the queue.
+ * </p>
+ */
+final class ResumeSession {
+    private final String token;
+    private final int capacity;
+    // the connection messages are kept for, or null while the session is switching connections
+    private ClientConnection owner;
+    // true once the client has left for good
+    private boolean ended;
+    // true if the client missed too much while it was away to resume
+    private boolean overflowed;
+    private boolean parked;
+    private ScheduledFuture<?> expiry;
+
+    // the messages kept, oldest first; the first taken of them have been taken by the writer of the owner
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private int taken;
+    // the number of lines before the first entry
+    private long firstLine;
+
+    private static final class Entry {
+        final OutboundMessage message;
+        // true for a line that only matters to the connection it was sent on (e.g. PROTOCOL BINARY)
+        final boolean control;
+
+        Entry(OutboundMessage message, boolean control) {
+            this.message = message;
+            this.control = control;
+        }
+    }
+
+    /**
+     * Create a session with the given token.
+     * @param token the secret token the client resumes with
+     * @param capacity the number of taken messages kept, which is also the most messages kept while the client is away
+     */
+    ResumeSession(String token, int capacity) {
+        this.token = token;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    synchronized ClientConnection getOwner() {
+        return owner;
+    }
+
+    /**
+     * Start keeping the messages queued for the given connection.
+     * @param conn the connection
+     */
+    synchronized void setOwner(ClientConnection conn) {
+        owner = conn;
+    }
+
+    /**
+     * Keep a message that is being queued for the given connection. The caller holds the lock of this session.
+     * @param conn the connection the message is queued for
+     * @param message the message
+     * @param control true if the message only matters to the connection it is sent on
+     * @return the connection to pass the message on to instead, or null if it belongs in the queue of conn
+     */
+    synchronized ClientConnection queued(ClientConnection conn, OutboundMessage message, boolean control) {
+        if (owner != conn && owner != null && !ended) return owner;
+        if (owner == conn && !ended) entries.add(new Entry(message, control));
+        return null;
+    }
+
+    /**
+     * Keep a message sent to the given connection after it was closed.
+     * @param conn the closed connection
+     * @param message the message
+     * @param control true if the message only matters to the connection it is sent on
+     * @return the connection to pass the message on to, or null if there is none
+     */
+    synchronized ClientConnection missed(ClientConnection conn, OutboundMessage message, boolean control) {
+        if (ended || owner == null) return null;
+        if (owner != conn) return owner;
+        if (overflowed) return null;
+        entries.add(new Entry(message, control));
+        // the client has been away too long to catch up, so stop keeping its messages
+        if (entries.size() - taken > capacity) {
+            overflowed = true;
+            entries.clear();
+            taken = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Record that the writer of the given connection took the given message from its queue.
+     * @param conn the connection
+     * @param message the message
+     */
+    synchronized void taken(ClientConnection conn, OutboundMessage message) {
+        if (owner != conn || taken == entries.size() || entries.get(taken).message != message) return;
+        taken++;
+        if (taken >= capacity * 2) {
+            // forget the oldest taken messages in one go rather than one at a time
+            int forget = taken - capacity;
+            List<Entry> old = entries.subList(0, forget);
+            for (Entry entry : old) firstLine += entry.message.lineCount();
+            old.clear();
+            taken -= forget;
+        }
+    }
+
+    /**
+     * Forget a message that the given connection dropped from its queue without writing it.
+     * @param conn the connection
+     * @param message the message
+     */
+    synchronized void dropped(ClientConnection conn, OutboundMessage message) {
+        if (owner != conn) return;
+        for (int i = entries.size() - 1; i >= taken; i--) {
+            if (entries.get(i).message == message) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keep the messages of the given connection, which was just lost, until the client resumes or the grace period ends.
+     * @param conn the connection that was lost
+     * @return true if the client may resume and false if it has left for good
+     */
+    synchronized boolean park(ClientConnection conn) {
+        if (ended || owner != conn) return false;
+        parked = true;
+        return true;
+    }
+
+    /**
+     * Returns true while the client has lost its connection and may still resume.
+     * @return true if the client is away
+     */
+    synchronized boolean isAway() {
+        return parked && !ended;
+    }
+
+    synchronized void setExpiry(ScheduledFuture<?> expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * End the session of a client that has been away for the whole grace period.
+     * @param conn the connection that was lost
+     * @return true if the session ended and false if the client resumed or already left
+     */
+    synchronized boolean expire(ClientConnection conn) {
+        if (ended || !parked || owner != conn) return false;
+        finish();
+        return true;
+    }
+
+    /**
+     * Stop keeping messages because the client on the given connection has left for good. Nothing happens if the
+     * client has already resumed on another connection.
+     * @param conn the connection of the client
+     * @return true if the session ended and false if conn is no longer the connection of the client
+     */
+    synchronized boolean end(ClientConnection conn) {
+        if (owner != conn) return false;
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        ended = true;
+        entries.clear();
+        if (expiry != null) expiry.cancel(false);
+    }
+
+    /**
+     * Returns every message after the first received lines and starts keeping messages again from that line, without
+     * an owner until {@link #setOwner(ClientConnection)} is called. Nothing changes if the lines can't be replayed.
+     * @param received the number of lines the client read since the session started
+     * @param limit the most messages that can be replayed, since they all go in the outbound queue at once
+     * @return the messages the client missed, or null if the session has ended or the client missed too much
+     */
+    synchronized List<OutboundMessage> resume(long received, int limit) {
+        if (ended || overflowed || received < firstLine) return null;
+        long line = firstLine;
+        int i = 0;
+        while (i < taken && line + entries.get(i).message.lineCount() <= received) {
+            line += entries.get(i).message.lineCount();
+            i++;
+        }
+        // the client can't have read a line the writer never took
+        if (line < received && i == taken) return null;
+        if (entries.size() - i > limit) return null;
+        List<OutboundMessage> missed = new ArrayList<>(entries.size() - i);
+        for (; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.control) continue;
+            // the client read the first lines of a batch before the connection was lost
+            missed.add(line < received ? entry.message.withoutLines((int)(received - line)) : entry.message);
+            line = received;
+        }
+        entries.clear();
+        taken = 0;
+        firstLine = received;
+        owner = null;
+        parked = false;
+        if (expiry != null) expiry.cancel(false);
+        return missed;
+    }
+}
@@ -0,0 +1,98 @@
+package com.tinocs.mp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A bounded queue that any number of threads may add to and one thread takes from, without locks. The slots are an
+ * array allocated up front, like the ring buffer of the LMAX Disruptor. Each slot has a sequence number that says
+ * whether it is free for the turn of the ring a producer claimed (by moving the shared tail forward) or holds an
+ * element for the consumer, so producers never wait for each other and the consumer never waits for a lock.
+ * </p>
+ * <p>
+ * The capacity is rounded up to a power of two. {@link #offer(Object)} returns false rather than waiting when the
+ * buffer is full, so the caller decides how to push back.
+ * </p>
+ * @param <E> the type of the elements
+ */
+final class RingBuffer<E> {
+    private final Object[] slots;
+    // slot i is free for the element with index s when sequences[i] == s, and holds it when sequences[i] == s + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // the index of the next element to add, shared by the producers
+    private final AtomicLong tail = new AtomicLong();
+    // the index of the next element to take, only written by the consumer
+    private volatile long head;
+
+    /**
+     * Create an empty ring buffer.
+     * @param capacity the least number of elements it can hold (at least 2)
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element unless the buffer is full. May be called by any thread.
+     * @param element the element (not null)
+     * @return true if the element was added and false if the buffer is full
+     */
+    boolean offer(E element) {
+        long index;
+        while (true) {
+            index = tail.get();
+            long sequence = sequences.get((int)index & mask);
+            if (sequence == index) {
+                if (tail.compareAndSet(index, index + 1)) break;
+            } else if (sequence < index) {
+                // the consumer has not taken the element of the last turn out of this slot yet
+                return false;
+            }
+            // otherwise another producer claimed the slot first
+        }
+        int slot = (int)index & mask;
+        slots[slot] = element;
+        // publishes the element to the consumer
+        sequences.set(slot, index + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest element. Only called by the consumer.
+     * @return the oldest element or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long index = head;
+        int slot = (int)index & mask;
+        if (sequences.get(slot) != index + 1) return null;
+        E element = (E)slots[slot];
+        slots[slot] = null;
+        // frees the slot for the next turn of the ring
+        sequences.set(slot, index + slots.length);
+        head = index + 1;
+        return element;
+    }
+
+    /**
+     * Returns about the number of elements in the buffer.
+     * @return the number of elements in the buffer
+     */
+    int size() {
+        return (int)Math.max(0, Math.min(slots.length, tail.get() - head));
+    }
+
+    /**
+     * Returns the number of elements the buffer can hold.
+     * @return the capacity of the buffer
+     */
+    int capacity() {
+        return slots.length;
+    }
+}
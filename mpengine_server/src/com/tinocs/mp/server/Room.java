@@ -0,0 +1,287 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The state of one room on the server: its name, capacity, owner, whether it is closed and the ids of its members.
+ * </p>
+ * <p>
+ * Every change to a room is made by {@link MultiThreadServer} while holding the room's lock (its monitor), so
+ * joining, leaving and passing on ownership happen one at a time per room and a room can never hold more members
+ * than its capacity. Reading does not need the lock: the members are kept in an array that is replaced (never
+ * modified) on every change, so a broadcast can walk {@link #getMembers()} while other clients join and leave.
+ * Next to the ids the room keeps the connections of its members the same way, so a broadcast walks
+ * {@link #getConnections()} without looking up each member by id.
+ * </p>
+ * <p>
+ * If the server runs rooms on worker threads (see {@link ServerConfig#setRoomWorkers(int)}), the commands about a room
+ * are also run one at a time by its {@link RoomMailbox}, so the lock is only contended by changes that involve two rooms.
+ * </p>
+ */
+public final class Room {
+    private static final String[] NO_MEMBERS = {};
+    private static final ClientConnection[] NO_CONNECTIONS = {};
+    // gives every room a fixed position so two rooms can always be locked in the same order
+    private static final AtomicLong nextLockOrder = new AtomicLong();
+
+    private final String id;
+    private final String name;
+    private final int capacity;
+    private final int tickRate;
+    private final long lockOrder = nextLockOrder.getAndIncrement();
+
+    // the ids of the members in the order they joined
+    private volatile String[] members = NO_MEMBERS;
+    // the connection of each member, at the same index as its id (null if the member had none when it joined)
+    private volatile ClientConnection[] connections = NO_CONNECTIONS;
+    private volatile String ownerId;
+    private volatile boolean closed;
+    private volatile boolean removed;
+    // this room as it is listed in the state sent to new clients, kept up to date by every change
+    private volatile byte[] descriptor;
+    // buffers the messages sent to the room between ticks (null if the room has no tick rate)
+    private volatile RoomTicker ticker;
+    private volatile InterestGrid interestGrid;
+    // the latest state of the actors in the room (null unless the server caches actors)
+    private volatile ActorCache actorCache;
+    // runs the commands about the room (null unless the server runs rooms on worker threads)
+    private volatile RoomMailbox mailbox;
+
+    /**
+     * Create an empty, open room without an owner.
+     * @param id the id of the room
+     * @param name the name of the room
+     * @param capacity the maximum number of clients allowed in the room
+     * @param tickRate the number of times per second messages sent to the room are delivered, or 0 to deliver them immediately
+     */
+    Room(String id, String name, int capacity, int tickRate) {
+        this.id = id;
+        this.name = name;
+        this.capacity = capacity;
+        this.tickRate = tickRate;
+        updateDescriptor();
+    }
+
+    /**
+     * Returns the id of the room.
+     * @return the id of the room
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the name of the room.
+     * @return the name of the room
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the maximum number of clients allowed in the room.
+     * @return the maximum number of clients allowed in the room
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of times per second the messages sent to this room are delivered to its members,
+     * or 0 if they are delivered as soon as they arrive.
+     * @return the tick rate of the room or 0 if the room has no tick rate
+     */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    /**
+     * Returns the id of the owner of the room or null if the room has no owner (it is empty).
+     * @return the id of the owner of the room or null if the room has no owner
+     */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * Returns true if clients are currently not allowed to join the room.
+     * @return true if the room is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns true once the room has been removed from the server.
+     * @return true if the room has been removed
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns the ids of the members of the room in the order they joined. The array is a snapshot that
+     * is never modified (joins and leaves replace it), so it can be iterated without locking, but it must
+     * not be modified by the caller.
+     * @return the ids of the members of the room
+     */
+    public String[] getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the connections of the members of the room, in the same order as {@link #getMembers()}. Like the ids,
+     * the array is a snapshot that is never modified, so it can be iterated without locking, but it must not be
+     * modified by the caller. An element is null if the member had no connection when it joined. After a client
+     * resumes its session on a new connection, its old one may be returned for a moment, which passes on whatever
+     * is sent to it (see {@link ResumeSession}).
+     * @return the connections of the members of the room
+     */
+    ClientConnection[] getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the number of members in the room.
+     * @return the number of members in the room
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Returns true if the room has as many members as its capacity allows.
+     * @return true if the room is full
+     */
+    public boolean isFull() {
+        return members.length >= capacity;
+    }
+
+    /**
+     * Returns true if the client with the given id is a member of the room.
+     * @param clientId the id of the client
+     * @return true if the client is a member of the room
+     */
+    public boolean contains(String clientId) {
+        return indexOf(members, clientId) >= 0;
+    }
+
+    long getLockOrder() {
+        return lockOrder;
+    }
+
+    RoomTicker getTicker() {
+        return ticker;
+    }
+
+    void setTicker(RoomTicker ticker) {
+        this.ticker = ticker;
+    }
+
+    // null until a member declares an interest region
+    InterestGrid getInterestGrid() {
+        return interestGrid;
+    }
+
+    void setInterestGrid(InterestGrid interestGrid) {
+        this.interestGrid = interestGrid;
+    }
+
+    ActorCache getActorCache() {
+        return actorCache;
+    }
+
+    void setActorCache(ActorCache actorCache) {
+        this.actorCache = actorCache;
+    }
+
+    RoomMailbox getMailbox() {
+        return mailbox;
+    }
+
+    void setMailbox(RoomMailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Returns the UTF-8 bytes describing this room in the state sent to new clients, in the form
+     * <b>" roomId roomName capacity ownerId closed memberId1 memberId2 ..."</b> (with a leading space).
+     * The array must not be modified.
+     * @return the description of this room
+     */
+    byte[] getDescriptor() {
+        return descriptor;
+    }
+
+    // the following are only called while holding the lock of this room
+
+    void add(String clientId, ClientConnection conn) {
+        String[] current = members;
+        String[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = clientId;
+        ClientConnection[] updatedConnections = Arrays.copyOf(connections, current.length + 1);
+        updatedConnections[current.length] = conn;
+        connections = updatedConnections;
+        members = updated;
+        updateDescriptor();
+    }
+
+    boolean remove(String clientId) {
+        String[] current = members;
+        int index = indexOf(current, clientId);
+        if (index < 0) return false;
+        members = without(current, index, new String[current.length - 1]);
+        connections = without(connections, index, new ClientConnection[current.length - 1]);
+        updateDescriptor();
+        return true;
+    }
+
+    // the member with the given id resumed its session on a new connection
+    void replaceConnection(String clientId, ClientConnection conn) {
+        int index = indexOf(members, clientId);
+        if (index < 0) return;
+        ClientConnection[] updated = connections.clone();
+        updated[index] = conn;
+        connections = updated;
+    }
+
+    private static <T> T[] without(T[] current, int index, T[] updated) {
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        return updated;
+    }
+
+    void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+        updateDescriptor();
+    }
+
+    void setClosed(boolean closed) {
+        this.closed = closed;
+        updateDescriptor();
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
+
+    private void updateDescriptor() {
+        StringBuilder str = new StringBuilder(64 + members.length * 37);
+        str.append(' ').append(id).append(' ').append(name).append(' ').append(capacity)
+                .append(' ').append(ownerId).append(' ').append(closed);
+        for (String clientId : members) {
+            str.append(' ').append(clientId);
+        }
+        descriptor = str.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(String[] ids, String clientId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(clientId)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,96 @@
+package com.tinocs.mp.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The commands waiting to be run for one room when the server runs rooms on a shared pool of worker threads (see
+ * {@link ServerConfig#setRoomWorkers(int)}). The thread that reads a line from a client only adds the command to the
+ * mailbox of the room it is about and goes back to reading. The mailbox then runs its commands one at a time, in the
+ * order they were added, on whichever worker is free, so the members of a room are always handled by one thread at
+ * a time: the room's lock is never contended, every member sees the messages sent to the room in the same order, and
+ * rooms that have nothing to do with each other run on different cores.
+ * </p>
+ * <p>
+ * A mailbox is only handed to the pool while it has commands. After {@link #BATCH} commands in a row it is handed to
+ * the pool again instead of carrying on, so one busy room can't keep the other rooms on the same worker waiting.
+ * </p>
+ */
+final class RoomMailbox implements Runnable {
+    /** The most commands run in a row before the worker lets other rooms have a turn. */
+    static final int BATCH = 64;
+
+    private final Executor workers;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // the commands added and not finished yet; the mailbox is with the pool while this is not 0
+    private final AtomicInteger depth = new AtomicInteger();
+    // only written by the worker running the mailbox, which is one thread at a time
+    private volatile long runCount;
+    private volatile int peakDepth;
+
+    /**
+     * Create an empty mailbox.
+     * @param workers the pool that runs the commands
+     */
+    RoomMailbox(Executor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Add a command to run after every command already in this mailbox. Returns at once.
+     * @param task the command
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        int waiting = depth.incrementAndGet();
+        // a lost race only makes the peak a little low
+        if (waiting > peakDepth) peakDepth = waiting;
+        if (waiting == 1) workers.execute(this);
+    }
+
+    /**
+     * Run the commands in this mailbox. Called by the pool.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH; i++) {
+            // every command counted by depth was added before it was counted, so there is one
+            Runnable task = tasks.poll();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Room command failed: " + e);
+                e.printStackTrace();
+            }
+            runCount++;
+            if (depth.decrementAndGet() == 0) return;
+        }
+        workers.execute(this);
+    }
+
+    /**
+     * Returns the number of commands waiting or running.
+     * @return the depth of the mailbox
+     */
+    int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns the most commands that were ever waiting or running at once.
+     * @return the peak depth of the mailbox
+     */
+    int getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * Returns the number of commands run so far.
+     * @return the number of commands run
+     */
+    long getRunCount() {
+        return runCount;
+    }
+}
@@ -0,0 +1,181 @@
+package com.tinocs.mp.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Collects the messages sent to a room that has a tick rate (see {@link MultiThreadServer#addRoom(String, int, int, String)})
+ * and sends them to the members of the room once per tick, all of a tick's messages for one member written as a
+ * single frame. A member never receives its own messages.
+ * </p>
+ * <p>
+ * MOVE and ROT messages only set the current position or rotation of an actor, so when another MOVE (or ROT) for the
+ * same actorId arrives within the same tick, the earlier one is dropped and only the latest is sent, after any messages
+ * that arrived in between. Every other message is sent exactly as it was received, in the order it was received.
+ * </p>
+ */
+final class RoomTicker implements Runnable {
+    private final Room room;
+    private final MultiThreadServer server;
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    // the messages waiting for the next tick (an entry is null if a later message replaced it); guarded by this
+    private ArrayList<Entry> pending = new ArrayList<>();
+    // each key is "MOVE actorId" or "ROT actorId" and each value is the index in pending of the latest such message
+    private final HashMap<String, Integer> latest = new HashMap<>();
+
+    private volatile ScheduledFuture<?> future;
+    // held while a batch is sent, so batches go out one at a time and in order
+    private final Object flushLock = new Object();
+    // true once the ticker was cancelled; guarded by flushLock
+    private boolean cancelled;
+
+    private static final class Entry {
+        final String fromId;
+        final OutboundMessage message;
+        // who receives the message if the room filters MOVE messages by interest (null if everyone does)
+        final InterestGrid.Filter filter;
+        // the version the room's ActorCache gave the message (0 if it was not recorded)
+        final long version;
+
+        Entry(String fromId, OutboundMessage message, InterestGrid.Filter filter, long version) {
+            this.fromId = fromId;
+            this.message = message;
+            this.filter = filter;
+            this.version = version;
+        }
+    }
+
+    RoomTicker(Room room, MultiThreadServer server) {
+        this.room = room;
+        this.server = server;
+    }
+
+    void setFuture(ScheduledFuture<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Stop ticking, waiting for a tick that is already sending its batch. Anything still waiting is dropped unless
+     * {@link #flush()} is called afterwards. Must not be called while holding the lock of the room: a tick may need
+     * it, since sending can disconnect a member that fell behind, which makes it leave the room.
+     */
+    void cancel() {
+        synchronized (flushLock) {
+            cancelled = true;
+        }
+        ScheduledFuture<?> f = future;
+        if (f != null) f.cancel(false);
+    }
+
+    /**
+     * Queue a message from the given client to be sent to the rest of the room on the next tick.
+     * @param fromId the id of the sender
+     * @param message the message, already prefixed with the id of the sender
+     * @param filter who receives the message (see {@link InterestGrid#route(OutboundMessage, String)}) or null if every member does
+     * @param version the version the room's {@link ActorCache} gave the message, or 0 if it was not recorded; a member whose
+     * snapshot of the cache already has the message is not sent it
+     */
+    synchronized void add(String fromId, OutboundMessage message, InterestGrid.Filter filter, long version) {
+        String key = message.stateKey();
+        if (key != null) {
+            Integer previous = latest.put(key, pending.size());
+            if (previous != null) {
+                Entry replaced = pending.set(previous, null);
+                if (filter != null) filter = filter.replacing(replaced.filter);
+                coalesced.incrementAndGet();
+            }
+        }
+        pending.add(new Entry(fromId, message, filter, version));
+    }
+
+    /**
+     * Send everything that arrived since the last tick, unless the ticker was cancelled. Called by the server's tick
+     * thread (or the room's {@link RoomMailbox}).
+     */
+    @Override
+    public void run() {
+        synchronized (flushLock) {
+            // a tick that was already handed over when the ticker was cancelled
+            if (cancelled) return;
+            send();
+        }
+    }
+
+    /**
+     * Send everything that arrived since the last tick, even if the ticker was cancelled, after any tick that is
+     * already sending.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            send();
+        }
+    }
+
+    // the caller holds flushLock
+    private void send() {
+        ArrayList<Entry> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>(batch.size());
+            latest.clear();
+        }
+        List<OutboundMessage> all = new ArrayList<>(batch.size());
+        HashMap<String, Boolean> senders = new HashMap<>();
+        boolean filtered = false;
+        // the lowest version of a message in the batch that the room's ActorCache recorded
+        long firstVersion = Long.MAX_VALUE;
+        for (Entry entry : batch) {
+            if (entry == null) continue;
+            all.add(entry.message);
+            senders.put(entry.fromId, true);
+            if (entry.filter != null) filtered = true;
+            if (entry.version != 0) firstVersion = Math.min(firstVersion, entry.version);
+        }
+        OutboundMessage frame = OutboundMessage.join(all);
+        for (ClientConnection conn : room.getConnections()) {
+            if (conn == null) continue;
+            String toId = conn.getId();
+            long seen = conn.getRoomCacheVersion();
+            if (filtered || senders.containsKey(toId) || seen >= firstVersion) {
+                // the frame for a member that sent something this tick leaves out its own messages,
+                // and if the room filters by interest, the MOVE messages the member is not interested in,
+                // and for a member that joined during the tick, the messages it was sent in its snapshot
+                List<OutboundMessage> others = new ArrayList<>(all.size());
+                for (Entry entry : batch) {
+                    if (entry != null && !entry.fromId.equals(toId) && (entry.filter == null || entry.filter.accepts(toId))
+                            && (entry.version == 0 || entry.version > seen)) {
+                        others.add(entry.message);
+                    }
+                }
+                if (others.isEmpty()) continue;
+                conn.send(OutboundMessage.join(others));
+            } else {
+                conn.send(frame);
+            }
+            frames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of MOVE and ROT messages dropped because a later one for the same actor arrived in the same tick.
+     * @return the number of messages dropped
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of frames sent to members of the room.
+     * @return the number of frames sent
+     */
+    long getFrameCount() {
+        return frames.get();
+    }
+}
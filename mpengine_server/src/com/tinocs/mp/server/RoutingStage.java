@@ -0,0 +1,211 @@
+package com.tinocs.mp.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * The middle stage of the server's pipeline when it has routing workers (see {@link ServerConfig#setRouteWorkers(int)}).
+ * The threads reading from clients (the I/O stage) only split the input into lines, handle the few commands about the
+ * connection itself and hand every other line to this stage. A routing worker then works out who the line is for and
+ * queues it for them, and the writer of each recipient (a {@link SocketConnection} thread or a {@link NioReactor})
+ * encodes and flushes it. So a slow client or a big room no longer holds up reading.
+ * </p>
+ * <p>
+ * Every worker has its own {@link RingBuffer}. All the lines of one connection go to the same worker, which handles
+ * them in the order they were read. When the ring of a worker is full, the server pushes back on the clients instead
+ * of buffering without limit. A {@link NioConnection} stops reading (see {@link ClientConnection#pauseReading()}):
+ * the rest of what it already read waits in an overflow queue behind the ring, and the worker starts it reading again
+ * once the ring is half empty, so a reactor never stops serving its other clients. A thread reading from a
+ * {@link SocketConnection} only has that client to serve, so it waits for room instead. How long lines wait and take
+ * in each stage is kept in {@link StageMetrics} for the stats report.
+ * </p>
+ */
+final class RoutingStage {
+    // how long a reading thread waits between tries while the ring it needs is full
+    private static final long FULL_PAUSE_NANOS = 50_000;
+
+    // a line to route, or a task that must run after the lines read before it
+    private static final class Routed {
+        final byte[] line;
+        final ClientConnection from;
+        final Runnable task;
+        final long queuedNanos = System.nanoTime();
+
+        Routed(byte[] line, ClientConnection from, Runnable task) {
+            this.line = line;
+            this.from = from;
+            this.task = task;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final RingBuffer<Routed> ring;
+        // what did not fit in the ring; while it isn't empty everything is added here, so no line overtakes another
+        final ConcurrentLinkedQueue<Routed> overflow = new ConcurrentLinkedQueue<>();
+        // the connections that stopped reading because the ring was full
+        final Set<ClientConnection> paused = ConcurrentHashMap.newKeySet();
+        final Thread thread;
+        // true while the worker is parked or about to park because its ring and overflow queue are empty
+        volatile boolean idle;
+
+        Worker(int index, int queueCapacity) {
+            ring = new RingBuffer<>(queueCapacity);
+            thread = new Thread(this, "route-worker-" + index);
+            thread.setDaemon(true);
+        }
+
+        // only called by the threads reading from clients, never by a worker
+        void add(Routed routed) {
+            if (!overflow.isEmpty() || !ring.offer(routed)) {
+                if (routed.from.pauseReading()) {
+                    if (paused.add(routed.from)) pauses.increment();
+                    overflow.add(routed);
+                } else if (!ring.offer(routed)) {
+                    fullWaits.increment();
+                    do {
+                        LockSupport.parkNanos(FULL_PAUSE_NANOS);
+                    } while (!ring.offer(routed));
+                }
+            }
+            if (idle) LockSupport.unpark(thread);
+        }
+
+        // the lines in the ring were read before those in the overflow queue
+        Routed next() {
+            Routed routed = ring.poll();
+            return routed != null ? routed : overflow.poll();
+        }
+
+        // start the connections that stopped reading again once the overflow queue is empty and the ring half empty
+        void resumeReading() {
+            if (paused.isEmpty() || !overflow.isEmpty() || ring.size() > ring.capacity() / 2) return;
+            for (ClientConnection conn : paused) {
+                paused.remove(conn);
+                conn.resumeReading();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                resumeReading();
+                Routed routed = next();
+                if (routed == null) {
+                    idle = true;
+                    // a producer that added a line before seeing idle is caught by this second look
+                    routed = next();
+                    if (routed == null) {
+                        LockSupport.park(this);
+                        idle = false;
+                        continue;
+                    }
+                    idle = false;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (routed.task != null) {
+                        routed.task.run();
+                    } else {
+                        server.routeLine(routed.line, routed.from);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Routing failed: " + e);
+                    e.printStackTrace();
+                }
+                route.record(start - routed.queuedNanos, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private final MultiThreadServer server;
+    private final Worker[] workers;
+    private final StageMetrics decode = new StageMetrics(false);
+    private final StageMetrics route = new StageMetrics(true);
+    private final StageMetrics write = new StageMetrics(true);
+    private final LongAdder fullWaits = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+
+    /**
+     * Create the stage and start its workers.
+     * @param server the server whose lines are routed
+     * @param workerCount the number of routing workers
+     * @param queueCapacity the number of lines each worker's ring holds
+     */
+    RoutingStage(MultiThreadServer server, int workerCount, int queueCapacity) {
+        this.server = server;
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) workers[i] = new Worker(i + 1, queueCapacity);
+        for (Worker worker : workers) worker.thread.start();
+    }
+
+    /**
+     * Hand a line read from the given client to its routing worker. If the worker's ring is full, the connection stops
+     * reading or, if it can't, the reading thread waits for room. The line is copied, so the buffer may be reused as
+     * soon as this returns.
+     * @param from the connection of the client
+     * @param line the buffer containing the line
+     * @param offset the index of the first byte of the line
+     * @param length the number of bytes in the line
+     * @param readNanos when the thread reading from the client started on the line
+     */
+    void route(ClientConnection from, byte[] line, int offset, int length, long readNanos) {
+        byte[] copy = new byte[length];
+        System.arraycopy(line, offset, copy, 0, length);
+        workerOf(from).add(new Routed(copy, from, null));
+        decode.record(0, System.nanoTime() - readNanos);
+    }
+
+    /**
+     * Run a task on the routing worker of the given connection, after every line read from it so far. A full ring is
+     * handled like in {@link #route(ClientConnection, byte[], int, int, long)}. Only when the task is added by a worker
+     * itself (routing a message made the server close a connection) is it put straight in the overflow queue, since a
+     * worker that waited for room in a ring could wait forever.
+     * @param conn the connection
+     * @param task the task
+     */
+    void execute(ClientConnection conn, Runnable task) {
+        Worker worker = workerOf(conn);
+        Routed routed = new Routed(null, conn, task);
+        if (!isWorker(Thread.currentThread())) {
+            worker.add(routed);
+            return;
+        }
+        if (!worker.overflow.isEmpty() || !worker.ring.offer(routed)) worker.overflow.add(routed);
+        if (worker.idle) LockSupport.unpark(worker.thread);
+    }
+
+    private Worker workerOf(ClientConnection conn) {
+        return workers[(System.identityHashCode(conn) & 0x7fffffff) % workers.length];
+    }
+
+    private boolean isWorker(Thread thread) {
+        for (Worker worker : workers) {
+            if (worker.thread == thread) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the metrics of the writers, which the connections record into when they flush (see
+     * {@link ClientConnection#setWriteStage(StageMetrics)}).
+     * @return the metrics of the write stage
+     */
+    StageMetrics getWriteStage() {
+        return write;
+    }
+
+    /**
+     * Returns the numbers of every stage for the stats report of the server (with a leading space).
+     * @return the numbers of the pipeline
+     */
+    String report() {
+        int queued = 0;
+        for (Worker worker : workers) queued += worker.ring.size() + worker.overflow.size();
+        return decode.report("decode") + route.report("route") + " routeQueued=" + queued + " routeFullWaits=" + fullWaits.sum()
+                + " routePauses=" + pauses.sum() + write.report("write");
+    }
+}
@@ -0,0 +1,119 @@
+package com.tinocs.mp.server;
+
+/**
+ * The command words handled by the server itself. Any other command is broadcast to the other clients, and so are
+ * the words of the optional features a server was started without (COMPRESS, UDP, RESUME_ENABLE, RESUME and PONG),
+ * so they only take a word away from the games on servers that use them. The others, such as LOBBY_SUBSCRIBE,
+ * INTEREST and PROTOCOL, are never relayed (README.txt lists the new ones as a breaking change).
+ * {@link #lookup(String, int, int)} and {@link #lookup(byte[], int, int)} identify the command word of a line without
+ * copying it out of the line, so {@link MultiThreadServer#processCommand(String, String)} can dispatch with a switch.
+ */
+public enum ServerCommand {
+    /** TO toId message: send message to one client */
+    TO,
+    /** DC: disconnect */
+    DC,
+    /** TO_ROOM roomId message: send message to the other clients in a room */
+    TO_ROOM,
+    /** ADD_ROOM roomName capacity: create a room */
+    ADD_ROOM,
+    /** REMOVE_ROOM roomId: remove a room */
+    REMOVE_ROOM,
+    /** JOIN_ROOM roomId: join a room */
+    JOIN_ROOM,
+    /** CLOSE_ROOM roomId: stop clients from joining a room */
+    CLOSE_ROOM,
+    /** OPEN_ROOM roomId: allow clients to join a room again */
+    OPEN_ROOM,
+    /** LEAVE_ROOM: leave the current room */
+    LEAVE_ROOM,
+    /** LOBBY_SUBSCRIBE [AUTO]: receive every lobby event (or only while not in a room) */
+    LOBBY_SUBSCRIBE,
+    /** LOBBY_UNSUBSCRIBE: only receive the lobby events about your own room */
+    LOBBY_UNSUBSCRIBE,
+    /** INTEREST x y range: only receive every MOVE for actors near (x, y) in your room (INTEREST OFF to receive them all again) */
+    INTEREST,
+    /** PROTOCOL BINARY: switch to binary frames (see {@link BinaryFraming}) */
+    PROTOCOL,
+    /** COMPRESS DEFLATE: receive everything compressed (see {@link StreamCompressor}), if the server allows it */
+    COMPRESS,
+    /** UDP: get a token for sending and receiving relayed messages in datagrams (see {@link UdpChannel}), if the server allows it */
+    UDP,
+    /** RESUME_ENABLE: keep the session of the client for a while if it loses its connection (see {@link ResumeSession}), if the server allows it */
+    RESUME_ENABLE,
+    /** RESUME oldId token count: carry on with the session of a client that lost its connection, after the first count lines it read */
+    RESUME,
+    /** PONG stamp: the answer to PING stamp rttMillis, sent by the server every heartbeat (see {@link ServerConfig#setHeartbeatMillis(int)}) */
+    PONG;
+
+    /**
+     * Returns the command whose word is the token from start (inclusive) to end (exclusive) or null if the
+     * token is not a server command.
+     * @param line the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @return the matching command or null if there is none
+     */
+    public static ServerCommand lookup(String line, int start, int end) {
+        return lookup(line, null, start, end);
+    }
+
+    /**
+     * Returns the command whose word is the token from start (inclusive) to end (exclusive) of the given UTF-8 bytes
+     * or null if the token is not a server command.
+     * @param line the bytes of the line
+     * @param start the start of the token
+     * @param end the end of the token
+     * @return the matching command or null if there is none
+     */
+    public static ServerCommand lookup(byte[] line, int start, int end) {
+        return lookup(null, line, start, end);
+    }
+
+    // exactly one of str and bytes is not null
+    private static ServerCommand lookup(String str, byte[] bytes, int start, int end) {
+        switch (end - start) {
+            case 2:
+                if (is(str, bytes, start, end, "TO")) return TO;
+                if (is(str, bytes, start, end, "DC")) return DC;
+                return null;
+            case 3:
+                return is(str, bytes, start, end, "UDP") ? UDP : null;
+            case 4:
+                return is(str, bytes, start, end, "PONG") ? PONG : null;
+            case 6:
+                return is(str, bytes, start, end, "RESUME") ? RESUME : null;
+            case 7:
+                return is(str, bytes, start, end, "TO_ROOM") ? TO_ROOM : null;
+            case 8:
+                if (is(str, bytes, start, end, "ADD_ROOM")) return ADD_ROOM;
+                if (is(str, bytes, start, end, "INTEREST")) return INTEREST;
+                if (is(str, bytes, start, end, "PROTOCOL")) return PROTOCOL;
+                if (is(str, bytes, start, end, "COMPRESS")) return COMPRESS;
+                return null;
+            case 9:
+                if (is(str, bytes, start, end, "JOIN_ROOM")) return JOIN_ROOM;
+                if (is(str, bytes, start, end, "OPEN_ROOM")) return OPEN_ROOM;
+                return null;
+            case 10:
+                if (is(str, bytes, start, end, "CLOSE_ROOM")) return CLOSE_ROOM;
+                if (is(str, bytes, start, end, "LEAVE_ROOM")) return LEAVE_ROOM;
+                return null;
+            case 11:
+                return is(str, bytes, start, end, "REMOVE_ROOM") ? REMOVE_ROOM : null;
+            case 13:
+                return is(str, bytes, start, end, "RESUME_ENABLE") ? RESUME_ENABLE : null;
+            case 15:
+                return is(str, bytes, start, end, "LOBBY_SUBSCRIBE") ? LOBBY_SUBSCRIBE : null;
+            case 17:
+                return is(str, bytes, start, end, "LOBBY_UNSUBSCRIBE") ? LOBBY_UNSUBSCRIBE : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean is(String str, byte[] bytes, int start, int end, String word) {
+        if (str != null) return CommandTokenizer.tokenEquals(str, start, end, word);
+        return CommandTokenizer.tokenEquals(bytes, start, end, word);
+    }
+}
@@ -0,0 +1,596 @@
+package com.tinocs.mp.server;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tunable settings of a {@link MultiThreadServer}. A config is read when the server is created,
+ * so changing it afterwards has no effect on a running server. {@link ServerDriver} fills one in from
+ * the command line options.
+ */
+public class ServerConfig {
+    private int maxRooms = Integer.MAX_VALUE;
+    private int reactorCount = Runtime.getRuntime().availableProcessors();
+    private int outboundQueueCapacity = 4096;
+    private int maxFlushBatch = 64;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private int lagThresholdMillis = 0;
+    private int interestCellSize = 256;
+    private int farUpdateInterval = 8;
+    private boolean compactIds = false;
+    private boolean virtualThreads = false;
+    private int compressionLevel = 0;
+    private int udpPort = 0;
+    private int udpLossPercent = 0;
+    private boolean actorCache = false;
+    private int resumeGraceMillis = 0;
+    private int resumeBufferSize = 1024;
+    private int heartbeatMillis = 0;
+    private int idleTimeoutMillis = 0;
+    private int rateLimit = 0;
+    private int rateBurst = 0;
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.DROP;
+    private final LinkedHashMap<String, Integer> commandRateLimits = new LinkedHashMap<>();
+    private int maxLineLength = 1 << 16;
+    private LongLinePolicy longLinePolicy = LongLinePolicy.DISCONNECT;
+    private int maxConnections = 0;
+    private int acceptRate = 0;
+    private int acceptQueue = 0;
+    private int roomWorkers = 0;
+    private int routeWorkers = 0;
+    private int routeQueue = 4096;
+
+    /**
+     * Returns the maximum number of rooms allowed on the server.
+     * @return the maximum number of rooms allowed on the server
+     */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    /**
+     * Sets the maximum number of rooms allowed on the server (defaults to Integer.MAX_VALUE).
+     * @param maxRooms the maximum number of rooms
+     */
+    public void setMaxRooms(int maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    /**
+     * Returns the number of reactor threads used by the {@link NioServer}.
+     * @return the number of reactor threads used by the {@link NioServer}
+     */
+    public int getReactorCount() {
+        return reactorCount;
+    }
+
+    /**
+     * Sets the number of reactor threads used by the {@link NioServer} (defaults to the number of processors).
+     * @param reactorCount the number of reactor threads
+     */
+    public void setReactorCount(int reactorCount) {
+        this.reactorCount = reactorCount;
+    }
+
+    /**
+     * Returns the maximum number of messages that may wait to be written to a single client.
+     * @return the maximum number of messages that may wait to be written to a single client
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages that may wait to be written to a single client (defaults to 4096).
+     * What happens to a client that falls this far behind depends on the {@link #setOverflowPolicy(OverflowPolicy) overflow policy}.
+     * @param outboundQueueCapacity the capacity of each client's outbound queue
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    /**
+     * Returns the maximum number of queued messages written to a client before the data is flushed to the socket.
+     * @return the maximum number of queued messages written to a client before the data is flushed to the socket
+     */
+    public int getMaxFlushBatch() {
+        return maxFlushBatch;
+    }
+
+    /**
+     * Sets the maximum number of queued messages that are coalesced into a single flush (defaults to 64).
+     * A value of 1 flushes after every message.
+     * @param maxFlushBatch the maximum number of messages per flush
+     */
+    public void setMaxFlushBatch(int maxFlushBatch) {
+        this.maxFlushBatch = maxFlushBatch;
+    }
+
+    /**
+     * Returns what is done with a client that cannot keep up with the messages sent to it.
+     * @return the overflow policy of each client's outbound queue
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets what is done with a client that cannot keep up with the messages sent to it (defaults to {@link OverflowPolicy#DISCONNECT}).
+     * @param overflowPolicy the overflow policy of each client's outbound queue
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns how long a client may have messages waiting without any of them being written before it is disconnected, in milliseconds.
+     * @return the lag threshold in milliseconds (0 if there is none)
+     */
+    public int getLagThresholdMillis() {
+        return lagThresholdMillis;
+    }
+
+    /**
+     * Sets how long a client may have messages waiting without any of them being written before it is disconnected,
+     * in milliseconds (defaults to 0, which means there is no limit). This catches a client that has stopped reading
+     * long before its queue fills up. The check is made whenever a message is sent to the client.
+     * @param lagThresholdMillis the lag threshold in milliseconds or 0 for no limit
+     */
+    public void setLagThresholdMillis(int lagThresholdMillis) {
+        this.lagThresholdMillis = lagThresholdMillis;
+    }
+
+    /**
+     * Returns the width and height of the cells used to match actors with the interest regions of clients.
+     * @return the size of an interest cell
+     */
+    public int getInterestCellSize() {
+        return interestCellSize;
+    }
+
+    /**
+     * Sets the width and height of the cells used to match actors with the interest regions of clients (defaults to 256).
+     * An actor is near a client when it is in one of the cells that the client's region overlaps.
+     * @param interestCellSize the size of an interest cell
+     */
+    public void setInterestCellSize(int interestCellSize) {
+        this.interestCellSize = interestCellSize;
+    }
+
+    /**
+     * Returns how many MOVE messages for an actor outside a client's interest region it takes for the client to get one.
+     * @return the far update interval
+     */
+    public int getFarUpdateInterval() {
+        return farUpdateInterval;
+    }
+
+    /**
+     * Sets how many MOVE messages for an actor outside a client's interest region it takes for the client to get one
+     * (defaults to 8). A value of 1 sends every MOVE, which turns interest filtering off.
+     * @param farUpdateInterval the far update interval
+     */
+    public void setFarUpdateInterval(int farUpdateInterval) {
+        this.farUpdateInterval = farUpdateInterval;
+    }
+
+    /**
+     * Returns true if clients and rooms are given short numeric ids instead of UUIDs.
+     * @return true if the server uses compact ids
+     */
+    public boolean isCompactIds() {
+        return compactIds;
+    }
+
+    /**
+     * Sets whether clients and rooms are given short numeric ids instead of UUIDs (defaults to false).
+     * Every relayed message starts with the id of its sender, so this makes a typical MOVE about half as long,
+     * especially since clients that see the COMPACT_IDS feature also give their actors short ids.
+     * Compact ids are easy to guess, which does not matter to the server since any client may already message any other.
+     * @param compactIds true to use compact ids
+     */
+    public void setCompactIds(boolean compactIds) {
+        this.compactIds = compactIds;
+    }
+
+    /**
+     * Returns true if the thread-per-client engine runs the reader and writer of each client on virtual threads.
+     * @return true if the server uses virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether the thread-per-client engine runs the reader and writer of each client on virtual threads instead
+     * of platform threads (defaults to false). A virtual thread only takes a few kilobytes of heap while it waits for
+     * its client, where a platform thread reserves a whole stack, so a server can keep many more clients connected
+     * without switching to the NIO engine. Virtual threads need Java 21 or later; on an older Java the server says so
+     * and uses platform threads. The NIO engine does not use a thread per client, so it ignores this.
+     * @param virtualThreads true to use virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the number of worker threads that run the commands about rooms, or 0 if each command is run by the
+     * thread that read it.
+     * @return the number of room workers or 0
+     */
+    public int getRoomWorkers() {
+        return roomWorkers;
+    }
+
+    /**
+     * Sets the number of worker threads that run the commands about rooms (defaults to 0, which turns them off).
+     * Each room then gets a mailbox: a TO_ROOM, JOIN_ROOM, LEAVE_ROOM or other command about a room is added to the
+     * room's mailbox by the thread that read it, and the room's commands are run one at a time, in order, on one of
+     * the workers (see {@link RoomMailbox}). The threads reading from clients no longer wait for a room to send a
+     * message to all its members or for each other, every member of a room sees its messages in the same order and
+     * separate rooms run on separate cores. About the number of processors is a good start.
+     * @param roomWorkers the number of room workers or 0
+     */
+    public void setRoomWorkers(int roomWorkers) {
+        this.roomWorkers = Math.max(0, roomWorkers);
+    }
+
+    /**
+     * Returns the number of routing workers, or 0 if each line is routed by the thread that read it.
+     * @return the number of routing workers or 0
+     */
+    public int getRouteWorkers() {
+        return routeWorkers;
+    }
+
+    /**
+     * Sets the number of routing workers (defaults to 0, which turns them off). The server then works as a pipeline
+     * (see {@link RoutingStage}): the threads reading from clients hand each line to a routing worker through a bounded
+     * ring buffer, the worker works out who it is for and queues it for them, and the writers of the recipients encode
+     * and flush it. Reading no longer waits for routing, and the stats report shows how long lines wait and take in
+     * each stage. This works with both engines and with {@link #setRoomWorkers(int)}.
+     * @param routeWorkers the number of routing workers or 0
+     */
+    public void setRouteWorkers(int routeWorkers) {
+        this.routeWorkers = Math.max(0, routeWorkers);
+    }
+
+    /**
+     * Returns the number of lines that can wait for each routing worker.
+     * @return the capacity of the ring buffer of each routing worker
+     */
+    public int getRouteQueue() {
+        return routeQueue;
+    }
+
+    /**
+     * Sets the number of lines that can wait for each routing worker (defaults to 4096, rounded up to a power of two).
+     * A thread reading from clients that finds the ring of a worker full waits for room, so this bounds the memory
+     * the routing stage uses and pushes back on clients that send faster than the server can route.
+     * @param routeQueue the capacity of the ring buffer of each routing worker
+     */
+    public void setRouteQueue(int routeQueue) {
+        this.routeQueue = Math.max(2, routeQueue);
+    }
+
+    /**
+     * Returns the deflate level used for clients that ask for compression, or 0 if compression is not offered.
+     * @return the deflate level or 0 if compression is off
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the deflate level (1 is the fastest and 9 the smallest) used for clients that ask for compression with
+     * COMPRESS DEFLATE, or 0 to not offer compression (the default). Everything sent to such a client is one deflate
+     * stream with a sync flush after each flush batch. That makes lobby states, large rooms and bursts of ADD commands
+     * several times smaller but costs CPU time for every client, so it is worth it on servers with big lobbies or slow
+     * links rather than for small fast games. The stats report shows the ratio and the time spent compressing.
+     * @param compressionLevel the deflate level from 1 to 9, or 0 to turn compression off
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+    }
+
+    /**
+     * Returns the port of the UDP side channel, or 0 if the server has none.
+     * @return the UDP port or 0
+     */
+    public int getUdpPort() {
+        return udpPort;
+    }
+
+    /**
+     * Sets the port of the UDP side channel, or 0 for none (the default). With a side channel, clients may send state
+     * updates such as MOVE and ROT in datagrams, which are relayed to other clients in datagrams too, so one lost packet
+     * no longer holds up every message behind it the way it does on TCP. Lost or late updates are simply skipped.
+     * Clients ask for it with Client.useUdp(), and everything else still goes over TCP. The port can be the same number
+     * as the TCP port.
+     * @param udpPort the UDP port or 0 for none
+     */
+    public void setUdpPort(int udpPort) {
+        this.udpPort = Math.max(0, udpPort);
+    }
+
+    /**
+     * Returns the percentage of datagrams the UDP side channel drops on purpose.
+     * @return the simulated packet loss in percent
+     */
+    public int getUdpLossPercent() {
+        return udpLossPercent;
+    }
+
+    /**
+     * Sets the percentage of datagrams, both received and sent, that the UDP side channel drops on purpose to simulate
+     * a lossy network (defaults to 0). This is only meant for testing games on a local machine.
+     * @param udpLossPercent the simulated packet loss from 0 to 100
+     */
+    public void setUdpLossPercent(int udpLossPercent) {
+        this.udpLossPercent = Math.max(0, Math.min(100, udpLossPercent));
+    }
+
+    /**
+     * Returns true if the server keeps the latest state of every actor to send to clients that join late.
+     * @return true if the server caches actors
+     */
+    public boolean isActorCache() {
+        return actorCache;
+    }
+
+    /**
+     * Sets whether the server keeps the latest state of every actor (defaults to false). Without it, every client
+     * already on the server answers a new client by sending it an ADD for each of its actors, so a join costs a burst
+     * of messages from every peer. With it, the server remembers the ADD and the latest MOVE, ROT, IMG and so on of each
+     * actor, per room and for the clients not in a room, and sends a joining client all of it in one frame instead.
+     * Clients see the ACTOR_CACHE feature and stop answering joins themselves. See {@link ActorCache}.
+     * @param actorCache true to cache actors
+     */
+    public void setActorCache(boolean actorCache) {
+        this.actorCache = actorCache;
+    }
+
+    /**
+     * Returns how long the server keeps the session of a client that lost its connection, or 0 if it doesn't.
+     * @return the grace period in milliseconds or 0
+     */
+    public int getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    /**
+     * Sets how long the server keeps the session of a client that lost its connection, in milliseconds (defaults to 0,
+     * which turns sessions off). A client that asked for a session with Client.enableResume() keeps its id and its room
+     * while it is away, and if it reconnects in time it is sent everything it missed instead of the other clients seeing
+     * it disconnect and join again. See {@link ResumeSession}.
+     * @param resumeGraceMillis the grace period in milliseconds or 0 for none
+     */
+    public void setResumeGraceMillis(int resumeGraceMillis) {
+        this.resumeGraceMillis = Math.max(0, resumeGraceMillis);
+    }
+
+    /**
+     * Returns the number of messages kept for each client that has a session.
+     * @return the number of messages kept
+     */
+    public int getResumeBufferSize() {
+        return resumeBufferSize;
+    }
+
+    /**
+     * Sets the number of messages already written to a client that are kept in case it reconnects, which is also the most
+     * messages kept for it while it is away (defaults to 1024). A client that missed more than that can't resume, and
+     * neither can one whose missed messages don't fit in its outbound queue (see {@link #setOutboundQueueCapacity(int)}).
+     * @param resumeBufferSize the number of messages kept
+     */
+    public void setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = Math.max(1, resumeBufferSize);
+    }
+
+    /**
+     * Returns how often every client is sent a PING, or 0 if it isn't.
+     * @return the heartbeat interval in milliseconds or 0
+     */
+    public int getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * Sets how often every client is sent a PING, in milliseconds (defaults to 0, which turns heartbeats off).
+     * Clients built with this version of the client library answer with PONG, which tells the server the round trip
+     * time of the connection and that the client is still there. A connection that sends nothing at all for the idle
+     * timeout (see {@link #setIdleTimeoutMillis(int)}) is closed, so a client whose network went away does not hold on
+     * to its room until the operating system gives up on the socket. The heartbeats of all clients share one
+     * {@link TimingWheel}, so they cost next to nothing even with thousands of clients.
+     * @param heartbeatMillis the heartbeat interval in milliseconds or 0 for none
+     */
+    public void setHeartbeatMillis(int heartbeatMillis) {
+        this.heartbeatMillis = Math.max(0, heartbeatMillis);
+    }
+
+    /**
+     * Returns how long a client may send nothing before its connection is closed, if heartbeats are on.
+     * @return the idle timeout in milliseconds
+     */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis > 0 ? idleTimeoutMillis : heartbeatMillis * 3;
+    }
+
+    /**
+     * Sets how long a client may send nothing, not even a PONG, before its connection is closed (defaults to 0, which
+     * means three heartbeats). It is rounded up to a whole number of heartbeats. A client that may resume its session
+     * (see {@link #setResumeGraceMillis(int)}) can still come back after that.
+     * @param idleTimeoutMillis the idle timeout in milliseconds or 0 for three heartbeats
+     */
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the number of messages per second each client may relay, or 0 if there is no limit.
+     * @return the rate limit of each client or 0
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the number of messages per second each client may relay to other clients, whether to everyone, to a room
+     * or to one client (defaults to 0, which means no limit). This stops one client that sends too much, such as a bot
+     * or a player holding down the fire key, from flooding a room. What happens to the messages over the limit is
+     * decided by the {@link #setRateLimitPolicy(RateLimitPolicy) rate limit policy}. Commands handled by the server
+     * itself are never limited.
+     * @param rateLimit the number of messages per second or 0 for no limit
+     */
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = Math.max(0, rateLimit);
+    }
+
+    /**
+     * Returns the number of messages a client may relay at once before its rate limit applies.
+     * @return the burst size
+     */
+    public int getRateBurst() {
+        return rateBurst > 0 ? rateBurst : Math.max(1, rateLimit);
+    }
+
+    /**
+     * Sets the number of messages a client may relay at once, as long as it stays under its rate limit on average
+     * (defaults to 0, which means one second's worth).
+     * @param rateBurst the burst size or 0 for one second's worth
+     */
+    public void setRateBurst(int rateBurst) {
+        this.rateBurst = Math.max(0, rateBurst);
+    }
+
+    /**
+     * Returns what is done with a message over a rate limit.
+     * @return the rate limit policy
+     */
+    public RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    /**
+     * Sets what is done with a message over a rate limit (defaults to {@link RateLimitPolicy#DROP}).
+     * @param rateLimitPolicy the rate limit policy
+     */
+    public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+    }
+
+    /**
+     * Returns the number of messages per second each client may relay for each limited command word.
+     * @return the limits by command word, in the order they were set
+     */
+    public Map<String, Integer> getCommandRateLimits() {
+        return Collections.unmodifiableMap(commandRateLimits);
+    }
+
+    /**
+     * Sets the number of messages per second each client may relay with the given command word, on top of the limit
+     * for all its messages (see {@link #setRateLimit(int)}). The command word is the first word of the relayed message,
+     * such as ADD or HIT, also when it is sent with TO or TO_ROOM. A client may send one second's worth at once.
+     * @param command the command word
+     * @param perSecond the number of messages per second, or 0 to remove the limit for the command
+     */
+    public void setCommandRateLimit(String command, int perSecond) {
+        if (perSecond > 0) {
+            commandRateLimits.put(command, perSecond);
+        } else {
+            commandRateLimits.remove(command);
+        }
+    }
+
+    /**
+     * Returns the most bytes a line sent by a client may have.
+     * @return the maximum line length in bytes
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Sets the most bytes a line (or the body of a binary frame) sent by a client may have, not counting the line
+     * break (defaults to 65536). Each connection buffers at most this much of a line, so it also caps the memory
+     * a client can make the server use just by sending. What happens to a longer line is decided by the
+     * {@link #setLongLinePolicy(LongLinePolicy) long line policy}. Lines sent to clients are not limited.
+     * @param maxLineLength the maximum line length in bytes, at most {@link BinaryFraming#MAX_FRAME_LENGTH}
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = Math.max(16, Math.min(maxLineLength, BinaryFraming.MAX_FRAME_LENGTH));
+    }
+
+    /**
+     * Returns what is done with a line longer than the maximum line length.
+     * @return the long line policy
+     */
+    public LongLinePolicy getLongLinePolicy() {
+        return longLinePolicy;
+    }
+
+    /**
+     * Sets what is done with a line longer than the maximum line length (defaults to {@link LongLinePolicy#DISCONNECT}).
+     * @param longLinePolicy the long line policy
+     */
+    public void setLongLinePolicy(LongLinePolicy longLinePolicy) {
+        this.longLinePolicy = longLinePolicy;
+    }
+
+    /**
+     * Returns the most connections the server keeps open at once, or 0 if there is no limit.
+     * @return the maximum number of connections or 0
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the most connections the server keeps open at once (defaults to 0, which means no limit). A client that
+     * connects while the server is full waits in the accept queue (see {@link #setAcceptQueue(int)}) or is told
+     * <b>BUSY retryMillis</b> and disconnected. A client that lost its connection counts again when it comes back to
+     * resume its session.
+     * @param maxConnections the maximum number of connections or 0 for no limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(0, maxConnections);
+    }
+
+    /**
+     * Returns the number of new connections the server takes on per second, or 0 if there is no limit.
+     * @return the accept rate or 0
+     */
+    public int getAcceptRate() {
+        return acceptRate;
+    }
+
+    /**
+     * Sets the number of new connections the server takes on per second, in bursts of up to one second's worth
+     * (defaults to 0, which means no limit). Every new client is sent the list of clients and rooms and may get a
+     * thread of its own, so this keeps a reconnect storm after a restart from overloading the server. Connections
+     * over the rate wait in the accept queue (see {@link #setAcceptQueue(int)}) or are told to come back later.
+     * @param acceptRate the number of connections per second or 0 for no limit
+     */
+    public void setAcceptRate(int acceptRate) {
+        this.acceptRate = Math.max(0, acceptRate);
+    }
+
+    /**
+     * Returns the most connections that wait to be taken on when the server is full or over its accept rate.
+     * @return the size of the accept queue
+     */
+    public int getAcceptQueue() {
+        return acceptQueue;
+    }
+
+    /**
+     * Sets the most connections that wait to be taken on when the server is full or over its accept rate (defaults
+     * to 0, which means a connection is turned away at once). A waiting connection is taken on as soon as the limits
+     * allow, or is told <b>BUSY retryMillis</b> and disconnected after {@link AdmissionControl#MAX_WAIT_MILLIS}.
+     * @param acceptQueue the size of the accept queue
+     */
+    public void setAcceptQueue(int acceptQueue) {
+        this.acceptQueue = Math.max(0, acceptQueue);
+    }
+}
@@ -1,7 +1,9 @@
 package com.tinocs.mp.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * <ul>
@@ -9,6 +11,40 @@ import java.net.ServerSocket;
  *  	<li>Clients can send messages to talk to other clients. Generally, the messages are made up tokens separated by spaces.</li>
  *  	<li>For more information, see the GameClient class</li>
  * </ul>
+ * <p>The following options may be passed along with the port:</p>
+ * <ul>
+ * 		<li><b>--nio</b>: serve clients with the java.nio engine ({@link NioServer}) instead of one thread per client</li>
+ * 		<li><b>--compact-ids</b>: give clients and rooms short numeric ids instead of UUIDs</li>
+ * 		<li><b>--reactors=N</b>: the number of reactor threads used by the nio engine (defaults to the number of processors)</li>
+ * 		<li><b>--queue=N</b>: the maximum number of messages waiting to be written to one client</li>
+ * 		<li><b>--overflow=P</b>: what to do with a client whose queue is full: disconnect (the default), drop-oldest or degrade (see {@link OverflowPolicy})</li>
+ * 		<li><b>--lag-threshold=MS</b>: disconnect a client that has had messages waiting for MS milliseconds without any of them being written</li>
+ * 		<li><b>--flush-batch=N</b>: the maximum number of queued messages written to a client per flush</li>
+ * 		<li><b>--interest-cell=N</b>: the size of the cells used to match actors with interest regions (see the INTEREST command)</li>
+ * 		<li><b>--far-interval=N</b>: a client gets one of every N MOVE messages for actors outside its interest region</li>
+ * 		<li><b>--compress=N</b>: let clients ask for compressed data, using deflate level N from 1 (fastest) to 9 (smallest)</li>
+ * 		<li><b>--udp=PORT</b>: open a UDP side channel on PORT for state updates (see {@link ServerConfig#setUdpPort(int)})</li>
+ * 		<li><b>--udp-loss=P</b>: drop P percent of the datagrams on purpose, to test how a game copes with packet loss</li>
+ * 		<li><b>--actor-cache</b>: send clients that join late the latest state of every actor from the server (see {@link ServerConfig#setActorCache(boolean)})</li>
+ * 		<li><b>--virtual-threads</b>: serve each client on virtual threads instead of platform threads, on Java 21 or later (see {@link ServerConfig#setVirtualThreads(boolean)})</li>
+ * 		<li><b>--resume=MS</b>: keep the session of a client that lost its connection for MS milliseconds so it can carry on (see {@link ServerConfig#setResumeGraceMillis(int)})</li>
+ * 		<li><b>--resume-buffer=N</b>: the number of messages kept for each client that may reconnect</li>
+ * 		<li><b>--heartbeat=MS</b>: send every client a PING every MS milliseconds (see {@link ServerConfig#setHeartbeatMillis(int)})</li>
+ * 		<li><b>--idle-timeout=MS</b>: close the connection of a client that sent nothing for MS milliseconds (defaults to three heartbeats)</li>
+ * 		<li><b>--rate-limit=N</b>: let each client relay at most N messages per second (see {@link ServerConfig#setRateLimit(int)})</li>
+ * 		<li><b>--rate-burst=N</b>: the number of messages a client may relay at once (defaults to one second's worth)</li>
+ * 		<li><b>--rate-limit-CMD=N</b>: let each client relay at most N messages per second with the command word CMD, e.g. --rate-limit-ADD=20</li>
+ * 		<li><b>--rate-policy=P</b>: what to do with a message over the limit: drop (the default), delay or notice (see {@link RateLimitPolicy})</li>
+ * 		<li><b>--max-line=N</b>: the most bytes a line sent by a client may have (see {@link ServerConfig#setMaxLineLength(int)})</li>
+ * 		<li><b>--long-lines=P</b>: what to do with a longer line: disconnect (the default) or truncate (see {@link LongLinePolicy})</li>
+ * 		<li><b>--max-connections=N</b>: keep at most N connections open (see {@link ServerConfig#setMaxConnections(int)})</li>
+ * 		<li><b>--accept-rate=N</b>: take on at most N new connections per second (see {@link ServerConfig#setAcceptRate(int)})</li>
+ * 		<li><b>--accept-queue=N</b>: let up to N connections over those limits wait rather than be told BUSY retryMillis (see {@link ServerConfig#setAcceptQueue(int)})</li>
+ * 		<li><b>--room-workers=N</b>: run the commands about each room one at a time on a pool of N worker threads (see {@link ServerConfig#setRoomWorkers(int)})</li>
+ * 		<li><b>--route-workers=N</b>: route the lines read from clients on N worker threads, connected to the reading and writing threads by ring buffers (see {@link ServerConfig#setRouteWorkers(int)})</li>
+ * 		<li><b>--route-queue=N</b>: the number of lines that can wait for each routing worker (see {@link ServerConfig#setRouteQueue(int)})</li>
+ * 		<li><b>--stats=S</b>: print a stats report every S seconds</li>
+ * </ul>
  *
  * @author Ted_McLeod
 */
@@ -16,17 +52,143 @@ public class ServerDriver {
 
     public static void main(String[] args) throws IOException, ClassNotFoundException {
         int port = 1234;
-        if (args.length > 0) {
+        boolean nio = false;
+        int statsSeconds = 0;
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
             try {
-                port = Integer.parseInt(args[0]);
+                if (arg.equals("--nio")) {
+                    nio = true;
+                } else if (arg.equals("--compact-ids")) {
+                    config.setCompactIds(true);
+                } else if (arg.equals("--actor-cache")) {
+                    config.setActorCache(true);
+                } else if (arg.equals("--virtual-threads")) {
+                    config.setVirtualThreads(true);
+                } else if (arg.startsWith("--")) {
+                    int eq = arg.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException("unknown option: " + arg);
+                    String name = arg.substring(2, eq);
+                    if (name.equals("overflow")) {
+                        config.setOverflowPolicy(parseOverflowPolicy(arg.substring(eq + 1)));
+                        continue;
+                    }
+                    if (name.equals("rate-policy")) {
+                        config.setRateLimitPolicy(parseRateLimitPolicy(arg.substring(eq + 1)));
+                        continue;
+                    }
+                    if (name.equals("long-lines")) {
+                        config.setLongLinePolicy(parseLongLinePolicy(arg.substring(eq + 1)));
+                        continue;
+                    }
+                    int value = Integer.parseInt(arg.substring(eq + 1));
+                    if (name.equals("reactors")) {
+                        config.setReactorCount(value);
+                    } else if (name.equals("queue")) {
+                        config.setOutboundQueueCapacity(value);
+                    } else if (name.equals("flush-batch")) {
+                        config.setMaxFlushBatch(value);
+                    } else if (name.equals("lag-threshold")) {
+                        config.setLagThresholdMillis(value);
+                    } else if (name.equals("interest-cell")) {
+                        config.setInterestCellSize(value);
+                    } else if (name.equals("far-interval")) {
+                        config.setFarUpdateInterval(value);
+                    } else if (name.equals("compress")) {
+                        config.setCompressionLevel(value);
+                    } else if (name.equals("udp")) {
+                        config.setUdpPort(value);
+                    } else if (name.equals("udp-loss")) {
+                        config.setUdpLossPercent(value);
+                    } else if (name.equals("resume")) {
+                        config.setResumeGraceMillis(value);
+                    } else if (name.equals("resume-buffer")) {
+                        config.setResumeBufferSize(value);
+                    } else if (name.equals("heartbeat")) {
+                        config.setHeartbeatMillis(value);
+                    } else if (name.equals("idle-timeout")) {
+                        config.setIdleTimeoutMillis(value);
+                    } else if (name.equals("rate-limit")) {
+                        config.setRateLimit(value);
+                    } else if (name.equals("rate-burst")) {
+                        config.setRateBurst(value);
+                    } else if (name.startsWith("rate-limit-") && name.length() > "rate-limit-".length()) {
+                        config.setCommandRateLimit(name.substring("rate-limit-".length()), value);
+                    } else if (name.equals("max-connections")) {
+                        config.setMaxConnections(value);
+                    } else if (name.equals("accept-rate")) {
+                        config.setAcceptRate(value);
+                    } else if (name.equals("accept-queue")) {
+                        config.setAcceptQueue(value);
+                    } else if (name.equals("room-workers")) {
+                        config.setRoomWorkers(value);
+                    } else if (name.equals("route-workers")) {
+                        config.setRouteWorkers(value);
+                    } else if (name.equals("route-queue")) {
+                        config.setRouteQueue(value);
+                    } else if (name.equals("max-line")) {
+                        config.setMaxLineLength(value);
+                    } else if (name.equals("stats")) {
+                        statsSeconds = value;
+                    } else {
+                        throw new IllegalArgumentException("unknown option: " + arg);
+                    }
+                } else {
+                    port = Integer.parseInt(arg);
+                }
             } catch (NumberFormatException err) {
-                System.err.println("port must be an integer");
+                System.err.println("port and option values must be integers: " + arg);
                 err.printStackTrace();
+            } catch (IllegalArgumentException err) {
+                System.err.println(err.getMessage());
             }
         }
-        ServerSocket ssock = new ServerSocket(port);
-        MultiThreadServer serve = new MultiThreadServer(ssock);
+        MultiThreadServer serve;
+        if (nio) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            serve = new NioServer(channel, config);
+        } else {
+            ServerSocket ssock = new ServerSocket(port);
+            serve = new MultiThreadServer(ssock, config);
+        }
         new Thread(serve).start();
+        if (statsSeconds > 0) startStatsReporter(serve, statsSeconds);
+    }
+
+    private static OverflowPolicy parseOverflowPolicy(String value) {
+        if (value.equals("disconnect")) return OverflowPolicy.DISCONNECT;
+        if (value.equals("drop-oldest")) return OverflowPolicy.DROP_OLDEST_STATE;
+        if (value.equals("degrade")) return OverflowPolicy.DEGRADE;
+        throw new IllegalArgumentException("unknown overflow policy: " + value + " (expected disconnect, drop-oldest or degrade)");
+    }
+
+    private static RateLimitPolicy parseRateLimitPolicy(String value) {
+        if (value.equals("drop")) return RateLimitPolicy.DROP;
+        if (value.equals("delay")) return RateLimitPolicy.DELAY;
+        if (value.equals("notice")) return RateLimitPolicy.NOTICE;
+        throw new IllegalArgumentException("unknown rate limit policy: " + value + " (expected drop, delay or notice)");
+    }
+
+    private static LongLinePolicy parseLongLinePolicy(String value) {
+        if (value.equals("disconnect")) return LongLinePolicy.DISCONNECT;
+        if (value.equals("truncate")) return LongLinePolicy.TRUNCATE;
+        throw new IllegalArgumentException("unknown long line policy: " + value + " (expected disconnect or truncate)");
+    }
+
+    private static void startStatsReporter(MultiThreadServer server, int seconds) {
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("Stats: " + server.getStatsReport());
+            }
+        }, "stats-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
     }
 
 }
@@ -0,0 +1,125 @@
+package com.tinocs.mp.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ClientConnection} backed by a blocking {@link Socket}. This is the connection type used by
+ * the thread-per-client engine in {@link MultiThreadServer#run()}. Messages are queued and written by a
+ * writer thread dedicated to this connection, which writes everything that is waiting (up to the
+ * configured flush batch) before flushing the socket.
+ */
+public class SocketConnection extends ClientConnection implements Runnable {
+    private final Socket sock;
+    private final int maxFlushBatch;
+    private volatile boolean closed;
+    private Thread writer;
+
+    /**
+     * Create a connection for the client with the given id that communicates over the given socket.
+     * {@link #start()} must be called before any queued message is written.
+     * @param id the id of the client
+     * @param sock the client socket
+     * @param config the server settings (queue capacity, overflow policy and flush batch size)
+     */
+    public SocketConnection(String id, Socket sock, ServerConfig config) {
+        super(id, config);
+        this.sock = sock;
+        this.maxFlushBatch = Math.max(1, config.getMaxFlushBatch());
+    }
+
+    /**
+     * Returns the socket of this connection.
+     * @return the socket of this connection
+     */
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Start the writer thread that drains the outbound queue.
+     */
+    public void start() {
+        start(Thread::new);
+    }
+
+    /**
+     * Start the writer that drains the outbound queue on a thread made by the given factory, such as a factory of
+     * virtual threads (see {@link ServerConfig#setVirtualThreads(boolean)}).
+     * @param threads the factory of the writer thread
+     */
+    public void start(ThreadFactory threads) {
+        writer = threads.newThread(this);
+        writer.setName("writer-" + getId());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    protected void messageQueued() {
+        // the writer thread is already waiting on the queue
+    }
+
+    /**
+     * The writer loop. Waits for a message, writes it along with any other messages that are already
+     * waiting (up to the flush batch size) and then flushes them to the socket together. Once the client
+     * has asked for compression, the batch is compressed and ends with a sync flush.
+     */
+    @Override
+    public void run() {
+        try {
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            while (!closed) {
+                OutboundMessage msg = takeOutbound();
+                long start = System.nanoTime();
+                int count = 0;
+                while (msg != null) {
+                    StreamCompressor compressor = compressor();
+                    if (compressor != null) {
+                        compressor.write(msg);
+                    } else {
+                        msg.writeTo(out);
+                    }
+                    count++;
+                    msg = count < maxFlushBatch ? pollOutbound() : null;
+                }
+                StreamCompressor compressor = compressor();
+                if (compressor != null) {
+                    byte[] batch = compressor.flush();
+                    if (batch != null) out.write(batch);
+                }
+                out.flush();
+                recordFlush(count, start);
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            // the connection was closed
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (writer != null) writer.interrupt();
+        try {
+            sock.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(sock.getInetAddress());
+    }
+}
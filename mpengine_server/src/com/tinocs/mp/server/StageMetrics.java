@@ -0,0 +1,55 @@
+package com.tinocs.mp.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How long the work passing through one stage of the server's pipeline (see {@link RoutingStage}) waited to be
+ * picked up and how long it took once it was. Many threads record into the same stage at once, so the totals are
+ * {@link LongAdder}s, which don't make them fight over one cache line.
+ */
+final class StageMetrics {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxServiceNanos = new LongAccumulator(Math::max, 0);
+    // false for a stage that starts on its work as soon as it has it, so there is no wait to report
+    private final boolean queued;
+
+    /**
+     * Create the metrics of a stage.
+     * @param queued true if work waits in a queue before the stage picks it up
+     */
+    StageMetrics(boolean queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Record one piece of work.
+     * @param waitNanos how long it waited before the stage picked it up
+     * @param serviceNanos how long the stage took to handle it
+     */
+    void record(long waitNanos, long serviceNanos) {
+        count.increment();
+        this.waitNanos.add(waitNanos);
+        this.serviceNanos.add(serviceNanos);
+        maxWaitNanos.accumulate(waitNanos);
+        maxServiceNanos.accumulate(serviceNanos);
+    }
+
+    /**
+     * Returns the numbers of this stage for the stats report of the server, in the form
+     * <b>" name=count nameWaitUs=average/max nameUs=average/max"</b> (with a leading space), leaving out the wait
+     * if the stage has no queue.
+     * @param name the name of the stage
+     * @return the numbers of this stage
+     */
+    String report(String name) {
+        long n = count.sum();
+        double perMicro = Math.max(1, n) * 1000.0;
+        return " " + name + "=" + n
+                + (queued ? " " + name + "WaitUs=" + String.format("%.1f", waitNanos.sum() / perMicro) + "/" + maxWaitNanos.get() / 1000 : "")
+                + " " + name + "Us=" + String.format("%.1f", serviceNanos.sum() / perMicro) + "/" + maxServiceNanos.get() / 1000;
+    }
+}
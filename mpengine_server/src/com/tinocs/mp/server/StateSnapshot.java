@@ -0,0 +1,190 @@
+package com.tinocs.mp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * <p>
+ * The state of the server that every new client is sent along with its id (see {@link MultiThreadServer#addClient(ClientConnection)}),
+ * kept ready to send so that accepting a client does not mean rebuilding the whole client and room list.
+ * </p>
+ * <p>
+ * The state is made of two parts that are each kept as one buffer of segments, one segment per client id and one per room.
+ * A client that connects is appended to the list of client ids, and one that disconnects has only its own id cut out of it.
+ * A room that changes is only marked, and before the state is next read the description each marked {@link Room} keeps of
+ * itself is spliced over its old segment (or the segment is cut out if the room was removed), so a client joining a room
+ * costs the same however many other rooms there are. Every change increments the version of the snapshot.
+ * </p>
+ */
+final class StateSnapshot {
+    private static final byte[] ID_SEPARATOR = " ID ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLIENT_SEPARATOR = {' '};
+    private static final byte[] ROOM_SEPARATOR = " ,".getBytes(StandardCharsets.UTF_8);
+
+    // "|" followed by the maximum number of rooms and then "|" and the features of the server if it has any, which never change
+    private final byte[] tail;
+
+    // everything below is guarded by this
+    private long version;
+    // each client id followed by a space
+    private final Segments clients = new Segments();
+    // each room description followed by " ,", the last of which is not sent
+    private final Segments rooms = new Segments();
+    // the rooms that changed since the list of rooms was last brought up to date
+    private final LinkedHashSet<Room> changedRooms = new LinkedHashSet<>();
+
+    /**
+     * Create a snapshot of a server with no clients and no rooms.
+     * @param maxRooms the maximum number of rooms on the server
+     * @param features the space separated features of the server (see {@link MultiThreadServer#getFeatures()}) or an empty String
+     */
+    StateSnapshot(int maxRooms, String features) {
+        // older clients only read the first three parts of the state, so the features can follow them
+        this.tail = ("|" + maxRooms + (features.isEmpty() ? "" : "|" + features)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of changes made to the state so far.
+     * @return the version of the state
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void clientAdded(String clientId) {
+        if (clients.contains(clientId)) return;
+        version++;
+        clients.put(clientId, clientId.getBytes(StandardCharsets.UTF_8), CLIENT_SEPARATOR);
+    }
+
+    synchronized void clientRemoved(String clientId) {
+        if (!clients.remove(clientId)) return;
+        version++;
+    }
+
+    /**
+     * Must be called after any change to the given room, including the room being added or removed and clients joining or
+     * leaving it. The room is read again the next time the state is sent, so it does not matter in which order the changes
+     * of two threads to the same room are reported.
+     * @param room the room that changed
+     */
+    synchronized void roomChanged(Room room) {
+        version++;
+        changedRooms.add(room);
+    }
+
+    /**
+     * Returns the message that tells the client with the given id its id and the state of the server.
+     * @param idBytes the UTF-8 bytes of the id of the client
+     * @return the encoded message
+     */
+    synchronized OutboundMessage handshake(byte[] idBytes) {
+        refresh();
+        int roomLength = roomLength();
+        int length = idBytes.length + ID_SEPARATOR.length + clients.length + 1 + roomLength + tail.length;
+        byte[] bytes = new byte[length + 1];
+        int pos = put(idBytes, idBytes.length, bytes, 0);
+        pos = put(ID_SEPARATOR, ID_SEPARATOR.length, bytes, pos);
+        pos = put(clients.bytes, clients.length, bytes, pos);
+        bytes[pos++] = '|';
+        pos = put(rooms.bytes, roomLength, bytes, pos);
+        pos = put(tail, tail.length, bytes, pos);
+        bytes[pos] = '\n';
+        return OutboundMessage.wrap(bytes);
+    }
+
+    /**
+     * Returns the state of the server in the form it is sent to the clients.
+     * @return the state of the server
+     */
+    synchronized String getText() {
+        refresh();
+        return new String(clients.bytes, 0, clients.length, StandardCharsets.UTF_8) + "|"
+                + new String(rooms.bytes, 0, roomLength(), StandardCharsets.UTF_8) + new String(tail, StandardCharsets.UTF_8);
+    }
+
+    private void refresh() {
+        for (Room room : changedRooms) {
+            if (room.isRemoved()) {
+                rooms.remove(room);
+            } else {
+                rooms.put(room, room.getDescriptor(), ROOM_SEPARATOR);
+            }
+        }
+        changedRooms.clear();
+    }
+
+    // the rooms without the separator after the last one
+    private int roomLength() {
+        return rooms.length == 0 ? 0 : rooms.length - ROOM_SEPARATOR.length;
+    }
+
+    private static int put(byte[] src, int length, byte[] dest, int pos) {
+        System.arraycopy(src, 0, dest, pos, length);
+        return pos + length;
+    }
+
+    /**
+     * Segments of bytes kept one after another in a single buffer in the order they were first put, each found by its key.
+     * Replacing or removing a segment only moves the bytes after it, so the buffer never has to be built again from the
+     * clients or rooms it describes.
+     */
+    private static final class Segments {
+        private final HashMap<Object, Segment> byKey = new HashMap<>();
+        private final ArrayList<Segment> inOrder = new ArrayList<>();
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        boolean contains(Object key) {
+            return byKey.containsKey(key);
+        }
+
+        // set the segment of the key to the bytes of value followed by those of separator, adding it at the end if it is new
+        void put(Object key, byte[] value, byte[] separator) {
+            Segment segment = byKey.get(key);
+            if (segment == null) {
+                segment = new Segment(inOrder.size(), length);
+                byKey.put(key, segment);
+                inOrder.add(segment);
+            }
+            resize(segment, value.length + separator.length);
+            System.arraycopy(value, 0, bytes, segment.offset, value.length);
+            System.arraycopy(separator, 0, bytes, segment.offset + value.length, separator.length);
+        }
+
+        boolean remove(Object key) {
+            Segment segment = byKey.remove(key);
+            if (segment == null) return false;
+            resize(segment, 0);
+            inOrder.remove(segment.index);
+            for (int i = segment.index; i < inOrder.size(); i++) inOrder.get(i).index = i;
+            return true;
+        }
+
+        // make room for exactly size bytes in the segment, moving the bytes after it
+        private void resize(Segment segment, int size) {
+            int change = size - segment.length;
+            if (change == 0) return;
+            if (length + change > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + change));
+            int end = segment.offset + segment.length;
+            System.arraycopy(bytes, end, bytes, end + change, length - end);
+            length += change;
+            segment.length = size;
+            for (int i = segment.index + 1; i < inOrder.size(); i++) inOrder.get(i).offset += change;
+        }
+    }
+
+    private static final class Segment {
+        int index;
+        int offset;
+        int length;
+
+        Segment(int index, int offset) {
+            this.index = index;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * The deflate stream of a connection whose client asked for compression with COMPRESS DEFLATE
+ * (see {@link ServerConfig#setCompressionLevel(int)}). The writer of the connection passes every message of a flush
+ * batch to {@link #write(OutboundMessage)} and then sends the bytes returned by {@link #flush()} in place of the batch.
+ * </p>
+ * <p>
+ * The whole connection is one deflate stream, so a message is compressed against everything sent to the client
+ * before it, which is what makes the long and repetitive lines of a lobby state or a burst of ADD commands small.
+ * Each batch ends with a sync flush, so the client can read every message of the batch as soon as it arrives instead
+ * of waiting for the next one. The methods hold a lock so that {@link #end()} can be called from any thread. It is a
+ * {@link ReentrantLock} rather than a monitor because deflating a large batch takes a while, and a virtual thread (see
+ * {@link ServerConfig#setVirtualThreads(boolean)}) waiting to enter a monitor would pin its carrier thread meanwhile.
+ * </p>
+ */
+final class StreamCompressor {
+    private final Deflater deflater;
+    private final ReentrantLock lock = new ReentrantLock();
+    private byte[] out = new byte[8192];
+    private int length;
+    // true if a message was written since the last flush
+    private boolean pending;
+    private boolean ended;
+
+    // only written by the writer of the connection
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long nanos;
+
+    /**
+     * Create a compressor with the given deflate level.
+     * @param level the deflate level from 1 (fastest) to 9 (smallest)
+     */
+    StreamCompressor(int level) {
+        deflater = new Deflater(Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level)));
+    }
+
+    /**
+     * Compress the given message into the current batch.
+     * @param message the message
+     * @throws IOException if the compressor has been ended because the connection was closed
+     */
+    void write(OutboundMessage message) throws IOException {
+        lock.lock();
+        try {
+            if (ended) throw new IOException("connection closed");
+            long start = System.nanoTime();
+            byte[] bytes = message.bytes();
+            deflater.setInput(bytes);
+            deflate(Deflater.NO_FLUSH);
+            pending = true;
+            bytesIn += bytes.length;
+            nanos += System.nanoTime() - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finish the current batch with a sync flush and return its compressed bytes.
+     * @return the compressed bytes of the batch, or null if nothing was written since the last flush
+     * @throws IOException if the compressor has been ended because the connection was closed
+     */
+    byte[] flush() throws IOException {
+        lock.lock();
+        try {
+            if (ended) throw new IOException("connection closed");
+            if (!pending) return null;
+            pending = false;
+            long start = System.nanoTime();
+            deflate(Deflater.SYNC_FLUSH);
+            byte[] batch = Arrays.copyOf(out, length);
+            length = 0;
+            bytesOut += batch.length;
+            nanos += System.nanoTime() - start;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // deflate all the input, growing the output buffer whenever the deflater fills it
+    private void deflate(int flush) {
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, flush);
+            if (length < out.length && deflater.needsInput()) return;
+            if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+        }
+    }
+
+    /**
+     * Release the native memory of the deflater. The compressor can't be used after this.
+     */
+    void end() {
+        lock.lock();
+        try {
+            if (ended) return;
+            ended = true;
+            deflater.end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes passed to the compressor.
+     * @return the number of uncompressed bytes
+     */
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Returns the number of compressed bytes returned by the compressor.
+     * @return the number of compressed bytes
+     */
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Returns the time spent compressing, in nanoseconds.
+     * @return the time spent compressing
+     */
+    long getNanos() {
+        return nanos;
+    }
+}
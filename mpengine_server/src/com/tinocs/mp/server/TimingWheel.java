@@ -0,0 +1,139 @@
+package com.tinocs.mp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A hashed timing wheel: a ring of slots, one per tick, each holding the timeouts that are due in that tick of some
+ * turn of the wheel. Scheduling and cancelling a timeout take constant time, and each tick only looks at the timeouts
+ * in one slot, so the wheel can hold a timeout for every one of tens of thousands of connections (see
+ * {@link ServerConfig#setHeartbeatMillis(int)}) without the cost of a priority queue or a thread per timer.
+ * Timeouts fire up to one tick late, which is fine for heartbeats that are seconds apart.
+ * </p>
+ * <p>
+ * The wheel does not keep time itself: something must call {@link #advance()} once per tick. Tasks run on the thread
+ * that calls it, outside the lock of the wheel, so a task may schedule another timeout.
+ * </p>
+ */
+final class TimingWheel {
+    private final long tickMillis;
+    // the first timeout of each slot, or null if the slot is empty; slots.length is a power of two
+    private final Timeout[] slots;
+    private final int mask;
+    // the number of ticks so far (guarded by this)
+    private long tick;
+    private int size;
+
+    /**
+     * A task waiting in the wheel.
+     */
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // the neighbours in the slot, or both null once the timeout has fired or been cancelled
+        private Timeout prev;
+        private Timeout next;
+        private boolean waiting = true;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, if it has not already run.
+         */
+        void cancel() {
+            synchronized (TimingWheel.this) {
+                if (waiting) unlink(this);
+            }
+        }
+    }
+
+    /**
+     * Create a wheel.
+     * @param tickMillis the length of a tick in milliseconds
+     * @param ticksPerTurn the number of slots, rounded up to a power of two
+     */
+    TimingWheel(long tickMillis, int ticksPerTurn) {
+        this.tickMillis = Math.max(1, tickMillis);
+        int n = Integer.highestOneBit(Math.max(1, ticksPerTurn - 1)) << 1;
+        slots = new Timeout[n];
+        mask = n - 1;
+    }
+
+    /**
+     * Returns the length of a tick in milliseconds.
+     * @return the length of a tick
+     */
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Run the given task once the given time has passed, rounded up to a whole number of ticks.
+     * @param task the task
+     * @param delayMillis the delay in milliseconds
+     * @return the timeout, which can be cancelled
+     */
+    synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, tick + ticks);
+        int slot = (int)(timeout.deadline & mask);
+        timeout.next = slots[slot];
+        if (timeout.next != null) timeout.next.prev = timeout;
+        slots[slot] = timeout;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Move on by one tick and run every task that is due.
+     */
+    void advance() {
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            tick++;
+            // a timeout further away than one turn shares the slot with the ones due now, so it stays for a later turn
+            Timeout timeout = slots[(int)(tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= tick) {
+                    unlink(timeout);
+                    due.add(timeout.task);
+                }
+                timeout = next;
+            }
+        }
+        for (Runnable task : due) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of timeouts waiting.
+     * @return the number of timeouts
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    // the caller holds the lock of the wheel
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int)(timeout.deadline & mask)] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.waiting = false;
+        size--;
+    }
+}
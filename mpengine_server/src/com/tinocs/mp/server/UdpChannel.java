@@ -0,0 +1,308 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The optional UDP side channel of the server (see {@link ServerConfig#setUdpPort(int)}). A client that sends the UDP
+ * command is given a secret token, and registers the address it sends datagrams from by sending the token in a
+ * datagram. From then on the client may send relayed messages (plain broadcasts, TO and TO_ROOM) in datagrams, and
+ * relayed messages that arrived in a datagram are sent to every registered client in a datagram. They are routed
+ * exactly like messages that arrive over TCP, including room ticks and interest regions, and recipients that have
+ * not registered get them over TCP as usual. Server commands are only accepted over TCP.
+ * </p>
+ * <p>
+ * A datagram holds a header line followed by one or more message lines. The header of a datagram from a client is
+ * "token seq" and the header of a datagram to a client is "seq". Each side numbers the datagrams it sends, starting
+ * from 1. A state update (a MOVE or ROT, see {@link OutboundMessage#stateKey()}) that arrives after one about the same
+ * actor from a datagram with a higher number is dropped, since it is older. Every other line, and every update about
+ * an actor nothing newer has arrived for, is processed whatever order the datagrams arrive in. A datagram holding just
+ * the header "token 0" registers the client.
+ * </p>
+ * <p>
+ * Because datagrams may be lost or arrive before TCP messages sent earlier, only messages that are soon replaced,
+ * such as MOVE and ROT, should be sent over UDP. The client library sends the last update of an actor over TCP once
+ * it stops changing, so a lost update is never the final word about it.
+ * </p>
+ */
+final class UdpChannel implements Runnable {
+    /** the largest datagram sent, small enough to never be fragmented on typical links */
+    static final int MAX_DATAGRAM = 1200;
+    // the most actors a client's newest sequence numbers are kept for; past that they are forgotten and start over
+    private static final int MAX_STATE_KEYS = 4096;
+
+    private final DatagramChannel channel;
+    private final MultiThreadServer server;
+    private final int lossPercent;
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * The UDP side of one client.
+     */
+    final class Endpoint {
+        private final String token;
+        private final ClientConnection conn;
+        // the address the client sends datagrams from, or null until it has registered
+        private volatile SocketAddress address;
+        private final AtomicLong nextSeq = new AtomicLong(1);
+        // the number of the newest datagram received from the client with an update about each of its actors,
+        // by state key (only touched by the receiving thread)
+        private final HashMap<String, Long> lastSeqs = new HashMap<>();
+        // the highest number of any datagram received from the client, whose address is the one replies go to
+        // (only touched by the receiving thread)
+        private long maxSeq;
+
+        private Endpoint(String token, ClientConnection conn) {
+            this.token = token;
+            this.conn = conn;
+        }
+
+        /**
+         * Returns the secret token the client sends in the header of its datagrams.
+         * @return the token
+         */
+        String getToken() {
+            return token;
+        }
+
+        /**
+         * Send the given message in a datagram if the client has registered and the message fits.
+         * @param message the message
+         * @return true if the message was sent (or lost by the loss simulator) and false if it must go over TCP
+         */
+        boolean send(OutboundMessage message) {
+            SocketAddress to = address;
+            byte[] bytes = message.bytes();
+            // leave room for the header, which is at most 19 digits and a line break
+            if (to == null || bytes.length > MAX_DATAGRAM - 20) return false;
+            byte[] header = (nextSeq.getAndIncrement() + "\n").getBytes(StandardCharsets.US_ASCII);
+            if (simulateLoss()) return true;
+            ByteBuffer buf = ByteBuffer.allocate(header.length + bytes.length);
+            buf.put(header).put(bytes).flip();
+            try {
+                channel.send(buf, to);
+                sent.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Create the side channel of the given server on the given bound channel.
+     * @param channel a datagram channel bound to the UDP port
+     * @param server the server
+     * @param lossPercent the percentage of datagrams to drop in both directions, to simulate a lossy network
+     */
+    UdpChannel(DatagramChannel channel, MultiThreadServer server, int lossPercent) {
+        this.channel = channel;
+        this.server = server;
+        this.lossPercent = lossPercent;
+    }
+
+    /**
+     * Returns the port the channel is bound to.
+     * @return the UDP port
+     * @throws IOException if the address of the channel can't be read
+     */
+    int getPort() throws IOException {
+        return ((InetSocketAddress)channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Give the given client a token to register with. Registering again replaces the old token.
+     * @param conn the connection of the client
+     * @return the endpoint of the client
+     */
+    Endpoint register(ClientConnection conn) {
+        unregister(conn);
+        Endpoint endpoint = new Endpoint(MultiThreadServer.newToken(), conn);
+        endpoints.put(endpoint.token, endpoint);
+        conn.setUdpEndpoint(endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Forget the endpoint of the given client, if it has one.
+     * @param conn the connection of the client
+     */
+    void unregister(ClientConnection conn) {
+        Endpoint endpoint = conn.getUdpEndpoint();
+        if (endpoint != null) {
+            conn.setUdpEndpoint(null);
+            endpoints.remove(endpoint.token, endpoint);
+        }
+    }
+
+    /**
+     * Receive datagrams until the channel is closed.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress from = channel.receive(buf);
+                if (simulateLoss()) continue;
+                received.incrementAndGet();
+                receive(buf.array(), buf.position(), from);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // check the header of a datagram and process the messages in it
+    private void receive(byte[] bytes, int length, SocketAddress from) {
+        int headerEnd = 0;
+        while (headerEnd < length && bytes[headerEnd] != '\n') headerEnd++;
+        int space = CommandTokenizer.tokenEnd(bytes, 0, headerEnd);
+        if (space >= headerEnd) return;
+        Endpoint endpoint = endpoints.get(new String(bytes, 0, space, StandardCharsets.US_ASCII));
+        if (endpoint == null || endpoint.conn.isClosed()) return;
+        long seq;
+        try {
+            seq = Long.parseLong(new String(bytes, space + 1, headerEnd - space - 1, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (seq == 0) {
+            boolean first = endpoint.address == null;
+            endpoint.address = from;
+            // the client keeps registering until it hears this, since a registration can be lost too
+            if (first) endpoint.conn.send(OutboundMessage.of("UDP_READY"));
+            return;
+        }
+        if (seq < 0) return;
+        if (seq > endpoint.maxSeq) {
+            endpoint.maxSeq = seq;
+            endpoint.address = from;
+        }
+        int start = headerEnd + 1;
+        for (int i = start; i <= length; i++) {
+            if (i == length || bytes[i] == '\n') {
+                if (i > start && isNewest(endpoint, bytes, start, i, seq)) {
+                    server.processDatagramLine(bytes, start, i - start, endpoint.conn);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    // false if the line is a state update and an update about the same actor arrived in a newer datagram
+    private boolean isNewest(Endpoint endpoint, byte[] line, int start, int end, long seq) {
+        String key = stateKey(line, start, end);
+        if (key == null) return true;
+        Long last = endpoint.lastSeqs.get(key);
+        if (last != null && seq <= last) {
+            stale.incrementAndGet();
+            return false;
+        }
+        if (last == null && endpoint.lastSeqs.size() >= MAX_STATE_KEYS) endpoint.lastSeqs.clear();
+        endpoint.lastSeqs.put(key, seq);
+        return true;
+    }
+
+    /**
+     * Returns the key of the state update in a line from a client, after the TO or TO_ROOM and its target if it has one:
+     * "MOVE actorId" or "ROT actorId" (like {@link OutboundMessage#stateKey()}), or null if it is not a state update.
+     * @param line the buffer containing the line
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
+     * @return the key shared by the updates about the same actor, or null
+     */
+    static String stateKey(byte[] line, int start, int end) {
+        int cmdStart = CommandTokenizer.skipWhitespace(line, start, end);
+        int cmdEnd = CommandTokenizer.tokenEnd(line, cmdStart, end);
+        if (CommandTokenizer.tokenEquals(line, cmdStart, cmdEnd, "TO") || CommandTokenizer.tokenEquals(line, cmdStart, cmdEnd, "TO_ROOM")) {
+            int targetEnd = CommandTokenizer.tokenEnd(line, CommandTokenizer.skipWhitespace(line, cmdEnd, end), end);
+            cmdStart = CommandTokenizer.skipWhitespace(line, targetEnd, end);
+            cmdEnd = CommandTokenizer.tokenEnd(line, cmdStart, end);
+        }
+        if (!CommandTokenizer.tokenEquals(line, cmdStart, cmdEnd, "MOVE")
+                && !CommandTokenizer.tokenEquals(line, cmdStart, cmdEnd, "ROT")) return null;
+        int actorStart = CommandTokenizer.skipWhitespace(line, cmdEnd, end);
+        int actorEnd = CommandTokenizer.tokenEnd(line, actorStart, end);
+        if (actorStart == actorEnd) return null;
+        return new String(line, cmdStart, actorEnd - cmdStart, StandardCharsets.UTF_8);
+    }
+
+    private boolean simulateLoss() {
+        if (lossPercent <= 0 || ThreadLocalRandom.current().nextInt(100) >= lossPercent) return false;
+        lost.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of clients that have registered an address.
+     * @return the number of registered clients
+     */
+    int getRegisteredCount() {
+        int count = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.address != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of datagrams received.
+     * @return the number of datagrams received
+     */
+    long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     * @return the number of datagrams sent
+     */
+    long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the number of state updates dropped because they arrived after a newer one about the same actor.
+     * @return the number of out of order state updates
+     */
+    long getStaleCount() {
+        return stale.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped by the loss simulator.
+     * @return the number of simulated losses
+     */
+    long getLostCount() {
+        return lost.get();
+    }
+
+    /**
+     * Close the channel, which stops the receiving thread.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
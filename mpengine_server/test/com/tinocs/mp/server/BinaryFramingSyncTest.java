@@ -0,0 +1,107 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Checks that the copy of {@link BinaryFraming} in the client library matches the one in the server. Both ends turn
+ * a command word into the byte of its index in WORDS and back, so the two lists must be the same, word for word and in
+ * the same order. The rest of the two classes must be the same code too, apart from the package and the comments.
+ * </p>
+ * <p>
+ * The client library is not compiled with the server (it needs JavaFX), so its source is read instead, from the
+ * mpengine_client folder next to mpengine_server, or from the client folder given as the argument. The mpengine_server
+ * folder is found by walking up from where this class was loaded (test_bin inside it, as in README.txt), and then
+ * from the working directory, so the test passes wherever it is run from.
+ * </p>
+ */
+public class BinaryFramingSyncTest {
+    private static final String SERVER_SOURCE = "src/com/tinocs/mp/server/BinaryFraming.java";
+    private static final String CLIENT_SOURCE = "src/com/tinocs/mp/client/BinaryFraming.java";
+
+    public static void main(String[] args) throws IOException {
+        PrintStream out = TestServer.quiet();
+        Path serverFolder = serverFolder();
+        String server = read(serverFolder.resolve(SERVER_SOURCE));
+        Path clientFolder = args.length > 0 ? Paths.get(args[0]) : serverFolder.resolveSibling("mpengine_client");
+        String client = read(clientFolder.resolve(CLIENT_SOURCE));
+
+        List<String> serverWords = words(server);
+        // reading the list from the source must give the list the server actually uses
+        TestServer.check(serverWords.equals(Arrays.asList(BinaryFraming.WORDS)), "could not read WORDS from " + SERVER_SOURCE);
+        List<String> clientWords = words(client);
+        for (int i = 0; i < Math.max(serverWords.size(), clientWords.size()); i++) {
+            String serverWord = i < serverWords.size() ? serverWords.get(i) : null;
+            String clientWord = i < clientWords.size() ? clientWords.get(i) : null;
+            TestServer.check(serverWord != null && serverWord.equals(clientWord),
+                    "word " + i + " is " + serverWord + " in the server but " + clientWord + " in the client library");
+        }
+
+        String serverCode = code(server);
+        String clientCode = code(client);
+        if (!serverCode.equals(clientCode)) {
+            int at = 0;
+            while (at < serverCode.length() && at < clientCode.length() && serverCode.charAt(at) == clientCode.charAt(at)) at++;
+            throw new AssertionError("the two copies of BinaryFraming differ from\n  server: " + excerpt(serverCode, at)
+                    + "\n  client: " + excerpt(clientCode, at));
+        }
+        out.println("PASS: both copies of BinaryFraming have the same " + serverWords.size() + " words and the same code");
+        System.exit(0);
+    }
+
+    // the mpengine_server folder, looked for above the classes of this test and then above the working directory
+    private static Path serverFolder() {
+        List<Path> starts = new ArrayList<>();
+        try {
+            starts.add(Paths.get(BinaryFramingSyncTest.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+        } catch (URISyntaxException | NullPointerException | SecurityException e) {
+            // no code source to start from; the working directory is still tried
+        }
+        starts.add(Paths.get("").toAbsolutePath());
+        for (Path start : starts) {
+            for (Path dir = start.toAbsolutePath().normalize(); dir != null; dir = dir.getParent()) {
+                if (Files.exists(dir.resolve(SERVER_SOURCE))) return dir;
+                if (Files.exists(dir.resolve("mpengine_server").resolve(SERVER_SOURCE))) return dir.resolve("mpengine_server");
+            }
+        }
+        throw new AssertionError(SERVER_SOURCE + " not found above " + starts);
+    }
+
+    private static String read(Path path) throws IOException {
+        TestServer.check(Files.exists(path), path.toAbsolutePath() + " not found");
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    // the string literals in the initializer of WORDS
+    private static List<String> words(String source) {
+        Matcher array = Pattern.compile("String\\[\\]\\s+WORDS\\s*=\\s*\\{(.*?)\\}", Pattern.DOTALL).matcher(source);
+        TestServer.check(array.find(), "WORDS not found");
+        List<String> words = new ArrayList<>();
+        Matcher literal = Pattern.compile("\"([^\"]*)\"").matcher(array.group(1));
+        while (literal.find()) words.add(literal.group(1));
+        return words;
+    }
+
+    // the source without its package declaration and comments, with every run of whitespace made a single space
+    private static String code(String source) {
+        String code = source.replaceAll("(?s)/\\*.*?\\*/", " ")
+                .replaceAll("//[^\\n]*", " ")
+                .replaceFirst("package\\s+[\\w.]+\\s*;", " ");
+        return code.replaceAll("\\s+", " ").trim();
+    }
+
+    private static String excerpt(String code, int at) {
+        return "..." + code.substring(Math.max(0, at - 40), Math.min(code.length(), at + 40)) + "...";
+    }
+}
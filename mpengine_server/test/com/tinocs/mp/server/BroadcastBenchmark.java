@@ -0,0 +1,156 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Compares the two ways the server has walked the members of a room to send them a message: the way it did it before
+ * (the ids of the members in the keySet of a {@link ConcurrentHashMap}, and each connection looked up by id in the map
+ * of every client on the server) and the way it does it now (the array of connections kept by the {@link Room}, see
+ * {@link Room#getConnections()}). Both skip the sender. {@link MultiThreadServer#roomBroadcast(OutboundMessage, String,
+ * String)} itself is timed too.
+ * </p>
+ * <p>
+ * The recipients only count what they are sent, so what is measured is the walk. The lookups cost more as the map of
+ * all clients grows and stops fitting in the cache, so each case adds clients that are on the server but in no room.
+ * Each way runs for a few warm-up rounds first so the JIT has compiled it.
+ * </p>
+ */
+public class BroadcastBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int RECIPIENTS_PER_ROUND = 20_000_000;
+    // members per room, rooms, and clients in no room
+    private static final int[][] CASES = {{8, 50, 0}, {16, 20, 5_000}, {64, 10, 5_000}, {256, 4, 20_000}};
+
+    // keeps the results alive so the JIT can't drop the work
+    private static long sink;
+
+    public static void main(String[] args) {
+        PrintStream out = TestServer.quiet();
+        for (int[] c : CASES) {
+            Setup setup = new Setup(c[0], c[1], c[2]);
+            String name = String.format("%3d members x %2d rooms, %5d in no room:", c[0], c[1], c[2]);
+            for (int round = 1; round <= ROUNDS; round++) {
+                boolean last = round == ROUNDS;
+                report(out, name, "map", round, last, setup::mapWalk);
+                report(out, name, "array", round, last, setup::arrayWalk);
+                report(out, name, "server", round, last, setup::roomBroadcast);
+            }
+        }
+        if (sink == 42) out.println();
+        System.exit(0);
+    }
+
+    // a server with its rooms, and the same rooms the way the server used to keep them
+    private static final class Setup {
+        final MultiThreadServer server = new MultiThreadServer(null, new ServerConfig());
+        final ConcurrentHashMap<String, ClientConnection> activeClients = new ConcurrentHashMap<>();
+        final List<ConcurrentHashMap<String, Boolean>> memberMaps = new ArrayList<>();
+        final List<Room> rooms = new ArrayList<>();
+        final List<String> senders = new ArrayList<>();
+        final OutboundMessage message = OutboundMessage.of("MOVE ship 412.5 318.25");
+        final int broadcasts;
+
+        Setup(int members, int roomCount, int others) {
+            for (int r = 0; r < roomCount; r++) server.addRoom("room" + r, members);
+            String[] descriptors = server.getClientInitState().split("\\|", -1)[1].split(" ,");
+            for (String descriptor : descriptors) {
+                String roomId = descriptor.trim().split(" ")[0];
+                ConcurrentHashMap<String, Boolean> memberMap = new ConcurrentHashMap<>();
+                for (int i = 0; i < members; i++) {
+                    String clientId = connect();
+                    server.joinRoom(clientId, roomId);
+                    memberMap.put(clientId, Boolean.TRUE);
+                    if (i == 0) senders.add(clientId);
+                }
+                TestServer.check(server.getRoom(roomId).size() == members, "not every member joined " + roomId);
+                rooms.add(server.getRoom(roomId));
+                memberMaps.add(memberMap);
+            }
+            for (int i = 0; i < others; i++) connect();
+            broadcasts = RECIPIENTS_PER_ROUND / (roomCount * (members - 1));
+        }
+
+        private String connect() {
+            CountingConnection conn = new CountingConnection(MultiThreadServer.generateUUID());
+            server.addClient(conn);
+            activeClients.put(conn.getId(), conn);
+            return conn.getId();
+        }
+
+        // what the server did before: the ids of the members, and a lookup for each of them
+        void mapWalk() {
+            for (int b = 0; b < broadcasts; b++) {
+                for (int r = 0; r < memberMaps.size(); r++) {
+                    String fromId = senders.get(r);
+                    for (String toId : memberMaps.get(r).keySet()) {
+                        if (!fromId.equals(toId)) {
+                            ClientConnection conn = activeClients.get(toId);
+                            if (conn != null) conn.send(message);
+                        }
+                    }
+                }
+            }
+        }
+
+        // what the server does now: the connections the room keeps
+        void arrayWalk() {
+            for (int b = 0; b < broadcasts; b++) {
+                for (int r = 0; r < rooms.size(); r++) {
+                    String fromId = senders.get(r);
+                    for (ClientConnection conn : rooms.get(r).getConnections()) {
+                        if (conn != null && !fromId.equals(conn.getId())) conn.send(message);
+                    }
+                }
+            }
+        }
+
+        void roomBroadcast() {
+            for (int b = 0; b < broadcasts; b++) {
+                for (int r = 0; r < rooms.size(); r++) server.roomBroadcast(message, rooms.get(r).getId(), senders.get(r));
+            }
+        }
+    }
+
+    // a client that only counts the messages it is sent
+    private static final class CountingConnection extends ClientConnection {
+        CountingConnection(String id) {
+            super(id, new ServerConfig());
+        }
+
+        @Override
+        public void send(OutboundMessage message) {
+            sink++;
+        }
+
+        @Override
+        protected void messageQueued() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "nowhere";
+        }
+    }
+
+    private static void report(PrintStream out, String name, String way, int round, boolean print, Runnable work) {
+        long before = sink;
+        long start = System.nanoTime();
+        work.run();
+        long nanos = System.nanoTime() - start;
+        String result = String.format("%s %-6s round %d: %5.1f ns/recipient", name, way, round, (double)nanos / (sink - before));
+        out.println(print ? result : result + " (warm-up)");
+    }
+}
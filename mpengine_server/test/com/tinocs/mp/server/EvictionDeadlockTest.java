@@ -0,0 +1,132 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>
+ * Checks that disconnecting a client that is too far behind never makes two rooms wait for each other. Each round has
+ * two rooms, each with a member that never reads and has a full outbound queue, and both members receive every lobby
+ * event. Two threads then let a client join each room at the same moment. Each join tells the lobby while holding the
+ * lock of its room, which overflows the member of the other room and disconnects it. If removing that member (which
+ * takes the lock of its room) ran on the thread that overflowed it, each thread would hold the lock the other is
+ * waiting for.
+ * </p>
+ * <p>
+ * The server is an {@link NioServer}, whose connections used to be removed by whichever thread closed them.
+ * </p>
+ */
+public class EvictionDeadlockTest {
+    private static final int ROUNDS = 20;
+    private static final int QUEUE_CAPACITY = 8;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        ServerConfig config = new ServerConfig();
+        config.setOutboundQueueCapacity(QUEUE_CAPACITY);
+        config.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+        TestServer test = TestServer.start(config, true);
+        MultiThreadServer server = test.server;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            String roomA = addRoom(server, "a" + round);
+            String roomB = addRoom(server, "b" + round);
+            LineClient stalledA = stalledMember(test, roomA);
+            LineClient stalledB = stalledMember(test, roomB);
+            fill(server.getConnection(stalledA.getId()));
+            fill(server.getConnection(stalledB.getId()));
+
+            NullConnection joinerA = new NullConnection("joinerA" + round);
+            NullConnection joinerB = new NullConnection("joinerB" + round);
+            server.addClient(joinerA);
+            server.addClient(joinerB);
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            threads.add(joinAt(go, server, joinerA.getId(), roomA));
+            threads.add(joinAt(go, server, joinerB.getId(), roomB));
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join(10_000);
+                if (thread.isAlive()) {
+                    long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+                    throw new AssertionError("round " + round + ": a join never finished"
+                            + (deadlocked == null ? "" : ", " + deadlocked.length + " threads are deadlocked"));
+                }
+            }
+
+            // the stalled members are removed on the thread of their reactor, not the one that overflowed them
+            for (LineClient stalled : List.of(stalledA, stalledB)) {
+                long end = System.currentTimeMillis() + 5000;
+                while ((server.getConnection(stalled.getId()) != null || server.getRoomOf(stalled.getId()) != null)
+                        && System.currentTimeMillis() < end) {
+                    Thread.sleep(5);
+                }
+                ClientConnection conn = server.getConnection(stalled.getId());
+                TestServer.check(conn == null, "round " + round + ": " + stalled.getId() + " was not removed (closed "
+                        + (conn == null || conn.isClosed()) + ", queue " + (conn == null ? 0 : conn.getQueueDepth()) + ")");
+                TestServer.check(server.getRoomOf(stalled.getId()) == null, "round " + round + ": " + stalled.getId() + " is still in a room");
+                stalled.close();
+            }
+            TestServer.check(server.getRoom(roomA).size() == 1 && server.getRoom(roomB).size() == 1,
+                    "round " + round + ": the rooms do not hold just the clients that joined");
+            server.removeClient(joinerA.getId());
+            server.removeClient(joinerB.getId());
+            server.removeRoom(roomA);
+            server.removeRoom(roomB);
+        }
+        out.println("PASS: " + ROUNDS + " rounds of two rooms disconnecting each other's members without a deadlock");
+        System.exit(0);
+    }
+
+    // a client in the given room that hears every lobby event and never reads any of them
+    private static LineClient stalledMember(TestServer test, String roomId) throws Exception {
+        LineClient client = test.connect();
+        test.server.setLobbySubscription(client.getId(), LobbySubscription.ALL);
+        test.server.joinRoom(client.getId(), roomId);
+        return client;
+    }
+
+    // fill the socket buffers of the connection, then its outbound queue, so the next message overflows it
+    private static void fill(ClientConnection conn) throws InterruptedException {
+        OutboundMessage large = OutboundMessage.of("X".repeat(1 << 20));
+        // the buffers of a loopback socket grow while they are being filled, so wait until the queue stops draining
+        while (true) {
+            conn.send(large);
+            Thread.sleep(20);
+            if (conn.getQueueDepth() > 0) {
+                Thread.sleep(200);
+                if (conn.getQueueDepth() > 0) break;
+            }
+        }
+        OutboundMessage small = OutboundMessage.of("FILL");
+        while (conn.getQueueDepth() < QUEUE_CAPACITY) conn.send(small);
+        TestServer.check(conn.getEvictionReason() == null, conn.getId() + " overflowed while filling its queue");
+    }
+
+    private static Thread joinAt(CountDownLatch go, MultiThreadServer server, String clientId, String roomId) {
+        Thread thread = new Thread(() -> {
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            server.joinRoom(clientId, roomId);
+        }, "join-" + clientId);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // add a room and find its id in the state of the server by its name, which is unique here
+    private static String addRoom(MultiThreadServer server, String name) {
+        TestServer.check(server.addRoom(name, 4), "could not add room " + name);
+        for (String descriptor : server.getClientInitState().split("\\|", -1)[1].split(" ,")) {
+            String[] parts = descriptor.trim().split(" ");
+            if (parts.length > 1 && parts[1].equals(name)) return parts[0];
+        }
+        throw new AssertionError("room " + name + " is not in the state of the server");
+    }
+}
@@ -0,0 +1,114 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ * Checks the heartbeats (see {@link ServerConfig#setHeartbeatMillis(int)}) on both engines, with a heartbeat of
+ * {@value #HEARTBEAT_MILLIS} ms and an idle timeout of {@value #IDLE_TIMEOUT_MILLIS} ms. Three clients join a room:
+ * </p>
+ * <ul>
+ * 		<li>the owner, which sends nothing at all, not even a PONG. Its connection must be closed once the idle timeout
+ * 		has passed, but not before, and it must leave the room, which passes to the next member, and be counted in the
+ * 		idleTimeouts of the stats report.</li>
+ * 		<li>a client that answers every PING with PONG. It must stay connected, its round trip time must be measured,
+ * 		and the PINGs it is sent must tell it that time.</li>
+ * 		<li>a client that ignores the PINGs but keeps sending messages, which show it is alive just as well.</li>
+ * </ul>
+ */
+public class HeartbeatTest {
+    private static final int HEARTBEAT_MILLIS = 100;
+    private static final int IDLE_TIMEOUT_MILLIS = 400;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        for (boolean nio : new boolean[] {false, true}) {
+            int rtt = run(nio);
+            out.println("PASS: " + (nio ? "nio" : "thread per client") + ": a silent owner was closed after the idle timeout"
+                    + " and its room handed off, and clients that answer or talk stayed (rtt " + rtt + " ms)");
+        }
+        System.exit(0);
+    }
+
+    private static int run(boolean nio) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setHeartbeatMillis(HEARTBEAT_MILLIS);
+        config.setIdleTimeoutMillis(IDLE_TIMEOUT_MILLIS);
+        TestServer test = TestServer.start(config, nio);
+        LineClient silent = test.connect();
+        LineClient answering = test.connect();
+        LineClient talking = test.connect();
+        String silentId = silent.getId();
+        String answeringId = answering.getId();
+
+        // the clients get a first PING at the latest one heartbeat after connecting
+        answering.send("ADD_ROOM game 4");
+        String added = answering.readUntil(line -> line.startsWith("ROOM_ADDED "), 10_000);
+        TestServer.check(added != null, "the room was not added");
+        String roomId = added.split(" ")[1];
+        long joined = System.currentTimeMillis();
+        // the silent client joins first so it owns the room; its JOIN_ROOM is the last line it ever sends
+        silent.send("JOIN_ROOM " + roomId);
+        awaitTrue(() -> test.server.getRoomOf(silentId) != null, "the silent client did not join");
+        answering.send("JOIN_ROOM " + roomId);
+        talking.send("JOIN_ROOM " + roomId);
+        awaitTrue(() -> test.server.getRoom(roomId).size() == 3, "the others did not join");
+        TestServer.check(silentId.equals(test.server.getRoom(roomId).getOwnerId()), "the silent client does not own the room");
+
+        ClientConnection silentConn = test.server.getConnection(silentId);
+        List<String> lines = new ArrayList<>();
+        long closedAfter = -1;
+        int pings = 0;
+        int reportedRtt = -1;
+        long end = joined + IDLE_TIMEOUT_MILLIS * 3;
+        while (System.currentTimeMillis() < end) {
+            if (closedAfter < 0 && silentConn.isClosed()) closedAfter = System.currentTimeMillis() - joined;
+            talking.send("CHAT still here");
+            talking.drain(1);
+            String line = answering.readLine(HEARTBEAT_MILLIS / 4);
+            if (line == null) continue;
+            if (line.startsWith("PING ")) {
+                String[] parts = line.split(" ");
+                answering.send("PONG " + parts[1]);
+                pings++;
+                reportedRtt = Integer.parseInt(parts[2]);
+            } else {
+                lines.add(line);
+            }
+        }
+
+        TestServer.check(closedAfter >= IDLE_TIMEOUT_MILLIS - HEARTBEAT_MILLIS,
+                "the silent client was closed " + closedAfter + " ms after it last sent something");
+        TestServer.check(closedAfter >= 0 && closedAfter <= IDLE_TIMEOUT_MILLIS + 5 * HEARTBEAT_MILLIS,
+                "the silent client was not closed in time (" + closedAfter + " ms)");
+        TestServer.check(silent.awaitClosed(10_000), "the socket of the silent client was not closed");
+        awaitTrue(() -> test.server.getConnection(silentId) == null, "the silent client was not removed");
+        TestServer.check(test.server.getRoomOf(silentId) == null, "the silent client is still in its room");
+        Room room = test.server.getRoom(roomId);
+        TestServer.check(room.size() == 2 && room.getOwnerId() != null && !room.getOwnerId().equals(silentId),
+                "the room was not handed off: " + room.size() + " members, owned by " + room.getOwnerId());
+        TestServer.check(lines.contains(silentId + " DC"), "the others were not told the silent client left: " + lines);
+        TestServer.check(lines.contains("ROOM_OWNER " + roomId + " " + room.getOwnerId()), "no ROOM_OWNER was sent: " + lines);
+
+        TestServer.check(test.server.getConnection(answeringId) != null, "the client answering PINGs was closed");
+        TestServer.check(test.server.getConnection(talking.getId()) != null, "the client sending messages was closed");
+        TestServer.check(pings >= IDLE_TIMEOUT_MILLIS * 2 / HEARTBEAT_MILLIS, "only " + pings + " PINGs arrived");
+        int rtt = test.server.getConnection(answeringId).getRttMillis();
+        TestServer.check(rtt >= 0 && rtt < HEARTBEAT_MILLIS * 10, "the round trip time is " + rtt);
+        TestServer.check(reportedRtt >= 0, "the PINGs did not tell the client its round trip time");
+        String report = test.server.getStatsReport();
+        TestServer.check(report.contains(" idleTimeouts=1"), "not counted as an idle timeout: " + report);
+        answering.close();
+        talking.close();
+        return rtt;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) Thread.sleep(5);
+        TestServer.check(condition.getAsBoolean(), message);
+    }
+}
@@ -0,0 +1,113 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * A soak test that holds many idle clients on one server for a while, showing how many connections a single JVM
+ * can keep and what they cost. The clients are plain sockets, which need no thread of their own, so they can all
+ * live in the JVM of the test. Every 10 seconds one client sends a message to another, to check the server still
+ * answers, and at the end every client must still be connected.
+ * </p>
+ * <p>
+ * By default the server runs in the same JVM, with compact ids so the handshake of the last clients (which lists
+ * every client already there) stays small, and the heap and thread count of the JVM are reported once every client
+ * is in. That needs two file descriptors per client, so raise the limit first (ulimit -n). With --connect=host:port
+ * the clients connect to a server started on its own (e.g. java -jar mpengine_server_v1.jar 5387 --nio --stats=10),
+ * which then needs only one file descriptor per client.
+ * </p>
+ * <p>Options:</p>
+ * <ul>
+ * 		<li><b>--clients=N</b>: the number of idle clients (default 10000)</li>
+ * 		<li><b>--seconds=S</b>: how long to hold them (default 60)</li>
+ * 		<li><b>--nio</b>: serve them with the java.nio engine</li>
+ * 		<li><b>--virtual-threads</b>: serve them on virtual threads (Java 21 or later)</li>
+ * 		<li><b>--connect=host:port</b>: connect to a server started on its own instead</li>
+ * </ul>
+ */
+public class IdleSoak {
+    private static final int CHECK_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = 10_000;
+        int seconds = 60;
+        boolean nio = false;
+        String host = "127.0.0.1";
+        int port = 0;
+        ServerConfig config = new ServerConfig();
+        config.setCompactIds(true);
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            } else if (arg.equals("--virtual-threads")) {
+                config.setVirtualThreads(true);
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--connect=")) {
+                String address = arg.substring("--connect=".length());
+                int colon = address.lastIndexOf(':');
+                host = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        PrintStream out = TestServer.quiet();
+        TestServer local = null;
+        if (port == 0) {
+            local = TestServer.start(config, nio);
+            port = local.port;
+            out.println("Server in this JVM on port " + port + (nio ? " (nio)" : config.isVirtualThreads() ? " (virtual threads)" : " (thread per client)"));
+        }
+
+        long start = System.nanoTime();
+        List<LineClient> idle = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            idle.add(new LineClient(host, port));
+            if ((i + 1) % 1000 == 0) out.println((i + 1) + " clients connected");
+        }
+        out.printf("%d clients connected in %.1f s%n", clients, (System.nanoTime() - start) / 1e9);
+        if (local != null) report(out, local);
+
+        Random random = new Random(1);
+        int checks = 0;
+        int failed = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(CHECK_MILLIS, Math.max(0, end - System.currentTimeMillis())));
+            LineClient from = idle.get(random.nextInt(clients));
+            LineClient to = idle.get(random.nextInt(clients));
+            String word = "SOAK" + ++checks;
+            from.send("TO " + to.getId() + " " + word);
+            if (to.readUntil(line -> line.endsWith(" " + word), 5000) == null) failed++;
+            out.println("check " + checks + (failed == 0 ? " ok" : ", " + failed + " failed so far"));
+        }
+
+        if (local != null) {
+            int gone = 0;
+            for (LineClient client : idle) {
+                if (local.server.getConnection(client.getId()) == null) gone++;
+            }
+            report(out, local);
+            TestServer.check(gone == 0, gone + " of " + clients + " clients were dropped");
+        }
+        TestServer.check(failed == 0, failed + " of " + checks + " messages between idle clients did not arrive");
+        out.println("PASS: " + clients + " idle clients held for " + seconds + " s");
+        for (LineClient client : idle) client.close();
+        System.exit(0);
+    }
+
+    private static void report(PrintStream out, TestServer local) {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        out.println("heapUsedMB=" + heapMb + " threads=" + threads + " " + local.server.getStatsReport());
+    }
+}
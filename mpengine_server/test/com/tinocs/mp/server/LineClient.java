@@ -0,0 +1,163 @@
+package com.tinocs.mp.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A client for the tests that speaks the line protocol over a plain socket, without the client library, so a test
+ * can do things a real client never would, such as never reading at all.
+ */
+final class LineClient implements Closeable {
+    private final Socket sock;
+    private final InputStream in;
+    private final OutputStream out;
+    // the bytes of a line that has not been read to its end yet
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private final String id;
+    private final String handshake;
+
+    /**
+     * Connect to the server and read the line with the id it gives this client.
+     * @param host the host of the server
+     * @param port the port of the server
+     * @throws IOException if the client could not connect or was not given an id
+     */
+    LineClient(String host, int port) throws IOException {
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        in = new BufferedInputStream(sock.getInputStream());
+        out = sock.getOutputStream();
+        handshake = readLine(10_000);
+        if (handshake == null) throw new IOException("no id from the server");
+        id = handshake.substring(0, handshake.indexOf(' '));
+    }
+
+    /**
+     * Returns the id the server gave this client.
+     * @return the id of this client
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the first line the server sent, which has the id of this client and the state of the server.
+     * @return the handshake line
+     */
+    String getHandshake() {
+        return handshake;
+    }
+
+    /**
+     * Returns the socket of this client.
+     * @return the socket
+     */
+    Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Send a line to the server.
+     * @param line the line, without the line break
+     * @throws IOException if the line could not be sent
+     */
+    void send(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the next line.
+     * @param timeoutMillis how long to wait for it
+     * @return the line without the line break, or null if none arrived in time or the server closed the connection
+     * @throws IOException if reading failed
+     */
+    String readLine(int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return null;
+            sock.setSoTimeout((int)left);
+            int b;
+            try {
+                b = in.read();
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            if (b < 0) return null;
+            if (b == '\n') {
+                String line = partial.toString(StandardCharsets.UTF_8);
+                partial.reset();
+                return line;
+            }
+            partial.write(b);
+        }
+    }
+
+    /**
+     * Read lines until one matches, dropping the ones before it.
+     * @param match what the line is waited for
+     * @param timeoutMillis how long to wait in all
+     * @return the matching line, or null if none arrived in time
+     * @throws IOException if reading failed
+     */
+    String readUntil(Predicate<String> match, int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            int left = (int)(deadline - System.currentTimeMillis());
+            String line = readLine(Math.max(1, left));
+            if (line == null) return null;
+            if (match.test(line)) return line;
+        }
+    }
+
+    /**
+     * Read every line that arrives until none has for the given time.
+     * @param quietMillis how long no line must arrive
+     * @return the lines
+     * @throws IOException if reading failed
+     */
+    List<String> drain(int quietMillis) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line = readLine(quietMillis); line != null; line = readLine(quietMillis)) lines.add(line);
+        return lines;
+    }
+
+    /**
+     * Returns true if the server closed the connection, waiting up to the given time and dropping any lines that
+     * arrive before the end.
+     * @param timeoutMillis how long to wait
+     * @return true if the connection was closed in time
+     */
+    boolean awaitClosed(int timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        byte[] skip = new byte[65536];
+        try {
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                sock.setSoTimeout((int)left);
+                if (in.read(skip) < 0) return true;
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // a reset also means the server closed it
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
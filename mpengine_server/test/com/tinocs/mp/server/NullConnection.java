@@ -0,0 +1,39 @@
+package com.tinocs.mp.server;
+
+/**
+ * A client with no socket, for tests that drive the server by calling its methods directly: everything sent to it
+ * is taken off its queue and thrown away at once, so it never falls behind.
+ */
+final class NullConnection extends ClientConnection {
+    private volatile boolean closed;
+
+    /**
+     * Create a connection for a client with the given id.
+     * @param id the id of the client
+     */
+    NullConnection(String id) {
+        super(id, new ServerConfig());
+    }
+
+    @Override
+    protected synchronized void messageQueued() {
+        int count = 0;
+        while (pollOutbound() != null) count++;
+        if (count > 0) recordFlush(count);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "nowhere";
+    }
+}
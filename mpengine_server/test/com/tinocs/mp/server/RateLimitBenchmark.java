@@ -0,0 +1,105 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Measures what the rate limits (see {@link ServerConfig#setRateLimit(int)}) add to relaying a message. The same
+ * TO_ROOM MOVE lines are run through {@link MultiThreadServer#processCommand(byte[], int, int, ClientConnection)} on a
+ * server without limits, and on servers with a limit for every message and one for MOVE under the DROP and the DELAY
+ * policy. The limits are far above the rate the lines are sent at, so every message is relayed and what is measured is
+ * the cost of {@link RateLimits#acquire(int, long)} on the relay path, not of dropping or holding messages. The sender
+ * is in a room with {@value #MEMBERS} other {@link NullConnection}s, so the relay itself is done the same way each time.
+ * </p>
+ * <p>
+ * {@link RateLimits#acquire(int, long)} is also timed on its own. Each result says what share of one core the server
+ * would spend on it at 100k messages per second.
+ * </p>
+ */
+public class RateLimitBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int MESSAGES_PER_ROUND = 1_000_000;
+    private static final int MEMBERS = 3;
+    private static final int TARGET_RATE = 100_000;
+    // far more than the benchmark sends, so nothing is ever held back or dropped
+    private static final int HIGH_LIMIT = 1_000_000_000;
+
+    // keeps the results alive so the JIT can't drop the work
+    private static long sink;
+
+    public static void main(String[] args) {
+        PrintStream out = TestServer.quiet();
+        Setup none = new Setup(null);
+        Setup drop = new Setup(RateLimitPolicy.DROP);
+        Setup delay = new Setup(RateLimitPolicy.DELAY);
+        RateLimits limits = new RateLimits(limitedConfig(RateLimitPolicy.DROP), new int[] {HIGH_LIMIT});
+        for (int round = 1; round <= ROUNDS; round++) {
+            boolean last = round == ROUNDS;
+            double base = report(out, "no limits", round, last, -1, none::relay);
+            report(out, "drop", round, last, base, drop::relay);
+            report(out, "delay", round, last, base, delay::relay);
+            report(out, "acquire", round, last, -1, () -> {
+                for (int i = 0; i < MESSAGES_PER_ROUND; i++) sink += limits.acquire(0, System.nanoTime());
+            });
+        }
+        for (Setup limited : new Setup[] {drop, delay}) {
+            String report = limited.server.getStatsReport();
+            TestServer.check(report.contains(" rateDropped=0 rateDelayed=0 "), "messages were not relayed at once: " + report);
+        }
+        if (sink == 42) out.println();
+        System.exit(0);
+    }
+
+    private static ServerConfig limitedConfig(RateLimitPolicy policy) {
+        ServerConfig config = new ServerConfig();
+        config.setRateLimit(HIGH_LIMIT);
+        config.setCommandRateLimit("MOVE", HIGH_LIMIT);
+        config.setRateLimitPolicy(policy);
+        return config;
+    }
+
+    // a server, a sender and the room it sends its MOVEs to
+    private static final class Setup {
+        final MultiThreadServer server;
+        final ClientConnection sender;
+        final byte[][] lines = new byte[16][];
+
+        Setup(RateLimitPolicy policy) {
+            server = new MultiThreadServer(null, policy == null ? new ServerConfig() : limitedConfig(policy));
+            sender = new NullConnection(MultiThreadServer.generateUUID());
+            server.addClient(sender);
+            server.addRoom("bench", MEMBERS + 1);
+            // the only room, so the first in the state of the server
+            String roomId = server.getClientInitState().split("\\|", -1)[1].trim().split(" ")[0];
+            server.joinRoom(sender.getId(), roomId);
+            for (int i = 0; i < MEMBERS; i++) {
+                NullConnection member = new NullConnection(MultiThreadServer.generateUUID());
+                server.addClient(member);
+                server.joinRoom(member.getId(), roomId);
+            }
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = ("TO_ROOM " + roomId + " MOVE " + sender.getId() + "-" + i + " " + i * 7 + " 250").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        void relay() {
+            for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+                byte[] line = lines[i & (lines.length - 1)];
+                server.processCommand(line, 0, line.length, sender);
+            }
+        }
+    }
+
+    // run the work and print the time per message; returns it so the others can be compared with it
+    private static double report(PrintStream out, String name, int round, boolean print, double base, Runnable work) {
+        long start = System.nanoTime();
+        work.run();
+        double nanos = (double)(System.nanoTime() - start) / MESSAGES_PER_ROUND;
+        String result = String.format("%-9s round %d: %7.1f ns/message, %5.2f%% of a core at %dk msg/s", name, round,
+                nanos, nanos * TARGET_RATE / 1e7, TARGET_RATE / 1000);
+        if (base > 0) result += String.format(" (%+.1f ns/message over no limits)", nanos - base);
+        out.println(print ? result : result + " (warm-up)");
+        return nanos;
+    }
+}
@@ -0,0 +1,215 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ * Checks that a client can resume its session after its connection drops (see
+ * {@link ServerConfig#setResumeGraceMillis(int)}), on both engines. The clients are {@link LineClient}s that count
+ * the lines they read after the RESUME_ENABLE reply, as the client library does.
+ * </p>
+ * <ul>
+ * 		<li>A client in a room reads more than twice {@value #BUFFER} messages, so the session has to forget the
+ * 		oldest ones, then asks for compression and loses its connection in the middle of a batch. It resumes
+ * 		with the number of lines it read and must be sent exactly the lines after that, as plain text since the
+ * 		compression was only for the lost connection. The other clients never see it leave, it is still the
+ * 		owner of its room, and what is sent to it afterwards reaches the new connection.</li>
+ * 		<li>A client that misses more than {@value #BUFFER} messages while it is away is refused, and only then do
+ * 		the other clients hear it disconnected.</li>
+ * 		<li>Once more than twice {@value #BUFFER} messages were taken, the session keeps the last {@value #BUFFER}:
+ * 		a client can resume from the oldest of them, and is refused if it resumes from any line before it.</li>
+ * </ul>
+ */
+public class ResumeTest {
+    private static final int BUFFER = 50;
+    private static final int TIMEOUT = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        for (boolean nio : new boolean[] {false, true}) {
+            String engine = nio ? "nio" : "thread per client";
+            resumeMidStream(nio);
+            out.println("PASS: " + engine + ": a dropped client is sent exactly the lines it missed and nobody sees it leave");
+            missedTooMuch(nio);
+            out.println("PASS: " + engine + ": a client that missed more than the resume buffer is refused");
+            oldCount(nio);
+            out.println("PASS: " + engine + ": a client can resume from the oldest line the session kept, but not before it");
+        }
+        System.exit(0);
+    }
+
+    private static void resumeMidStream(boolean nio) throws Exception {
+        TestServer test = TestServer.start(config(), nio);
+        LineClient dropped = test.connect();
+        LineClient peer = test.connect();
+        LineClient lobby = test.connect();
+        String oldId = dropped.getId();
+        dropped.send("ADD_ROOM game 4");
+        String added = dropped.readUntil(line -> line.startsWith("ROOM_ADDED "), TIMEOUT);
+        check(added != null, "the room was not added");
+        String roomId = added.split(" ")[1];
+        dropped.send("JOIN_ROOM " + roomId);
+        awaitTrue(() -> test.server.getRoomOf(oldId) != null, "the client did not join");
+        peer.send("JOIN_ROOM " + roomId);
+        awaitTrue(() -> test.server.getRoomOf(peer.getId()) != null, "the peer did not join");
+        check(oldId.equals(test.server.getRoom(roomId).getOwnerId()), "the first member is not the owner");
+        String token = enableResume(dropped);
+
+        // more than twice the buffer, so the oldest messages are forgotten
+        int read = 0;
+        int next = 0;
+        for (; next < 3 * BUFFER; next++) peer.send("TO_ROOM " + roomId + " SEQ " + next);
+        read += readSeqs(dropped, 0, next);
+        // the connection drops after half of a batch, with a control line queued behind it
+        int firstUnread = next + 10;
+        for (; next < 3 * BUFFER + 20; next++) peer.send("TO_ROOM " + roomId + " SEQ " + next);
+        read += readSeqs(dropped, 3 * BUFFER, firstUnread);
+        dropped.send("COMPRESS DEFLATE");
+        // sent after COMPRESS by the same client, so it has been handled once this arrives
+        dropped.send("TO " + peer.getId() + " COMPRESSING");
+        check(peer.readUntil(line -> line.equals(oldId + " COMPRESSING"), TIMEOUT) != null, "the peer got no reply");
+        // from here on, the others must not hear anything about the client
+        peer.drain(300);
+        lobby.drain(300);
+        ClientConnection lost = test.server.getConnection(oldId);
+        dropped.close();
+        awaitTrue(lost::isClosed, "the server did not notice the connection dropped");
+        // sent while it is away
+        for (; next < 3 * BUFFER + 40; next++) peer.send("TO_ROOM " + roomId + " SEQ " + next);
+        awaitHandled(peer.getId(), peer);
+
+        LineClient resumed = test.connect();
+        resumed.send("RESUME " + oldId + " " + token + " " + read);
+        String reply = resumed.readLine(TIMEOUT);
+        check(("RESUMED " + oldId).equals(reply), "RESUME was answered with " + reply);
+        List<String> replayed = resumed.drain(300);
+        List<String> expected = new ArrayList<>();
+        for (int i = firstUnread; i < next; i++) expected.add(peer.getId() + " SEQ " + i);
+        check(replayed.equals(expected), "replayed " + replayed + "\n  instead of " + expected);
+
+        // still the same client in the same room, owner included
+        check(test.server.getConnection(resumed.getId()) == null, "the new id was kept");
+        check(test.server.getConnection(oldId) != lost, "the old connection is still the client's");
+        check(test.server.getRoomOf(oldId) != null && test.server.getRoomOf(oldId).getId().equals(roomId), "the client left its room");
+        check(oldId.equals(test.server.getRoom(roomId).getOwnerId()), "the room has a new owner");
+        peer.send("TO_ROOM " + roomId + " AFTER");
+        check(resumed.readUntil(line -> line.equals(peer.getId() + " AFTER"), TIMEOUT) != null, "the new connection gets nothing");
+        awaitHandled(peer.getId(), peer);
+        for (LineClient other : new LineClient[] {peer, lobby}) {
+            for (String line : other.drain(300)) {
+                check(!line.startsWith(oldId + " DC") && !line.startsWith("LEFT_ROOM " + oldId) && !line.startsWith("ROOM_OWNER "),
+                        "another client saw the resumed client leave: " + line);
+            }
+        }
+        close(resumed, peer, lobby);
+    }
+
+    private static void missedTooMuch(boolean nio) throws Exception {
+        TestServer test = TestServer.start(config(), nio);
+        LineClient dropped = test.connect();
+        LineClient peer = test.connect();
+        String oldId = dropped.getId();
+        String token = enableResume(dropped);
+        ClientConnection lost = test.server.getConnection(oldId);
+        dropped.close();
+        awaitTrue(lost::isClosed, "the server did not notice the connection dropped");
+        for (int i = 0; i <= BUFFER; i++) peer.send("TO " + oldId + " SEQ " + i);
+        awaitHandled(peer.getId(), peer);
+        check(peer.drain(300).stream().noneMatch(line -> line.equals(oldId + " DC")), "the others were told it left before it came back");
+
+        LineClient resumed = test.connect();
+        resumed.send("RESUME " + oldId + " " + token + " 0");
+        check(resumed.readUntil(line -> line.startsWith("RESUME"), TIMEOUT).equals("RESUME_FAIL " + oldId), "resumed after missing too much");
+        check(peer.readUntil(line -> line.equals(oldId + " DC"), TIMEOUT) != null, "the others were not told it left");
+        check(test.server.getConnection(oldId) == null, "the old id is still connected");
+        check(test.server.getConnection(resumed.getId()) != null, "the client lost its new id too");
+        close(resumed, peer);
+    }
+
+    // a session that has seen 3 * BUFFER lines taken keeps the last BUFFER of them, so it can replay from 2 * BUFFER
+    private static void oldCount(boolean nio) throws Exception {
+        check(resumeAfterReading(nio, 2 * BUFFER), "could not resume from the oldest line kept");
+        check(!resumeAfterReading(nio, 2 * BUFFER - 1), "resumed from a forgotten line");
+        check(!resumeAfterReading(nio, 0), "resumed from a forgotten line");
+    }
+
+    // read 3 * BUFFER lines, drop the connection and try to resume after the given number of lines
+    private static boolean resumeAfterReading(boolean nio, int count) throws Exception {
+        TestServer test = TestServer.start(config(), nio);
+        LineClient dropped = test.connect();
+        LineClient peer = test.connect();
+        String oldId = dropped.getId();
+        String token = enableResume(dropped);
+        for (int i = 0; i < 3 * BUFFER; i++) peer.send("TO " + oldId + " SEQ " + i);
+        readSeqs(dropped, 0, 3 * BUFFER);
+        ClientConnection lost = test.server.getConnection(oldId);
+        dropped.close();
+        awaitTrue(lost::isClosed, "the server did not notice the connection dropped");
+
+        LineClient resumed = test.connect();
+        resumed.send("RESUME " + oldId + " " + token + " " + count);
+        String reply = resumed.readUntil(line -> line.startsWith("RESUME"), TIMEOUT);
+        boolean ok = ("RESUMED " + oldId).equals(reply);
+        if (ok) {
+            List<String> replayed = resumed.drain(300);
+            check(replayed.size() == 3 * BUFFER - count && replayed.get(0).endsWith(" SEQ " + count),
+                    "resumed after " + count + " lines but was sent " + replayed.size() + " starting with " + replayed.get(0));
+        } else {
+            check(("RESUME_FAIL " + oldId).equals(reply), "RESUME was answered with " + reply);
+            check(peer.readUntil(line -> line.equals(oldId + " DC"), TIMEOUT) != null, "the others were not told it left");
+        }
+        close(resumed, peer);
+        return ok;
+    }
+
+    private static ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setResumeGraceMillis(60_000);
+        config.setResumeBufferSize(BUFFER);
+        config.setCompressionLevel(1);
+        return config;
+    }
+
+    // ask for a session and return its token; lines before the reply are not counted
+    private static String enableResume(LineClient client) throws IOException {
+        client.send("RESUME_ENABLE");
+        String reply = client.readUntil(line -> line.startsWith("RESUME_ENABLE "), TIMEOUT);
+        check(reply != null, "no session");
+        return reply.split(" ")[1];
+    }
+
+    // read the lines SEQ from to SEQ to - 1 and return how many lines were read
+    private static int readSeqs(LineClient client, int from, int to) throws IOException {
+        int read = 0;
+        for (int i = from; i < to; i++) {
+            String line = client.readLine(TIMEOUT);
+            check(line != null && line.endsWith(" SEQ " + i), "expected SEQ " + i + " but read " + line);
+            read++;
+        }
+        return read;
+    }
+
+    // everything the given client sent has been handled once a message the sender sends itself comes back
+    private static void awaitHandled(String clientId, LineClient sender) throws IOException {
+        sender.send("TO " + sender.getId() + " SYNC " + clientId);
+        check(sender.readUntil(line -> line.endsWith(" SYNC " + clientId), TIMEOUT) != null, "the sender got no reply");
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) Thread.sleep(5);
+        check(condition.getAsBoolean(), message);
+    }
+
+    private static void close(LineClient... clients) throws IOException {
+        for (LineClient client : clients) client.close();
+    }
+
+    private static void check(boolean condition, String message) {
+        TestServer.check(condition, message);
+    }
+}
@@ -0,0 +1,213 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Hammers the joins, leaves and ownership transfers of {@link MultiThreadServer} from many threads at once and checks
+ * that a room is never filled past its capacity and always has exactly one owner, who is a member, while it has
+ * members. The clients are {@link NullConnection}s, so the threads call the server directly and nothing waits for
+ * a socket.
+ * </p>
+ * <p>
+ * The first part lets every client try to join the same small room at the same moment. The second part has the
+ * threads join, leave, close, open, remove and add rooms at random, while another thread keeps checking the rooms
+ * under their locks. At the end, when nothing is running, every client must be in the room the server thinks it
+ * is in, and nowhere else.
+ * </p>
+ */
+public class RoomStressTest {
+    private static final int CLIENTS = 64;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 20_000;
+    private static final int ROOMS = 6;
+    private static final int CAPACITY = 4;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        ServerConfig config = new ServerConfig();
+        config.setCompactIds(true);
+        MultiThreadServer server = new MultiThreadServer(null, config);
+        List<String> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String id = "client" + i;
+            server.addClient(new NullConnection(id));
+            clients.add(id);
+        }
+
+        joinAtOnce(server, clients);
+        randomOperations(server, clients);
+        out.println("PASS: capacity and ownership held through " + THREADS * OPERATIONS_PER_THREAD + " concurrent operations");
+        System.exit(0);
+    }
+
+    // every client tries to join the same room at the same moment; exactly CAPACITY may get in
+    private static void joinAtOnce(MultiThreadServer server, List<String> clients) throws InterruptedException {
+        String roomId = addRoom(server, "crowded");
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (String clientId : clients) {
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                server.joinRoom(clientId, roomId);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : threads) thread.join();
+        Room room = server.getRoom(roomId);
+        TestServer.check(room.size() == CAPACITY, room.size() + " clients got into a room for " + CAPACITY);
+        checkRoom(room);
+        server.removeRoom(roomId);
+        for (String clientId : clients) {
+            TestServer.check(server.getRoomOf(clientId) == null, clientId + " is still in a removed room");
+        }
+    }
+
+    private static void randomOperations(MultiThreadServer server, List<String> clients) throws Exception {
+        // each slot holds the id of a room; a room that is removed is replaced by a new one in its slot
+        AtomicReferenceArray<String> roomIds = new AtomicReferenceArray<>(ROOMS);
+        for (int i = 0; i < ROOMS; i++) roomIds.set(i, addRoom(server, "room" + i));
+        AtomicInteger roomNames = new AtomicInteger(ROOMS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        // looks at the rooms while the others change them
+        Thread checker = new Thread(() -> {
+            try {
+                while (running.get()) {
+                    for (int i = 0; i < ROOMS; i++) {
+                        String roomId = roomIds.get(i);
+                        Room room = server.getRoom(roomId);
+                        if (room == null) continue;
+                        // the size alone can be read without the lock at any time
+                        TestServer.check(room.size() <= room.getCapacity(), "room " + roomId + " has " + room.size() + " members");
+                        synchronized (room) {
+                            checkRoom(room);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "checker");
+        checker.start();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        String clientId = clients.get(random.nextInt(clients.size()));
+                        int slot = random.nextInt(ROOMS);
+                        String roomId = roomIds.get(slot);
+                        int op = random.nextInt(100);
+                        if (op < 55) {
+                            server.joinRoom(clientId, roomId);
+                        } else if (op < 85) {
+                            server.leaveRoom(clientId);
+                        } else if (op < 90) {
+                            server.closeRoom(roomId);
+                        } else if (op < 95) {
+                            server.openRoom(roomId);
+                        } else if (op < 98) {
+                            // a room whose owner is leaving is the one most likely to go wrong
+                            Room room = server.getRoom(roomId);
+                            String ownerId = room == null ? null : room.getOwnerId();
+                            if (ownerId != null) server.leaveRoom(ownerId);
+                        } else {
+                            String replacement = addRoom(server, "room" + roomNames.incrementAndGet());
+                            // another thread may have replaced the room first
+                            server.removeRoom(roomIds.compareAndSet(slot, roomId, replacement) ? roomId : replacement);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "stress-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        running.set(false);
+        checker.join();
+        if (failure.get() != null) throw new AssertionError("failed while running", failure.get());
+
+        // nothing runs now, so every client must be exactly where the server thinks it is
+        Map<String, Room> seen = new HashMap<>();
+        checkState(server, roomIds);
+        for (int i = 0; i < ROOMS; i++) {
+            String roomId = roomIds.get(i);
+            Room room = server.getRoom(roomId);
+            TestServer.check(room != null, "room " + roomId + " is missing");
+            checkRoom(room);
+            for (String member : room.getMembers()) {
+                TestServer.check(seen.put(member, room) == null, member + " is in two rooms");
+                TestServer.check(server.getRoomOf(member) == room, member + " is in " + roomId + " but the server has it elsewhere");
+            }
+        }
+        for (String clientId : clients) {
+            Room room = server.getRoomOf(clientId);
+            TestServer.check(room == null || seen.get(clientId) == room, clientId + " is not a member of the room the server has it in");
+        }
+    }
+
+    // the caller holds the lock of the room, or nothing is changing it
+    private static void checkRoom(Room room) {
+        String[] members = room.getMembers();
+        TestServer.check(members.length <= room.getCapacity(), "room " + room.getId() + " has " + members.length + " members");
+        String ownerId = room.getOwnerId();
+        if (members.length == 0) {
+            TestServer.check(ownerId == null, "empty room " + room.getId() + " is owned by " + ownerId);
+            return;
+        }
+        TestServer.check(ownerId != null, "room " + room.getId() + " has members but no owner");
+        TestServer.check(room.contains(ownerId), "the owner " + ownerId + " of room " + room.getId() + " is not a member");
+        for (int i = 0; i < members.length; i++) {
+            for (int j = i + 1; j < members.length; j++) {
+                TestServer.check(!members[i].equals(members[j]), members[i] + " is in room " + room.getId() + " twice");
+            }
+        }
+    }
+
+    // the state sent to new clients must list exactly the rooms there are now, as they are now
+    private static void checkState(MultiThreadServer server, AtomicReferenceArray<String> roomIds) {
+        List<String> listed = new ArrayList<>();
+        for (String descriptor : server.getClientInitState().split("\\|", -1)[1].split(" ,")) listed.add(descriptor.trim());
+        TestServer.check(listed.size() == ROOMS, "the state lists " + listed.size() + " rooms instead of " + ROOMS);
+        for (int i = 0; i < ROOMS; i++) {
+            String descriptor = new String(server.getRoom(roomIds.get(i)).getDescriptor(), StandardCharsets.UTF_8).trim();
+            TestServer.check(listed.contains(descriptor), "the state does not list room " + roomIds.get(i) + " as " + descriptor);
+        }
+    }
+
+    // add a room and find its id in the state of the server by its name, which is unique here
+    private static String addRoom(MultiThreadServer server, String name) {
+        TestServer.check(server.addRoom(name, CAPACITY), "could not add room " + name);
+        String state = server.getClientInitState();
+        String rooms = state.split("\\|", -1)[1];
+        for (String descriptor : rooms.split(" ,")) {
+            String[] parts = descriptor.trim().split(" ");
+            if (parts.length > 1 && parts[1].equals(name)) return parts[0];
+        }
+        throw new AssertionError("room " + name + " is not in the state of the server");
+    }
+}
@@ -0,0 +1,112 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * Compares the server running each room's commands on the threads reading from its members with the server running
+ * them on {@value #ROOMS} room workers (see {@link ServerConfig#setRoomWorkers(int)}), on both engines. There are
+ * {@value #ROOMS} rooms of {@value #MEMBERS} {@link LineClient}s, and every room is busy: each of its members sends
+ * {@value #BATCH} TO_ROOM messages at a time and then reads what the others sent, over and over. A thread drives each
+ * room, so the rooms are busy at the same time. The result is the number of messages delivered per second.
+ * </p>
+ * <p>
+ * Each server runs a few warm-up rounds first so the JIT has compiled it.
+ * </p>
+ */
+public class RoomWorkersBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int ROOMS = 4;
+    private static final int MEMBERS = 4;
+    private static final int BATCH = 50;
+    private static final int BATCHES_PER_ROUND = 40;
+    private static final int TIMEOUT = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        for (boolean nio : new boolean[] {false, true}) {
+            for (int workers : new int[] {0, ROOMS}) {
+                String name = String.format("%-18s room workers %d", nio ? "nio," : "thread per client,", workers);
+                ServerConfig config = new ServerConfig();
+                config.setRoomWorkers(workers);
+                TestServer test = TestServer.start(config, nio);
+                List<BusyRoom> rooms = new ArrayList<>();
+                for (int i = 0; i < ROOMS; i++) rooms.add(new BusyRoom(test, "busy" + i));
+                for (int round = 1; round <= ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    long delivered = run(rooms);
+                    double perSecond = delivered / ((System.nanoTime() - start) / 1e9);
+                    String result = String.format("%s round %d: %9.0f msg/s delivered", name, round, perSecond);
+                    out.println(round == ROUNDS ? result : result + " (warm-up)");
+                }
+                String report = test.server.getStatsReport();
+                TestServer.check(workers == 0 || !report.contains(" roomTasks=0 "), "the rooms did not use the workers: " + report);
+                for (BusyRoom room : rooms) {
+                    for (LineClient member : room.members) member.close();
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    // a room and the clients in it
+    private static final class BusyRoom {
+        final String roomId;
+        final List<LineClient> members = new ArrayList<>();
+
+        // connect the members of a new room and wait until they have all joined it
+        BusyRoom(TestServer test, String name) throws IOException, InterruptedException {
+            for (int i = 0; i < MEMBERS; i++) members.add(test.connect());
+            LineClient owner = members.get(0);
+            owner.send("ADD_ROOM " + name + " " + MEMBERS);
+            String added = owner.readUntil(line -> line.startsWith("ROOM_ADDED ") && line.contains(" " + name + " "), TIMEOUT);
+            TestServer.check(added != null, "the room was not added");
+            roomId = added.split(" ")[1];
+            for (LineClient member : members) member.send("JOIN_ROOM " + roomId);
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (test.server.getRoom(roomId).size() < MEMBERS && System.currentTimeMillis() < end) Thread.sleep(5);
+            TestServer.check(test.server.getRoom(roomId).size() == MEMBERS, "the members did not join " + name);
+            // the lines about the rooms and clients so far are not part of the benchmark
+            for (LineClient member : members) member.drain(100);
+        }
+    }
+
+    // one round in every room at once; returns the number of messages delivered
+    private static long run(List<BusyRoom> rooms) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (BusyRoom room : rooms) {
+            Thread thread = new Thread(() -> {
+                try {
+                    drive(room);
+                } catch (IOException | AssertionError e) {
+                    failure.compareAndSet(null, e.getMessage());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        TestServer.check(failure.get() == null, failure.get());
+        return (long)rooms.size() * BATCHES_PER_ROUND * BATCH * MEMBERS * (MEMBERS - 1);
+    }
+
+    // every member sends a batch to the room, then reads the batches of all the others
+    private static void drive(BusyRoom room) throws IOException {
+        for (int batch = 0; batch < BATCHES_PER_ROUND; batch++) {
+            for (LineClient member : room.members) {
+                for (int i = 0; i < BATCH; i++) member.send("TO_ROOM " + room.roomId + " BENCH " + i);
+            }
+            for (LineClient member : room.members) {
+                for (int i = 0; i < BATCH * (MEMBERS - 1); i++) {
+                    TestServer.check(member.readUntil(line -> line.contains(" BENCH "), TIMEOUT) != null,
+                            member.getId() + " missed a message");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.tinocs.mp.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Measures how long a client takes to connect (see {@link MultiThreadServer#addClient(ClientConnection)}, which sends it
+ * the state of the server) against the number of rooms on the server, while the other clients keep moving between
+ * rooms. Before every connect one of them leaves its room and joins another, which is the worst case for the cached
+ * state: it has changed since the last client connected. The clients are {@link NullConnection}s, so what is measured
+ * is the work of the server and not a socket.
+ * </p>
+ * <p>
+ * The message a new client is sent lists every room, so its size, and the time to copy it, grows with the number of
+ * rooms whatever the server does. Bringing the cached list of rooms up to date after a join should not.
+ * </p>
+ */
+public class SnapshotBenchmark {
+    private static final int[] ROOM_COUNTS = {10, 100, 1_000, 10_000};
+    private static final int MOVING_CLIENTS = 200;
+    private static final int CONNECTS = 20_000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        PrintStream out = TestServer.quiet();
+        for (int rooms : ROOM_COUNTS) {
+            for (int round = 1; round <= ROUNDS; round++) {
+                run(out, rooms, round == ROUNDS);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(PrintStream out, int roomCount, boolean print) {
+        MultiThreadServer server = new MultiThreadServer(null, new ServerConfig());
+        for (int i = 0; i < roomCount; i++) server.addRoom("room" + i, 4);
+        List<String> roomIds = new ArrayList<>();
+        for (String descriptor : server.getClientInitState().split("\\|", -1)[1].split(" ,")) {
+            roomIds.add(descriptor.trim().split(" ")[0]);
+        }
+        List<String> moving = new ArrayList<>();
+        for (int i = 0; i < MOVING_CLIENTS; i++) {
+            NullConnection conn = new NullConnection(MultiThreadServer.generateUUID());
+            server.addClient(conn);
+            moving.add(conn.getId());
+        }
+        int stateLength = server.getClientInitState().length();
+
+        Random random = new Random(1);
+        long connectNanos = 0;
+        for (int i = 0; i < CONNECTS; i++) {
+            String clientId = moving.get(random.nextInt(moving.size()));
+            server.leaveRoom(clientId);
+            server.joinRoom(clientId, roomIds.get(random.nextInt(roomIds.size())));
+            NullConnection conn = new NullConnection(MultiThreadServer.generateUUID());
+            long start = System.nanoTime();
+            server.addClient(conn);
+            connectNanos += System.nanoTime() - start;
+            server.removeClient(conn.getId());
+        }
+        String result = String.format("%6d rooms: %8.2f us/connect (state is %d bytes)", roomCount,
+                connectNanos / 1e3 / CONNECTS, stateLength);
+        out.println(print ? result : result + " (warm-up)");
+    }
+}
@@ -0,0 +1,189 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+
+/**
+ * <p>
+ * Checks what happens to a client that stops reading, for each {@link OverflowPolicy} and for the lag threshold
+ * (see {@link ServerConfig#setLagThresholdMillis(int)}), on both engines. The stalled client is a plain socket that
+ * never reads after its id; another client sends it messages until the socket buffers are full and its outbound queue
+ * fills up behind them. Then the test checks what the policy did and the counters that report it.
+ * </p>
+ * <ul>
+ * 		<li>DISCONNECT: the client is disconnected once its queue is full and counted as evicted.</li>
+ * 		<li>DROP_OLDEST_STATE: the client stays connected, the oldest MOVEs are dropped and counted, and other messages
+ * 		still get in.</li>
+ * 		<li>DEGRADE: the client stays connected, only the latest MOVE of each actor is kept and counted as conflated,
+ * 		and once the client reads again it receives the latest MOVE of every actor and goes back to normal.</li>
+ * 		<li>The lag threshold: a client whose queue has not moved for longer than the threshold is disconnected when
+ * 		the next message is sent to it, however empty its queue is.</li>
+ * </ul>
+ */
+public class StalledClientTest {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int LAG_THRESHOLD_MILLIS = 300;
+    private static final int ACTORS = 10;
+    private static final String PADDING = "x".repeat(1000);
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        for (boolean nio : new boolean[] {false, true}) {
+            String engine = nio ? "nio" : "thread per client";
+            disconnect(nio);
+            out.println("PASS: " + engine + ": DISCONNECT disconnects a client whose queue is full");
+            dropOldestState(nio);
+            out.println("PASS: " + engine + ": DROP_OLDEST_STATE drops the oldest MOVEs of a stalled client");
+            degrade(nio);
+            out.println("PASS: " + engine + ": DEGRADE keeps the latest MOVE of each actor and recovers");
+            lagThreshold(nio);
+            out.println("PASS: " + engine + ": the lag threshold disconnects a client that stopped making progress");
+        }
+        System.exit(0);
+    }
+
+    private static void disconnect(boolean nio) throws Exception {
+        TestServer test = TestServer.start(config(OverflowPolicy.DISCONNECT), nio);
+        LineClient stalled = test.connect();
+        LineClient sender = test.connect();
+        ClientConnection conn = test.server.getConnection(stalled.getId());
+        stall(sender, stalled, conn);
+        // lines that are not state updates can never be dropped
+        pump(sender, stalled, i -> "CHAT " + i + " " + PADDING, () -> conn.isClosed());
+        check(conn.getEvictionReason() != null && conn.getEvictionReason().startsWith("outbound queue full"),
+                "evicted for " + conn.getEvictionReason());
+        awaitRemoved(test, stalled);
+        check(stalled.awaitClosed(10_000), "the socket of the stalled client was not closed");
+        check(test.server.getStatsReport().contains(" evicted=1 "), "not counted as evicted: " + test.server.getStatsReport());
+        check(test.server.getConnection(sender.getId()) != null, "the sender was disconnected too");
+        close(sender);
+    }
+
+    private static void dropOldestState(boolean nio) throws Exception {
+        TestServer test = TestServer.start(config(OverflowPolicy.DROP_OLDEST_STATE), nio);
+        LineClient stalled = test.connect();
+        LineClient sender = test.connect();
+        ClientConnection conn = test.server.getConnection(stalled.getId());
+        stall(sender, stalled, conn);
+        // every MOVE is for a different actor, so only dropping can make room
+        pump(sender, stalled, i -> "MOVE actor" + i + " 1 2 " + PADDING, () -> conn.getDroppedStateUpdates() >= QUEUE_CAPACITY);
+        // lines that are not state updates take the place of the oldest MOVEs
+        for (int i = 0; i < QUEUE_CAPACITY / 2; i++) sender.send("TO " + stalled.getId() + " CHAT " + i);
+        awaitHandled(sender);
+        check(!conn.isClosed() && conn.getEvictionReason() == null, "evicted for " + conn.getEvictionReason());
+        check(conn.getQueueDepth() <= QUEUE_CAPACITY, "the queue holds " + conn.getQueueDepth() + " messages");
+        check(test.server.getStatsReport().contains(" evicted=0 "), "counted as evicted: " + test.server.getStatsReport());
+        close(stalled, sender);
+    }
+
+    private static void degrade(boolean nio) throws Exception {
+        TestServer test = TestServer.start(config(OverflowPolicy.DEGRADE), nio);
+        LineClient stalled = test.connect();
+        LineClient sender = test.connect();
+        ClientConnection conn = test.server.getConnection(stalled.getId());
+        stall(sender, stalled, conn);
+        // the MOVEs are for a few actors, so all but the latest one of each can be left out
+        pump(sender, stalled, i -> "MOVE actor" + i % ACTORS + " " + i + " 0 " + PADDING,
+                () -> conn.getConflatedStateUpdates() >= QUEUE_CAPACITY);
+        check(conn.isDegraded(), "not degraded");
+        check(conn.getTimesDegraded() == 1, "degraded " + conn.getTimesDegraded() + " times");
+        check(conn.getQueueDepth() <= QUEUE_CAPACITY / 2 + 1, "the queue holds " + conn.getQueueDepth() + " messages");
+        check(conn.getEvictionReason() == null, "evicted for " + conn.getEvictionReason());
+        for (int actor = 0; actor < ACTORS; actor++) sender.send("TO " + stalled.getId() + " MOVE actor" + actor + " LAST 0");
+
+        // once the client reads again, the latest MOVE of every actor reaches it and it goes back to normal
+        Set<String> last = new HashSet<>();
+        long end = System.currentTimeMillis() + 20_000;
+        while (last.size() < ACTORS && System.currentTimeMillis() < end) {
+            String line = stalled.readLine(1000);
+            if (line != null && line.endsWith(" LAST 0")) last.add(line.split(" ")[2]);
+        }
+        check(last.size() == ACTORS, "only got the latest MOVE of " + last);
+        awaitTrue(() -> !conn.isDegraded(), "still degraded after catching up");
+        check(test.server.getStatsReport().contains(" timesDegraded=1"), "not counted as degraded: " + test.server.getStatsReport());
+        close(stalled, sender);
+    }
+
+    private static void lagThreshold(boolean nio) throws Exception {
+        ServerConfig config = config(OverflowPolicy.DISCONNECT);
+        // the queue is never the reason here
+        config.setOutboundQueueCapacity(1 << 20);
+        config.setLagThresholdMillis(LAG_THRESHOLD_MILLIS);
+        TestServer test = TestServer.start(config, nio);
+        LineClient stalled = test.connect();
+        LineClient sender = test.connect();
+        ClientConnection conn = test.server.getConnection(stalled.getId());
+        stall(sender, stalled, conn);
+        Thread.sleep(LAG_THRESHOLD_MILLIS * 2);
+        check(!conn.isClosed(), "disconnected before anything else was sent to it");
+        check(conn.getLagMillis() >= LAG_THRESHOLD_MILLIS, "lagging only " + conn.getLagMillis() + " ms");
+        sender.send("TO " + stalled.getId() + " CHAT one more");
+        awaitTrue(conn::isClosed, "not disconnected after lagging " + conn.getLagMillis() + " ms");
+        check(conn.getEvictionReason().startsWith("no progress for over " + LAG_THRESHOLD_MILLIS + " ms"),
+                "evicted for " + conn.getEvictionReason());
+        awaitRemoved(test, stalled);
+        check(test.server.getStatsReport().contains(" evicted=1 "), "not counted as evicted: " + test.server.getStatsReport());
+        close(sender);
+    }
+
+    private static ServerConfig config(OverflowPolicy policy) {
+        ServerConfig config = new ServerConfig();
+        config.setOutboundQueueCapacity(QUEUE_CAPACITY);
+        config.setOverflowPolicy(policy);
+        return config;
+    }
+
+    // fill the socket buffers of the stalled client, which grow as they fill, until its queue stops draining
+    private static void stall(LineClient sender, LineClient stalled, ClientConnection conn) throws Exception {
+        long end = System.currentTimeMillis() + 30_000;
+        int i = 0;
+        while (true) {
+            check(System.currentTimeMillis() < end, "the stalled client never fell behind");
+            for (int batch = 0; batch < 10; batch++) sender.send("TO " + stalled.getId() + " FILL " + i++ + " " + PADDING);
+            awaitHandled(sender);
+            if (conn.getQueueDepth() > 0) {
+                Thread.sleep(200);
+                if (conn.getQueueDepth() > 0) return;
+            }
+        }
+    }
+
+    // send the stalled client lines in batches until the condition holds
+    private static void pump(LineClient sender, LineClient stalled, IntFunction<String> line, BooleanSupplier until) throws Exception {
+        long end = System.currentTimeMillis() + 30_000;
+        int i = 0;
+        while (!until.getAsBoolean()) {
+            check(System.currentTimeMillis() < end, "the stalled client never fell behind");
+            for (int batch = 0; batch < 10; batch++) sender.send("TO " + stalled.getId() + " " + line.apply(i++));
+            awaitHandled(sender);
+        }
+    }
+
+    // everything the sender sent has been handled once a message it sends itself comes back
+    private static void awaitHandled(LineClient sender) throws IOException {
+        sender.send("TO " + sender.getId() + " SYNC");
+        check(sender.readUntil(line -> line.endsWith(" SYNC"), 10_000) != null, "the sender got no reply");
+    }
+
+    private static void awaitRemoved(TestServer test, LineClient client) throws InterruptedException {
+        awaitTrue(() -> test.server.getConnection(client.getId()) == null, client.getId() + " was not removed");
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) Thread.sleep(5);
+        check(condition.getAsBoolean(), message);
+    }
+
+    private static void close(LineClient... clients) throws IOException {
+        for (LineClient client : clients) client.close();
+    }
+
+    private static void check(boolean condition, String message) {
+        TestServer.check(condition, message);
+    }
+}
@@ -0,0 +1,91 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * <p>
+ * A server running in the same JVM as a test or benchmark, listening on a free port of the loopback address.
+ * The tests and benchmarks under test/ are plain classes with a main method, so they run without any test
+ * framework (see README.txt). A check that fails throws an AssertionError, which makes the main method exit
+ * with a stack trace.
+ * </p>
+ */
+final class TestServer {
+    final MultiThreadServer server;
+    final int port;
+
+    private TestServer(MultiThreadServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Start a thread-per-client server with the given settings.
+     * @param config the settings of the server
+     * @return the running server
+     * @throws IOException if no port could be bound
+     */
+    static TestServer start(ServerConfig config) throws IOException {
+        return start(config, false);
+    }
+
+    /**
+     * Start a server with the given settings.
+     * @param config the settings of the server
+     * @param nio true for a {@link NioServer} and false for a thread-per-client {@link MultiThreadServer}
+     * @return the running server
+     * @throws IOException if no port could be bound
+     */
+    static TestServer start(ServerConfig config, boolean nio) throws IOException {
+        MultiThreadServer server;
+        int port;
+        if (nio) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+            port = channel.socket().getLocalPort();
+            server = new NioServer(channel, config);
+        } else {
+            ServerSocket sock = new ServerSocket(0, 1024);
+            port = sock.getLocalPort();
+            server = new MultiThreadServer(sock, config);
+        }
+        Thread thread = new Thread(server, "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return new TestServer(server, port);
+    }
+
+    /**
+     * Connect a new client and read its id.
+     * @return the client
+     * @throws IOException if the client could not connect
+     */
+    LineClient connect() throws IOException {
+        return new LineClient("127.0.0.1", port);
+    }
+
+    /**
+     * Stop the server from printing a line for every client that comes and goes, which would drown the results of a
+     * test with many clients.
+     * @return the stream the results should be printed to
+     */
+    static PrintStream quiet() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return out;
+    }
+
+    /**
+     * Throw an AssertionError with the given message unless the condition holds.
+     * @param condition what must be true
+     * @param message what went wrong if it is not
+     */
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
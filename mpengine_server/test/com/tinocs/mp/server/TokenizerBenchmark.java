@@ -0,0 +1,118 @@
+package com.tinocs.mp.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * <p>
+ * Compares how long it takes, and how much it allocates, to work out what a line from a client is, who it is for and
+ * what is relayed, the way the server did it before (a {@link Scanner} per line, then building the relayed message
+ * out of the rest of the line as a String) and the way it does it now ({@link CommandTokenizer} and
+ * {@link ServerCommand#lookup(byte[], int, int)} find offsets into the bytes of the line, only the id of the
+ * recipient is copied out, and the relayed message is encoded straight from the line by
+ * {@link OutboundMessage#relay(byte[], byte[], byte[], int, int)}).
+ * </p>
+ * <p>
+ * The lines are a typical mix: mostly TO_ROOM and broadcast MOVEs, some TO messages and a few room commands.
+ * Each way runs for a few warm-up rounds first so the JIT has compiled it.
+ * </p>
+ */
+public class TokenizerBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int LINES_PER_ROUND = 500_000;
+
+    private static final byte[] SPACE = {' '};
+    private static final byte[] NO_SEPARATOR = {};
+
+    // keeps the results alive so the JIT can't drop the work
+    private static long sink;
+
+    public static void main(String[] args) {
+        String id = MultiThreadServer.generateUUID();
+        String roomId = MultiThreadServer.generateUUID();
+        String[] lines = {
+            "TO_ROOM " + roomId + " MOVE " + id + "-7 412.5 318.25",
+            "TO_ROOM " + roomId + " ROT " + id + "-7 90",
+            "MOVE " + id + "-3 100 200",
+            "TO " + MultiThreadServer.generateUUID() + " FIRE " + id + "-7 12 4",
+            "TO_ROOM " + roomId + " MOVE " + id + "-8 12 99",
+            "JOIN_ROOM " + roomId,
+            "TO_ROOM " + roomId + " MOVE " + id + "-7 413.5 318.25",
+            "LEAVE_ROOM",
+        };
+        byte[][] bytes = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) bytes[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            boolean last = round == ROUNDS;
+            report("scanner", round, last, () -> {
+                for (int i = 0; i < LINES_PER_ROUND; i++) sink += scanner(lines[i % lines.length], id);
+            });
+            report("tokenizer", round, last, () -> {
+                for (int i = 0; i < LINES_PER_ROUND; i++) sink += tokenizer(bytes[i % bytes.length], idBytes);
+            });
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    // what the server did for a line before: the recipient and the message it relays
+    private static int scanner(String cmd, String id) {
+        try (Scanner reader = new Scanner(cmd)) {
+            String first = reader.next();
+            if (first.equals("TO") || first.equals("TO_ROOM")) {
+                String to = reader.next();
+                String message = id + reader.nextLine();
+                return to.length() + message.length();
+            } else if (first.equals("JOIN_ROOM")) {
+                return reader.next().length();
+            } else if (first.equals("LEAVE_ROOM")) {
+                return 1;
+            }
+            return (id + " " + cmd).length();
+        }
+    }
+
+    // what the server does now: the same, from offsets into the bytes of the line
+    private static int tokenizer(byte[] line, byte[] id) {
+        int limit = line.length;
+        int start = CommandTokenizer.skipWhitespace(line, 0, limit);
+        int end = CommandTokenizer.tokenEnd(line, start, limit);
+        ServerCommand command = ServerCommand.lookup(line, start, end);
+        if (command == null) return OutboundMessage.relay(id, SPACE, line, start, limit).length();
+        switch (command) {
+            case TO:
+            case TO_ROOM: {
+                int toStart = CommandTokenizer.skipWhitespace(line, end, limit);
+                int toEnd = CommandTokenizer.tokenEnd(line, toStart, limit);
+                String to = new String(line, toStart, toEnd - toStart, StandardCharsets.UTF_8);
+                return to.length() + OutboundMessage.relay(id, NO_SEPARATOR, line, toEnd, limit).length();
+            }
+            case JOIN_ROOM: {
+                int roomStart = CommandTokenizer.skipWhitespace(line, end, limit);
+                int roomEnd = CommandTokenizer.tokenEnd(line, roomStart, limit);
+                return new String(line, roomStart, roomEnd - roomStart, StandardCharsets.UTF_8).length();
+            }
+            default:
+                return 1;
+        }
+    }
+
+    private static void report(String name, int round, boolean print, Runnable work) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        work.run();
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        String result = String.format("%-9s round %d: %6.1f ns/line %8.1f bytes allocated/line", name, round,
+                (double)nanos / LINES_PER_ROUND, (double)allocated / LINES_PER_ROUND);
+        if (print) {
+            System.out.println(result);
+        } else {
+            System.out.println(result + " (warm-up)");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.tinocs.mp.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Checks the UDP side channel (see {@link UdpChannel}) on the loopback address with the loss simulator dropping
+ * {@value #LOSS_PERCENT} percent of the datagrams in both directions (see {@link ServerConfig#setUdpLossPercent(int)}).
+ * Three clients connect: a sender and a receiver that both register for UDP, and one that only speaks TCP.
+ * </p>
+ * <ul>
+ * 		<li>The sender sends numbered MOVEs in datagrams, each pair in the wrong order. The server must drop every
+ * 		MOVE that arrives after one about the same actor with a higher number, so the MOVEs relayed to the other two
+ * 		clients only ever go forward, and the stats report counts both the stale MOVEs and the lost datagrams.</li>
+ * 		<li>A MOVE about another actor is relayed even if it arrives after a datagram with a higher number.</li>
+ * 		<li>The datagrams sent to the receiver are numbered in the order they were sent.</li>
+ * 		<li>A MOVE too big for a datagram reaches the receiver over TCP instead.</li>
+ * 		<li>Server commands sent in datagrams are ignored, and messages sent over TCP never come back in a datagram.</li>
+ * </ul>
+ */
+public class UdpLossTest {
+    private static final int LOSS_PERCENT = 30;
+    private static final int MOVES = 400;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = TestServer.quiet();
+        ServerConfig config = new ServerConfig();
+        config.setUdpPort(freeUdpPort());
+        config.setUdpLossPercent(LOSS_PERCENT);
+        TestServer test = TestServer.start(config);
+        LineClient sender = test.connect();
+        LineClient receiver = test.connect();
+        LineClient tcpOnly = test.connect();
+        UdpClient senderUdp = new UdpClient(sender);
+        UdpClient receiverUdp = new UdpClient(receiver);
+
+        // every pair of MOVEs is sent newest first, so the second of a pair is stale unless the first was lost
+        for (int seq = 2; seq <= MOVES; seq += 2) {
+            senderUdp.send(seq, "MOVE ship " + seq + " 0");
+            senderUdp.send(seq - 1, "MOVE ship " + (seq - 1) + " 0");
+        }
+        // server commands are only accepted over TCP
+        for (int seq = MOVES + 1; seq <= MOVES + 20; seq++) senderUdp.send(seq, "ADD_ROOM sneaky 4");
+        // the big MOVE and the END mark are sent until they get through the loss simulator
+        String big = "MOVE big " + "x".repeat(UdpChannel.MAX_DATAGRAM) + " 0";
+        int seq = MOVES + 20;
+        String bigLine = null;
+        while (bigLine == null) {
+            TestServer.check(seq < MOVES + 1000, "the big MOVE never reached the receiver");
+            senderUdp.send(++seq, big);
+            bigLine = receiver.readUntil(line -> line.contains(" MOVE big "), 200);
+        }
+        List<String> tcpLines = new ArrayList<>();
+        while (tcpLines.isEmpty() || !tcpLines.get(tcpLines.size() - 1).endsWith(" MOVE ship END 0")) {
+            TestServer.check(seq < MOVES + 2000, "the END mark never reached the TCP client");
+            senderUdp.send(++seq, "MOVE ship END 0");
+            tcpLines.addAll(tcpOnly.drain(100));
+        }
+
+        // a newer datagram about the boat must not make the older one about the raft stale, so sooner or later both
+        // of a pair get through the loss simulator
+        boolean bothRelayed = false;
+        while (!bothRelayed) {
+            TestServer.check(seq < MOVES + 3000, "a MOVE of the raft was never relayed after the one of the boat sent with it");
+            String number = String.valueOf(seq);
+            senderUdp.send(seq + 2, "MOVE boat " + number + " 0");
+            senderUdp.send(seq + 1, "MOVE raft " + number + " 0");
+            seq += 2;
+            List<String> lines = tcpOnly.drain(50);
+            bothRelayed = lines.contains(sender.getId() + " MOVE boat " + number + " 0")
+                    && lines.contains(sender.getId() + " MOVE raft " + number + " 0");
+        }
+
+        List<Integer> relayed = moves(tcpLines, sender.getId());
+        checkForward(relayed, "relayed over TCP");
+        TestServer.check(relayed.size() >= MOVES / 4, "only " + relayed.size() + " of " + MOVES + " MOVEs were relayed");
+        for (String line : tcpLines) {
+            TestServer.check(!line.contains("ROOM_ADDED") && !line.contains("ADD_ROOM"), "a datagram added a room: " + line);
+        }
+        String report = test.server.getStatsReport();
+        TestServer.check(count(report, "udpStale") > 0, "no stale datagram was counted: " + report);
+        TestServer.check(count(report, "udpLost") > 0, "no lost datagram was counted: " + report);
+
+        // reliable messages stay on TCP, both ways
+        sender.send("CHAT hello");
+        TestServer.check(receiver.readUntil(line -> line.equals(sender.getId() + " CHAT hello"), 10_000) != null,
+                "the receiver never got the CHAT over TCP");
+        List<Datagram> datagrams = receiverUdp.drain(300);
+        long lastSeq = 0;
+        List<String> udpLines = new ArrayList<>();
+        for (Datagram datagram : datagrams) {
+            TestServer.check(datagram.seq > lastSeq, "datagram " + datagram.seq + " was sent after " + lastSeq);
+            lastSeq = datagram.seq;
+            udpLines.addAll(datagram.lines);
+        }
+        for (String line : udpLines) {
+            TestServer.check(!line.contains("CHAT") && !line.contains(" MOVE big "), "sent in a datagram: " + line);
+        }
+        List<Integer> viaUdp = moves(udpLines, sender.getId());
+        checkForward(viaUdp, "sent in datagrams");
+        TestServer.check(!viaUdp.isEmpty(), "the receiver got no MOVE in a datagram");
+
+        out.println("PASS: " + relayed.size() + " of " + MOVES + " MOVEs relayed in order, " + viaUdp.size()
+                + " reached the receiver by UDP, the big MOVE fell back to TCP and commands stayed on TCP ("
+                + report.substring(report.indexOf("udpClients")) + ")");
+        System.exit(0);
+    }
+
+    // the numbers of the MOVEs of the ship in the given lines
+    private static List<Integer> moves(List<String> lines, String senderId) {
+        List<Integer> numbers = new ArrayList<>();
+        String prefix = senderId + " MOVE ship ";
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) continue;
+            String number = line.substring(prefix.length(), line.lastIndexOf(' '));
+            if (!number.equals("END")) numbers.add(Integer.parseInt(number));
+        }
+        return numbers;
+    }
+
+    private static void checkForward(List<Integer> numbers, String how) {
+        for (int i = 1; i < numbers.size(); i++) {
+            TestServer.check(numbers.get(i) > numbers.get(i - 1),
+                    "MOVE " + numbers.get(i) + " was " + how + " after MOVE " + numbers.get(i - 1));
+        }
+    }
+
+    private static long count(String report, String name) {
+        Matcher m = Pattern.compile(" " + name + "=(\\d+)").matcher(report);
+        TestServer.check(m.find(), name + " is not in the report: " + report);
+        return Long.parseLong(m.group(1));
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Datagram {
+        final long seq;
+        final List<String> lines = new ArrayList<>();
+
+        Datagram(String text) {
+            String[] parts = text.split("\n");
+            seq = Long.parseLong(parts[0]);
+            for (int i = 1; i < parts.length; i++) lines.add(parts[i]);
+        }
+    }
+
+    // the UDP side of a LineClient, registered the way the client library does it
+    private static final class UdpClient {
+        private final DatagramSocket socket = new DatagramSocket();
+        private final InetSocketAddress server;
+        private final String token;
+
+        UdpClient(LineClient client) throws IOException {
+            client.send("UDP");
+            String answer = client.readUntil(line -> line.startsWith("UDP "), 10_000);
+            TestServer.check(answer != null, "no answer to UDP");
+            String[] parts = answer.split(" ");
+            server = new InetSocketAddress("127.0.0.1", Integer.parseInt(parts[1]));
+            token = parts[2];
+            // a registration can be lost too, so it is sent until the server says it got one
+            for (int tries = 0; ; tries++) {
+                TestServer.check(tries < 100, "never registered for UDP");
+                send(0, null);
+                if (client.readUntil(line -> line.equals("UDP_READY"), 100) != null) break;
+            }
+        }
+
+        void send(long seq, String line) throws IOException {
+            byte[] bytes = (token + " " + seq + "\n" + (line == null ? "" : line)).getBytes(StandardCharsets.UTF_8);
+            socket.send(new DatagramPacket(bytes, bytes.length, server));
+        }
+
+        // every datagram that arrives until none has for the given time
+        List<Datagram> drain(int quietMillis) throws IOException {
+            List<Datagram> datagrams = new ArrayList<>();
+            byte[] buf = new byte[65536];
+            socket.setSoTimeout(quietMillis);
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    return datagrams;
+                }
+                datagrams.add(new Datagram(new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8)));
+            }
+        }
+    }
+}
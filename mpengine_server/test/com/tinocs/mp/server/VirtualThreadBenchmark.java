@@ -0,0 +1,179 @@
+package com.tinocs.mp.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * Compares the thread-per-client engine on platform threads with the same engine on virtual threads (see
+ * {@link ServerConfig#setVirtualThreads(boolean)}) at 1000, 5000 and 20000 clients. For each number of clients and
+ * each mode, a server is started in a JVM of its own, so the heap and thread count it reports are its own, and the
+ * clients connect to it from this JVM. Then every client keeps sending itself messages for a few seconds, so every
+ * thread of the server has work, and the benchmark reports:
+ * </p>
+ * <ul>
+ * 		<li>the messages per second that made the round trip,</li>
+ * 		<li>the heap the server uses with every client connected, after a garbage collection,</li>
+ * 		<li>and the number of platform threads of the server (virtual threads are not counted, which is the point).</li>
+ * </ul>
+ * <p>
+ * Each client needs a file descriptor in both JVMs, so raise the limit first (ulimit -n 25000). A run that can't
+ * connect all of its clients reports how far it got. Virtual threads need Java 21 or later; on an older Java the
+ * server uses platform threads, and the benchmark says so.
+ * </p>
+ * <p>Options:</p>
+ * <ul>
+ * 		<li><b>--clients=N,N,...</b>: the numbers of clients (default 1000,5000,20000)</li>
+ * 		<li><b>--seconds=S</b>: how long the clients send messages in each run (default 5)</li>
+ * </ul>
+ */
+public class VirtualThreadBenchmark {
+    private static final int WORKERS = 16;
+    private static final int TIMEOUT = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(args.length > 1 && args[1].equals("--virtual-threads"));
+            return;
+        }
+        int[] counts = {1_000, 5_000, 20_000};
+        int seconds = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                counts = Arrays.stream(arg.substring("--clients=".length()).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        PrintStream out = TestServer.quiet();
+        for (int clients : counts) {
+            for (boolean virtual : new boolean[] {false, true}) {
+                out.println(run(clients, virtual, seconds));
+            }
+        }
+        System.exit(0);
+    }
+
+    // one number of clients in one mode, against a server in a JVM of its own
+    private static String run(int clients, boolean virtual, int seconds) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), VirtualThreadBenchmark.class.getName(), "--serve"));
+        if (virtual) command.add("--virtual-threads");
+        Process server = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        BufferedReader fromServer = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream toServer = server.getOutputStream();
+        String name = String.format("%6d clients, %8s", clients, virtual ? "virtual" : "platform");
+        String note = "";
+        List<LineClient> connected = new ArrayList<>();
+        try {
+            String[] hello = fromServer.readLine().split(" ");
+            int port = Integer.parseInt(hello[1]);
+            if (hello.length > 2) note = " (platform threads after all: Java " + hello[2] + " has no virtual threads)";
+            String failure = connect(port, clients, connected);
+            if (failure != null) return name + ": only " + connected.size() + " clients connected (" + failure + ")";
+            double perSecond = roundTrips(connected, seconds);
+            toServer.write("REPORT\n".getBytes(StandardCharsets.US_ASCII));
+            toServer.flush();
+            return String.format("%s: %9.0f msg/s, %s%s", name, perSecond, fromServer.readLine(), note);
+        } finally {
+            for (LineClient client : connected) client.close();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // connect the clients from a few threads at once; returns why it stopped early, or null if they all connected
+    private static String connect(int port, int clients, List<LineClient> connected) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WORKERS; w++) {
+            int share = clients / WORKERS + (w < clients % WORKERS ? 1 : 0);
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < share && failure.get() == null; i++) {
+                    try {
+                        LineClient client = new LineClient("127.0.0.1", port);
+                        synchronized (connected) {
+                            connected.add(client);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, String.valueOf(e.getMessage()));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        return failure.get();
+    }
+
+    // every client sends itself a message and waits for it, over and over; returns the round trips per second
+    private static double roundTrips(List<LineClient> clients, int seconds) throws InterruptedException {
+        AtomicLong trips = new AtomicLong();
+        AtomicReference<String> failure = new AtomicReference<>();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WORKERS; w++) {
+            List<LineClient> slice = clients.subList(w * clients.size() / WORKERS, (w + 1) * clients.size() / WORKERS);
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end && failure.get() == null) {
+                        for (LineClient client : slice) client.send("TO " + client.getId() + " BENCH");
+                        for (LineClient client : slice) {
+                            TestServer.check(client.readUntil(line -> line.endsWith(" BENCH"), TIMEOUT) != null,
+                                    client.getId() + " got no reply");
+                        }
+                        trips.addAndGet(slice.size());
+                    }
+                } catch (IOException | AssertionError e) {
+                    failure.compareAndSet(null, e.getMessage());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        TestServer.check(failure.get() == null, failure.get());
+        return trips.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // the server side: print the port, then the heap and threads whenever asked, until this JVM is stopped
+    private static void serve(boolean virtual) throws IOException {
+        PrintStream out = TestServer.quiet();
+        ServerConfig config = new ServerConfig();
+        config.setCompactIds(true);
+        config.setVirtualThreads(virtual);
+        ServerSocket sock = new ServerSocket(0, 4096);
+        MultiThreadServer server = new MultiThreadServer(sock, config);
+        Thread thread = new Thread(server, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        int feature = Runtime.version().feature();
+        out.println("PORT " + sock.getLocalPort() + (virtual && feature < 21 ? " " + feature : ""));
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (in.readLine() != null) {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            out.println("heapUsedMB=" + heapMb + " platformThreads=" + threads);
+        }
+        System.exit(0);
+    }
+}